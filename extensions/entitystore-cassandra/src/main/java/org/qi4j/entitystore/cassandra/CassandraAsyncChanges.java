@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.cassandra;
+
+import org.qi4j.entitystore.map.MapEntityStore;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * Changes to the Cassandra store that are executed without blocking the caller.
+ */
+public interface CassandraAsyncChanges {
+   /**
+    * Applies the changes in the background. The batch mutation is built by the calling thread, and executed by
+    * the writer thread of the store, one batch at a time in the order of the calls; a later applyChanges waits
+    * for the batches before it. When too many batches are waiting, the calling thread waits too. No unit of work
+    * is involved, so there is no concurrent modification check and no state change notification.
+    *
+    * @param changes the changes
+    * @return the future of the batch, which fails with the exception that applyChanges would throw
+    * @throws IOException if the changes can not be serialized
+    * @throws java.util.concurrent.RejectedExecutionException if the store is passivated
+    */
+   Future<Void> applyChangesAsync(MapEntityStore.MapChanges changes) throws IOException;
+}
@@ -27,6 +27,6 @@ import org.qi4j.spi.entitystore.StateChangeNotificationConcern;
         ConcurrentModificationCheckConcern.class})
 @Mixins({MapEntityStoreMixin.class, CassandraMapEntityStoreMixin.class})
 public interface CassandraEntityStoreService extends EntityStateVersions,
-        EntityStore, ServiceComposite {
+        EntityStore, ServiceComposite, CassandraAsyncChanges {
 
 }
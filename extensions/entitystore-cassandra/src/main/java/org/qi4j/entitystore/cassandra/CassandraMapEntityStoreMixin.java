@@ -14,6 +14,7 @@ import org.qi4j.api.injection.scope.Service;
 import org.qi4j.api.io.Input;
 import org.qi4j.api.service.Activatable;
 import org.qi4j.entitystore.map.MapEntityStore;
+import org.qi4j.library.executor.SerialExecutor;
 import org.qi4j.spi.entity.EntityType;
 import org.qi4j.spi.entitystore.EntityAlreadyExistsException;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
@@ -30,6 +31,8 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -41,7 +44,7 @@ import static me.prettyprint.hector.api.factory.HFactory.*;
  * @author pvdyck
  * @since 4.0
  */
-public class CassandraMapEntityStoreMixin implements MapEntityStore, Activatable {
+public class CassandraMapEntityStoreMixin implements MapEntityStore, Activatable, CassandraAsyncChanges {
    private static final String COLUMN_NAME = "entry";
    private final Logger logger = LoggerFactory.getLogger(CassandraMapEntityStoreMixin.class);
 
@@ -50,8 +53,12 @@ public class CassandraMapEntityStoreMixin implements MapEntityStore, Activatable
 
    static final int BYTE_ARRAY_BUFFER_INITIAL_SIZE = 512;
 
+   private static final int ASYNC_QUEUE_SIZE = 64;
+   private static final long ASYNC_SHUTDOWN_TIMEOUT = 60000;
+
    Cluster c;
    Keyspace ko;
+   private SerialExecutor asyncWriter;
 
 
    private static final StringSerializer se = new StringSerializer();
@@ -65,16 +72,40 @@ public class CassandraMapEntityStoreMixin implements MapEntityStore, Activatable
    public void activate() throws Exception {
       c = HFactory.getOrCreateCluster("Qi4jCluster", conf.getHost() + ":" + conf.getPort());
       ko = HFactory.createKeyspace(keySpace, c);
+      asyncWriter = new SerialExecutor("Cassandra EntityStore", ASYNC_QUEUE_SIZE);
       logger.info("started cassandra store");
    }
 
 
    public void passivate() throws Exception {
       logger.info("shutting down cassandra");
+      asyncWriter.close(ASYNC_SHUTDOWN_TIMEOUT);
    }
 
 
    public void applyChanges(final MapChanges changes) throws IOException {
+      MapUpdater changer = collect(changes);
+      asyncWriter.awaitSubmitted();
+      execute(changer);
+   }
+
+
+   public Future<Void> applyChangesAsync(final MapChanges changes) throws IOException {
+      asyncWriter.checkOpen();
+      final MapUpdater changer = collect(changes);
+      return asyncWriter.submit(new Callable<Void>() {
+         public Void call() {
+            execute(changer);
+            return null;
+         }
+      });
+   }
+
+
+   /**
+    * Serializes the changes into a batch mutation, without executing it.
+    */
+   private MapUpdater collect(final MapChanges changes) throws IOException {
       if (conf.readOnly()) {
          throw new EntityStoreException("Read-only Entity Store");
       }
@@ -82,7 +113,16 @@ public class CassandraMapEntityStoreMixin implements MapEntityStore, Activatable
       try {
          final MapUpdater changer = new MapUpdater();
          changes.visitMap(changer);
+         return changer;
+      } catch (Throwable e) {
+         throw new EntityStoreException("Exception during cassandra batch "
+                                              + " - ", e);
+      }
+   }
+
 
+   private void execute(MapUpdater changer) {
+      try {
          MutationResult result = changer.m.execute();
 
          logger.info("applying changes to cassandra store " + result.getExecutionTimeMicro() + " / " + result.getHostUsed());
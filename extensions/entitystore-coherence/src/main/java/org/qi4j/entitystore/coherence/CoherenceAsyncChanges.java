@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.qi4j.entitystore.coherence;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import org.qi4j.entitystore.map.MapEntityStore;
+
+/**
+ * Changes to the Coherence store that are written without blocking the caller.
+ */
+public interface CoherenceAsyncChanges
+{
+    /**
+     * Applies the changes in the background. The entity states are serialized by the calling thread, and written
+     * to the cache by the writer thread of the store, in the order of the calls. A later applyChanges waits for the
+     * writes that were given before it. When too many writes are waiting, the calling thread waits as well.
+     * The changes bypass the unit of work, so there is no concurrent modification check and no notification.
+     *
+     * @param changes The changes.
+     * @return The future of the write, which fails with the exception that applyChanges would throw.
+     * @throws IOException if the changes can not be serialized.
+     * @throws java.util.concurrent.RejectedExecutionException if the store is passivated.
+     */
+    Future<Void> applyChangesAsync( MapEntityStore.MapChanges changes )
+        throws IOException;
+}
@@ -24,11 +24,15 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReadWriteLock;
 import org.qi4j.api.configuration.Configuration;
 import org.qi4j.api.entity.EntityReference;
@@ -36,14 +40,19 @@ import org.qi4j.api.injection.scope.This;
 import org.qi4j.api.injection.scope.Uses;
 import org.qi4j.api.service.Activatable;
 import org.qi4j.entitystore.map.MapEntityStore;
+import org.qi4j.library.executor.SerialExecutor;
+import org.qi4j.library.utf8.PooledUtf8Writer;
 import org.qi4j.spi.entity.EntityType;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
 import org.qi4j.spi.entitystore.EntityStoreException;
 import org.qi4j.spi.service.ServiceDescriptor;
 
 public class CoherenceEntityStoreMixin
-    implements Activatable, MapEntityStore, DatabaseExport, DatabaseImport
+    implements Activatable, MapEntityStore, DatabaseExport, DatabaseImport, CoherenceAsyncChanges
 {
+    private static final int ASYNC_QUEUE_SIZE = 64;
+    private static final long ASYNC_SHUTDOWN_TIMEOUT = 60000;
+
     @This
     private ReadWriteLock lock;
 
@@ -54,6 +63,7 @@ public class CoherenceEntityStoreMixin
     private ServiceDescriptor descriptor;
 
     private NamedCache cache;
+    private SerialExecutor asyncWriter;
 
     // Activatable implementation
     public void activate()
@@ -61,11 +71,13 @@ public class CoherenceEntityStoreMixin
     {
         String cacheName = config.configuration().cacheName().get();
         cache = CacheFactory.getCache( cacheName );
+        asyncWriter = new SerialExecutor( descriptor.identity(), ASYNC_QUEUE_SIZE );
     }
 
     public void passivate()
         throws Exception
     {
+        asyncWriter.close( ASYNC_SHUTDOWN_TIMEOUT );
         cache.destroy();
     }
 
@@ -92,6 +104,38 @@ public class CoherenceEntityStoreMixin
     public void applyChanges( MapChanges changes )
         throws IOException
     {
+        Map<String, byte[]> states = collect( changes );
+        asyncWriter.awaitSubmitted();
+        write( states );
+    }
+
+    public Future<Void> applyChangesAsync( MapChanges changes )
+        throws IOException
+    {
+        asyncWriter.checkOpen();
+        final Map<String, byte[]> states = collect( changes );
+        return asyncWriter.submit( new Callable<Void>()
+        {
+            public Void call()
+                throws IOException
+            {
+                write( states );
+                return null;
+            }
+        } );
+    }
+
+    /**
+     * Serializes the changes, without writing them to the cache.
+     *
+     * @param changes The changes.
+     * @return The new states by identity, with null for the removed entities.
+     * @throws IOException if the changes can not be serialized.
+     */
+    private Map<String, byte[]> collect( MapChanges changes )
+        throws IOException
+    {
+        final Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
         try
         {
             changes.visitMap( new MapChanger()
@@ -99,16 +143,11 @@ public class CoherenceEntityStoreMixin
                 public Writer newEntity( final EntityReference ref, EntityType entityType )
                     throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override
-                        public void close()
-                            throws IOException
+                        protected void closed( byte[] buffer, int length )
                         {
-                            super.close();
-
-                            byte[] stateArray = toString().getBytes( "UTF-8" );
-                            cache.put( ref.identity(), stateArray );
+                            states.put( ref.identity(), Arrays.copyOf( buffer, length ) );
                         }
                     };
                 }
@@ -116,15 +155,11 @@ public class CoherenceEntityStoreMixin
                 public Writer updateEntity( final EntityReference ref, EntityType entityType )
                     throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override
-                        public void close()
-                            throws IOException
+                        protected void closed( byte[] buffer, int length )
                         {
-                            super.close();
-                            byte[] stateArray = toString().getBytes( "UTF-8" );
-                            cache.put( ref.identity(), stateArray );
+                            states.put( ref.identity(), Arrays.copyOf( buffer, length ) );
                         }
                     };
                 }
@@ -132,26 +167,58 @@ public class CoherenceEntityStoreMixin
                 public void removeEntity( EntityReference ref, EntityType entityType )
                     throws EntityNotFoundException
                 {
-                    cache.remove( ref.identity() );
+                    states.put( ref.identity(), null );
                 }
             } );
         }
         catch( Exception e )
         {
-            if( e instanceof IOException )
-            {
-                throw (IOException) e;
-            }
-            else if( e instanceof EntityStoreException )
-            {
-                throw (EntityStoreException) e;
-            }
-            else
+            throw rethrow( e );
+        }
+        return states;
+    }
+
+    private void write( Map<String, byte[]> states )
+        throws IOException
+    {
+        try
+        {
+            // Each identity is changed once, so the new states can be put in a single call.
+            Map<String, byte[]> puts = new HashMap<String, byte[]>();
+            for( Map.Entry<String, byte[]> state : states.entrySet() )
             {
-                IOException exception = new IOException();
-                exception.initCause( e );
-                throw exception;
+                if( state.getValue() == null )
+                {
+                    cache.remove( state.getKey() );
+                }
+                else
+                {
+                    puts.put( state.getKey(), state.getValue() );
+                }
             }
+            cache.putAll( puts );
+        }
+        catch( Exception e )
+        {
+            throw rethrow( e );
+        }
+    }
+
+    private static IOException rethrow( Exception e )
+    {
+        if( e instanceof IOException )
+        {
+            return (IOException) e;
+        }
+        else if( e instanceof EntityStoreException )
+        {
+            throw (EntityStoreException) e;
+        }
+        else
+        {
+            IOException exception = new IOException();
+            exception.initCause( e );
+            return exception;
         }
     }
 
@@ -23,6 +23,7 @@ import org.qi4j.api.io.Output;
 import org.qi4j.api.io.Receiver;
 import org.qi4j.api.io.Sender;
 import org.qi4j.entitystore.map.MapEntityStore;
+import org.qi4j.library.utf8.PooledUtf8Writer;
 import org.qi4j.library.spaces.Space;
 import org.qi4j.spi.entity.EntityType;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
@@ -81,14 +82,13 @@ public class JavaSpacesEntityStoreMixin
                 public Writer newEntity( final EntityReference ref, EntityType entityType )
                     throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override
-                        public void close()
+                        protected void closed( byte[] buffer, int length )
                             throws IOException
                         {
-                            super.close();
-                            String stateData = toString();
+                            // The Space holds Strings, so the state is decoded from the buffer once.
+                            String stateData = new String( buffer, 0, length, "UTF-8" );
                             String indexKey = ref.toString();
                             space.takeIfExists( indexKey );
                             space.write( indexKey, stateData );
@@ -99,14 +99,12 @@ public class JavaSpacesEntityStoreMixin
                 public Writer updateEntity( final EntityReference ref, EntityType entityType )
                     throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override
-                        public void close()
+                        protected void closed( byte[] buffer, int length )
                             throws IOException
                         {
-                            super.close();
-                            String stateData = toString();
+                            String stateData = new String( buffer, 0, length, "UTF-8" );
                             String indexKey = ref.toString();
                             space.takeIfExists( indexKey );
                             space.write( indexKey, stateData );
@@ -18,9 +18,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.BlobStoreContextFactory;
@@ -30,20 +33,28 @@ import org.qi4j.api.entity.EntityReference;
 import org.qi4j.api.service.Activatable;
 import org.qi4j.api.unitofwork.NoSuchEntityException;
 import org.qi4j.entitystore.map.MapEntityStore;
+import org.qi4j.library.executor.SerialExecutor;
+import org.qi4j.library.utf8.PooledUtf8Writer;
 import org.qi4j.spi.entity.EntityType;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
 import org.qi4j.spi.entitystore.EntityStoreException;
 
 public class JCloudsMapEntityStoreMixin
-        implements Activatable, MapEntityStore
+        implements Activatable, MapEntityStore, JCloudsAsyncChanges
 {
 
     private static final String CONTAINER_NAME = "qi4j-data";
 
+    private static final int ASYNC_QUEUE_SIZE = 64;
+
+    private static final long ASYNC_SHUTDOWN_TIMEOUT = 60000;
+
     private BlobStoreContext blobStoreContext;
 
     private InputStreamMap map;
 
+    private SerialExecutor asyncWriter;
+
     public void activate()
             throws Exception
     {
@@ -52,11 +63,13 @@ public class JCloudsMapEntityStoreMixin
             throw new EntityStoreException( "Container '" + CONTAINER_NAME + "' did not exists in BlobStore and could not be created." );
         }
         map = blobStoreContext.createInputStreamMap( CONTAINER_NAME );
+        asyncWriter = new SerialExecutor( "JClouds EntityStore", ASYNC_QUEUE_SIZE );
     }
 
     public void passivate()
             throws Exception
     {
+        asyncWriter.close( ASYNC_SHUTDOWN_TIMEOUT );
         blobStoreContext.close();
     }
 
@@ -100,21 +113,49 @@ public class JCloudsMapEntityStoreMixin
     public void applyChanges( MapChanges changes )
             throws IOException
     {
+        Map<String, byte[]> states = collect( changes );
+        asyncWriter.awaitSubmitted();
+        write( states );
+    }
+
+    public Future<Void> applyChangesAsync( MapChanges changes )
+            throws IOException
+    {
+        asyncWriter.checkOpen();
+        final Map<String, byte[]> states = collect( changes );
+        return asyncWriter.submit( new Callable<Void>()
+        {
+
+            public Void call()
+            {
+                write( states );
+                return null;
+            }
+
+        } );
+    }
+
+    /**
+     * Serializes the changes, without writing them to the BlobStore.
+     *
+     * @return The new states by identity, in the order of the changes, with null for the removed entities.
+     */
+    private Map<String, byte[]> collect( MapChanges changes )
+            throws IOException
+    {
+        final Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
         changes.visitMap( new MapChanger()
         {
 
             public Writer newEntity( final EntityReference ref, EntityType entityType )
                     throws IOException
             {
-                return new StringWriter( 1000 )
+                return new PooledUtf8Writer()
                 {
 
-                    @Override
-                    public void close()
-                            throws IOException
+                    protected void closed( byte[] buffer, int length )
                     {
-                        super.close();
-                        map.putString( ref.identity(), toString() );
+                        states.put( ref.identity(), Arrays.copyOf( buffer, length ) );
                     }
 
                 };
@@ -123,15 +164,12 @@ public class JCloudsMapEntityStoreMixin
             public Writer updateEntity( final EntityReference ref, EntityType entityType )
                     throws IOException
             {
-                return new StringWriter( 1000 )
+                return new PooledUtf8Writer()
                 {
 
-                    @Override
-                    public void close()
-                            throws IOException
+                    protected void closed( byte[] buffer, int length )
                     {
-                        super.close();
-                        map.putString( ref.identity(), toString() );
+                        states.put( ref.identity(), Arrays.copyOf( buffer, length ) );
                     }
 
                 };
@@ -140,10 +178,22 @@ public class JCloudsMapEntityStoreMixin
             public void removeEntity( EntityReference ref, EntityType entityType )
                     throws EntityNotFoundException
             {
-                map.remove( ref.identity() );
+                states.put( ref.identity(), null );
             }
 
         } );
+        return states;
+    }
+
+    private void write( Map<String, byte[]> states )
+    {
+        for ( Map.Entry<String, byte[]> state : states.entrySet() ) {
+            if ( state.getValue() == null ) {
+                map.remove( state.getKey() );
+            } else {
+                map.putBytes( state.getKey(), state.getValue() );
+            }
+        }
     }
 
     private CharSequence readInputStream( InputStream is )
@@ -33,6 +33,7 @@ public interface JCloudsMapEntityStoreService
                 ServiceComposite,
                 Activatable,
                 LockingAbstractComposite,
-                Configuration
+                Configuration,
+                JCloudsAsyncChanges
 {
 }
@@ -26,31 +26,45 @@ import org.qi4j.api.io.Receiver;
 import org.qi4j.api.io.Sender;
 import org.qi4j.api.service.Activatable;
 import org.qi4j.entitystore.map.MapEntityStore;
+import org.qi4j.library.executor.SerialExecutor;
+import org.qi4j.library.utf8.PooledUtf8Writer;
 import org.qi4j.spi.entity.EntityType;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
 import org.qi4j.spi.entitystore.EntityStoreException;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * JGroups implementation of EntityStore
  */
 public class JGroupsEntityStoreMixin
-        implements Activatable, MapEntityStore
+        implements Activatable, MapEntityStore, JGroupsAsyncChanges
 {
+    private static final int ASYNC_QUEUE_SIZE = 64;
+    private static final long ASYNC_SHUTDOWN_TIMEOUT = 60000;
+
     private JChannel channel;
-    private ReplicatedHashMap<String, String> replicatedMap;
+    // The states are replicated as UTF-8, which is what they are serialized to.
+    private ReplicatedHashMap<String, byte[]> replicatedMap;
+    private SerialExecutor asyncWriter;
 
     public void activate() throws Exception
     {
         channel = new JChannel();
         channel.connect( "entitystore" );
-        replicatedMap = new ReplicatedHashMap<String, String>( channel, false );
+        replicatedMap = new ReplicatedHashMap<String, byte[]>( channel, false );
         replicatedMap.setBlockingUpdates( true );
+        asyncWriter = new SerialExecutor( "JGroups EntityStore", ASYNC_QUEUE_SIZE );
     }
 
     public void passivate() throws Exception
     {
+        asyncWriter.close( ASYNC_SHUTDOWN_TIMEOUT );
         channel.close();
     }
 
@@ -59,12 +73,17 @@ public class JGroupsEntityStoreMixin
     {
         try
         {
-            String data = replicatedMap.get( entityReference.identity() );
+            byte[] data = replicatedMap.get( entityReference.identity() );
             if (data == null)
             {
                 throw new EntityNotFoundException( entityReference );
             }
-            return new StringReader( data );
+            return new StringReader( new String( data, "UTF-8" ) );
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Can not happen.
+            throw new InternalError();
         }
         catch (RuntimeException e)
         {
@@ -82,9 +101,9 @@ public class JGroupsEntityStoreMixin
                 {
                     public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<Reader, ReceiverThrowableType> receiver ) throws ReceiverThrowableType, IOException
                     {
-                        for (String json : replicatedMap.values())
+                        for (byte[] json : replicatedMap.values())
                         {
-                            receiver.receive( new StringReader(json) );
+                            receiver.receive( new StringReader( new String( json, "UTF-8" ) ) );
                         }
                     }
                 } );
@@ -94,43 +113,64 @@ public class JGroupsEntityStoreMixin
 
     public void applyChanges( MapChanges changes ) throws IOException
     {
+        Map<String, byte[]> states = collect( changes );
+        asyncWriter.awaitSubmitted();
+        write( states );
+    }
+
+    public Future<Void> applyChangesAsync( MapChanges changes ) throws IOException
+    {
+        asyncWriter.checkOpen();
+        final Map<String, byte[]> states = collect( changes );
+        return asyncWriter.submit( new Callable<Void>()
+        {
+            public Void call() throws IOException
+            {
+                write( states );
+                return null;
+            }
+        } );
+    }
+
+    /**
+     * Serializes the changes, without replicating them.
+     *
+     * @param changes The changes.
+     * @return The new states by identity, in the order of the changes, with null for the removed entities.
+     * @throws IOException if the changes can not be serialized.
+     */
+    private Map<String, byte[]> collect( MapChanges changes ) throws IOException
+    {
+        final Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
         try
         {
             changes.visitMap( new MapChanger()
             {
                 public Writer newEntity( final EntityReference ref, EntityType entityType ) throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override
-                        public void close() throws IOException
+                        protected void closed( byte[] buffer, int length )
                         {
-                            super.close();
-                            String value = toString();
-                            String key = ref.identity();
-                            replicatedMap.put( key, value );
+                            states.put( ref.identity(), Arrays.copyOf( buffer, length ) );
                         }
                     };
                 }
 
                 public Writer updateEntity( final EntityReference ref, EntityType entityType ) throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override
-                        public void close() throws IOException
+                        protected void closed( byte[] buffer, int length )
                         {
-                            super.close();
-                            String value = toString();
-                            String key = ref.identity();
-                            replicatedMap.put( key, value );
+                            states.put( ref.identity(), Arrays.copyOf( buffer, length ) );
                         }
                     };
                 }
 
                 public void removeEntity( EntityReference ref, EntityType entityType ) throws EntityNotFoundException
                 {
-                    replicatedMap.remove( ref.identity() );
+                    states.put( ref.identity(), null );
                 }
             } );
         }
@@ -140,5 +180,30 @@ public class JGroupsEntityStoreMixin
             exception.initCause( e );
             throw exception;
         }
+        return states;
+    }
+
+    private void write( Map<String, byte[]> states ) throws IOException
+    {
+        try
+        {
+            for (Map.Entry<String, byte[]> state : states.entrySet())
+            {
+                if (state.getValue() == null)
+                {
+                    replicatedMap.remove( state.getKey() );
+                }
+                else
+                {
+                    replicatedMap.put( state.getKey(), state.getValue() );
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            IOException exception = new IOException();
+            exception.initCause( e );
+            throw exception;
+        }
     }
 }
\ No newline at end of file
@@ -34,7 +34,7 @@ import org.qi4j.spi.entitystore.StateChangeNotificationConcern;
 @Concerns({ StateChangeNotificationConcern.class, ConcurrentModificationCheckConcern.class})
 @Mixins({ MapEntityStoreMixin.class, JGroupsEntityStoreMixin.class})
 public interface JGroupsEntityStoreService
-    extends EntityStore, ServiceComposite, Activatable, LockingAbstractComposite
+    extends EntityStore, ServiceComposite, Activatable, LockingAbstractComposite, JGroupsAsyncChanges
 
 {
 }
\ No newline at end of file
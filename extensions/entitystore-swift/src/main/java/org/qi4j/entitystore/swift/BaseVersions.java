@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entitystore.EntityStoreUnitOfWork;
+
+/**
+ * The instanceVersions that the units of work loaded their entities with, and the base versions of the unit of
+ * work that each thread is committing. A load is recorded in the thread that the SwiftVersionCheckConcern loads the
+ * entity in, for the unit of work, so the commit doesn't depend on which thread loaded the entities.
+ * <p/>
+ * The versions of a unit of work are kept until it is committed, or, if it is discarded, until it is garbage.
+ */
+class BaseVersions
+{
+    private final Map<EntityStoreUnitOfWork, Map<EntityReference, Long>> loaded =
+        new WeakHashMap<EntityStoreUnitOfWork, Map<EntityReference, Long>>();
+    private final ThreadLocal<EntityStoreUnitOfWork> loading = new ThreadLocal<EntityStoreUnitOfWork>();
+    private final ThreadLocal<Map<EntityReference, Long>> committing = new ThreadLocal<Map<EntityReference, Long>>();
+
+    void beginLoad( EntityStoreUnitOfWork unitOfWork )
+    {
+        loading.set( unitOfWork );
+    }
+
+    void endLoad()
+    {
+        loading.remove();
+    }
+
+    /**
+     * Records the instanceVersion that an entity was read with, if it is loaded by a unit of work.
+     *
+     * @param reference       The entity.
+     * @param instanceVersion The instanceVersion in the header of its block.
+     */
+    void read( EntityReference reference, long instanceVersion )
+    {
+        EntityStoreUnitOfWork unitOfWork = loading.get();
+        if( unitOfWork == null )
+        {
+            return;
+        }
+        synchronized( loaded )
+        {
+            Map<EntityReference, Long> versions = loaded.get( unitOfWork );
+            if( versions == null )
+            {
+                versions = new HashMap<EntityReference, Long>();
+                loaded.put( unitOfWork, versions );
+            }
+            versions.put( reference, instanceVersion );
+        }
+    }
+
+    /**
+     * @param unitOfWork The unit of work.
+     * @param reference  The entity.
+     * @return The instanceVersion that the unit of work loaded the entity with, or CommitRequest.NO_VERSION if it
+     *         didn't load it from the store.
+     */
+    long loaded( EntityStoreUnitOfWork unitOfWork, EntityReference reference )
+    {
+        synchronized( loaded )
+        {
+            Map<EntityReference, Long> versions = loaded.get( unitOfWork );
+            Long version = versions == null ? null : versions.get( reference );
+            return version == null ? CommitRequest.NO_VERSION : version;
+        }
+    }
+
+    void forget( EntityStoreUnitOfWork unitOfWork )
+    {
+        synchronized( loaded )
+        {
+            loaded.remove( unitOfWork );
+        }
+    }
+
+    void begin( Map<EntityReference, Long> versions )
+    {
+        committing.set( versions );
+    }
+
+    void end()
+    {
+        committing.remove();
+    }
+
+    /**
+     * @param reference The entity that is changed.
+     * @return The instanceVersion that the change is based on, or CommitRequest.NO_VERSION if the changes are not
+     *         made by a unit of work, and are written without a check.
+     */
+    long expected( EntityReference reference )
+    {
+        Map<EntityReference, Long> versions = committing.get();
+        Long version = versions == null ? null : versions.get( reference );
+        return version == null ? CommitRequest.NO_VERSION : version;
+    }
+}
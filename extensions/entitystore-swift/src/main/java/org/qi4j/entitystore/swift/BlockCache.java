@@ -0,0 +1,246 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.qi4j.api.entity.EntityReference;
+
+/**
+ * Bounded cache of recently read DataBlocks, sized by the number of bytes that the blocks hold on to.
+ * <p/>
+ * The eviction policy is a segmented LRU. New blocks go into the probation segment, and are promoted to the
+ * protected segment when they are read again. The protected segment holds at most 80% of the capacity, and blocks
+ * falling out of it go back to probation. Blocks are evicted from probation first, so a scan through the store
+ * can't push out the blocks that are read over and over again.
+ * <p/>
+ * Reads don't lock. A read looks the block up in a concurrent map and only marks it as referenced. The segments are
+ * reordered when blocks are put, under the lock of the cache: a referenced block at the head of probation is
+ * promoted instead of evicted, and one at the head of the protected segment gets a second chance instead of being
+ * demoted. Concurrent readers therefore don't queue up behind each other on a hit.
+ */
+class BlockCache
+{
+    // Rough size of the entry, the DataBlock and the decoded state, besides the bytes of the data.
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final long capacity;
+    private final long protectedCapacity;
+    private final ConcurrentHashMap<EntityReference, Entry> entries;
+    // Both segments are in the order that the blocks entered them, and are guarded by the lock of the cache.
+    private final LinkedHashMap<EntityReference, Entry> probation;
+    private final LinkedHashMap<EntityReference, Entry> protectedBlocks;
+    private long probationSize;
+    private long protectedSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    BlockCache( long capacity )
+    {
+        this.capacity = capacity;
+        protectedCapacity = capacity * 4 / 5;
+        entries = new ConcurrentHashMap<EntityReference, Entry>( 256 );
+        probation = new LinkedHashMap<EntityReference, Entry>( 256 );
+        protectedBlocks = new LinkedHashMap<EntityReference, Entry>( 256 );
+    }
+
+    DataBlock get( EntityReference reference )
+    {
+        Entry entry = entries.get( reference );
+        if( entry == null )
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if( !entry.referenced )
+        {
+            // Only written when it changes, so that readers of a hot block don't keep writing the same line.
+            entry.referenced = true;
+        }
+        return entry.block;
+    }
+
+    /**
+     * Adds the block to the cache, or replaces the block that is already cached for the same reference.
+     *
+     * @param block The block to cache.
+     */
+    synchronized void put( DataBlock block )
+    {
+        long weight = weight( block );
+        if( weight > capacity )
+        {
+            remove( block.reference );
+            return;
+        }
+        Entry entry = new Entry( block, weight );
+        Entry existing = entries.put( block.reference, entry );
+        if( existing != null && existing.inProtected )
+        {
+            entry.referenced = existing.referenced;
+            entry.inProtected = true;
+            protectedBlocks.remove( block.reference );
+            protectedBlocks.put( block.reference, entry );
+            protectedSize = protectedSize - existing.weight + weight;
+            demote();
+        }
+        else
+        {
+            if( existing != null )
+            {
+                entry.referenced = existing.referenced;
+                probation.remove( block.reference );
+                probationSize = probationSize - existing.weight;
+            }
+            probation.put( block.reference, entry );
+            probationSize = probationSize + weight;
+        }
+        evict();
+    }
+
+    synchronized void remove( EntityReference reference )
+    {
+        Entry entry = entries.remove( reference );
+        if( entry == null )
+        {
+            return;
+        }
+        if( entry.inProtected )
+        {
+            protectedBlocks.remove( reference );
+            protectedSize = protectedSize - entry.weight;
+        }
+        else
+        {
+            probation.remove( reference );
+            probationSize = probationSize - entry.weight;
+        }
+    }
+
+    synchronized void clear()
+    {
+        entries.clear();
+        probation.clear();
+        protectedBlocks.clear();
+        probationSize = 0;
+        protectedSize = 0;
+    }
+
+    long hits()
+    {
+        return hits.get();
+    }
+
+    long misses()
+    {
+        return misses.get();
+    }
+
+    long evictions()
+    {
+        return evictions.get();
+    }
+
+    synchronized long size()
+    {
+        return probationSize + protectedSize;
+    }
+
+    private void demote()
+    {
+        // Each block gets one second chance at most, so that readers can't keep the loop going.
+        int chances = protectedBlocks.size();
+        while( protectedSize > protectedCapacity && !protectedBlocks.isEmpty() )
+        {
+            Entry entry = eldest( protectedBlocks );
+            protectedBlocks.remove( entry.block.reference );
+            if( entry.referenced && chances-- > 0 )
+            {
+                entry.referenced = false;
+                protectedBlocks.put( entry.block.reference, entry );
+                continue;
+            }
+            protectedSize = protectedSize - entry.weight;
+            entry.inProtected = false;
+            probation.put( entry.block.reference, entry );
+            probationSize = probationSize + entry.weight;
+        }
+    }
+
+    private void evict()
+    {
+        // A block that was read again while on probation is promoted rather than evicted, once.
+        int chances = probation.size();
+        while( probationSize + protectedSize > capacity && !probation.isEmpty() )
+        {
+            Entry entry = eldest( probation );
+            probation.remove( entry.block.reference );
+            probationSize = probationSize - entry.weight;
+            if( entry.referenced && chances-- > 0 )
+            {
+                entry.referenced = false;
+                entry.inProtected = true;
+                protectedBlocks.put( entry.block.reference, entry );
+                protectedSize = protectedSize + entry.weight;
+                demote();
+                continue;
+            }
+            entries.remove( entry.block.reference );
+            evictions.incrementAndGet();
+        }
+        while( probationSize + protectedSize > capacity && !protectedBlocks.isEmpty() )
+        {
+            Entry entry = eldest( protectedBlocks );
+            protectedBlocks.remove( entry.block.reference );
+            protectedSize = protectedSize - entry.weight;
+            entries.remove( entry.block.reference );
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static Entry eldest( LinkedHashMap<EntityReference, Entry> segment )
+    {
+        Map.Entry<EntityReference, Entry> eldest = segment.entrySet().iterator().next();
+        return eldest.getValue();
+    }
+
+    private static long weight( DataBlock block )
+    {
+        // The data, and the String that it decodes to.
+        return ENTRY_OVERHEAD + block.data.length * 3L;
+    }
+
+    private static final class Entry
+    {
+        private final DataBlock block;
+        private final long weight;
+        // Set by readers without the lock, and cleared when the segments are reordered.
+        private volatile boolean referenced;
+        private boolean inProtected;
+
+        private Entry( DataBlock block, long weight )
+        {
+            this.block = block;
+            this.weight = weight;
+        }
+    }
+}
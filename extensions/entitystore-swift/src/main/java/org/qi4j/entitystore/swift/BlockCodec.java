@@ -0,0 +1,202 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the data in the heap blocks.
+ * <p/>
+ * Compressed data is stored as the length of the uncompressed data in 4 bytes, followed by the deflated data. If
+ * a dictionary is given, it is used as the preset dictionary of the deflater. That works well for entity states,
+ * as they share most of their property names and values with the other entities of the same type. The blocks
+ * written with a dictionary can only be read with the same dictionary.
+ * <p/>
+ * Data that doesn't become smaller is stored as is, with the {@link #NONE} codec.
+ */
+class BlockCodec
+{
+    static final int NONE = 0;
+    static final int DEFLATE = 1;
+    static final int DEFLATE_DICTIONARY = 2;
+
+    // Below this, the deflate header and the length eat up what can be saved.
+    private static final int MIN_COMPRESSION_SIZE = 64;
+
+    private final byte[] dictionary;
+    private final Deflater deflater;
+    private final LinkedList<Inflater> inflaters;
+    private byte[] buffer;
+
+    /**
+     * @param level      The deflate level, 1 to 9, or 0 to only decompress.
+     * @param dictionary The preset dictionary, or null.
+     */
+    BlockCodec( int level, byte[] dictionary )
+    {
+        this.dictionary = dictionary;
+        deflater = level > 0 ? new Deflater( Math.min( level, Deflater.BEST_COMPRESSION ) ) : null;
+        inflaters = new LinkedList<Inflater>();
+        buffer = new byte[1024];
+    }
+
+    /**
+     * @return The codec id that {@link #encode(byte[])} compresses with.
+     */
+    int codec()
+    {
+        return dictionary == null ? DEFLATE : DEFLATE_DICTIONARY;
+    }
+
+    /**
+     * @param data The data to compress.
+     * @return The compressed data, or null if compression is disabled, or the data doesn't become smaller.
+     */
+    synchronized byte[] encode( byte[] data )
+    {
+        if( deflater == null || data.length < MIN_COMPRESSION_SIZE )
+        {
+            return null;
+        }
+        if( buffer.length < data.length )
+        {
+            buffer = new byte[data.length];
+        }
+        deflater.reset();
+        if( dictionary != null )
+        {
+            deflater.setDictionary( dictionary );
+        }
+        deflater.setInput( data );
+        deflater.finish();
+        int length = 4;
+        while( !deflater.finished() && length < data.length )
+        {
+            length = length + deflater.deflate( buffer, length, data.length - length );
+        }
+        if( !deflater.finished() || length >= data.length )
+        {
+            return null;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy( buffer, 4, result, 4, length - 4 );
+        result[ 0 ] = (byte) ( data.length >>> 24 );
+        result[ 1 ] = (byte) ( data.length >>> 16 );
+        result[ 2 ] = (byte) ( data.length >>> 8 );
+        result[ 3 ] = (byte) data.length;
+        return result;
+    }
+
+    /**
+     * @param codec  The codec that the data was stored with.
+     * @param stored The data as stored in the block.
+     * @return The original data.
+     * @throws IOException if the data is corrupt, or the codec or the dictionary is unknown.
+     */
+    byte[] decode( int codec, byte[] stored )
+        throws IOException
+    {
+        if( codec == NONE )
+        {
+            return stored;
+        }
+        if( codec != DEFLATE && codec != DEFLATE_DICTIONARY )
+        {
+            throw new IOException( "Unknown block codec: " + codec );
+        }
+        int length = ( ( stored[ 0 ] & 0xFF ) << 24 ) | ( ( stored[ 1 ] & 0xFF ) << 16 )
+                     | ( ( stored[ 2 ] & 0xFF ) << 8 ) | ( stored[ 3 ] & 0xFF );
+        byte[] data = new byte[length];
+        Inflater inflater = borrowInflater();
+        try
+        {
+            inflater.setInput( stored, 4, stored.length - 4 );
+            int done = 0;
+            while( done < length )
+            {
+                int count = inflater.inflate( data, done, length - done );
+                if( count == 0 )
+                {
+                    if( inflater.needsDictionary() )
+                    {
+                        if( dictionary == null )
+                        {
+                            throw new IOException( "Block was compressed with a dictionary, but none is configured." );
+                        }
+                        inflater.setDictionary( dictionary );
+                    }
+                    else if( inflater.finished() || inflater.needsInput() )
+                    {
+                        throw new IOException( "Compressed block is truncated." );
+                    }
+                }
+                done = done + count;
+            }
+            return data;
+        }
+        catch( DataFormatException e )
+        {
+            IOException exception = new IOException( "Compressed block is corrupt." );
+            exception.initCause( e );
+            throw exception;
+        }
+        catch( IllegalArgumentException e )
+        {
+            // Thrown by setDictionary() if the configured dictionary is not the one that the block was written with.
+            IOException exception = new IOException( "Block was compressed with another dictionary." );
+            exception.initCause( e );
+            throw exception;
+        }
+        finally
+        {
+            returnInflater( inflater );
+        }
+    }
+
+    synchronized void close()
+    {
+        if( deflater != null )
+        {
+            deflater.end();
+        }
+        for( Inflater inflater : inflaters )
+        {
+            inflater.end();
+        }
+        inflaters.clear();
+    }
+
+    private synchronized Inflater borrowInflater()
+    {
+        if( inflaters.isEmpty() )
+        {
+            return new Inflater();
+        }
+        return inflaters.removeFirst();
+    }
+
+    private synchronized void returnInflater( Inflater inflater )
+    {
+        inflater.reset();
+        inflaters.addFirst( inflater );
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import org.qi4j.library.statecodec.EntityStateCodec;
+
+/**
+ * A Reader that decodes the UTF-8 data of a block straight out of a byte array, typically the read-ahead buffer of
+ * a heap scan. It is reset for each block, so a scan over the whole heap uses one Reader, one decoder and one
+ * character buffer, instead of a String and a StringReader per block.
+ * <p/>
+ * The Reader is only valid until the next reset, so the receiver of the scan must have read it before it returns.
+ * Blocks that are written by the EntityStateCodec are decoded to a String as a whole, when they are reset.
+ */
+class BlockReader extends Reader
+{
+    private static final int CHAR_BUFFER_SIZE = 8192;
+
+    private final CharsetDecoder decoder;
+    private final CharBuffer chars;
+    private final EntityStateCodec codec;
+    private ByteBuffer bytes;
+    private boolean flushed;
+    private String state;
+    private int statePosition;
+
+    BlockReader()
+    {
+        this( null );
+    }
+
+    /**
+     * @param codec The codec of the states, or null if they are all JSON.
+     */
+    BlockReader( EntityStateCodec codec )
+    {
+        this.codec = codec;
+        // Malformed data is replaced, the same as new String( data, "UTF-8" ) does.
+        decoder = Charset.forName( "UTF-8" ).newDecoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        chars = CharBuffer.allocate( CHAR_BUFFER_SIZE );
+        chars.flip();
+        flushed = true;
+    }
+
+    /**
+     * Starts reading a new block.
+     *
+     * @param data   The array that holds the data of the block.
+     * @param offset The offset of the data in the array.
+     * @param length The number of bytes of data.
+     * @throws IOException if the data is encoded, and can not be decoded.
+     */
+    void reset( byte[] data, int offset, int length )
+        throws IOException
+    {
+        chars.clear();
+        chars.flip();
+        if( codec != null && codec.isEncoded( data, offset, length ) )
+        {
+            state = codec.decode( data, offset, length );
+            statePosition = 0;
+            bytes = null;
+            flushed = true;
+            return;
+        }
+        state = null;
+        bytes = ByteBuffer.wrap( data, offset, length );
+        decoder.reset();
+        flushed = false;
+    }
+
+    @Override
+    public int read( char[] buffer, int offset, int length )
+        throws IOException
+    {
+        if( length == 0 )
+        {
+            return 0;
+        }
+        if( state != null )
+        {
+            if( statePosition == state.length() )
+            {
+                return -1;
+            }
+            int count = Math.min( length, state.length() - statePosition );
+            state.getChars( statePosition, statePosition + count, buffer, offset );
+            statePosition += count;
+            return count;
+        }
+        if( !chars.hasRemaining() && !fill() )
+        {
+            return -1;
+        }
+        int count = Math.min( length, chars.remaining() );
+        chars.get( buffer, offset, count );
+        return count;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        if( state != null )
+        {
+            return statePosition == state.length() ? -1 : state.charAt( statePosition++ );
+        }
+        if( !chars.hasRemaining() && !fill() )
+        {
+            return -1;
+        }
+        return chars.get();
+    }
+
+    @Override
+    public boolean ready()
+    {
+        return chars.hasRemaining() || !flushed || ( state != null && statePosition < state.length() );
+    }
+
+    @Override
+    public void close()
+    {
+        // Owned by the scan, which resets it for the next block.
+    }
+
+    /* Decodes the next characters of the block, and returns false when there are none left. */
+
+    private boolean fill()
+    {
+        while( !flushed )
+        {
+            chars.clear();
+            CoderResult result = decoder.decode( bytes, chars, true );
+            if( result.isUnderflow() )
+            {
+                result = decoder.flush( chars );
+                flushed = result.isUnderflow();
+            }
+            chars.flip();
+            if( chars.hasRemaining() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
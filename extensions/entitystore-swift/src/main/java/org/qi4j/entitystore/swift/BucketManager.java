@@ -20,123 +20,249 @@ package org.qi4j.entitystore.swift;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.qi4j.spi.entitystore.EntityStoreException;
 
+/**
+ * The overflow buckets of the IdentityFile, each an array of bytes that can be read whole and written at any
+ * position up to its end.
+ * <p/>
+ * By default each bucket is a file of its own. At most maxOpenFiles of them are kept open, and the one that was
+ * used least recently is closed when another one is opened, so hot buckets stay open and the number of file
+ * descriptors is bounded.
+ * <p/>
+ * In paged mode all buckets are packed into the single file overflow.data, as chains of pages of
+ * {@link #PAGE_SIZE} bytes;
+ * <code><pre>
+ * [bucket]    -  4 bytes
+ * [sequence]  -  4 bytes, the index of the page in the bucket
+ * [length]    -  2 bytes, the number of bytes of the bucket in this page
+ * [data]      -  PAGE_SIZE - 10 bytes
+ * </pre></code>
+ * The chains are found by reading the page headers when the file is opened.
+ */
 public class BucketManager
-    implements Runnable
 {
-    private HashMap<Integer, LruEntry> cache;
-    private File bucketdir;
-    private Thread cleanUpThread;
-    private boolean running;
+    static final int DEFAULT_MAX_OPEN_FILES = 32;
+    private static final String OVERFLOW_FILENAME = "overflow.data";
+    private static final int PAGE_SIZE = 1024;
+    private static final int PAGE_HEADER = 10;
+    private static final int PAGE_DATA = PAGE_SIZE - PAGE_HEADER;
+
+    private final File bucketdir;
+    private final int maxOpenFiles;
+    private LinkedHashMap<Integer, RandomAccessFile> openFiles;
+    private RandomAccessFile overflowFile;
+    private HashMap<Integer, PagedBucket> pagedBuckets;
 
     public BucketManager( File bucketdir )
+        throws IOException
+    {
+        this( bucketdir, DEFAULT_MAX_OPEN_FILES, false );
+    }
+
+    /**
+     * @param bucketdir    The directory of the bucket files.
+     * @param maxOpenFiles The maximum number of bucket files that are open at the same time. Zero or less selects
+     *                     the default of 32.
+     * @param paged        True if all buckets are packed into one file.
+     * @throws IOException if the overflow file can not be opened.
+     */
+    public BucketManager( File bucketdir, int maxOpenFiles, boolean paged )
+        throws IOException
     {
-        cache = new HashMap<Integer, LruEntry>();
         this.bucketdir = bucketdir;
+        this.maxOpenFiles = maxOpenFiles > 0 ? maxOpenFiles : DEFAULT_MAX_OPEN_FILES;
         bucketdir.mkdirs();
-        cleanUpThread = new Thread( this, "SwiftEntityStore-cleanup" );
-        cleanUpThread.start();
+        if( paged )
+        {
+            overflowFile = new RandomAccessFile( new File( bucketdir, OVERFLOW_FILENAME ), "rw" );
+            loadPages();
+        }
+        else
+        {
+            // Access ordered, so that the eldest entry is the file used least recently.
+            openFiles = new LinkedHashMap<Integer, RandomAccessFile>( 16, 0.75f, true )
+            {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<Integer, RandomAccessFile> eldest )
+                {
+                    if( size() <= BucketManager.this.maxOpenFiles )
+                    {
+                        return false;
+                    }
+                    try
+                    {
+                        eldest.getValue().close();
+                    }
+                    catch( IOException e )
+                    {
+                        throw new EntityStoreException( "Unable to close overflow bucket " + eldest.getKey(), e );
+                    }
+                    return true;
+                }
+            };
+        }
     }
 
-    synchronized RandomAccessFile get( int hash )
-        throws IOException
+    /**
+     * @param bucketdir The directory of the bucket files.
+     * @param paged     True if all buckets are to be packed into one file.
+     * @return True if the buckets in the directory, if any, are stored as the given mode stores them.
+     */
+    static boolean isStoredAs( File bucketdir, boolean paged )
     {
-        LruEntry entry = cache.get( hash );
-        if( entry != null )
+        String[] files = bucketdir.list();
+        if( files == null || files.length == 0 )
         {
-            return entry.file;
+            return true;
         }
-        File bucketFile = new File( bucketdir, Integer.toHexString( hash ) );
-        RandomAccessFile bucket = new RandomAccessFile( bucketFile, "rw" );
-        entry = new LruEntry( bucket, hash );
-        cache.put( hash, entry );
-        return bucket;
+        boolean hasOverflowFile = new File( bucketdir, OVERFLOW_FILENAME ).exists();
+        return paged ? hasOverflowFile && files.length == 1 : !hasOverflowFile;
     }
 
-    synchronized void close()
+    synchronized byte[] read( int bucket )
         throws IOException
     {
-        running = false;
-        cleanUpThread.interrupt();
-        for( LruEntry entry : cache.values() )
+        if( overflowFile == null )
+        {
+            RandomAccessFile file = file( bucket );
+            byte[] content = new byte[(int) file.length()];
+            file.seek( 0 );
+            file.readFully( content );
+            return content;
+        }
+        PagedBucket paged = pagedBuckets.get( bucket );
+        if( paged == null )
         {
-            entry.file.close();
+            return new byte[0];
         }
+        byte[] content = new byte[paged.length];
+        for( int i = 0; i < paged.pages.size(); i++ )
+        {
+            overflowFile.seek( (long) paged.pages.get( i ) * PAGE_SIZE + PAGE_HEADER );
+            overflowFile.readFully( content, i * PAGE_DATA, Math.min( PAGE_DATA, paged.length - i * PAGE_DATA ) );
+        }
+        return content;
     }
 
-    private void cleanUp()
+    /**
+     * Writes the data into the bucket at the given position, which is at most the current length of the bucket.
+     */
+    synchronized void write( int bucket, long position, byte[] data )
         throws IOException
     {
-        if( cache.size() < 30 )
+        if( overflowFile == null )
         {
+            RandomAccessFile file = file( bucket );
+            file.seek( position );
+            file.write( data );
             return;
         }
-        LinkedList<LruEntry> sorting = new LinkedList<LruEntry>();
-        sorting.addAll( cache.values() );
-        Collections.sort( sorting, new Comparator<LruEntry>()
+        PagedBucket paged = pagedBuckets.get( bucket );
+        if( paged == null )
         {
-            public int compare( LruEntry lruEntry1, LruEntry lruEntry2 )
+            paged = new PagedBucket();
+            pagedBuckets.put( bucket, paged );
+        }
+        int written = 0;
+        while( written < data.length )
+        {
+            int index = (int) ( ( position + written ) / PAGE_DATA );
+            int offset = (int) ( ( position + written ) % PAGE_DATA );
+            if( index == paged.pages.size() )
             {
-                if( lruEntry1.created == lruEntry2.created )
-                {
-                    return 0;
-                }
-                if( lruEntry1.created > lruEntry2.created )
-                {
-                    return 1;
-                }
-
-                return -1;
+                paged.pages.add( (int) ( overflowFile.length() / PAGE_SIZE ) );
+            }
+            int length = Math.min( PAGE_DATA - offset, data.length - written );
+            long pageStart = (long) paged.pages.get( index ) * PAGE_SIZE;
+            overflowFile.seek( pageStart + PAGE_HEADER + offset );
+            overflowFile.write( data, written, length );
+            written = written + length;
+            int pageLength = Math.max( offset + length, Math.min( PAGE_DATA, paged.length - index * PAGE_DATA ) );
+            overflowFile.seek( pageStart );
+            overflowFile.writeInt( bucket );
+            overflowFile.writeInt( index );
+            overflowFile.writeShort( pageLength );
+            if( pageStart + PAGE_SIZE > overflowFile.length() )
+            {
+                overflowFile.setLength( pageStart + PAGE_SIZE );
             }
-        } );
-        while( cache.size() > 20 )
-        {
-            LruEntry entry = sorting.removeFirst(); // Check if this is at the right end;
-            entry.file.close();
-            cache.remove( entry.hash );
         }
+        paged.length = (int) Math.max( paged.length, position + data.length );
     }
 
-    public void run()
+    /**
+     * @return The number of bucket files that are open.
+     */
+    synchronized int openFiles()
     {
-        running = true;
-        try
+        return openFiles == null ? 1 : openFiles.size();
+    }
+
+    synchronized void close()
+        throws IOException
+    {
+        if( overflowFile != null )
         {
-            while( running )
-            {
-                synchronized( this )
-                {
-                    wait( 15000 );
-                    cleanUp();
-                }
-            }
+            overflowFile.close();
+            return;
         }
-        catch( InterruptedException e )
+        Iterator<RandomAccessFile> files = openFiles.values().iterator();
+        while( files.hasNext() )
         {
-            // ignore, normal shutdown
+            files.next().close();
+            files.remove();
         }
-        catch( IOException e )
+    }
+
+    private RandomAccessFile file( int bucket )
+        throws IOException
+    {
+        RandomAccessFile file = openFiles.get( bucket );
+        if( file == null )
         {
-            throw new EntityStoreException( "What the hell!!!???", e );
+            File bucketFile = new File( bucketdir, Integer.toHexString( bucket ) );
+            file = new RandomAccessFile( bucketFile, "rw" );
+            // Closes the least recently used file if there are too many open.
+            openFiles.put( bucket, file );
         }
+        return file;
     }
 
-    private static class LruEntry
+    private void loadPages()
+        throws IOException
     {
-        private long created;
-        private RandomAccessFile file;
-        private int hash;
-
-        public LruEntry( RandomAccessFile bucket, int hash )
+        pagedBuckets = new HashMap<Integer, PagedBucket>();
+        long pages = overflowFile.length() / PAGE_SIZE;
+        for( int page = 0; page < pages; page++ )
         {
-            this.file = bucket;
-            this.hash = hash;
-            created = System.currentTimeMillis();
+            overflowFile.seek( (long) page * PAGE_SIZE );
+            int bucket = overflowFile.readInt();
+            int index = overflowFile.readInt();
+            int length = overflowFile.readUnsignedShort();
+            PagedBucket paged = pagedBuckets.get( bucket );
+            if( paged == null )
+            {
+                paged = new PagedBucket();
+                pagedBuckets.put( bucket, paged );
+            }
+            while( paged.pages.size() <= index )
+            {
+                paged.pages.add( -1 );
+            }
+            paged.pages.set( index, page );
+            paged.length = paged.length + length;
         }
     }
+
+    private static class PagedBucket
+    {
+        private ArrayList<Integer> pages = new ArrayList<Integer>();
+        private int length;
+    }
 }
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.qi4j.api.entity.EntityReference;
+
+/**
+ * A snapshot of the identity index and the free space, and a log of the changes made to them since.
+ * <p/>
+ * After a crash, the index is restored from the snapshot and the log, instead of from a scan of the whole heap.
+ * The changes of a transaction are written to the log in one go when it is committed, followed by a commit
+ * record, so that the undo journal only needs to cover the transaction that was interrupted. Changes after the
+ * last commit record are ignored. A new snapshot is written, and the log started over, once the log has grown
+ * beyond the configured size, and after the heap has been compacted.
+ * <p/>
+ * The snapshot format is;
+ * <code><pre>
+ * [version]           4 bytes
+ * [generation]        8 bytes
+ * [identityMaxLength] 4 bytes
+ * [unusedBytes]       8 bytes
+ * [heapLength]        8 bytes
+ * [freeSpace]         see {@link FreeSpace}
+ * [noOfEntries]       4 bytes
+ * for each entry
+ * [position]          8 bytes
+ * [identity]          2+n bytes, modified UTF-8
+ * </pre></code>
+ * The log starts with the generation of the snapshot that it applies to, followed by the records;
+ * <code><pre>
+ * [1][position 8][identity]         remembered
+ * [2][identity]                     dropped
+ * [3][position 8]                   allocated from the free space
+ * [4][position 8][size 4]           added to the free space
+ * [5][position 8][size 4]           released to the free space, merged with its neighbours
+ * [6][unusedBytes 8][heapLength 8]   commit
+ * </pre></code>
+ */
+class Checkpoint
+{
+    static final String SNAPSHOT_FILENAME = "checkpoint.data";
+    static final String LOG_FILENAME = "checkpoint.log";
+
+    private static final int CURRENT_VERSION = 1;
+    private static final byte REMEMBERED = 1;
+    private static final byte DROPPED = 2;
+    private static final byte ALLOCATED = 3;
+    private static final byte FREED = 4;
+    private static final byte RELEASED = 5;
+    private static final byte COMMIT = 6;
+
+    private File snapshotFile;
+    private File logFile;
+    private RandomAccessFile log;
+    private long generation;
+    private ByteArrayOutputStream pendingBytes;
+    private DataOutputStream pending;
+
+    // The state restored by restore().
+    private FreeSpace freeSpace;
+    private long unusedBytes;
+    private long heapLength;
+
+    Checkpoint( File dataDir )
+    {
+        snapshotFile = new File( dataDir, SNAPSHOT_FILENAME );
+        logFile = new File( dataDir, LOG_FILENAME );
+        pendingBytes = new ByteArrayOutputStream( 4096 );
+        pending = new DataOutputStream( pendingBytes );
+        generation = -1;
+    }
+
+    /**
+     * Restores the index from the snapshot and the log.
+     *
+     * @param index             The empty index to fill.
+     * @param identityMaxLength The identity length of the heap, a snapshot of a different heap is not used.
+     * @param logLimit          The length of the log when the interrupted transaction started, or -1 if there is
+     *                          no interrupted transaction. The changes beyond it are not replayed, even if the
+     *                          transaction got as far as writing its commit record.
+     * @return true if the index was restored, false if there is no usable snapshot.
+     * @throws IOException if the snapshot or the log can not be read.
+     */
+    boolean restore( IdentityIndex index, int identityMaxLength, long logLimit )
+        throws IOException
+    {
+        if( !snapshotFile.exists() )
+        {
+            return false;
+        }
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( snapshotFile ), 65536 ) );
+        try
+        {
+            if( in.readInt() != CURRENT_VERSION )
+            {
+                return false;
+            }
+            long snapshotGeneration = in.readLong();
+            if( in.readInt() != identityMaxLength )
+            {
+                return false;
+            }
+            unusedBytes = in.readLong();
+            heapLength = in.readLong();
+            freeSpace = FreeSpace.read( in );
+            int count = in.readInt();
+            for( int i = 0; i < count; i++ )
+            {
+                long position = in.readLong();
+                index.remember( new EntityReference( in.readUTF() ), position );
+            }
+            generation = snapshotGeneration;
+        }
+        catch( EOFException e )
+        {
+            // Crashed while writing the snapshot, without a rename.
+            return false;
+        }
+        finally
+        {
+            in.close();
+        }
+        if( logLimit >= 8 && logFile.length() > logLimit )
+        {
+            RandomAccessFile file = new RandomAccessFile( logFile, "rw" );
+            try
+            {
+                file.setLength( logLimit );
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        replay( index );
+        return true;
+    }
+
+    FreeSpace freeSpace()
+    {
+        return freeSpace;
+    }
+
+    long unusedBytes()
+    {
+        return unusedBytes;
+    }
+
+    /**
+     * @return The length of the heap after the last committed transaction. A memory mapped heap may have been
+     *         left longer than that by the crash.
+     */
+    long heapLength()
+    {
+        return heapLength;
+    }
+
+    /**
+     * Opens the log for the changes to come.
+     *
+     * @return true if the snapshot and the log are up to date, false if a new snapshot must be written.
+     * @throws IOException if the log can not be opened.
+     */
+    boolean open()
+        throws IOException
+    {
+        boolean usable = true;
+        if( generation < 0 )
+        {
+            // Not restored, so continuing after a clean shutdown.
+            generation = readSnapshotGeneration();
+            usable = generation >= 0;
+        }
+        log = new RandomAccessFile( logFile, "rw" );
+        if( log.length() < 8 || readGeneration() != generation )
+        {
+            log.setLength( 0 );
+            log.writeLong( generation );
+        }
+        log.seek( log.length() );
+        return usable;
+    }
+
+    void remembered( EntityReference reference, long position )
+        throws IOException
+    {
+        pending.writeByte( REMEMBERED );
+        pending.writeLong( position );
+        pending.writeUTF( reference.identity() );
+    }
+
+    void dropped( EntityReference reference )
+        throws IOException
+    {
+        pending.writeByte( DROPPED );
+        pending.writeUTF( reference.identity() );
+    }
+
+    void allocated( long position )
+        throws IOException
+    {
+        pending.writeByte( ALLOCATED );
+        pending.writeLong( position );
+    }
+
+    void freed( long position, int blockSize )
+        throws IOException
+    {
+        pending.writeByte( FREED );
+        pending.writeLong( position );
+        pending.writeInt( blockSize );
+    }
+
+    void released( long position, int blockSize )
+        throws IOException
+    {
+        pending.writeByte( RELEASED );
+        pending.writeLong( position );
+        pending.writeInt( blockSize );
+    }
+
+    /**
+     * Writes the changes of the transaction to the log.
+     *
+     * @param unusedBytes The unused bytes of the heap after the transaction.
+     * @param heapLength  The length of the heap after the transaction.
+     * @throws IOException if the log can not be written.
+     */
+    void commit( long unusedBytes, long heapLength )
+        throws IOException
+    {
+        pending.writeByte( COMMIT );
+        pending.writeLong( unusedBytes );
+        pending.writeLong( heapLength );
+        log.write( pendingBytes.toByteArray() );
+        pendingBytes.reset();
+    }
+
+    void discard()
+    {
+        pendingBytes.reset();
+    }
+
+    void sync()
+        throws IOException
+    {
+        log.getFD().sync();
+    }
+
+    long logSize()
+        throws IOException
+    {
+        return log.length();
+    }
+
+    /**
+     * Writes a new snapshot, and starts the log over.
+     *
+     * @param index             The index.
+     * @param freeSpace         The free space.
+     * @param unusedBytes       The unused bytes of the heap.
+     * @param heapLength        The length of the heap.
+     * @param identityMaxLength The identity length of the heap.
+     * @throws IOException if the snapshot can not be written.
+     */
+    void write( IdentityIndex index, FreeSpace freeSpace, long unusedBytes, long heapLength, int identityMaxLength )
+        throws IOException
+    {
+        // The count isn't known until the index has been visited, so the entries are gathered first.
+        final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream( 65536 );
+        final DataOutputStream entries = new DataOutputStream( entryBytes );
+        final int[] count = new int[1];
+        index.visit( new IdentityIndex.EntryVisitor()
+        {
+            public void visit( String identity, long pos )
+                throws IOException
+            {
+                entries.writeLong( pos );
+                entries.writeUTF( identity );
+                count[ 0 ]++;
+            }
+        } );
+        long newGeneration = generation + 1;
+        File tempFile = new File( snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp" );
+        FileOutputStream file = new FileOutputStream( tempFile );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( file, 65536 ) );
+        try
+        {
+            out.writeInt( CURRENT_VERSION );
+            out.writeLong( newGeneration );
+            out.writeInt( identityMaxLength );
+            out.writeLong( unusedBytes );
+            out.writeLong( heapLength );
+            freeSpace.write( out );
+            out.writeInt( count[ 0 ] );
+            entryBytes.writeTo( out );
+            out.flush();
+            file.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        snapshotFile.delete();
+        if( !tempFile.renameTo( snapshotFile ) )
+        {
+            throw new IOException( "Unable to rename " + tempFile + " to " + snapshotFile );
+        }
+        // A crash before this leaves the old log behind, which is then ignored as it has the old generation.
+        generation = newGeneration;
+        if( log != null )
+        {
+            log.setLength( 0 );
+            log.writeLong( generation );
+        }
+    }
+
+    void close()
+        throws IOException
+    {
+        if( log != null )
+        {
+            log.close();
+            log = null;
+        }
+    }
+
+    private long readSnapshotGeneration()
+        throws IOException
+    {
+        if( !snapshotFile.exists() )
+        {
+            return -1;
+        }
+        DataInputStream in = new DataInputStream( new FileInputStream( snapshotFile ) );
+        try
+        {
+            if( in.readInt() != CURRENT_VERSION )
+            {
+                return -1;
+            }
+            return in.readLong();
+        }
+        catch( EOFException e )
+        {
+            return -1;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private long readGeneration()
+        throws IOException
+    {
+        log.seek( 0 );
+        return log.readLong();
+    }
+
+    /* Applies the committed changes in the log to the restored state. */
+
+    private void replay( IdentityIndex index )
+        throws IOException
+    {
+        int transactions = read( null, Integer.MAX_VALUE );
+        read( index, transactions );
+    }
+
+    /* Reads the log up to the given number of transactions, applying the changes if an index is given. Returns
+       the number of transactions read, where anything after the last commit record belongs to the interrupted
+       transaction.
+     */
+
+    private int read( IdentityIndex index, int transactions )
+        throws IOException
+    {
+        if( !logFile.exists() )
+        {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( logFile ), 65536 ) );
+        int commits = 0;
+        try
+        {
+            if( in.readLong() != generation )
+            {
+                return 0;
+            }
+            while( commits < transactions )
+            {
+                byte type = in.readByte();
+                if( type == COMMIT )
+                {
+                    long unused = in.readLong();
+                    long length = in.readLong();
+                    if( index != null )
+                    {
+                        unusedBytes = unused;
+                        heapLength = length;
+                    }
+                    commits++;
+                }
+                else if( type == REMEMBERED )
+                {
+                    long position = in.readLong();
+                    EntityReference reference = new EntityReference( in.readUTF() );
+                    if( index != null )
+                    {
+                        index.remember( reference, position );
+                    }
+                }
+                else if( type == DROPPED )
+                {
+                    EntityReference reference = new EntityReference( in.readUTF() );
+                    if( index != null )
+                    {
+                        index.drop( reference );
+                    }
+                }
+                else if( type == ALLOCATED )
+                {
+                    long position = in.readLong();
+                    if( index != null )
+                    {
+                        freeSpace.remove( position );
+                    }
+                }
+                else if( type == FREED || type == RELEASED )
+                {
+                    long position = in.readLong();
+                    int blockSize = in.readInt();
+                    if( index != null && type == FREED )
+                    {
+                        freeSpace.add( position, blockSize );
+                    }
+                    else if( index != null )
+                    {
+                        freeSpace.release( position, blockSize );
+                    }
+                }
+                else
+                {
+                    // Torn write of the interrupted transaction.
+                    return commits;
+                }
+            }
+        }
+        catch( EOFException e )
+        {
+            // End of the log.
+        }
+        finally
+        {
+            in.close();
+        }
+        return commits;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entitystore.ConcurrentEntityStateModificationException;
+
+/**
+ * The changes of one applyChanges call, collected so that they can be applied to the RecordManager in one go,
+ * possibly together with the changes of other callers, or to the HeapSegments that they belong to.
+ * <p/>
+ * Checked changes are compared with what is stored when they are applied, which is done while holding the lock of
+ * the segment, and the whole request fails with a ConcurrentEntityStateModificationException if any of them has
+ * been changed by someone else in the meantime. A new entity must not exist yet, and an updated or removed entity
+ * must still have the instanceVersion, in the header of its block, of the state that the change was based on.
+ * <p/>
+ * Every update is written with the instanceVersion after the stored one, checked or not, so that it only grows.
+ */
+class CommitRequest
+{
+    private static final int CHECK_NONE = 0;
+    private static final int CHECK_ABSENT = 1;
+    private static final int CHECK_VERSION = 2;
+
+    /**
+     * The expected version of a change that is written without a check.
+     */
+    static final long NO_VERSION = -1;
+
+    private final List<DataBlock> blocks = new ArrayList<DataBlock>();
+    // How each of the blocks is checked, CHECK_NONE, CHECK_ABSENT or CHECK_VERSION.
+    private final List<Integer> blockChecks = new ArrayList<Integer>();
+    // The expected version of each of the blocks, for the CHECK_VERSION.
+    private final List<Long> expectedVersions = new ArrayList<Long>();
+    private final List<EntityReference> removed = new ArrayList<EntityReference>();
+    private final List<Long> expectedRemovedVersions = new ArrayList<Long>();
+    private boolean done;
+    private Throwable failure;
+
+    /**
+     * Writes the block with its own instanceVersion, without a check, as a replica does with the blocks of its leader.
+     *
+     * @param block The new state.
+     */
+    void put( DataBlock block )
+    {
+        add( block, CHECK_NONE, NO_VERSION );
+    }
+
+    /**
+     * Writes the block of a new entity, which must not exist yet.
+     *
+     * @param block The state of the new entity.
+     */
+    void create( DataBlock block )
+    {
+        add( block, CHECK_ABSENT, NO_VERSION );
+    }
+
+    /**
+     * Writes the block with the instanceVersion after the one that is stored.
+     *
+     * @param block           The new state.
+     * @param expectedVersion The instanceVersion of the state that the change was based on, or NO_VERSION to write it
+     *                        without a check.
+     */
+    void update( DataBlock block, long expectedVersion )
+    {
+        add( block, CHECK_VERSION, expectedVersion );
+    }
+
+    private void add( DataBlock block, int check, long expectedVersion )
+    {
+        blocks.add( block );
+        blockChecks.add( check );
+        expectedVersions.add( expectedVersion );
+    }
+
+    void remove( EntityReference reference )
+    {
+        remove( reference, NO_VERSION );
+    }
+
+    /**
+     * @param reference       The entity to remove.
+     * @param expectedVersion The instanceVersion of the state that the removal was based on, or NO_VERSION to remove
+     *                        it without a check.
+     */
+    void remove( EntityReference reference, long expectedVersion )
+    {
+        removed.add( reference );
+        expectedRemovedVersions.add( expectedVersion );
+    }
+
+    void applyTo( final RecordManager recordManager )
+        throws IOException
+    {
+        // The changes of the requests before it in the same transaction count as stored.
+        checkVersions( new VersionSource()
+        {
+            public long instanceVersion( EntityReference reference )
+                throws IOException
+            {
+                return recordManager.readUncommittedVersion( reference );
+            }
+        } );
+        for( DataBlock block : blocks )
+        {
+            recordManager.putData( block );
+        }
+        for( EntityReference reference : removed )
+        {
+            recordManager.deleteData( reference );
+        }
+    }
+
+    void applyTo( final HeapSegments segments )
+        throws IOException
+    {
+        checkVersions( new VersionSource()
+        {
+            public long instanceVersion( EntityReference reference )
+                throws IOException
+            {
+                return segments.readInstanceVersion( reference );
+            }
+        } );
+        for( DataBlock block : blocks )
+        {
+            segments.putData( block );
+        }
+        for( EntityReference reference : removed )
+        {
+            segments.deleteData( reference );
+        }
+    }
+
+    /* Compares the checked changes with what is stored, and sets the instanceVersion of the blocks. */
+
+    private void checkVersions( VersionSource source )
+        throws IOException
+    {
+        List<EntityReference> modified = null;
+        for( int i = 0; i < blocks.size(); i++ )
+        {
+            int check = blockChecks.get( i );
+            if( check == CHECK_NONE )
+            {
+                continue;
+            }
+            DataBlock block = blocks.get( i );
+            long stored = source.instanceVersion( block.reference );
+            if( check == CHECK_ABSENT ? stored >= 0 : !matches( stored, expectedVersions.get( i ) ) )
+            {
+                modified = add( modified, block.reference );
+            }
+            block.instanceVersion = stored + 1;
+        }
+        for( int i = 0; i < removed.size(); i++ )
+        {
+            long expected = expectedRemovedVersions.get( i );
+            if( expected == NO_VERSION )
+            {
+                continue;
+            }
+            EntityReference reference = removed.get( i );
+            if( !matches( source.instanceVersion( reference ), expected ) )
+            {
+                modified = add( modified, reference );
+            }
+        }
+        if( modified != null )
+        {
+            throw new ConcurrentEntityStateModificationException( modified );
+        }
+    }
+
+    private static boolean matches( long stored, long expectedVersion )
+    {
+        // An update without a check only needs the stored version, to write the one after it.
+        return expectedVersion == NO_VERSION || stored == expectedVersion;
+    }
+
+    private static List<EntityReference> add( List<EntityReference> modified, EntityReference reference )
+    {
+        if( modified == null )
+        {
+            modified = new ArrayList<EntityReference>();
+        }
+        modified.add( reference );
+        return modified;
+    }
+
+    /**
+     * @param segments The segments of the heap.
+     * @return The segments that are changed by the request, in ascending order.
+     */
+    int[] segments( HeapSegments segments )
+    {
+        boolean[] changed = new boolean[segments.count()];
+        int count = 0;
+        for( DataBlock block : blocks )
+        {
+            count = count + mark( changed, segments.segmentOf( block.reference ) );
+        }
+        for( EntityReference reference : removed )
+        {
+            count = count + mark( changed, segments.segmentOf( reference ) );
+        }
+        int[] result = new int[count];
+        int next = 0;
+        for( int i = 0; i < changed.length; i++ )
+        {
+            if( changed[ i ] )
+            {
+                result[ next++ ] = i;
+            }
+        }
+        return result;
+    }
+
+    private static int mark( boolean[] changed, int segment )
+    {
+        if( changed[ segment ] )
+        {
+            return 0;
+        }
+        changed[ segment ] = true;
+        return 1;
+    }
+
+    synchronized void completed( Throwable failure )
+    {
+        this.failure = failure;
+        done = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the request has been committed or has failed.
+     *
+     * @return The reason for the failure, or null if the changes were committed.
+     * @throws InterruptedException if the calling thread was interrupted while waiting.
+     */
+    synchronized Throwable awaitCompletion()
+        throws InterruptedException
+    {
+        while( !done )
+        {
+            wait();
+        }
+        return failure;
+    }
+
+    private interface VersionSource
+    {
+        /**
+         * @return The stored instanceVersion of the entity, or -1 if it doesn't exist.
+         */
+        long instanceVersion( EntityReference reference )
+            throws IOException;
+    }
+}
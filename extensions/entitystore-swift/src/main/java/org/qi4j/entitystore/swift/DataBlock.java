@@ -19,7 +19,10 @@ package org.qi4j.entitystore.swift;
 
 import org.qi4j.spi.entity.QualifiedIdentity;
 import org.qi4j.api.entity.EntityReference;
+import org.qi4j.library.statecodec.EntityStateCodec;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 
 class DataBlock
@@ -28,13 +31,51 @@ class DataBlock
     byte[] data;
     long instanceVersion;
     int schemaVersion;
+    String type; // The entity type, or null if it isn't known.
+    private String state;
 
     public DataBlock( EntityReference reference, byte[] data, long instanceVersion, int schemaVersion )
+    {
+        this( reference, data, instanceVersion, schemaVersion, null );
+    }
+
+    public DataBlock( EntityReference reference, byte[] data, long instanceVersion, int schemaVersion, String type )
     {
         this.reference = reference;
         this.data = data;
         this.instanceVersion = instanceVersion;
         this.schemaVersion = schemaVersion;
+        this.type = type;
+    }
+
+    /**
+     * @return The data decoded from UTF-8. The String is kept, so a cached block is only decoded once.
+     * @throws UnsupportedEncodingException never, UTF-8 is always supported.
+     */
+    String state()
+        throws UnsupportedEncodingException
+    {
+        if( state == null )
+        {
+            state = new String( data, "UTF-8" );
+        }
+        return state;
+    }
+
+    /**
+     * @param codec The codec of the states, or null if they are all JSON.
+     * @return The data as JSON, decoded by the codec if it is in its format, and from UTF-8 if it isn't. The String
+     *         is kept, the same as by state().
+     * @throws IOException if the data can not be decoded by the codec.
+     */
+    String state( EntityStateCodec codec )
+        throws IOException
+    {
+        if( state == null && codec != null && codec.isEncoded( data, 0, data.length ) )
+        {
+            state = codec.decode( data, 0, data.length );
+        }
+        return state();
     }
 
     public boolean equals( Object o )
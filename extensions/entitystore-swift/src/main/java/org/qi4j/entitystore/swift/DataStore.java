@@ -25,6 +25,24 @@ import org.qi4j.api.io.Sender;
 import org.qi4j.spi.entitystore.EntityStoreException;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 /**
  * This class handles the Heap Data file.
@@ -36,159 +54,421 @@ import java.io.*;
  * [formatVersion]  4 bytes
  * [noOfEntries]    4 bytes
  * [noOfIDentries]  4 bytes
+ * [unusedBytes]    8 bytes   (total size of the Unused blocks)
  * <p/>
  * At OFFSET 256
  * [blockSize]     4 bytes
- * [usage]         1 byte    (0=Unused, 1=prime, 2=mirror, 3=primeChanged, 4=mirrorChanged)
+ * [usage]         1 byte    (0=Unused, 1=prime, 2=mirror, 3=primeChanged, 4=mirrorChanged, in the low
+ *                            4 bits, and the BlockCodec of the active data in the high 4 bits)
  * [instanceVersion] 8 bytes
  * [schemaVersion] 4 bytes
- * [identitySize]  1 byte
- * [identity]      IDENTITY_MAX_LENGTH bytes
+ * [identitySize]  2 bytes
+ * [identity]      identitySize bytes, UTF-8
+ * [typeSize]      2 bytes
+ * [type]          typeSize bytes, UTF-8, the entity type, which is empty if it isn't known
  * [mirrorPointer] 8 bytes
+ * [primeChecksum] 4 bytes   (CRC32 of the prime data, as it is stored)
  * [primeDataLength] 4 bytes
  * [primeData]     n bytes
+ * [mirrorChecksum] 4 bytes
  * [mirrorDataLength] 4 bytes
  * [mirrorData]    n bytes
  * <p/>
  * At OFFSET 256 + [blockSize]
  * same as above, repeat until [blockSize] == -1 marking end of DataArea.
  * </pre></code>
- * The <b>mirrorPointer</b> points to the mirrorData block.
+ * The <b>mirrorPointer</b> points to the mirrorDataLength, after the mirrorChecksum. A block whose data doesn't
+ * match its checksum is reported by a {@link CorruptedBlockException}, and the {@link HeapScrubber} looks for them
+ * in the background.
+ * <p/>
+ * Heaps of format version 2 and older reserve [identityMaxLength] bytes for each identity, with a 1 byte
+ * [identitySize]. They are still read and written in that format, until a compaction copies them to a new heap
+ * in the current format. Heaps of format version 3 have no [typeSize] and [type], and heaps of format version 4
+ * have no checksums. They are upgraded the same way.
+ * <p/>
+ * Blocks that are no longer used are kept in the {@link FreeSpace} once the transaction that dropped them is
+ * committed, merged with neighbouring Unused blocks, and reused by new blocks. Unused blocks stay in the file
+ * until they are reused or the heap is compacted, which is done by a
+ * {@link HeapCompactor} when the ratio of unused space exceeds the configured threshold. The live blocks are
+ * then copied to a new heap file, which replaces the current one once it has caught up with the changes made
+ * in the meantime.
  */
 public class DataStore
 {
     static final long DATA_AREA_OFFSET = 256;
     private static final int BLOCK_OVERHEAD = 26;
-    private static final int CURRENT_VERSION = 1;
+    private static final int IDENTITY_OFFSET = 17;
+    private static final int CURRENT_VERSION = 5;
+    private static final int UNCHECKED_VERSION = 4;
+    private static final int UNTYPED_VERSION = 3;
+    private static final int FIXED_IDENTITY_VERSION = 2;
+    private static final int MAX_TYPE_LENGTH = 0xFFFF;
+    // Limit of the identities in a heap of the current format, in UTF-8 bytes.
+    static final int MAX_IDENTITY_LENGTH = 1024;
+    private static final int BLOCK_READ_PREFIX = 256;
     private static final String HEAP_DATA_FILENAME = "heap.data";
+    private static final String COMPACTING_HEAP_FILENAME = "heap-compacting.data";
+    private static final String INDEX_DIRNAME = "idx";
+    private static final String COMPACTING_INDEX_DIRNAME = "idx-compacting";
+    private static final String FREE_SPACE_FILENAME = "free.data";
+    private static final String TYPE_INDEX_FILENAME = "types.data";
+    private static final String QUARANTINE_DIRNAME = "quarantine";
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    // Smallest data area worth splitting off a reused block, to keep the free space from filling with crumbs.
+    private static final int MIN_SPLIT_DATA_SIZE = 64;
+    // Size of the parts of the heap that are scanned in parallel when the index is rebuilt.
+    private static final long REINDEX_SEGMENT_SIZE = 64 * 1024 * 1024;
 
-    private static final int USAGE_UNUSED = 0;
+    static final int USAGE_UNUSED = 0;
     private static final int USAGE_PRIME = 1;
     private static final int USAGE_MIRROR = 2;
     private static final int USAGE_PRIMECHANGE = 3;
     private static final int USAGE_MIRRORCHANGE = 4;
+    private static final int USAGE_MASK = 0x0F;
+    private static final int CODEC_SHIFT = 4;
+    private static final int DEFAULT_SCAN_READ_AHEAD = 1024 * 1024;
 
-    private RandomAccessFile dataFile;
-    private IdentityFile identityFile;
+    private HeapFile dataFile;
+    private IdentityIndex identityIndex;
     private int identityMaxLength;
+    private boolean fixedIdentity; // Each identity takes identityMaxLength bytes, as in format version 2.
+    private boolean typed; // Each block records the entity type, as from format version 4.
+    private boolean checked; // Each data area has a checksum, as from format version 5.
+    private long scrubbedCorruptions; // Found by the running pass of the scrubber.
+    private volatile long corruptedBlocks;
+    private volatile long quarantinedBlocks;
+    private HeapScrubber scrubber;
+    private volatile TypeIndex typeIndex; // Loaded after a clean shutdown, or built on the first scan of a type.
+    private final Object typeIndexLock = new Object();
     private UndoManager undoManager;
     private int entries;
     private File dataDir;
+    private StoreSettings settings;
+    private long unusedBytes;
+    private long pendingUnusedBytes;
+    private FreeSpace freeSpace;
+    private ArrayList<long[]> pendingFrees;
+    private ArrayList<long[]> pendingAllocations;
+    private boolean inTransaction;
+    private AtomicInteger activeScans;
+    private boolean appendOnly;
+    private long heapChanges; // Counts the changes to the heap, so that scans know when their read-ahead is stale.
+    private Lock readLock;
+    private Lock writeLock;
+    private Compaction compaction;
+    private HeapCompactor compactor;
+    private HeapBackup backup;
+    private BlockCache cache;
+    private BlockCodec codec;
+    private Checkpoint checkpoint;
+    private boolean reIndexed;
+    private boolean restored;
+
+    public DataStore( File dataDirectory, UndoManager undoManager, StoreSettings settings )
+        throws IOException
+    {
+        this( dataDirectory, undoManager, settings, -1 );
+    }
 
-    public DataStore( File dataDirectory, UndoManager undoManager )
+    /**
+     * @param dataDirectory The directory of the heap.
+     * @param undoManager   The manager of the undo journal.
+     * @param settings      The settings of the store.
+     * @param logLimit      The length of the checkpoint log when the interrupted transaction started, or -1 if
+     *                      there is no interrupted transaction to be undone.
+     * @throws IOException if the heap can not be opened.
+     */
+    DataStore( File dataDirectory, UndoManager undoManager, StoreSettings settings, long logLimit )
         throws IOException
     {
         this.undoManager = undoManager;
-        identityMaxLength = 128; // Default value...
+        this.settings = settings;
+        activeScans = new AtomicInteger();
+        pendingFrees = new ArrayList<long[]>();
+        pendingAllocations = new ArrayList<long[]>();
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        readLock = lock.readLock();
+        writeLock = lock.writeLock();
+        if (settings.cacheSize > 0)
+        {
+            cache = new BlockCache( settings.cacheSize );
+        }
+        codec = new BlockCodec( settings.compressionLevel, settings.compressionDictionary );
+        identityMaxLength = MAX_IDENTITY_LENGTH;
         this.dataDir = dataDirectory.getAbsoluteFile();
         dataDir.mkdirs();
         File file = new File( dataDir, HEAP_DATA_FILENAME );
+        // Left over from a compaction that didn't finish.
+        FileUtils.delete( new File( dataDir, COMPACTING_HEAP_FILENAME ) );
+        FileUtils.delete( new File( dataDir, COMPACTING_INDEX_DIRNAME ) );
         if (!file.exists())
         {
             file.createNewFile();
         }
-        dataFile = new RandomAccessFile( file, "rw" );
+        RandomAccessFile headerFile = new RandomAccessFile( file, "rw" );
         boolean cleanShutDown;
         if (file.length() > 0)
         {
-            dataFile.seek( 0 );
-            cleanShutDown = dataFile.readBoolean();
-            dataFile.seek( 0 );
-            dataFile.writeBoolean( false );
-            dataFile.writeInt( CURRENT_VERSION );  // Write Version.
-            entries = dataFile.readInt();
-            identityMaxLength = dataFile.readInt();
+            headerFile.seek( 0 );
+            cleanShutDown = headerFile.readBoolean();
+            int version = headerFile.readInt();
+            fixedIdentity = version <= FIXED_IDENTITY_VERSION;
+            typed = version >= UNCHECKED_VERSION;
+            checked = version >= CURRENT_VERSION;
+            headerFile.seek( 0 );
+            headerFile.writeBoolean( false );
+            headerFile.writeInt( version() );  // Write Version.
+            entries = headerFile.readInt();
+            identityMaxLength = headerFile.readInt();
+            unusedBytes = headerFile.readLong();
         } else
         {
             cleanShutDown = false;
-            dataFile.writeBoolean( false );
+            typed = true;
+            checked = true;
+            headerFile.writeBoolean( false );
             entries = 0;
-            dataFile.writeInt( CURRENT_VERSION );  // Write Version.
-            dataFile.writeInt( entries );
-            dataFile.writeInt( identityMaxLength );
-            dataFile.seek( DATA_AREA_OFFSET - 1 );
-            dataFile.writeByte( 0 );
-            dataFile.seek( DATA_AREA_OFFSET );
-            dataFile.writeInt( -1 );  // EOF marker
+            headerFile.writeInt( CURRENT_VERSION );  // Write Version.
+            headerFile.writeInt( entries );
+            headerFile.writeInt( identityMaxLength );
+            headerFile.writeLong( 0 );
+            headerFile.seek( DATA_AREA_OFFSET - 1 );
+            headerFile.writeByte( 0 );
+            headerFile.seek( DATA_AREA_OFFSET );
+            headerFile.writeInt( -1 );  // EOF marker
         }
         // Ensure full flush, then reopen...
-        dataFile.close();
+        headerFile.close();
 
-        dataFile = new RandomAccessFile( file, "rw" );
+        dataFile = openHeapFile( file );
 
+        if (settings.checkpointLogSize > 0)
+        {
+            checkpoint = new Checkpoint( dataDir );
+        } else
+        {
+            // Not kept up to date while disabled.
+            FileUtils.delete( new File( dataDir, Checkpoint.SNAPSHOT_FILENAME ) );
+            FileUtils.delete( new File( dataDir, Checkpoint.LOG_FILENAME ) );
+        }
         if (!cleanShutDown)
         {
-            reIndex();
+            if (!restoreCheckpoint( logLimit ))
+            {
+                reIndex();
+            }
+        } else if (settings.memoryIndex)
+        {
+            identityIndex = MemoryIdentityIndex.load( new File( dataDir, INDEX_DIRNAME ) );
+            if (identityIndex == null)
+            {
+                reIndex();
+            }
         } else
         {
-            File idDir = new File( dataDir, "idx" );
+            File idDir = new File( dataDir, INDEX_DIRNAME );
             try
             {
-                identityFile = IdentityFile.use( idDir );
+                // Grows as needed, so it never has to be rebuilt for size.
+                identityIndex = IdentityFile.use( idDir, settings );
             }
             catch (MalformedIdentityDirectoryException e)
             {
                 reIndex();
             }
         }
-        if (identityFile.entries() < entries * 2)
+        if (freeSpace == null)
+        {
+            File freeSpaceFile = new File( dataDir, FREE_SPACE_FILENAME );
+            freeSpace = FreeSpace.load( freeSpaceFile );
+            // Only valid until the heap is changed, it is written again on close.
+            FileUtils.delete( freeSpaceFile );
+            if (freeSpace == null)
+            {
+                rebuildFreeSpace();
+            }
+        }
+        File typeIndexFile = new File( dataDir, TYPE_INDEX_FILENAME );
+        if (cleanShutDown && typed && typeIndex == null)
         {
-            reIndex();
+            typeIndex = TypeIndex.load( typeIndexFile );
         }
+        // Like the free space, only valid until the heap is changed.
+        FileUtils.delete( typeIndexFile );
+    }
+
+    /**
+     * @return The block cache, or null if caching is disabled.
+     */
+    BlockCache cache()
+    {
+        return cache;
+    }
+
+    /**
+     * @return The filter of the IdentityFile, or null if the index is held in memory.
+     */
+    IdentityFilter identityFilter()
+    {
+        IdentityIndex index = identityIndex;
+        return index instanceof IdentityFile ? ( (IdentityFile) index ).filter() : null;
     }
 
-    RandomAccessFile dataFile()
+    private HeapFile openHeapFile( File file )
+        throws IOException
     {
-        return dataFile;
+        if (settings.memoryMapped)
+        {
+            return new MappedHeapFile( file );
+        }
+        return new RandomAccessHeapFile( file, settings.heapChunkSize );
     }
 
-    IdentityFile identityFile()
+    /**
+     * Reads the instanceVersion of an entity from the header of its block, without reading its data.
+     *
+     * @param reference The entity.
+     * @return The instanceVersion, or -1 if the entity doesn't exist.
+     * @throws IOException if the heap can not be read.
+     */
+    long readInstanceVersion( EntityReference reference )
+        throws IOException
     {
-        return identityFile;
+        readLock.lock();
+        try
+        {
+            if (cache != null)
+            {
+                DataBlock cached = cache.get( reference );
+                if (cached != null)
+                {
+                    return cached.instanceVersion;
+                }
+            }
+            long pos = identityIndex.find( reference );
+            if (pos < 0)
+            {
+                return -1;
+            }
+            byte[] header = new byte[13];
+            dataFile.readFully( pos, header, 0, header.length );
+            ByteBuffer fields = ByteBuffer.wrap( header );
+            if ((fields.get( 4 ) & USAGE_MASK) == USAGE_UNUSED)
+            {
+                return -1;
+            }
+            return fields.getLong( 5 );
+        }
+        finally
+        {
+            readLock.unlock();
+        }
     }
 
     DataBlock readData( EntityReference reference )
         throws IOException
     {
-        long pos = identityFile.find( reference );
-        if (pos < 0)
+        readLock.lock();
+        try
         {
-            return null;
+            if (cache != null)
+            {
+                DataBlock cached = cache.get( reference );
+                if (cached != null)
+                {
+                    return cached;
+                }
+            }
+            long pos = identityIndex.find( reference );
+            if (pos < 0)
+            {
+                return null;
+            }
+            DataBlock block = readBlock( pos, reference );
+            if (cache != null && block != null)
+            {
+                cache.put( block );
+            }
+            return block;
+        }
+        finally
+        {
+            readLock.unlock();
         }
-        dataFile.seek( pos );
-        dataFile.skipBytes( 4 ); // Skip BlockSize
-        return readDataBlock( reference );
     }
 
     void putData( DataBlock data )
         throws IOException
     {
-        long pos = identityFile.find( data.reference );
-        if (pos < 0)
-        {
-            putNewData( data );
-        } else
+        writeLock.lock();
+        try
         {
-            dataFile.seek( pos );
-            int blockSize = dataFile.readInt();
-            long usagePointer = dataFile.getFilePointer();
-            byte usage = dataFile.readByte();
-            dataFile.skipBytes( -1 );
-            dataFile.writeByte( usage == USAGE_PRIME ? USAGE_PRIMECHANGE : USAGE_MIRRORCHANGE );
-            int dataAreaSize = (blockSize - BLOCK_OVERHEAD) / 2 - 4;
-            if (dataAreaSize < data.data.length)
+            heapChanges++;
+            checkIdentity( data.reference );
+            inTransaction = true;
+            if (compaction != null)
+            {
+                compaction.changed.add( data.reference );
+            }
+            if (cache != null)
+            {
+                // Dropped first, so that a failed write doesn't leave the old block in the cache.
+                cache.remove( data.reference );
+            }
+            long pos = identityIndex.find( data.reference );
+            long newPosition = pos;
+            if (pos < 0)
             {
-                putTooLarge( data, pos, usagePointer, usage );
+                newPosition = putNewData( data );
             } else
             {
-                putOver( data, pos, usagePointer, usage );
+                dataFile.seek( pos );
+                int blockSize = dataFile.readInt();
+                long usagePointer = dataFile.getFilePointer();
+                byte usage = dataFile.readByte();
+                UndoModifyCommand undoModifyCommand = new UndoModifyCommand( pos, usage, dataFile.readLong(), dataFile.readInt() );
+                dataFile.seek( usagePointer );
+                int state = usage & USAGE_MASK;
+                dataFile.writeByte( ( usage & ~USAGE_MASK ) | ( state == USAGE_PRIME ? USAGE_PRIMECHANGE : USAGE_MIRRORCHANGE ) );
+                byte[] stored = encode( data.data );
+                // An update leaves the identity and the type of the block as they are, so a new type needs a new block.
+                int identityLength = identityBytes( data.reference, fixedIdentity ).length;
+                byte[] storedType = storedType( pos, identityLength );
+                int fieldLength = identityLength + (storedType == null ? 0 : 2 + storedType.length);
+                if (data.type == null && storedType != null && storedType.length > 0)
+                {
+                    // Kept if the block is moved.
+                    data = new DataBlock( data.reference, data.data, data.instanceVersion, data.schemaVersion,
+                                          new String( storedType, "UTF-8" ) );
+                }
+                if (dataCapacity( blockSize, fieldLength ) < stored.length
+                    || storedType != null && data.type != null && !data.type.equals( new String( storedType, "UTF-8" ) ))
+                {
+                    newPosition = putTooLarge( data, pos, blockSize, usagePointer, undoModifyCommand );
+                } else
+                {
+                    putOver( data, stored, usagePointer, state, undoModifyCommand );
+                }
+            }
+            if (cache != null)
+            {
+                cache.put( data );
             }
+            TypeIndex index = typeIndex;
+            if (index != null && data.type != null)
+            {
+                index.put( data.type, data.reference, newPosition );
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
         }
     }
 
     /* In this case we need to write the new data to the opposite of the current active block. */
 
-    private void putOver( DataBlock data, long pos, long usagePointer, byte usage )
+    private void putOver( DataBlock data, byte[] stored, long usagePointer, int state, UndoModifyCommand undoModifyCommand )
         throws IOException
     {
         dataFile.seek( usagePointer ); // Point to "usage"
@@ -199,285 +479,1853 @@ public class DataStore
             throw new EntityStoreException( "Inconsistent Data Heap: was " + existingReference + ", expected " + data.reference );
         }
         long mirror = dataFile.readLong();
-        if (usage == USAGE_PRIME)
+        if (state == USAGE_PRIME)
         {
-            dataFile.seek( mirror );
+            dataFile.seek( checked ? mirror - 4 : mirror );
         }
-        UndoModifyCommand undoModifyCommand = new UndoModifyCommand( pos, usage, data.instanceVersion, data.schemaVersion );
         undoManager.saveUndoCommand( undoModifyCommand );
 
-        dataFile.writeInt( data.data.length );
-        dataFile.write( data.data );
+        if (checked)
+        {
+            dataFile.writeInt( checksum( stored, 0, stored.length ) );
+        }
+        dataFile.writeInt( stored.length );
+        dataFile.write( stored );
         dataFile.seek( usagePointer );
-        dataFile.writeByte( usage == USAGE_PRIME ? USAGE_MIRROR : USAGE_PRIME );
+        dataFile.writeByte( usage( state == USAGE_PRIME ? USAGE_MIRROR : USAGE_PRIME, stored, data.data ) );
+        dataFile.writeLong( data.instanceVersion );
+        dataFile.writeInt( data.schemaVersion );
     }
 
     /* This case is when the data doesn't fit in the pre-allocated extra space. Write it to the end, and mark the
        previous block unused.
      */
 
-    private void putTooLarge( DataBlock data, long pos, long usagePointer, byte usage )
+    private long putTooLarge( DataBlock data, long pos, int blockSize, long usagePointer, UndoModifyCommand undoModifyCommand )
         throws IOException
     {
+        pendingUnusedBytes = pendingUnusedBytes + blockSize;
+        pendingFrees.add( new long[]{ pos, blockSize } );
         long newPosition = addData( data );
-        UndoModifyCommand undoModifyCommand = new UndoModifyCommand( pos, usage, data.instanceVersion, data.schemaVersion );
         undoManager.saveUndoCommand( undoModifyCommand );
         dataFile.seek( usagePointer );
         dataFile.writeByte( USAGE_UNUSED );
         UndoDropIdentityCommand undoDropIdentityCommand = new UndoDropIdentityCommand( data.reference, pos );
         undoManager.saveUndoCommand( undoDropIdentityCommand );
-        identityFile.remember( data.reference, newPosition );
+        identityIndex.remember( data.reference, newPosition );
+        if (checkpoint != null)
+        {
+            checkpoint.remembered( data.reference, newPosition );
+        }
+        return newPosition;
     }
 
-    private void putNewData( DataBlock data )
+    private long putNewData( DataBlock data )
         throws IOException
     {
         long pos;
         pos = addData( data );
         UndoNewIdentityCommand undoNewIdentityCommand = new UndoNewIdentityCommand( data.reference );
         undoManager.saveUndoCommand( undoNewIdentityCommand );
-        identityFile.remember( data.reference, pos );
+        identityIndex.remember( data.reference, pos );
+        if (checkpoint != null)
+        {
+            checkpoint.remembered( data.reference, pos );
+        }
+        return pos;
     }
 
     public void delete( EntityReference reference )
         throws IOException
     {
-        long pos = identityFile.find( reference );
-        if (pos < 0)
+        writeLock.lock();
+        try
         {
-            // Doesn't exist.
-            return;
+            heapChanges++;
+            if (cache != null)
+            {
+                cache.remove( reference );
+            }
+            long pos = identityIndex.find( reference );
+            if (pos < 0)
+            {
+                // Doesn't exist.
+                return;
+            }
+            inTransaction = true;
+            if (compaction != null)
+            {
+                compaction.changed.add( reference );
+            }
+            dataFile.seek( pos );
+            int blockSize = dataFile.readInt();
+            byte usage = dataFile.readByte();
+            if ((usage & USAGE_MASK) == USAGE_UNUSED)
+            {
+                // Not used?? Why is the IdentityFile pointing to it then?? Should the following line actually be
+                // executed here.
+                //    identityIndex.drop( identity );
+                return;
+            }
+            UndoDropIdentityCommand undoDropIdentityCommand = new UndoDropIdentityCommand( reference, pos );
+            undoManager.saveUndoCommand( undoDropIdentityCommand );
+
+            UndoDeleteCommand undoDeleteCommand = new UndoDeleteCommand( pos, usage );
+            undoManager.saveUndoCommand( undoDeleteCommand );
+
+            identityIndex.drop( reference );
+            if (checkpoint != null)
+            {
+                checkpoint.dropped( reference );
+            }
+            TypeIndex index = typeIndex;
+            if (index != null)
+            {
+                index.remove( reference );
+            }
+            dataFile.seek( pos + 4 );
+            dataFile.writeByte( USAGE_UNUSED );   // Mark Unused block
+            pendingUnusedBytes = pendingUnusedBytes + blockSize;
+            pendingFrees.add( new long[]{ pos, blockSize } );
         }
-        dataFile.seek( pos );
-        dataFile.skipBytes( 4 ); // Skip BlockSize
-        byte usage = dataFile.readByte();
-        if (usage == USAGE_UNUSED)
+        finally
         {
-            // Not used?? Why is the IdentityFile pointing to it then?? Should the following line actually be
-            // executed here.
-            //    identityFile.drop( identity );
-            return;
+            writeLock.unlock();
         }
-        UndoDropIdentityCommand undoDropIdentityCommand = new UndoDropIdentityCommand( reference, pos );
-        undoManager.saveUndoCommand( undoDropIdentityCommand );
-
-        UndoDeleteCommand undoDeleteCommand = new UndoDeleteCommand( pos, usage );
-        undoManager.saveUndoCommand( undoDeleteCommand );
-
-        identityFile.drop( reference );
-        dataFile.skipBytes( -1 );
-        dataFile.writeByte( USAGE_UNUSED );   // Mark Unused block
     }
 
-    void flush()
+    void commit()
         throws IOException
     {
-//        dataFile.getFD().sync();
+        writeLock.lock();
+        try
+        {
+            inTransaction = false;
+            unusedBytes = unusedBytes + pendingUnusedBytes;
+            pendingUnusedBytes = 0;
+            pendingAllocations.clear();
+            if (checkpoint != null)
+            {
+                for (long[] free : pendingFrees)
+                {
+                    checkpoint.released( free[ 0 ], (int) free[ 1 ] );
+                }
+                checkpoint.commit( unusedBytes, dataFile.length() );
+            }
+            long heapSize = dataFile.length() - DATA_AREA_OFFSET;
+            if (settings.compactionThreshold > 0 && compactor == null && heapSize >= MIN_COMPACTION_SIZE
+                && unusedBytes >= heapSize * settings.compactionThreshold)
+            {
+                compactor = new HeapCompactor( this, settings.compactionRate );
+                compactor.start();
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
     }
 
-    void close()
+    /**
+     * Makes the blocks dropped by the committed transaction available for reuse. This must not be done before the
+     * undo journal is cleared, as merging the blocks overwrites the block sizes that an undo depends on.
+     *
+     * @throws IOException if the merged blocks can not be written.
+     */
+    void reclaim()
         throws IOException
     {
-        identityFile.close();
-        dataFile.seek( 0 );
-        dataFile.writeBoolean( true );
-        dataFile.writeInt( entries );
-        dataFile.close();
+        writeLock.lock();
+        try
+        {
+            heapChanges++;
+            for (long[] free : pendingFrees)
+            {
+                release( free[ 0 ], (int) free[ 1 ] );
+            }
+            pendingFrees.clear();
+            if (checkpoint != null && checkpoint.logSize() >= settings.checkpointLogSize)
+            {
+                writeCheckpoint();
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
     }
 
-    private long addData( DataBlock block )
+    /* Adds an Unused block to the free space, merged with the free blocks on either side of it. */
+
+    private void release( long position, int blockSize )
         throws IOException
     {
-        dataFile.seek( dataFile.length() - 4 ); // last 4 bytes contain a -1
-        long blockStart = dataFile.getFilePointer();
-
-        // Allow each datablock to grow to twice its size, and provide a primary and mirror allocation.
-        int dataAreaSize = (block.data.length * 2 + 4) * 2;
-        UndoExtendCommand undoExtendCommand = new UndoExtendCommand( blockStart );
-        undoManager.saveUndoCommand( undoExtendCommand );
-
-        int blockSize = dataAreaSize + identityMaxLength + BLOCK_OVERHEAD;
-        dataFile.writeInt( blockSize );
-        long usagePointer = dataFile.getFilePointer();
-        dataFile.writeByte( USAGE_PRIMECHANGE ); // In-progress
-        dataFile.writeLong( block.instanceVersion );
-        dataFile.writeInt( block.schemaVersion );
-        writeIdentity( block.reference );
-
-        long mirrorPosition = blockStart + BLOCK_OVERHEAD + identityMaxLength + dataAreaSize / 2;
-        dataFile.writeLong( mirrorPosition );
-        dataFile.writeInt( block.data.length );
-        dataFile.write( block.data );
-        dataFile.seek( blockStart + blockSize );
-        dataFile.writeInt( -1 ); // Write EOF marker.
-        dataFile.seek( usagePointer );
-        dataFile.write( USAGE_PRIME );
-        return blockStart;
+        long merged = freeSpace.release( position, blockSize );
+        dataFile.seek( merged );
+        dataFile.writeInt( freeSpace.sizeOf( merged ) );
     }
 
-    private void writeIdentity( EntityReference reference )
+    /**
+     * Called by the RecordManager when the store is ready for use, after the undo journal of an interrupted
+     * transaction has been replayed.
+     *
+     * @param undone true if an interrupted transaction was undone.
+     * @throws IOException if the heap or the checkpoint can not be accessed.
+     */
+    void recovered( boolean undone )
         throws IOException
     {
-        byte[] idBytes = reference.identity().getBytes( "UTF-8" );
-        if (idBytes.length > identityMaxLength)
+        writeLock.lock();
+        try
+        {
+            if (reIndexed && undone)
+            {
+                // The re-indexing has seen the blocks of the interrupted transaction.
+                rebuildFreeSpace();
+            }
+            if (checkpoint != null)
+            {
+                boolean usable = checkpoint.open();
+                if (!usable || reIndexed || restored)
+                {
+                    // Also cuts off a torn tail of the log, which would hide the transactions appended after it.
+                    writeCheckpoint();
+                }
+            }
+            if (settings.scrubInterval > 0)
+            {
+                scrubber = new HeapScrubber( this, settings.scrubRate, settings.scrubInterval );
+                scrubber.start();
+            }
+        }
+        finally
         {
-            throw new EntityStoreException( "Identity is too long. Only " + identityMaxLength + " characters are allowed in this EntityStore." );
+            writeLock.unlock();
         }
-        byte[] id = new byte[identityMaxLength];
-        System.arraycopy( idBytes, 0, id, 0, idBytes.length );
-        dataFile.writeByte( idBytes.length );
-        dataFile.write( id );
     }
 
-    private void compact()
+    /* Restores the index and the free space from the last checkpoint, instead of scanning the heap. */
+
+    private boolean restoreCheckpoint( long logLimit )
         throws IOException
     {
-/*
-        File newFileName = new File( dataDir, "heap-compacting.data" );
-        RandomAccessFile newFile = new RandomAccessFile( newFileName, "rw" );
-        File oldFileName = new File( dataDir, "heap.data" );
-        RandomAccessFile oldFile = new RandomAccessFile( oldFileName, "r" );
+        if (checkpoint == null)
+        {
+            return false;
+        }
+        identityIndex = createIndex( new File( dataDir, INDEX_DIRNAME ) );
+        if (!checkpoint.restore( identityIndex, identityMaxLength, logLimit ))
+        {
+            identityIndex.close();
+            return false;
+        }
+        freeSpace = checkpoint.freeSpace();
+        unusedBytes = checkpoint.unusedBytes();
+        // An extension by the interrupted transaction is undone by its journal, but a mapped heap may be longer.
+        dataFile.setLength( checkpoint.heapLength() );
+        dataFile.seek( checkpoint.heapLength() - 4 );
+        dataFile.writeInt( -1 );
+        restored = true;
+        return true;
+    }
 
-        oldFile.seek( DATA_AREA_OFFSET ); // Skip initial bytes;
-        newFile.seek( DATA_AREA_OFFSET ); // Skip initial bytes;
+    /**
+     * @return The length of the checkpoint log, or -1 if checkpoints are disabled.
+     * @throws IOException if the log can not be accessed.
+     */
+    long logPosition()
+        throws IOException
+    {
+        return checkpoint == null ? -1 : checkpoint.logSize();
+    }
 
-        int counter = 0;
+    /* Throws IdentityTooLongException if the identity doesn't fit in a block of this heap. */
 
-        // Move the Records!!
+    void checkIdentity( EntityReference reference )
+        throws IOException
+    {
+        identityBytes( reference, fixedIdentity );
+    }
 
-        entries = counter;
+    int identityMaxLength()
+    {
+        return identityMaxLength;
+    }
 
-        newFile.writeBoolean( false );
-        newFile.writeInt( CURRENT_VERSION );  // Write Version.
+    /**
+     * @return The identities of the entities in the heap.
+     * @throws IOException if the index can not be read.
+     */
+    List<String> identities()
+        throws IOException
+    {
+        final List<String> identities = new ArrayList<String>();
+        readLock.lock();
+        try
+        {
+            identityIndex.visit( new IdentityIndex.EntryVisitor()
+            {
+                public void visit( String identity, long pos )
+                {
+                    identities.add( identity );
+                }
+            } );
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+        return identities;
+    }
 
-        newFile.writeInt( entries );
-        reIndex( dataDir );
-        dataFile.close();
-        newFile.close();
+    /**
+     * @return The position of the EOF marker, where the next block is appended.
+     * @throws IOException if the heap can not be accessed.
+     */
+    long heapEnd()
+        throws IOException
+    {
+        readLock.lock();
+        try
+        {
+            return dataFile.length() - 4;
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
 
-        File standardFilename = new File( dataDir, "heap.data" );
-        newFileName.renameTo( standardFilename );
-        dataFile = new RandomAccessFile( standardFilename, "rw" );
-*/
+    /**
+     * @param appendOnly true if new blocks must be appended to the heap, instead of reusing free space.
+     */
+    void setAppendOnly( boolean appendOnly )
+    {
+        this.appendOnly = appendOnly;
     }
 
-    private void reIndex()
+    /**
+     * Removes the blocks that were appended to the heap by an interrupted transaction, and the identities of the
+     * given ones that point to them. Called during the recovery, before {@link #recovered(boolean)}.
+     *
+     * @param end        The end of the heap before the transaction.
+     * @param references The entities of the transaction.
+     * @throws IOException if the heap or the index can not be changed.
+     */
+    void truncate( long end, List<EntityReference> references )
         throws IOException
     {
-        identityFile = IdentityFile.create( new File( dataDir, "idx" ), identityMaxLength + 16, entries < 5000 ? 10000 : entries * 2 );
-
-        dataFile.seek( DATA_AREA_OFFSET );
-        while (dataFile.getFilePointer() < dataFile.length())
+        writeLock.lock();
+        try
         {
-            long blockStart = dataFile.getFilePointer();
-            int blockSize = dataFile.readInt();
-            if (blockSize == -1)
-            {
-                break;
-            }
-            byte usage = dataFile.readByte();
-            dataFile.skipBytes( 12 ); // Skip instanceVersion and schemaVersion
-            EntityReference reference = readReference();
-            if (usage != USAGE_UNUSED)
+            heapChanges++;
+            for (EntityReference reference : references)
             {
-                identityFile.remember( reference, blockStart );
+                if (identityIndex.find( reference ) >= end)
+                {
+                    identityIndex.drop( reference );
+                }
             }
-            dataFile.seek( blockStart + blockSize );
+            dataFile.setLength( end + 4 );
+            dataFile.seek( end );
+            dataFile.writeInt( -1 );
+            typeIndex = null;
+        }
+        finally
+        {
+            writeLock.unlock();
         }
     }
 
-    public Input<Reader, IOException> data()
+    private void writeCheckpoint()
+        throws IOException
     {
-        return new Input<Reader, IOException>()
+        checkpoint.write( identityIndex, freeSpace, unusedBytes, dataFile.length(), identityMaxLength );
+    }
+
+    /**
+     * Rebuilds the free space from the heap.
+     *
+     * @throws IOException if the heap can not be read.
+     */
+    private void rebuildFreeSpace()
+        throws IOException
+    {
+        writeLock.lock();
+        try
         {
-            public <ReceiverThrowableType extends Throwable> void transferTo( Output<Reader, ReceiverThrowableType> output ) throws IOException, ReceiverThrowableType
+            freeSpace = new FreeSpace();
+            long position = DATA_AREA_OFFSET;
+            int blockSize = readInt( position );
+            while (blockSize > 0)
             {
-                output.receiveFrom( new Sender<Reader, IOException>()
+                if ((readByte( position + 4 ) & USAGE_MASK) == USAGE_UNUSED)
                 {
-                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<Reader, ReceiverThrowableType> receiver ) throws ReceiverThrowableType, IOException
-                    {
-                        try
-                        {
-                            long position = DATA_AREA_OFFSET;
-                            while (position < dataFile.length())
-                            {
-                                dataFile.seek( position );
-                                int blockSize = dataFile.readInt();
-                                if (blockSize == -1) // EOF marker
-                                {
-                                    return;
-                                }
-                                if (blockSize == 0)
-                                {
-                                    // TODO This is a bug. Why does it occur??
-                                    throw new InternalError();
-                                }
-                                position = position + blockSize;  // position for next round...
-                                DataBlock block = readDataBlock( null );
-                                if (block != null)
-                                {
-                                    receiver.receive( new StringReader( new String( block.data, "UTF-8" ) ) );
-                                }
-                            }
-                        }
-                        catch (IOException e)
-                        {
-                            throw new EntityStoreException( e );
-                        }
-                    }
-                });
+                    freeSpace.add( position, blockSize );
+                }
+                position = position + blockSize;
+                blockSize = readInt( position );
             }
-        };
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
     }
 
-    private DataBlock readDataBlock( EntityReference reference )
+    void sync()
         throws IOException
     {
-        byte usage = dataFile.readByte();
-        if (usage == USAGE_UNUSED)
-        {
-            return null;
-        }
-        long instanceVersion = dataFile.readLong();
-        int schemaVersion = dataFile.readInt();
-        EntityReference existingReference = readReference();
-        if (reference == null)
+        readLock.lock();
+        try
         {
-            reference = existingReference;
+            dataFile.sync();
+            if (checkpoint != null)
+            {
+                checkpoint.sync();
+            }
         }
-        if (!existingReference.equals( reference ))
+        finally
         {
-            throw new EntityStoreException( "Inconsistent Data Heap." );
+            readLock.unlock();
         }
-        if (usage == USAGE_MIRROR)
-        {
-            long mirror = dataFile.readLong();
-            dataFile.seek( mirror );
-        } else
+    }
+
+    void discard( List<UndoCommand> commands )
+        throws IOException
+    {
+        writeLock.lock();
+        try
         {
-            dataFile.skipBytes( 8 ); // skip the MirrorPointer
+            heapChanges++;
+            // Backwards, as later commands depend on the state left by earlier ones, e.g. the EOF of an extension.
+            for (int i = commands.size() - 1; i >= 0; i--)
+            {
+                commands.get( i ).undo( dataFile, identityIndex );
+            }
+            // The undo commands have marked the allocated blocks Unused again, including what was split off them.
+            for (int i = pendingAllocations.size() - 1; i >= 0; i--)
+            {
+                long[] allocation = pendingAllocations.get( i );
+                freeSpace.restore( allocation[ 0 ], (int) allocation[ 1 ] );
+            }
+            pendingAllocations.clear();
+            pendingFrees.clear();
+            if (checkpoint != null)
+            {
+                checkpoint.discard();
+            }
+            inTransaction = false;
+            pendingUnusedBytes = 0;
+            if (cache != null)
+            {
+                // Cheaper than tracking which blocks the undone changes touched.
+                cache.clear();
+            }
+            // Likewise, built again on the next scan of a type.
+            typeIndex = null;
         }
-        int dataSize = dataFile.readInt();
-        if (dataSize < 0)
+        finally
         {
-            throw new InternalError();
+            writeLock.unlock();
         }
-        byte[] data = new byte[dataSize];
-        dataFile.read( data );
-        return new DataBlock( reference, data, instanceVersion, schemaVersion );
     }
 
-    private EntityReference readReference()
+    void close()
         throws IOException
     {
-        int idSize = dataFile.readByte();
-        if (idSize < 0)
+        HeapCompactor runningCompactor;
+        HeapScrubber runningScrubber;
+        writeLock.lock();
+        try
         {
-            idSize = idSize + 256;  // Fix 2's-complement negative values of bytes into unsigned 8 bit.
+            runningCompactor = compactor;
+            runningScrubber = scrubber;
+            scrubber = null;
         }
-        byte[] idData = new byte[idSize];
-        dataFile.read( idData );
-        dataFile.skipBytes( identityMaxLength - idSize );
-        return new EntityReference( new String( idData ) );
+        finally
+        {
+            writeLock.unlock();
+        }
+        // The compactor needs the lock to finish its current step, so it can't be held while waiting for it.
+        if (runningCompactor != null)
+        {
+            runningCompactor.stop();
+        }
+        if (runningScrubber != null)
+        {
+            runningScrubber.stop();
+        }
+        writeLock.lock();
+        try
+        {
+            abortCompaction();
+            if (backup != null)
+            {
+                // Left incomplete.
+                dataFile = backup.heap();
+                backup.complete();
+                backup = null;
+            }
+            identityIndex.close();
+            freeSpace.write( new File( dataDir, FREE_SPACE_FILENAME ) );
+            TypeIndex index = typeIndex;
+            if (index != null)
+            {
+                index.write( new File( dataDir, TYPE_INDEX_FILENAME ) );
+            }
+            if (checkpoint != null)
+            {
+                checkpoint.close();
+            }
+            writeHeader( dataFile, version(), true, unusedBytes );
+            dataFile.close();
+            codec.close();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeHeader( HeapFile file, int version, boolean cleanShutDown, long unused )
+        throws IOException
+    {
+        file.seek( 0 );
+        file.writeBoolean( cleanShutDown );
+        file.writeInt( version );
+        file.writeInt( entries );
+        file.writeInt( version <= FIXED_IDENTITY_VERSION ? identityMaxLength : MAX_IDENTITY_LENGTH );
+        file.writeLong( unused );
+    }
+
+    /* The format version of the heap. */
+
+    private int version()
+    {
+        if (fixedIdentity)
+        {
+            return FIXED_IDENTITY_VERSION;
+        }
+        if (!typed)
+        {
+            return UNTYPED_VERSION;
+        }
+        return checked ? CURRENT_VERSION : UNCHECKED_VERSION;
+    }
+
+    private long addData( DataBlock block )
+        throws IOException
+    {
+        byte[] stored = encode( block.data );
+        byte[] identity = identityBytes( block.reference, fixedIdentity );
+        byte[] type = typeField( block.type, typed );
+        int blockSize = blockSize( stored.length, identity.length + type.length, version() );
+        // A running scan steps from block to block, so it must not find a new block in the middle of a freed one.
+        long blockStart = activeScans.get() == 0 && !appendOnly ? freeSpace.find( blockSize ) : -1;
+        if (blockStart >= 0)
+        {
+            int freeSize = freeSpace.remove( blockStart );
+            if (checkpoint != null)
+            {
+                checkpoint.allocated( blockStart );
+            }
+            UndoAllocateCommand undoAllocateCommand = new UndoAllocateCommand( blockStart, freeSize );
+            undoManager.saveUndoCommand( undoAllocateCommand );
+            pendingAllocations.add( new long[]{ blockStart, freeSize } );
+            pendingUnusedBytes = pendingUnusedBytes - freeSize;
+            int remainder = freeSize - blockSize;
+            if (remainder < overhead( 0, version() ) + MIN_SPLIT_DATA_SIZE)
+            {
+                // Not worth splitting, the block gets more room to grow instead.
+                blockSize = freeSize;
+            } else
+            {
+                // The undo of the allocation covers the remainder, so it can be reused right away.
+                dataFile.seek( blockStart + blockSize );
+                dataFile.writeInt( remainder );
+                dataFile.writeByte( USAGE_UNUSED );
+                freeSpace.add( blockStart + blockSize, remainder );
+                if (checkpoint != null)
+                {
+                    checkpoint.freed( blockStart + blockSize, remainder );
+                }
+                pendingUnusedBytes = pendingUnusedBytes + remainder;
+            }
+            writeBlock( dataFile, version(), blockStart, blockSize, block, identity, type, stored );
+            return blockStart;
+        }
+        blockStart = dataFile.length() - 4; // last 4 bytes contain a -1
+        UndoExtendCommand undoExtendCommand = new UndoExtendCommand( blockStart );
+        undoManager.saveUndoCommand( undoExtendCommand );
+        writeBlock( dataFile, version(), blockStart, blockSize, block, identity, type, stored );
+        dataFile.seek( blockStart + blockSize );
+        dataFile.writeInt( -1 ); // Write EOF marker.
+        return blockStart;
+    }
+
+    /* The size of a new block for data of the given stored length. */
+
+    private int blockSize( int storedLength, int identityLength, int version )
+    {
+        // Allow each datablock to grow to twice its size, and provide a primary and mirror allocation.
+        int dataAreaSize = (storedLength * 2 + areaHeaderSize( version )) * 2;
+        return dataAreaSize + overhead( identityLength, version );
+    }
+
+    /* The size of a block besides its data areas, for an identity and type field of the given length in bytes. */
+
+    private int overhead( int identityLength, int version )
+    {
+        return version <= FIXED_IDENTITY_VERSION ? BLOCK_OVERHEAD + identityMaxLength : BLOCK_OVERHEAD + 1 + identityLength;
+    }
+
+    /* The size of the checksum and the length in front of the data in each data area. */
+
+    private static int areaHeaderSize( int version )
+    {
+        return version >= CURRENT_VERSION ? 8 : 4;
+    }
+
+    /* Writes a block at blockStart, with the data split evenly between the prime and the mirror area. */
+
+    private void writeBlock( HeapFile file, int version, long blockStart, int blockSize, DataBlock block,
+                             byte[] identity, byte[] type, byte[] stored )
+        throws IOException
+    {
+        file.seek( blockStart );
+        int overhead = overhead( identity.length + type.length, version );
+        int dataAreaSize = blockSize - overhead;
+        file.writeInt( blockSize );
+        long usagePointer = file.getFilePointer();
+        file.writeByte( USAGE_PRIMECHANGE ); // In-progress
+        file.writeLong( block.instanceVersion );
+        file.writeInt( block.schemaVersion );
+        if (version <= FIXED_IDENTITY_VERSION)
+        {
+            byte[] id = new byte[identityMaxLength];
+            System.arraycopy( identity, 0, id, 0, identity.length );
+            file.writeByte( identity.length );
+            file.write( id );
+        } else
+        {
+            file.write( identity.length >>> 8 );
+            file.write( identity.length );
+            file.write( identity );
+            file.write( type );
+        }
+
+        long mirrorPosition = blockStart + overhead + dataAreaSize / 2 + areaHeaderSize( version ) - 4;
+        file.writeLong( mirrorPosition );
+        if (version >= CURRENT_VERSION)
+        {
+            file.writeInt( checksum( stored, 0, stored.length ) );
+        }
+        file.writeInt( stored.length );
+        file.write( stored );
+        file.seek( usagePointer );
+        file.write( usage( USAGE_PRIME, stored, block.data ) );
+    }
+
+    /* The data as it is to be stored in a block, compressed if that makes it smaller. */
+
+    private byte[] encode( byte[] data )
+    {
+        byte[] encoded = codec.encode( data );
+        return encoded == null ? data : encoded;
+    }
+
+    /* The usage byte for the given state, with the codec that the data was stored with. */
+
+    private int usage( int state, byte[] stored, byte[] data )
+    {
+        int codecId = stored == data ? BlockCodec.NONE : codec.codec();
+        return (codecId << CODEC_SHIFT) | state;
+    }
+
+    /* The number of bytes of data that fits in each of the prime and mirror areas of a block. */
+
+    private int dataCapacity( int blockSize, int identityLength )
+    {
+        return (blockSize - overhead( identityLength, version() )) / 2 - areaHeaderSize( version() );
+    }
+
+    /* The type recorded in the block at the position, or null for the formats that have no type. */
+
+    private byte[] storedType( long position, int identityLength )
+        throws IOException
+    {
+        if (!typed)
+        {
+            return null;
+        }
+        long at = position + IDENTITY_OFFSET + 2 + identityLength;
+        byte[] size = new byte[2];
+        dataFile.readFully( at, size, 0, 2 );
+        byte[] type = new byte[sizeAt( size, 0 )];
+        dataFile.readFully( at + 2, type, 0, type.length );
+        return type;
+    }
+
+    private byte[] identityBytes( EntityReference reference, boolean fixed )
+        throws IOException
+    {
+        byte[] idBytes = reference.identity().getBytes( "UTF-8" );
+        if (idBytes.length > (fixed ? Math.min( identityMaxLength, 255 ) : MAX_IDENTITY_LENGTH))
+        {
+            throw new IdentityTooLongException( reference );
+        }
+        return idBytes;
+    }
+
+    /* The type field of a block, with its size, or nothing for the formats that have no type. */
+
+    private static byte[] typeField( String type, boolean typed )
+        throws IOException
+    {
+        if (!typed)
+        {
+            return new byte[0];
+        }
+        byte[] typeBytes = type == null ? new byte[0] : type.getBytes( "UTF-8" );
+        if (typeBytes.length > MAX_TYPE_LENGTH)
+        {
+            throw new EntityStoreException( "Entity type is too long: " + type );
+        }
+        byte[] field = new byte[2 + typeBytes.length];
+        field[ 0 ] = (byte) (typeBytes.length >>> 8);
+        field[ 1 ] = (byte) typeBytes.length;
+        System.arraycopy( typeBytes, 0, field, 2, typeBytes.length );
+        return field;
+    }
+
+    /**
+     * Starts a compaction by creating the new heap file and its index. Called by the HeapCompactor.
+     *
+     * @return The position in the current heap where the copying ends, or -1 if a transaction is in progress and
+     *         the caller should try again later. Blocks added after that position are carried over when the
+     *         compaction is finished.
+     * @throws IOException if the new heap can not be created.
+     */
+    long startCompaction()
+        throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            if (inTransaction)
+            {
+                return -1;
+            }
+            File heapFile = new File( dataDir, COMPACTING_HEAP_FILENAME );
+            File idDir = new File( dataDir, COMPACTING_INDEX_DIRNAME );
+            FileUtils.delete( heapFile );
+            Compaction newCompaction = new Compaction();
+            newCompaction.dataFile = openHeapFile( heapFile );
+            newCompaction.identityIndex = createIndex( idDir );
+            // Always in the current format, so that the compaction upgrades older heaps.
+            writeHeader( newCompaction.dataFile, CURRENT_VERSION, false, 0 );
+            newCompaction.dataFile.seek( DATA_AREA_OFFSET - 1 );
+            newCompaction.dataFile.writeByte( 0 );
+            newCompaction.dataFile.writeInt( -1 );  // EOF marker
+            newCompaction.end = dataFile.length() - 4;
+            compaction = newCompaction;
+            return compaction.end;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the live blocks starting at the given position to the new heap.
+     *
+     * @param position The position of the first block to copy.
+     * @param maxBytes The number of bytes of the current heap to go through in this step.
+     * @return The position of the block following the last one that was copied.
+     * @throws IOException if the heap can not be read or the new heap can not be written.
+     */
+    long compactStep( long position, int maxBytes )
+        throws IOException
+    {
+        readLock.lock();
+        try
+        {
+            // A discarded transaction may have truncated the heap below the end.
+            long end = Math.min( compaction.end, dataFile.length() - 4 );
+            long stepEnd = Math.min( position + maxBytes, end );
+            while (position < stepEnd)
+            {
+                int blockSize = readInt( position );
+                DataBlock block = readBlock( position, null );
+                // Only the block that the index points to is live. Others are left overs from crashes.
+                if (block != null && identityIndex.find( block.reference ) == position)
+                {
+                    copyToCompaction( block );
+                }
+                position = position + blockSize;
+            }
+            return position < end ? position : compaction.end;
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the current heap and index with the compacted ones. This must happen between transactions, and
+     * while no scan is going through the heap.
+     *
+     * @return true if the heaps were switched, false if the caller should try again later.
+     * @throws IOException if the files can not be switched.
+     */
+    boolean finishCompaction()
+        throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            // Blocks waiting to be reclaimed are positions in the old heap, and a backup copies the old heap.
+            if (inTransaction || activeScans.get() > 0 || !pendingFrees.isEmpty() || backup != null)
+            {
+                return false;
+            }
+            // Bring over the changes made since the compaction started.
+            for (EntityReference reference : compaction.changed)
+            {
+                long oldPosition = compaction.identityIndex.find( reference );
+                if (oldPosition >= 0)
+                {
+                    compaction.dataFile.seek( oldPosition );
+                    int blockSize = compaction.dataFile.readInt();
+                    compaction.dataFile.writeByte( USAGE_UNUSED );
+                    compaction.identityIndex.drop( reference );
+                    compaction.typeIndex.remove( reference );
+                    compaction.unusedBytes = compaction.unusedBytes + blockSize;
+                    compaction.freeSpace.add( oldPosition, blockSize );
+                }
+                long position = identityIndex.find( reference );
+                if (position >= 0)
+                {
+                    DataBlock block = readBlock( position, reference );
+                    if (block != null)
+                    {
+                        copyToCompaction( block );
+                    }
+                }
+            }
+            writeHeader( compaction.dataFile, CURRENT_VERSION, false, compaction.unusedBytes );
+            if (settings.syncOnCommit)
+            {
+                compaction.dataFile.sync();
+            }
+            compaction.dataFile.close();
+            compaction.identityIndex.close();
+            dataFile.close();
+            identityIndex.close();
+
+            File heapFile = new File( dataDir, HEAP_DATA_FILENAME );
+            File idDir = new File( dataDir, INDEX_DIRNAME );
+            rename( new File( dataDir, COMPACTING_HEAP_FILENAME ), heapFile );
+            FileUtils.delete( idDir );
+            rename( new File( dataDir, COMPACTING_INDEX_DIRNAME ), idDir );
+            dataFile = openHeapFile( heapFile );
+            identityIndex = openIndex( idDir );
+            unusedBytes = compaction.unusedBytes;
+            freeSpace = compaction.freeSpace;
+            typeIndex = compaction.typeIndex;
+            fixedIdentity = false;
+            typed = true;
+            checked = true;
+            identityMaxLength = MAX_IDENTITY_LENGTH;
+            compaction = null;
+            if (checkpoint != null)
+            {
+                // The positions in the old snapshot and log are those of the old heap.
+                writeCheckpoint();
+            }
+            compactor = null;
+            return true;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a backup of the heap as it is at this moment. The heap is copied by {@link #backupStep(int)} while
+     * it stays in use, and the copy is completed by {@link #finishBackup()}.
+     *
+     * @param targetDir The directory to copy the heap to.
+     * @return false if a transaction is in progress, and the backup must be started again later.
+     * @throws IOException if the copy can not be created.
+     */
+    boolean startBackup( File targetDir )
+        throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            if (inTransaction)
+            {
+                return false;
+            }
+            if (backup != null)
+            {
+                throw new IllegalStateException( "A backup of " + dataDir + " is already running." );
+            }
+            targetDir.mkdirs();
+            backup = new HeapBackup( dataFile, new File( targetDir, HEAP_DATA_FILENAME ) );
+            // All writes to the heap go through the backup, which preserves what they overwrite.
+            dataFile = backup;
+            return true;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the next part of the heap to the backup.
+     *
+     * @param maxBytes The maximum number of bytes to copy.
+     * @return true if the whole heap has been copied.
+     * @throws IOException if the heap can not be read or the copy not written.
+     */
+    boolean backupStep( int maxBytes )
+        throws IOException
+    {
+        readLock.lock();
+        try
+        {
+            return backup.copyStep( maxBytes );
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the writes from going through the backup, and closes the copy.
+     *
+     * @throws IOException if the copy can not be written.
+     */
+    void finishBackup()
+        throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            if (backup != null)
+            {
+                dataFile = backup.heap();
+                HeapBackup finished = backup;
+                backup = null;
+                finished.complete();
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /* Called by the HeapScrubber when it starts a pass. New blocks are appended meanwhile, as for a scan. */
+
+    void startScrub()
+    {
+        readLock.lock();
+        try
+        {
+            activeScans.incrementAndGet();
+            scrubbedCorruptions = 0;
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Verifies the blocks of the next part of the heap, while no transaction is in progress.
+     *
+     * @param position The position of the first block to verify.
+     * @param maxBytes The number of bytes after which no new block is started.
+     * @return The position of the next block, the given position if a transaction is in progress, or -1 at the
+     *         end of the heap.
+     * @throws IOException if the heap can not be read.
+     */
+    long scrubStep( long position, int maxBytes )
+        throws IOException
+    {
+        ArrayList<Long> corrupted = new ArrayList<Long>();
+        readLock.lock();
+        try
+        {
+            if (inTransaction)
+            {
+                return position;
+            }
+            long end = dataFile.length() - 4;
+            long stepEnd = position + maxBytes;
+            while (position < end && position < stepEnd)
+            {
+                int blockSize = readInt( position );
+                if (blockSize <= 0 || position + blockSize > end)
+                {
+                    // The blocks after it can't be found.
+                    corrupted.add( position );
+                    position = end;
+                    break;
+                }
+                if ((readByte( position + 4 ) & USAGE_MASK) != USAGE_UNUSED && !verify( position ))
+                {
+                    corrupted.add( position );
+                }
+                position = position + blockSize;
+            }
+            if (position >= end)
+            {
+                position = -1;
+            }
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+        for (long blockStart : corrupted)
+        {
+            corrupted( blockStart );
+        }
+        return position;
+    }
+
+    /* Called by the HeapScrubber when it ends a pass. */
+
+    void finishScrub( boolean complete )
+    {
+        writeLock.lock();
+        try
+        {
+            activeScans.decrementAndGet();
+            if (complete)
+            {
+                corruptedBlocks = scrubbedCorruptions;
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of corrupted blocks found by the last complete pass of the scrubber.
+     */
+    long corruptedBlocks()
+    {
+        return corruptedBlocks;
+    }
+
+    /**
+     * @return The number of blocks that have been moved to the quarantine directory.
+     */
+    long quarantinedBlocks()
+    {
+        return quarantinedBlocks;
+    }
+
+    private boolean verify( long position )
+    {
+        try
+        {
+            readBlock( position, null );
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        catch (RuntimeException e)
+        {
+            // Corrupted, or garbage that couldn't even be decoded.
+            return false;
+        }
+    }
+
+    /*
+     * Counts a corrupted block, and moves it to the quarantine directory if so configured. Only a block that is
+     * still corrupted, and that the index still points to, is moved, and its entity is dropped.
+     */
+
+    private void corrupted( long position )
+        throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            scrubbedCorruptions++;
+            if (!settings.quarantineCorruptedBlocks || inTransaction || verify( position ))
+            {
+                return;
+            }
+            int blockSize = readInt( position );
+            if (blockSize <= 0 || position + blockSize > dataFile.length() - 4)
+            {
+                return;
+            }
+            byte[] header = new byte[Math.min( BLOCK_READ_PREFIX, blockSize )];
+            EntityReference reference;
+            try
+            {
+                dataFile.readFully( position, header, 0, header.length );
+                if (identityFieldLength( header, 0, header.length ) < 0)
+                {
+                    return;
+                }
+                reference = identityOf( header, 0 );
+            }
+            catch (RuntimeException e)
+            {
+                return;
+            }
+            if (identityIndex.find( reference ) != position)
+            {
+                return;
+            }
+            File quarantineDir = new File( dataDir, QUARANTINE_DIRNAME );
+            quarantineDir.mkdirs();
+            byte[] block = new byte[blockSize];
+            dataFile.readFully( position, block, 0, blockSize );
+            FileOutputStream out = new FileOutputStream( new File( quarantineDir, position + ".block" ) );
+            try
+            {
+                out.write( block );
+            }
+            finally
+            {
+                out.close();
+            }
+            heapChanges++;
+            if (cache != null)
+            {
+                cache.remove( reference );
+            }
+            dataFile.seek( position + 4 );
+            dataFile.writeByte( USAGE_UNUSED );
+            identityIndex.drop( reference );
+            TypeIndex index = typeIndex;
+            if (index != null)
+            {
+                index.remove( reference );
+            }
+            unusedBytes = unusedBytes + blockSize;
+            release( position, blockSize );
+            if (checkpoint != null)
+            {
+                // Logged as a transaction of its own.
+                checkpoint.dropped( reference );
+                checkpoint.released( position, blockSize );
+                checkpoint.commit( unusedBytes, dataFile.length() );
+            }
+            quarantinedBlocks++;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /* Called by the HeapCompactor if it fails, and on close. */
+
+    void abortCompaction()
+    {
+        writeLock.lock();
+        try
+        {
+            if (compaction != null)
+            {
+                try
+                {
+                    compaction.dataFile.close();
+                    compaction.identityIndex.close();
+                }
+                catch (IOException e)
+                {
+                    // Ignore, the files are deleted anyway.
+                }
+                compaction = null;
+            }
+            FileUtils.delete( new File( dataDir, COMPACTING_HEAP_FILENAME ) );
+            FileUtils.delete( new File( dataDir, COMPACTING_INDEX_DIRNAME ) );
+            compactor = null;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    private void copyToCompaction( DataBlock block )
+        throws IOException
+    {
+        long blockStart = compaction.dataFile.length() - 4;
+        byte[] stored = encode( block.data );
+        byte[] identity = identityBytes( block.reference, false );
+        byte[] type = typeField( block.type, true );
+        int blockSize = blockSize( stored.length, identity.length + type.length, CURRENT_VERSION );
+        writeBlock( compaction.dataFile, CURRENT_VERSION, blockStart, blockSize, block, identity, type, stored );
+        compaction.dataFile.seek( blockStart + blockSize );
+        compaction.dataFile.writeInt( -1 ); // Write EOF marker.
+        compaction.identityIndex.remember( block.reference, blockStart );
+        if (block.type != null)
+        {
+            compaction.typeIndex.put( block.type, block.reference, blockStart );
+        }
+    }
+
+    private static void rename( File from, File to )
+        throws IOException
+    {
+        if (!from.renameTo( to ))
+        {
+            // Some platforms will not rename over an existing file.
+            FileUtils.delete( to );
+            if (!from.renameTo( to ))
+            {
+                throw new IOException( "Unable to rename " + from + " to " + to );
+            }
+        }
+    }
+
+    private IdentityIndex createIndex( File idDir )
+        throws IOException
+    {
+        if (settings.memoryIndex)
+        {
+            FileUtils.delete( idDir );
+            return MemoryIdentityIndex.create( idDir, entries );
+        }
+        return IdentityFile.create( idDir, MAX_IDENTITY_LENGTH + IdentityFile.SLOT_OVERHEAD, Math.max( entries, 1000 ), settings );
+    }
+
+    private IdentityIndex openIndex( File idDir )
+        throws IOException
+    {
+        if (settings.memoryIndex)
+        {
+            return MemoryIdentityIndex.load( idDir );
+        }
+        try
+        {
+            return IdentityFile.use( idDir, settings );
+        }
+        catch (MalformedIdentityDirectoryException e)
+        {
+            throw new IOException( "Compacted index is missing in " + idDir );
+        }
+    }
+
+    private void reIndex()
+        throws IOException
+    {
+        identityIndex = createIndex( new File( dataDir, INDEX_DIRNAME ) );
+        unusedBytes = 0;
+        freeSpace = new FreeSpace();
+        typeIndex = typed ? new TypeIndex() : null;
+        reIndexed = true;
+        List<long[]> segments = segments();
+        int threads = Math.min( segments.size(), Runtime.getRuntime().availableProcessors() );
+        if (threads <= 1)
+        {
+            for (long[] segment : segments)
+            {
+                index( scan( segment[ 0 ], segment[ 1 ] ) );
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            ArrayList<Future<ScannedSegment>> scans = new ArrayList<Future<ScannedSegment>>();
+            for (final long[] segment : segments)
+            {
+                scans.add( executor.submit( new Callable<ScannedSegment>()
+                {
+                    public ScannedSegment call()
+                        throws IOException
+                    {
+                        return scan( segment[ 0 ], segment[ 1 ] );
+                    }
+                } ) );
+            }
+            // In heap order, as the index and the free space are not thread safe.
+            for (Future<ScannedSegment> scan : scans)
+            {
+                index( scan.get() );
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException( "Interrupted while re-indexing " + dataDir );
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new EntityStoreException( "Unable to re-index " + dataDir, e.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /* Walks the block sizes of the heap, splitting it into segments that can be scanned independently. */
+
+    private List<long[]> segments()
+        throws IOException
+    {
+        ArrayList<long[]> segments = new ArrayList<long[]>();
+        long segmentStart = DATA_AREA_OFFSET;
+        long position = DATA_AREA_OFFSET;
+        while (position < dataFile.length())
+        {
+            int blockSize = readInt( position );
+            if (blockSize == -1)
+            {
+                // Anything beyond the EOF marker is left over from a crash, e.g. unused parts of mapped segments.
+                dataFile.setLength( position + 4 );
+                break;
+            }
+            position = position + blockSize;
+            if (position - segmentStart >= REINDEX_SEGMENT_SIZE)
+            {
+                segments.add( new long[]{ segmentStart, position } );
+                segmentStart = position;
+            }
+        }
+        if (position > segmentStart)
+        {
+            segments.add( new long[]{ segmentStart, position } );
+        }
+        return segments;
+    }
+
+    private ScannedSegment scan( long start, long end )
+        throws IOException
+    {
+        ScannedSegment segment = new ScannedSegment();
+        // Up to and including the identity, and the type
+        byte[] header = new byte[IDENTITY_OFFSET + 2 + Math.max( identityMaxLength, MAX_IDENTITY_LENGTH ) + 2 + MAX_TYPE_LENGTH];
+        int headerSize = fixedIdentity ? IDENTITY_OFFSET + 1 + identityMaxLength : IDENTITY_OFFSET + 2;
+        ByteBuffer fields = ByteBuffer.wrap( header );
+        long position = start;
+        while (position < end)
+        {
+            dataFile.readFully( position, header, 0, headerSize );
+            int blockSize = fields.getInt( 0 );
+            if ((header[ 4 ] & USAGE_MASK) != USAGE_UNUSED)
+            {
+                if (!fixedIdentity)
+                {
+                    int idSize = identitySize( header, 0 );
+                    dataFile.readFully( position + headerSize, header, headerSize, idSize + (typed ? 2 : 0) );
+                    if (typed)
+                    {
+                        int typeSize = sizeAt( header, headerSize + idSize );
+                        dataFile.readFully( position + headerSize + idSize + 2, header, headerSize + idSize + 2, typeSize );
+                    }
+                }
+                segment.references.add( identityOf( header, 0 ) );
+                segment.positions.add( position );
+                segment.types.add( typeOf( header, 0 ) );
+            } else
+            {
+                segment.unused.add( new long[]{ position, blockSize } );
+            }
+            position = position + blockSize;
+        }
+        return segment;
+    }
+
+    private void index( ScannedSegment segment )
+        throws IOException
+    {
+        for (int i = 0; i < segment.references.size(); i++)
+        {
+            identityIndex.remember( segment.references.get( i ), segment.positions.get( i ) );
+            if (typeIndex != null && segment.types.get( i ) != null)
+            {
+                typeIndex.put( segment.types.get( i ), segment.references.get( i ), segment.positions.get( i ) );
+            }
+        }
+        for (long[] block : segment.unused)
+        {
+            unusedBytes = unusedBytes + block[ 1 ];
+            freeSpace.add( block[ 0 ], (int) block[ 1 ] );
+        }
+    }
+
+    public Input<Reader, IOException> data()
+    {
+        return new Input<Reader, IOException>()
+        {
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<Reader, ReceiverThrowableType> output ) throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<Reader, IOException>()
+                {
+                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<Reader, ReceiverThrowableType> receiver ) throws ReceiverThrowableType, IOException
+                    {
+                        readLock.lock();
+                        try
+                        {
+                            activeScans.incrementAndGet();
+                        }
+                        finally
+                        {
+                            readLock.unlock();
+                        }
+                        try
+                        {
+                            // The heap is read ahead into one buffer, and the prime data of the blocks is decoded
+                            // straight out of it by one reusable Reader.
+                            byte[] window = new byte[settings.scanReadAhead > 0 ? settings.scanReadAhead : DEFAULT_SCAN_READ_AHEAD];
+                            long windowStart = 0;
+                            int windowLength = 0;
+                            long windowChanges = -1;
+                            // Enough to know the length of the header, which is all of it for the fixed identities.
+                            int minHeaderSize = fixedIdentity ? BLOCK_OVERHEAD + identityMaxLength + 4 : IDENTITY_OFFSET + 2;
+                            BlockReader reader = new BlockReader( settings.stateCodec );
+                            long position = DATA_AREA_OFFSET;
+                            while (true)
+                            {
+                                DataBlock block = null;
+                                int dataOffset = -1;
+                                int dataSize = 0;
+                                readLock.lock();
+                                try
+                                {
+                                    long end = dataFile.length();
+                                    if (position >= end)
+                                    {
+                                        return;
+                                    }
+                                    if (windowChanges != heapChanges || position < windowStart
+                                        || position + Math.min( minHeaderSize, end - position ) > windowStart + windowLength)
+                                    {
+                                        windowStart = position;
+                                        windowLength = (int) Math.min( window.length, end - position );
+                                        dataFile.readFully( windowStart, window, 0, windowLength );
+                                        windowChanges = heapChanges;
+                                    }
+                                    ByteBuffer fields = ByteBuffer.wrap( window, 0, windowLength );
+                                    int at = (int) (position - windowStart);
+                                    int blockSize = fields.getInt( at );
+                                    if (blockSize == -1) // EOF marker
+                                    {
+                                        return;
+                                    }
+                                    if (blockSize <= 0 || position + blockSize > end)
+                                    {
+                                        // The blocks after it can't be found, which the HeapScrubber reports as well.
+                                        throw new CorruptedBlockException( position, "block size " + blockSize );
+                                    }
+                                    int usage = fields.get( at + 4 );
+                                    int state = usage & USAGE_MASK;
+                                    if (state != USAGE_UNUSED)
+                                    {
+                                        int fieldLength = identityFieldLength( window, at, windowLength );
+                                        int headerSize = headerSize( fieldLength );
+                                        if (fieldLength >= 0 && state != USAGE_MIRROR && ((usage >>> CODEC_SHIFT) & USAGE_MASK) == 0
+                                            && at + headerSize <= windowLength
+                                            && fields.getInt( at + headerSize - 4 ) >= 0
+                                            && at + headerSize + fields.getInt( at + headerSize - 4 ) <= windowLength)
+                                        {
+                                            dataOffset = at + headerSize;
+                                            dataSize = fields.getInt( at + headerSize - 4 );
+                                            if (checked && checksum( window, dataOffset, dataSize ) != fields.getInt( at + headerSize - 8 ))
+                                            {
+                                                throw new CorruptedBlockException( position, "checksum mismatch" );
+                                            }
+                                        }
+                                        else
+                                        {
+                                            // Mirrored, compressed or beyond the buffer, so read on its own.
+                                            block = readBlock( position, null );
+                                        }
+                                    }
+                                    position = position + blockSize;  // position for next round...
+                                }
+                                finally
+                                {
+                                    readLock.unlock();
+                                }
+                                if (dataOffset >= 0)
+                                {
+                                    reader.reset( window, dataOffset, dataSize );
+                                    receiver.receive( reader );
+                                }
+                                else if (block != null)
+                                {
+                                    reader.reset( block.data, 0, block.data.length );
+                                    receiver.receive( reader );
+                                }
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            throw new EntityStoreException( e );
+                        }
+                        finally
+                        {
+                            activeScans.decrementAndGet();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Sends the state of the entities of one type, in the order of their blocks in the heap, so that only their
+     * blocks are read. Entities that were stored without a type, before the heap was in the current format, are
+     * only found once they have been updated.
+     *
+     * @param type The entity type.
+     * @return The input of the entity states.
+     */
+    public Input<Reader, IOException> data( final String type )
+    {
+        return new Input<Reader, IOException>()
+        {
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<Reader, ReceiverThrowableType> output ) throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<Reader, IOException>()
+                {
+                    public <ReceiverThrowableType extends Throwable> void sendTo( Receiver<Reader, ReceiverThrowableType> receiver ) throws ReceiverThrowableType, IOException
+                    {
+                        ArrayList<EntityReference> references;
+                        final Map<EntityReference, Long> positions;
+                        long changes;
+                        readLock.lock();
+                        try
+                        {
+                            if (!typed)
+                            {
+                                throw new EntityStoreException( "The heap in " + dataDir + " has no entity types until it is compacted." );
+                            }
+                            positions = typeIndex().positions( type );
+                            references = new ArrayList<EntityReference>( positions.keySet() );
+                            changes = heapChanges;
+                        }
+                        finally
+                        {
+                            readLock.unlock();
+                        }
+                        Collections.sort( references, new Comparator<EntityReference>()
+                        {
+                            public int compare( EntityReference ref1, EntityReference ref2 )
+                            {
+                                return positions.get( ref1 ).compareTo( positions.get( ref2 ) );
+                            }
+                        } );
+                        BlockReader reader = new BlockReader( settings.stateCodec );
+                        for (EntityReference reference : references)
+                        {
+                            DataBlock block;
+                            readLock.lock();
+                            try
+                            {
+                                // Blocks may have moved since the positions were looked up.
+                                long position = changes == heapChanges ? positions.get( reference ) : identityIndex.find( reference );
+                                block = position < 0 ? null : readBlock( position, reference );
+                                if (block != null && !type.equals( block.type ))
+                                {
+                                    // Changed to another type in the meantime.
+                                    block = null;
+                                }
+                            }
+                            finally
+                            {
+                                readLock.unlock();
+                            }
+                            if (block != null)
+                            {
+                                reader.reset( block.data, 0, block.data.length );
+                                receiver.receive( reader );
+                            }
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /*
+     * The index of the entity types, which is built from the headers of the blocks on first use, unless it was loaded
+     * or kept from the re-indexing. The caller holds the read lock, so that no blocks are written in the meantime.
+     */
+
+    private TypeIndex typeIndex()
+        throws IOException
+    {
+        synchronized (typeIndexLock)
+        {
+            if (typeIndex == null)
+            {
+                TypeIndex index = new TypeIndex();
+                ScannedSegment segment = scan( DATA_AREA_OFFSET, dataFile.length() - 4 );
+                for (int i = 0; i < segment.references.size(); i++)
+                {
+                    EntityReference reference = segment.references.get( i );
+                    long position = segment.positions.get( i );
+                    // Only the block that the index points to is live. Others are left overs from crashes.
+                    if (segment.types.get( i ) != null && identityIndex.find( reference ) == position)
+                    {
+                        index.put( segment.types.get( i ), reference, position );
+                    }
+                }
+                typeIndex = index;
+            }
+            return typeIndex;
+        }
+    }
+
+    /*
+     * Reads the block at the given position with positional reads only, so that any number of threads can do this
+     * at the same time under the read lock.
+     */
+
+    private DataBlock readBlock( long position, EntityReference reference )
+        throws IOException
+    {
+        // The header up to and including the prime length is read in one go, with the start of the prime data for
+        // identities of the current formats, as their length isn't known up front.
+        int headerSize = fixedIdentity ? headerSize( 1 + identityMaxLength ) : BLOCK_READ_PREFIX;
+        headerSize = (int) Math.min( headerSize, dataFile.length() - position );
+        byte[] header = new byte[headerSize];
+        dataFile.readFully( position, header, 0, headerSize );
+        if (!fixedIdentity)
+        {
+            int fieldLength = identityFieldLength( header, 0, headerSize );
+            while (fieldLength < 0 || headerSize < headerSize( fieldLength ))
+            {
+                // A long identity, or type, so read up to its end, and then up to the end of the header.
+                int needed = fieldLength < 0 ? IDENTITY_OFFSET + 2 + identitySize( header, 0 ) + 2 : headerSize( fieldLength );
+                byte[] prefix = header;
+                header = new byte[needed];
+                System.arraycopy( prefix, 0, header, 0, headerSize );
+                dataFile.readFully( position + headerSize, header, headerSize, needed - headerSize );
+                headerSize = needed;
+                fieldLength = identityFieldLength( header, 0, headerSize );
+            }
+            headerSize = headerSize( fieldLength );
+        }
+        ByteBuffer fields = ByteBuffer.wrap( header );
+        fields.position( 4 ); // Skip BlockSize
+        byte usage = fields.get();
+        int state = usage & USAGE_MASK;
+        if (state == USAGE_UNUSED)
+        {
+            return null;
+        }
+        long instanceVersion = fields.getLong();
+        int schemaVersion = fields.getInt();
+        EntityReference existingReference = identityOf( header, 0 );
+        if (reference == null)
+        {
+            reference = existingReference;
+        }
+        if (!existingReference.equals( reference ))
+        {
+            throw new EntityStoreException( "Inconsistent Data Heap." );
+        }
+        long mirror = fields.getLong( headerSize - 8 - areaHeaderSize( version() ) );
+        int dataSize;
+        long dataPosition;
+        int checksum = 0;
+        if (state == USAGE_MIRROR)
+        {
+            dataSize = readInt( mirror );
+            dataPosition = mirror + 4;
+            if (checked)
+            {
+                checksum = readInt( mirror - 4 );
+            }
+        } else
+        {
+            dataSize = fields.getInt( headerSize - 4 );
+            dataPosition = position + headerSize;
+            if (checked)
+            {
+                checksum = fields.getInt( headerSize - 8 );
+            }
+        }
+        if (dataSize < 0 || dataSize > fields.getInt( 0 ))
+        {
+            throw new CorruptedBlockException( position, "data length " + dataSize );
+        }
+        byte[] data = new byte[dataSize];
+        if (state != USAGE_MIRROR && headerSize + dataSize <= header.length)
+        {
+            System.arraycopy( header, headerSize, data, 0, dataSize );
+        } else
+        {
+            dataFile.readFully( dataPosition, data, 0, dataSize );
+        }
+        if (checked && checksum( data, 0, dataSize ) != checksum)
+        {
+            throw new CorruptedBlockException( position, "checksum mismatch of " + reference );
+        }
+        data = codec.decode( (usage >>> CODEC_SHIFT) & USAGE_MASK, data );
+        return new DataBlock( reference, data, instanceVersion, schemaVersion, typeOf( header, 0 ) );
+    }
+
+    private int readInt( long position )
+        throws IOException
+    {
+        byte[] value = new byte[4];
+        dataFile.readFully( position, value, 0, 4 );
+        return ByteBuffer.wrap( value ).getInt();
+    }
+
+    private byte readByte( long position )
+        throws IOException
+    {
+        byte[] value = new byte[1];
+        dataFile.readFully( position, value, 0, 1 );
+        return value[ 0 ];
+    }
+
+    private EntityReference readReference()
+        throws IOException
+    {
+        int idSize = dataFile.readByte() & 0xFF;
+        if (!fixedIdentity)
+        {
+            idSize = (idSize << 8) | (dataFile.readByte() & 0xFF);
+        }
+        byte[] idData = new byte[idSize];
+        dataFile.read( idData );
+        if (fixedIdentity)
+        {
+            dataFile.skipBytes( identityMaxLength - idSize );
+        }
+        if (typed)
+        {
+            int typeSize = ((dataFile.readByte() & 0xFF) << 8) | (dataFile.readByte() & 0xFF);
+            dataFile.skipBytes( typeSize );
+        }
+        return new EntityReference( new String( idData, "UTF-8" ) );
+    }
+
+    /*
+     * The length of the identity field, and the type field that follows it, of the block whose header starts at the
+     * offset, or -1 if they aren't there.
+     */
+
+    private int identityFieldLength( byte[] header, int offset, int length )
+    {
+        if (fixedIdentity)
+        {
+            return 1 + identityMaxLength;
+        }
+        if (length < offset + IDENTITY_OFFSET + 2)
+        {
+            return -1;
+        }
+        int fieldLength = 2 + identitySize( header, offset );
+        if (!typed)
+        {
+            return fieldLength;
+        }
+        if (length < offset + IDENTITY_OFFSET + fieldLength + 2)
+        {
+            return -1;
+        }
+        return fieldLength + 2 + sizeAt( header, offset + IDENTITY_OFFSET + fieldLength );
+    }
+
+    /* The length in bytes of the identity of the block whose header starts at the offset. */
+
+    private static int identitySize( byte[] header, int offset )
+    {
+        return sizeAt( header, offset + IDENTITY_OFFSET );
+    }
+
+    private static int sizeAt( byte[] header, int at )
+    {
+        return ((header[ at ] & 0xFF) << 8) | (header[ at + 1 ] & 0xFF);
+    }
+
+    /* The size of a block header up to and including the prime length, for an identity field of the given length. */
+
+    private int headerSize( int identityFieldLength )
+    {
+        return IDENTITY_OFFSET + identityFieldLength + 8 + areaHeaderSize( version() );
+    }
+
+    private static int checksum( byte[] data, int offset, int length )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( data, offset, length );
+        return (int) crc.getValue();
+    }
+
+    /* The identity of the block whose header starts at the offset. */
+
+    private EntityReference identityOf( byte[] header, int offset )
+        throws IOException
+    {
+        if (fixedIdentity)
+        {
+            int idSize = header[ offset + IDENTITY_OFFSET ] & 0xFF;
+            return new EntityReference( new String( header, offset + IDENTITY_OFFSET + 1, idSize, "UTF-8" ) );
+        }
+        int idSize = identitySize( header, offset );
+        return new EntityReference( new String( header, offset + IDENTITY_OFFSET + 2, idSize, "UTF-8" ) );
+    }
+
+    /* The entity type of the block whose header starts at the offset, or null if it isn't known. */
+
+    private String typeOf( byte[] header, int offset )
+        throws IOException
+    {
+        if (!typed)
+        {
+            return null;
+        }
+        int at = offset + IDENTITY_OFFSET + 2 + identitySize( header, offset );
+        int typeSize = sizeAt( header, at );
+        return typeSize == 0 ? null : new String( header, at + 2, typeSize, "UTF-8" );
+    }
+
+    /* The blocks found in a segment of the heap by the re-indexing. */
+
+    private static class ScannedSegment
+    {
+        private ArrayList<EntityReference> references = new ArrayList<EntityReference>();
+        private ArrayList<Long> positions = new ArrayList<Long>();
+        private ArrayList<String> types = new ArrayList<String>();
+        private ArrayList<long[]> unused = new ArrayList<long[]>();
+    }
+
+    private static class Compaction
+    {
+        private HeapFile dataFile;
+        private IdentityIndex identityIndex;
+        private long end;
+        private long unusedBytes;
+        private FreeSpace freeSpace = new FreeSpace();
+        private TypeIndex typeIndex = new TypeIndex();
+        private HashSet<EntityReference> changed = new HashSet<EntityReference>();
     }
 }
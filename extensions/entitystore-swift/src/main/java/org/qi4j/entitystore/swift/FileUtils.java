@@ -18,6 +18,9 @@
 package org.qi4j.entitystore.swift;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 
 public class FileUtils
 {
@@ -38,4 +41,34 @@ public class FileUtils
         file.delete();
     }
 
+    public static byte[] read( File file )
+        throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile( file, "r" );
+        try
+        {
+            byte[] content = new byte[(int) in.length()];
+            in.readFully( content );
+            return content;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    public static void write( File file, byte[] content )
+        throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content );
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The Unused blocks of the heap, available for reuse by new blocks.
+ * <p/>
+ * The blocks are kept in free lists by size class, where class n holds the blocks of 2^n up to 2^(n+1)-1 bytes.
+ * An allocation takes the lowest positioned block of the smallest class that is guaranteed to fit, after a short
+ * search for a fitting block in the class of the requested size itself. The blocks are also kept by position, so
+ * that neighbouring Unused blocks can be found and merged.
+ * <p/>
+ * On close, the free space is written to a file, which is loaded on the next start after a clean shutdown. The
+ * format is;
+ * <code><pre>
+ * [version]       4 bytes
+ * [noOfBlocks]    4 bytes
+ * for each block
+ * [position]      8 bytes
+ * [blockSize]     4 bytes
+ * </pre></code>
+ */
+class FreeSpace
+{
+    private static final int CURRENT_VERSION = 1;
+    private static final int SIZE_CLASSES = 32;
+    // How many blocks of the exact size class to look at, before going for a larger class.
+    private static final int MAX_SEARCH = 16;
+
+    private final TreeMap<Long, Integer> blocks;
+    private final List<TreeSet<Long>> sizeClasses;
+    private long size;
+
+    FreeSpace()
+    {
+        blocks = new TreeMap<Long, Integer>();
+        sizeClasses = new ArrayList<TreeSet<Long>>( SIZE_CLASSES );
+        for( int i = 0; i < SIZE_CLASSES; i++ )
+        {
+            sizeClasses.add( new TreeSet<Long>() );
+        }
+    }
+
+    static FreeSpace load( File file )
+        throws IOException
+    {
+        if( !file.exists() )
+        {
+            return null;
+        }
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 65536 ) );
+        try
+        {
+            if( in.readInt() != CURRENT_VERSION )
+            {
+                return null;
+            }
+            return read( in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    static FreeSpace read( DataInput in )
+        throws IOException
+    {
+        FreeSpace freeSpace = new FreeSpace();
+        int count = in.readInt();
+        for( int i = 0; i < count; i++ )
+        {
+            long position = in.readLong();
+            freeSpace.add( position, in.readInt() );
+        }
+        return freeSpace;
+    }
+
+    void write( File file )
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 65536 ) );
+        try
+        {
+            out.writeInt( CURRENT_VERSION );
+            write( out );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    void write( DataOutput out )
+        throws IOException
+    {
+        out.writeInt( blocks.size() );
+        for( Map.Entry<Long, Integer> block : blocks.entrySet() )
+        {
+            out.writeLong( block.getKey() );
+            out.writeInt( block.getValue() );
+        }
+    }
+
+    void add( long position, int blockSize )
+    {
+        blocks.put( position, blockSize );
+        sizeClasses.get( sizeClass( blockSize ) ).add( position );
+        size = size + blockSize;
+    }
+
+    /**
+     * @param position The position of the block.
+     * @return The size of the block that was removed, or 0 if there is no free block at the position.
+     */
+    int remove( long position )
+    {
+        Integer blockSize = blocks.remove( position );
+        if( blockSize == null )
+        {
+            return 0;
+        }
+        sizeClasses.get( sizeClass( blockSize ) ).remove( position );
+        size = size - blockSize;
+        return blockSize;
+    }
+
+    /**
+     * Adds a block, merged with the free blocks on either side of it.
+     *
+     * @param position  The position of the block.
+     * @param blockSize The size of the block.
+     * @return The position of the merged block.
+     */
+    long release( long position, int blockSize )
+    {
+        int nextSize = sizeOf( position + blockSize );
+        if( nextSize > 0 && (long) blockSize + nextSize <= Integer.MAX_VALUE )
+        {
+            remove( position + blockSize );
+            blockSize = blockSize + nextSize;
+        }
+        long previous = previous( position );
+        if( previous >= 0 && (long) blockSize + sizeOf( previous ) <= Integer.MAX_VALUE )
+        {
+            blockSize = blockSize + remove( previous );
+            position = previous;
+        }
+        add( position, blockSize );
+        return position;
+    }
+
+    /**
+     * Adds a block, replacing the free blocks that have been split off it.
+     *
+     * @param position  The position of the block.
+     * @param blockSize The size of the block.
+     */
+    void restore( long position, int blockSize )
+    {
+        Long split = blocks.higherKey( position );
+        while( split != null && split < position + blockSize )
+        {
+            remove( split );
+            split = blocks.higherKey( split );
+        }
+        add( position, blockSize );
+    }
+
+    /**
+     * Finds a block of at least the given size. The block stays in the free space until it is removed.
+     *
+     * @param minimumSize The number of bytes needed.
+     * @return The position of the block, or -1 if no block is large enough.
+     */
+    long find( int minimumSize )
+    {
+        int sizeClass = sizeClass( minimumSize );
+        Iterator<Long> candidates = sizeClasses.get( sizeClass ).iterator();
+        for( int i = 0; i < MAX_SEARCH && candidates.hasNext(); i++ )
+        {
+            Long position = candidates.next();
+            if( blocks.get( position ) >= minimumSize )
+            {
+                return position;
+            }
+        }
+        for( int i = sizeClass + 1; i < SIZE_CLASSES; i++ )
+        {
+            if( !sizeClasses.get( i ).isEmpty() )
+            {
+                return sizeClasses.get( i ).first();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param position The position of the block.
+     * @return The size of the free block at the position, or 0 if there is none.
+     */
+    int sizeOf( long position )
+    {
+        Integer blockSize = blocks.get( position );
+        return blockSize == null ? 0 : blockSize;
+    }
+
+    /**
+     * @param position The position of a free block.
+     * @return The position of the free block that ends where the given one starts, or -1 if there is none.
+     */
+    long previous( long position )
+    {
+        Map.Entry<Long, Integer> previous = blocks.lowerEntry( position );
+        if( previous != null && previous.getKey() + previous.getValue() == position )
+        {
+            return previous.getKey();
+        }
+        return -1;
+    }
+
+    /**
+     * @return The total number of bytes in the free blocks.
+     */
+    long size()
+    {
+        return size;
+    }
+
+    int blocks()
+    {
+        return blocks.size();
+    }
+
+    private static int sizeClass( int blockSize )
+    {
+        return 31 - Integer.numberOfLeadingZeros( blockSize );
+    }
+}
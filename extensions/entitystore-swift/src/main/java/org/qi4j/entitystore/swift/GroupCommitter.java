@@ -0,0 +1,244 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.qi4j.spi.entitystore.EntityStoreException;
+
+/**
+ * Applies the CommitRequests of concurrent callers in batches from a single writer thread, so that the cost of
+ * making a commit durable is shared by all the requests in the batch.
+ * <p/>
+ * The writer waits at most the configured latency for a batch to fill up after the first request has arrived.
+ * If a batch fails, it is undone and its requests are retried one at a time, so that only the request that
+ * caused the failure sees it. The given lock is held while a batch is applied, so that the RecordManager can be
+ * shared with callers that commit on their own.
+ */
+class GroupCommitter
+    implements Runnable
+{
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final RecordManager recordManager;
+    private final Lock lock;
+    private final int maxBatchSize;
+    private final long latency;
+    private final LinkedList<CommitRequest> queue;
+    private final Thread writerThread;
+    private boolean running;
+
+    GroupCommitter( RecordManager recordManager, int maxBatchSize, long latency )
+    {
+        this( recordManager, new ReentrantLock(), maxBatchSize, latency );
+    }
+
+    GroupCommitter( RecordManager recordManager, Lock lock, int maxBatchSize, long latency )
+    {
+        this.recordManager = recordManager;
+        this.lock = lock;
+        this.maxBatchSize = maxBatchSize > 0 ? maxBatchSize : DEFAULT_BATCH_SIZE;
+        this.latency = latency;
+        queue = new LinkedList<CommitRequest>();
+        running = true;
+        writerThread = new Thread( this, "SwiftEntityStore-committer" );
+        writerThread.setDaemon( true );
+        writerThread.start();
+    }
+
+    void commit( CommitRequest request )
+        throws IOException
+    {
+        synchronized( this )
+        {
+            if( !running )
+            {
+                throw new EntityStoreException( "The store has been passivated." );
+            }
+            queue.add( request );
+            notifyAll();
+        }
+        Throwable failure;
+        try
+        {
+            failure = request.awaitCompletion();
+        }
+        catch( InterruptedException e )
+        {
+            // The request may still be committed, but the caller can't be told.
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for the commit." );
+        }
+        if( failure instanceof IOException )
+        {
+            throw (IOException) failure;
+        }
+        if( failure instanceof RuntimeException )
+        {
+            throw (RuntimeException) failure;
+        }
+        if( failure instanceof Error )
+        {
+            throw (Error) failure;
+        }
+    }
+
+    /**
+     * Commits the requests that are already queued, and stops the writer thread.
+     */
+    void close()
+    {
+        synchronized( this )
+        {
+            running = false;
+            notifyAll();
+        }
+        try
+        {
+            writerThread.join();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run()
+    {
+        List<CommitRequest> batch;
+        while( ( batch = nextBatch() ) != null )
+        {
+            lock.lock();
+            try
+            {
+                commitBatch( batch );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void commitBatch( List<CommitRequest> batch )
+    {
+        try
+        {
+            for( CommitRequest request : batch )
+            {
+                request.applyTo( recordManager );
+            }
+            recordManager.commit();
+            for( CommitRequest request : batch )
+            {
+                request.completed( null );
+            }
+        }
+        catch( Throwable e )
+        {
+            if( !discard( batch, e ) )
+            {
+                return;
+            }
+            if( batch.size() == 1 )
+            {
+                batch.get( 0 ).completed( e );
+            }
+            else
+            {
+                for( CommitRequest request : batch )
+                {
+                    commitAlone( request );
+                }
+            }
+        }
+    }
+
+    private void commitAlone( CommitRequest request )
+    {
+        try
+        {
+            request.applyTo( recordManager );
+            recordManager.commit();
+            request.completed( null );
+        }
+        catch( Throwable e )
+        {
+            if( discard( Collections.singletonList( request ), e ) )
+            {
+                request.completed( e );
+            }
+        }
+    }
+
+    private boolean discard( List<CommitRequest> requests, Throwable cause )
+    {
+        try
+        {
+            recordManager.discard();
+            return true;
+        }
+        catch( Throwable e )
+        {
+            // The store can not be trusted anymore, so fail the requests with the original cause.
+            for( CommitRequest request : requests )
+            {
+                request.completed( cause );
+            }
+            return false;
+        }
+    }
+
+    private synchronized List<CommitRequest> nextBatch()
+    {
+        try
+        {
+            while( queue.isEmpty() )
+            {
+                if( !running )
+                {
+                    return null;
+                }
+                wait();
+            }
+            long deadline = System.currentTimeMillis() + latency;
+            long remaining = latency;
+            while( running && queue.size() < maxBatchSize && remaining > 0 )
+            {
+                wait( remaining );
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        catch( InterruptedException e )
+        {
+            // Commit what has been queued so far.
+        }
+        List<CommitRequest> batch = new ArrayList<CommitRequest>();
+        while( !queue.isEmpty() && batch.size() < maxBatchSize )
+        {
+            batch.add( queue.removeFirst() );
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A copy of the heap as it was when the backup started, made while the heap is in use.
+ * <p/>
+ * The backup stands in for the heap file of the DataStore while it runs, and before any bytes of the heap that are
+ * not copied yet are written, it first copies their original content to the target. The copier walks the heap
+ * from the start to the length it had when the backup started, and skips the ranges that were preserved that way,
+ * so the target ends up with the heap of that moment.
+ * <p/>
+ * The copier must hold the read lock of the DataStore, and the writes come under its write lock.
+ */
+class HeapBackup
+    implements HeapFile
+{
+    private final HeapFile heap;
+    private final File targetFile;
+    private final RandomAccessFile target;
+    private final long end;
+    private long copied;
+    // Start to end of the ranges of the target that already hold their original content, beyond copied.
+    private final TreeMap<Long, Long> preserved;
+
+    /**
+     * Copies the header of the heap to the target, marked as not shut down cleanly so that the index of the copy
+     * is rebuilt from it when it is opened.
+     *
+     * @param heap       The heap to copy.
+     * @param targetFile The file of the copy.
+     * @throws IOException if the target can not be written.
+     */
+    HeapBackup( HeapFile heap, File targetFile )
+        throws IOException
+    {
+        this.heap = heap;
+        this.targetFile = targetFile;
+        end = heap.length();
+        preserved = new TreeMap<Long, Long>();
+        target = new RandomAccessFile( targetFile, "rw" );
+        target.setLength( 0 );
+        byte[] header = new byte[(int) DataStore.DATA_AREA_OFFSET];
+        heap.readFully( 0, header, 0, header.length );
+        header[ 0 ] = 0; // Not a clean shutdown.
+        target.write( header );
+        copied = DataStore.DATA_AREA_OFFSET;
+    }
+
+    /**
+     * @return The file of the copy.
+     */
+    File targetFile()
+    {
+        return targetFile;
+    }
+
+    /**
+     * @return The heap that is copied.
+     */
+    HeapFile heap()
+    {
+        return heap;
+    }
+
+    /**
+     * Copies the next part of the heap.
+     *
+     * @param maxBytes The maximum number of bytes to copy.
+     * @return true if the whole heap has been copied.
+     * @throws IOException if the heap can not be read or the target not written.
+     */
+    boolean copyStep( int maxBytes )
+        throws IOException
+    {
+        if( copied < end )
+        {
+            int length = (int) Math.min( maxBytes, end - copied );
+            byte[] buffer = new byte[length];
+            heap.readFully( copied, buffer, 0, length );
+            long position = copied;
+            while( position < copied + length )
+            {
+                Map.Entry<Long, Long> range = preserved.floorEntry( position );
+                if( range != null && range.getValue() > position )
+                {
+                    position = range.getValue();
+                    continue;
+                }
+                Long next = preserved.higherKey( position );
+                long stop = Math.min( copied + length, next == null ? Long.MAX_VALUE : next );
+                target.seek( position );
+                target.write( buffer, (int) ( position - copied ), (int) ( stop - position ) );
+                position = stop;
+            }
+            copied = copied + length;
+            Map.Entry<Long, Long> straddling = preserved.lowerEntry( copied );
+            preserved.headMap( copied ).clear();
+            if( straddling != null && straddling.getValue() > copied )
+            {
+                preserved.put( copied, straddling.getValue() );
+            }
+        }
+        return copied >= end;
+    }
+
+    /**
+     * Forces the copy to disk and closes it.
+     *
+     * @throws IOException if the copy can not be written.
+     */
+    void complete()
+        throws IOException
+    {
+        target.getFD().sync();
+        target.close();
+    }
+
+    /* Copies the original content of the part of the range that is neither copied nor preserved yet. */
+
+    private void preserve( long position, long length )
+        throws IOException
+    {
+        long start = Math.max( position, copied );
+        long stop = Math.min( position + length, end );
+        while( start < stop )
+        {
+            Map.Entry<Long, Long> range = preserved.floorEntry( start );
+            if( range != null && range.getValue() > start )
+            {
+                start = range.getValue();
+                continue;
+            }
+            Long next = preserved.higherKey( start );
+            long gapEnd = Math.min( stop, next == null ? Long.MAX_VALUE : next );
+            byte[] original = new byte[(int) ( gapEnd - start )];
+            heap.readFully( start, original, 0, original.length );
+            target.seek( start );
+            target.write( original );
+            // Joined with the ranges on either side, so that the map stays small.
+            long rangeStart = start;
+            if( range != null && range.getValue() == start )
+            {
+                rangeStart = range.getKey();
+            }
+            long rangeEnd = gapEnd;
+            Long following = preserved.remove( gapEnd );
+            if( following != null )
+            {
+                rangeEnd = following;
+            }
+            preserved.put( rangeStart, rangeEnd );
+            start = gapEnd;
+        }
+    }
+
+    public long getFilePointer()
+        throws IOException
+    {
+        return heap.getFilePointer();
+    }
+
+    public void seek( long position )
+        throws IOException
+    {
+        heap.seek( position );
+    }
+
+    public long length()
+        throws IOException
+    {
+        return heap.length();
+    }
+
+    public void setLength( long newLength )
+        throws IOException
+    {
+        preserve( newLength, end - newLength );
+        heap.setLength( newLength );
+    }
+
+    public int skipBytes( int n )
+        throws IOException
+    {
+        return heap.skipBytes( n );
+    }
+
+    public boolean readBoolean()
+        throws IOException
+    {
+        return heap.readBoolean();
+    }
+
+    public byte readByte()
+        throws IOException
+    {
+        return heap.readByte();
+    }
+
+    public int readInt()
+        throws IOException
+    {
+        return heap.readInt();
+    }
+
+    public long readLong()
+        throws IOException
+    {
+        return heap.readLong();
+    }
+
+    public int read( byte[] buffer )
+        throws IOException
+    {
+        return heap.read( buffer );
+    }
+
+    public void readFully( long position, byte[] buffer, int offset, int length )
+        throws IOException
+    {
+        heap.readFully( position, buffer, offset, length );
+    }
+
+    public void writeBoolean( boolean value )
+        throws IOException
+    {
+        preserve( heap.getFilePointer(), 1 );
+        heap.writeBoolean( value );
+    }
+
+    public void write( int value )
+        throws IOException
+    {
+        preserve( heap.getFilePointer(), 1 );
+        heap.write( value );
+    }
+
+    public void writeByte( int value )
+        throws IOException
+    {
+        preserve( heap.getFilePointer(), 1 );
+        heap.writeByte( value );
+    }
+
+    public void writeInt( int value )
+        throws IOException
+    {
+        preserve( heap.getFilePointer(), 4 );
+        heap.writeInt( value );
+    }
+
+    public void writeLong( long value )
+        throws IOException
+    {
+        preserve( heap.getFilePointer(), 8 );
+        heap.writeLong( value );
+    }
+
+    public void write( byte[] buffer )
+        throws IOException
+    {
+        preserve( heap.getFilePointer(), buffer.length );
+        heap.write( buffer );
+    }
+
+    public void sync()
+        throws IOException
+    {
+        heap.sync();
+    }
+
+    public void close()
+        throws IOException
+    {
+        heap.close();
+    }
+}
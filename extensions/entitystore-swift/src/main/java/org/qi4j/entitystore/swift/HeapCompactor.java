@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+
+/**
+ * Copies the live blocks of the heap to a new heap file in the background, at a limited rate so that the
+ * compaction doesn't starve the normal traffic, and then lets the DataStore switch over to the new heap.
+ */
+class HeapCompactor
+    implements Runnable
+{
+    private static final int STEP_SIZE = 256 * 1024;
+    private static final long DEFAULT_RATE = 8 * 1024 * 1024;
+    private static final long RETRY_DELAY = 10;
+
+    private final DataStore dataStore;
+    private final long bytesPerSecond;
+    private final Thread compactorThread;
+    private volatile boolean running;
+
+    HeapCompactor( DataStore dataStore, long bytesPerSecond )
+    {
+        this.dataStore = dataStore;
+        this.bytesPerSecond = bytesPerSecond > 0 ? bytesPerSecond : DEFAULT_RATE;
+        compactorThread = new Thread( this, "SwiftEntityStore-compactor" );
+        compactorThread.setDaemon( true );
+    }
+
+    void start()
+    {
+        running = true;
+        compactorThread.start();
+    }
+
+    void stop()
+    {
+        running = false;
+        compactorThread.interrupt();
+        try
+        {
+            compactorThread.join();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run()
+    {
+        try
+        {
+            long end = dataStore.startCompaction();
+            while( end < 0 )
+            {
+                pause( RETRY_DELAY );
+                end = dataStore.startCompaction();
+            }
+            long position = DataStore.DATA_AREA_OFFSET;
+            while( position < end )
+            {
+                long started = System.currentTimeMillis();
+                long next = dataStore.compactStep( position, STEP_SIZE );
+                long expected = ( next - position ) * 1000 / bytesPerSecond;
+                pause( expected - ( System.currentTimeMillis() - started ) );
+                position = next;
+            }
+            while( !dataStore.finishCompaction() )
+            {
+                pause( RETRY_DELAY );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            // ignore, normal shutdown. DataStore.close() discards the unfinished compaction.
+        }
+        catch( IOException e )
+        {
+            // The heap is left as it was, and a new compaction will be attempted on a later commit.
+            dataStore.abortCompaction();
+        }
+    }
+
+    private void pause( long millis )
+        throws InterruptedException
+    {
+        if( !running )
+        {
+            throw new InterruptedException();
+        }
+        if( millis > 0 )
+        {
+            Thread.sleep( millis );
+        }
+    }
+}
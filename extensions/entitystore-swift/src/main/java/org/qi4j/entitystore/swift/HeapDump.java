@@ -21,7 +21,11 @@ package org.qi4j.entitystore.swift;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
 import org.qi4j.api.entity.EntityReference;
+import org.qi4j.library.statecodec.BinaryStateCodec;
+import org.qi4j.library.statecodec.EntityStateCodec;
+import org.qi4j.library.statecodec.NameDictionary;
 
 public class HeapDump
 {
@@ -29,6 +33,10 @@ public class HeapDump
     private static final String HEAP_DATA_FILENAME = "heap.data";
 
     private static RandomAccessFile dataFile;
+    private static boolean fixedIdentity;
+    private static boolean typed;
+    private static boolean checked;
+    private static int identityMaxLength;
 
     public static void main( String[] args )
         throws Exception
@@ -37,7 +45,30 @@ public class HeapDump
         File dataDir = dataDirectory.getAbsoluteFile();
         File file = new File( dataDir, HEAP_DATA_FILENAME );
         dataFile = new RandomAccessFile( file, "rw" );
+        // The compression dictionary, if any, may be given as the second argument.
+        BlockCodec codec = new BlockCodec( 0, args.length > 1 ? FileUtils.read( new File( args[ 1 ] ) ) : null );
+        // The names of the binary states are in the storage directory, which is the parent of a heap segment.
+        File stateNamesFile = new File( dataDir, SwiftEntityStoreMixin.STATE_NAMES_FILENAME );
+        if( !stateNamesFile.exists() )
+        {
+            stateNamesFile = new File( dataDir.getParentFile(), SwiftEntityStoreMixin.STATE_NAMES_FILENAME );
+        }
+        EntityStateCodec stateCodec = null;
+        if( stateNamesFile.exists() )
+        {
+            stateCodec = new BinaryStateCodec( new NameDictionary( stateNamesFile, true ) );
+        }
 
+        dataFile.seek( 1 );
+        // Up to version 2, each identity takes identityMaxLength bytes after a one byte size.
+        int version = dataFile.readInt();
+        fixedIdentity = version <= 2;
+        // From version 4, each block records the entity type after the identity, and from version 5, each data
+        // area starts with a checksum.
+        typed = version >= 4;
+        checked = version >= 5;
+        dataFile.skipBytes( 4 );
+        identityMaxLength = dataFile.readInt();
         long position = 256;
         dataFile.seek( position );  // skip maintenance block.
         while( dataFile.getFilePointer() < dataFile.length() )
@@ -47,18 +78,24 @@ public class HeapDump
             {
                 break;
             }
-            int usage = dataFile.readByte();
+            int usageByte = dataFile.readByte();
+            int usage = usageByte & 0x0F;
             if( usage != 0 )
             {
                 long instanceVersion = dataFile.readLong();
                 int schemaVersion = dataFile.readInt();
-                long refPos = dataFile.getFilePointer();
                 String ref = readReference().identity();
                 System.out.print( ref );
-                dataFile.seek( refPos + 129 );
+                if( typed )
+                {
+                    byte[] type = new byte[dataFile.readUnsignedShort()];
+                    dataFile.readFully( type );
+                    System.out.print( " (" + new String( type, "UTF-8" ) + ")" );
+                }
                 long mirror = dataFile.readLong();
                 if( usage == 2 )
-                    dataFile.seek( mirror );
+                    dataFile.seek( checked ? mirror - 4 : mirror );
+                int checksum = checked ? dataFile.readInt() : 0;
                 if( usage == 3 || usage == 4 )
                 {
                     System.err.println( "Inconsistent Heap: " + usage + ", pos: " + position  );
@@ -67,7 +104,25 @@ public class HeapDump
                 int dataSize = dataFile.readInt();
                 byte[] data = new byte[ dataSize ];
                 dataFile.read( data, 0, dataSize );
-                System.out.println( new String( data, "UTF-8" ) );
+                if( checked )
+                {
+                    CRC32 crc = new CRC32();
+                    crc.update( data );
+                    if( (int) crc.getValue() != checksum )
+                    {
+                        System.err.println( "Checksum mismatch: " + ref + ", pos: " + position );
+                        System.err.flush();
+                    }
+                }
+                data = codec.decode( ( usageByte >>> 4 ) & 0x0F, data );
+                if( stateCodec != null && stateCodec.isEncoded( data, 0, data.length ) )
+                {
+                    System.out.println( stateCodec.decode( data, 0, data.length ) );
+                }
+                else
+                {
+                    System.out.println( new String( data, "UTF-8" ) );
+                }
                 System.out.flush();
             }
             position = position + blockSize;
@@ -78,14 +133,17 @@ public class HeapDump
     private static EntityReference readReference()
         throws IOException
     {
-        int idSize = dataFile.readByte();
-        if( idSize < 0 )
+        int idSize = dataFile.readUnsignedByte();
+        if( !fixedIdentity )
         {
-            idSize = idSize + 256;  // Fix 2's-complement negative values of bytes into unsigned 8 bit.
+            idSize = ( idSize << 8 ) | dataFile.readUnsignedByte();
         }
         byte[] idData = new byte[idSize];
-        dataFile.read( idData );
-        dataFile.skipBytes( 128 - idSize );
-        return new EntityReference( new String( idData ) );
+        dataFile.readFully( idData );
+        if( fixedIdentity )
+        {
+            dataFile.skipBytes( identityMaxLength - idSize );
+        }
+        return new EntityReference( new String( idData, "UTF-8" ) );
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+
+/**
+ * Access to the Heap Data file.
+ * <p/>
+ * The methods follow the semantics of the same methods in {@link java.io.RandomAccessFile}, so that the
+ * DataStore and the UndoCommands can work on either a plain file or on a memory mapped view of it.
+ */
+public interface HeapFile
+{
+    long getFilePointer()
+        throws IOException;
+
+    void seek( long position )
+        throws IOException;
+
+    long length()
+        throws IOException;
+
+    void setLength( long newLength )
+        throws IOException;
+
+    int skipBytes( int n )
+        throws IOException;
+
+    boolean readBoolean()
+        throws IOException;
+
+    byte readByte()
+        throws IOException;
+
+    int readInt()
+        throws IOException;
+
+    long readLong()
+        throws IOException;
+
+    int read( byte[] buffer )
+        throws IOException;
+
+    /**
+     * Reads bytes at the given position, without using or moving the file pointer. Any number of threads may
+     * call this at the same time, as long as no other method is called concurrently.
+     *
+     * @param position The position in the file to read from.
+     * @param buffer   The buffer to read into.
+     * @param offset   The offset in the buffer of the first byte read.
+     * @param length   The number of bytes to read.
+     * @throws IOException if the bytes could not be read, for instance because the end of the file is reached.
+     */
+    void readFully( long position, byte[] buffer, int offset, int length )
+        throws IOException;
+
+    void writeBoolean( boolean value )
+        throws IOException;
+
+    void write( int value )
+        throws IOException;
+
+    void writeByte( int value )
+        throws IOException;
+
+    void writeInt( int value )
+        throws IOException;
+
+    void writeLong( long value )
+        throws IOException;
+
+    void write( byte[] buffer )
+        throws IOException;
+
+    void sync()
+        throws IOException;
+
+    void close()
+        throws IOException;
+}
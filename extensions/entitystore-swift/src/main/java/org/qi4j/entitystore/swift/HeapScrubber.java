@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+
+/**
+ * Verifies all blocks of the heap in the background, so that corrupted blocks are found before a read needs them.
+ * The heap is walked at a limited rate, and only while no transaction is in progress, with a pause between the
+ * passes.
+ */
+class HeapScrubber
+    implements Runnable
+{
+    private static final int STEP_SIZE = 256 * 1024;
+    private static final long DEFAULT_RATE = 8 * 1024 * 1024;
+    private static final long RETRY_DELAY = 10;
+
+    private final DataStore dataStore;
+    private final long bytesPerSecond;
+    private final long interval;
+    private final Thread scrubberThread;
+    private volatile boolean running;
+
+    HeapScrubber( DataStore dataStore, long bytesPerSecond, long interval )
+    {
+        this.dataStore = dataStore;
+        this.bytesPerSecond = bytesPerSecond > 0 ? bytesPerSecond : DEFAULT_RATE;
+        this.interval = interval;
+        scrubberThread = new Thread( this, "SwiftEntityStore-scrubber" );
+        scrubberThread.setDaemon( true );
+    }
+
+    void start()
+    {
+        running = true;
+        scrubberThread.start();
+    }
+
+    void stop()
+    {
+        running = false;
+        scrubberThread.interrupt();
+        try
+        {
+            scrubberThread.join();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run()
+    {
+        try
+        {
+            while( running )
+            {
+                scrub();
+                pause( interval );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            // ignore, normal shutdown
+        }
+        catch( IOException e )
+        {
+            // The heap can't be read, which the normal traffic will find as well.
+        }
+    }
+
+    /* One pass over the whole heap. */
+
+    private void scrub()
+        throws IOException, InterruptedException
+    {
+        dataStore.startScrub();
+        boolean complete = false;
+        try
+        {
+            long position = DataStore.DATA_AREA_OFFSET;
+            while( position >= 0 )
+            {
+                long started = System.currentTimeMillis();
+                long next = dataStore.scrubStep( position, STEP_SIZE );
+                if( next == position )
+                {
+                    // Busy with a transaction.
+                    pause( RETRY_DELAY );
+                    continue;
+                }
+                long scrubbed = ( next < 0 ? STEP_SIZE : next - position );
+                pause( scrubbed * 1000 / bytesPerSecond - ( System.currentTimeMillis() - started ) );
+                position = next;
+            }
+            complete = true;
+        }
+        finally
+        {
+            dataStore.finishScrub( complete );
+        }
+    }
+
+    private void pause( long millis )
+        throws InterruptedException
+    {
+        if( !running )
+        {
+            throw new InterruptedException();
+        }
+        if( millis > 0 )
+        {
+            Thread.sleep( millis );
+        }
+    }
+}
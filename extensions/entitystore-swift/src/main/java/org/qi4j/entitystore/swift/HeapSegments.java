@@ -0,0 +1,470 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.io.Input;
+import org.qi4j.api.io.Output;
+import org.qi4j.api.io.Receiver;
+import org.qi4j.api.io.Sender;
+
+/**
+ * The heap of the store, split over a fixed number of segments. Each segment is a RecordManager with a heap, an
+ * index and an undo journal of its own, and each identity belongs to the segment selected by its hash.
+ * <p/>
+ * A transaction locks only the segments that it changes, so transactions on different segments are applied and
+ * committed in parallel. Reads don't lock at all. With a single segment, the heap is kept directly in the storage
+ * directory, as it was before segments were introduced, and with more segments in the directories segment-0 to
+ * segment-n. The number of segments of an existing store can not be changed, as that would move the identities.
+ * <p/>
+ * A transaction that spans several segments is committed in two phases. All segments are prepared, which takes
+ * them as far as they can go while their undo journals can still undo them. Then a commit record naming the
+ * segments is written, the journals are cleared, and the commit record is removed again. On start up, the journals
+ * of the segments named by a remaining commit record are kept instead of undone. The commit record is named after
+ * the lowest segment of the transaction, which can't be part of another transaction at the same time;
+ * <code><pre>
+ * commit-[segment].data
+ * [noOfSegments]  4 bytes
+ * [segment]       4 bytes each
+ * </pre></code>
+ */
+class HeapSegments
+{
+    private static final String SEGMENT_DIRNAME_PREFIX = "segment-";
+    private static final String COMMIT_FILENAME_PREFIX = "commit-";
+    private static final String COMMIT_FILENAME_SUFFIX = ".data";
+    private static final int BACKUP_STEP_SIZE = 1024 * 1024;
+
+    private final File dataDir;
+    private final StoreSettings settings;
+    private final RecordManager[] segments;
+    private final Lock[] locks;
+
+    /**
+     * @param dataDir  The storage directory.
+     * @param count    The number of segments of a new store. An existing store keeps the number it was created with.
+     * @param recover  true if the interrupted transactions should be undone.
+     * @param settings The settings of the segments.
+     * @throws IOException if a segment can not be opened.
+     */
+    HeapSegments( File dataDir, int count, boolean recover, StoreSettings settings )
+        throws IOException
+    {
+        this.dataDir = dataDir;
+        this.settings = settings;
+        int existing = existingSegments( dataDir );
+        if( existing > 0 )
+        {
+            count = existing;
+        }
+        count = Math.max( count, 1 );
+        // The cache size is for the store as a whole.
+        settings.cacheSize = settings.cacheSize / count;
+        if( count > 1 )
+        {
+            // A complete redo record of a prepared segment doesn't tell whether the other segments committed.
+            settings.redoJournal = false;
+        }
+        HashSet<Integer> committed = committedSegments();
+        segments = new RecordManager[count];
+        locks = new Lock[count];
+        for( int i = 0; i < count; i++ )
+        {
+            segments[ i ] = new RecordManager( segmentDir( dataDir, count, i ), recover, settings, committed.contains( i ) );
+            locks[ i ] = new ReentrantLock();
+        }
+        // The journals named by the commit records have been cleared.
+        deleteCommitRecords();
+    }
+
+    int count()
+    {
+        return segments.length;
+    }
+
+    RecordManager segment( int index )
+    {
+        return segments[ index ];
+    }
+
+    /**
+     * Publishes the committed transactions of all segments to the log. A transaction that spans several segments
+     * is published as one batch per segment.
+     *
+     * @param log The log of the store.
+     */
+    void publishTo( ReplicationLog log )
+    {
+        for( RecordManager segment : segments )
+        {
+            segment.publishTo( log );
+        }
+    }
+
+    Lock lock( int index )
+    {
+        return locks[ index ];
+    }
+
+    int segmentOf( EntityReference reference )
+    {
+        int hash = reference.identity().hashCode();
+        hash = hash ^ ( hash >>> 16 );
+        return ( hash & 0x7FFFFFFF ) % segments.length;
+    }
+
+    DataBlock readData( EntityReference reference )
+        throws IOException
+    {
+        return segments[ segmentOf( reference ) ].readData( reference );
+    }
+
+    long readInstanceVersion( EntityReference reference )
+        throws IOException
+    {
+        return segments[ segmentOf( reference ) ].readInstanceVersion( reference );
+    }
+
+    void putData( DataBlock block )
+        throws IOException
+    {
+        segments[ segmentOf( block.reference ) ].putData( block );
+    }
+
+    void deleteData( EntityReference reference )
+        throws IOException
+    {
+        segments[ segmentOf( reference ) ].deleteData( reference );
+    }
+
+    /**
+     * Applies and commits the changes of the request, holding the locks of the segments that it changes. If it
+     * fails, the changes are undone in all of them.
+     *
+     * @param request The changes.
+     * @throws IOException if the changes can not be applied.
+     */
+    void commit( CommitRequest request )
+        throws IOException
+    {
+        int[] involved = request.segments( this );
+        if( involved.length == 0 )
+        {
+            return;
+        }
+        // Always locked in the same order, so that transactions can't deadlock.
+        for( int segment : involved )
+        {
+            locks[ segment ].lock();
+        }
+        try
+        {
+            try
+            {
+                request.applyTo( this );
+                if( involved.length == 1 )
+                {
+                    segments[ involved[ 0 ] ].commit();
+                }
+                else
+                {
+                    commit( involved );
+                }
+            }
+            catch( IOException e )
+            {
+                discard( involved );
+                throw e;
+            }
+            catch( RuntimeException e )
+            {
+                discard( involved );
+                throw e;
+            }
+        }
+        finally
+        {
+            for( int segment : involved )
+            {
+                locks[ segment ].unlock();
+            }
+        }
+    }
+
+    /* Two phase commit of a transaction that spans several segments. The caller holds their locks. */
+
+    private void commit( int[] involved )
+        throws IOException
+    {
+        for( int segment : involved )
+        {
+            segments[ segment ].prepare();
+        }
+        File commitRecord = writeCommitRecord( involved );
+        for( int segment : involved )
+        {
+            segments[ segment ].complete();
+        }
+        if( !commitRecord.delete() )
+        {
+            throw new IOException( "Unable to delete " + commitRecord );
+        }
+    }
+
+    private void discard( int[] involved )
+        throws IOException
+    {
+        for( int segment : involved )
+        {
+            segments[ segment ].discard();
+        }
+    }
+
+    /**
+     * @param involved The segments of the transaction, in ascending order.
+     * @return The commit record.
+     * @throws IOException if the commit record can not be written.
+     */
+    File writeCommitRecord( int[] involved )
+        throws IOException
+    {
+        File commitRecord = new File( dataDir, COMMIT_FILENAME_PREFIX + involved[ 0 ] + COMMIT_FILENAME_SUFFIX );
+        File tempFile = new File( dataDir, commitRecord.getName() + ".tmp" );
+        FileOutputStream file = new FileOutputStream( tempFile );
+        DataOutputStream out = new DataOutputStream( file );
+        try
+        {
+            out.writeInt( involved.length );
+            for( int segment : involved )
+            {
+                out.writeInt( segment );
+            }
+            out.flush();
+            if( settings.syncOnCommit )
+            {
+                file.getFD().sync();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        // Renamed into place, so that a crash can't leave a partial record behind.
+        if( !tempFile.renameTo( commitRecord ) )
+        {
+            throw new IOException( "Unable to rename " + tempFile + " to " + commitRecord );
+        }
+        return commitRecord;
+    }
+
+    Input<Reader, IOException> data()
+    {
+        return data( null );
+    }
+
+    /**
+     * @param type The entity type, or null for all entities.
+     * @return The states of the entities in all segments, one segment after the other.
+     */
+    Input<Reader, IOException> data( final String type )
+    {
+        return new Input<Reader, IOException>()
+        {
+            public <ReceiverThrowableType extends Throwable> void transferTo( Output<Reader, ReceiverThrowableType> output )
+                throws IOException, ReceiverThrowableType
+            {
+                output.receiveFrom( new Sender<Reader, IOException>()
+                {
+                    public <ReceiverThrowableType extends Throwable> void sendTo( final Receiver<Reader, ReceiverThrowableType> receiver )
+                        throws ReceiverThrowableType, IOException
+                    {
+                        for( RecordManager segment : segments )
+                        {
+                            Input<Reader, IOException> data = type == null ? segment.data() : segment.data( type );
+                            data.transferTo( new Output<Reader, ReceiverThrowableType>()
+                            {
+                                public <SenderThrowableType extends Throwable> void receiveFrom( Sender<Reader, SenderThrowableType> sender )
+                                    throws ReceiverThrowableType, SenderThrowableType
+                                {
+                                    sender.sendTo( receiver );
+                                }
+                            } );
+                        }
+                    }
+                } );
+            }
+        };
+    }
+
+    /**
+     * Copies the store to the target directory as it is when the backup starts, while transactions go on. Commits
+     * are only held while the backups of the segments are started, so that the copy is of a single moment across
+     * all segments. The copy is a store of its own, that rebuilds its indexes when it is first opened.
+     *
+     * @param targetDir The directory of the copy.
+     * @throws IOException if the store can not be read or the copy not written.
+     */
+    void backup( File targetDir )
+        throws IOException
+    {
+        int started = 0;
+        try
+        {
+            for( Lock lock : locks )
+            {
+                lock.lock();
+            }
+            try
+            {
+                for( ; started < segments.length; started++ )
+                {
+                    // All commits hold the lock of their segments, so no transaction is in progress.
+                    if( !segments[ started ].startBackup( segmentDir( targetDir, segments.length, started ) ) )
+                    {
+                        throw new IOException( "A transaction is in progress in segment " + started );
+                    }
+                }
+            }
+            finally
+            {
+                for( Lock lock : locks )
+                {
+                    lock.unlock();
+                }
+            }
+            for( RecordManager segment : segments )
+            {
+                while( !segment.backupStep( BACKUP_STEP_SIZE ) )
+                {
+                    // The lock is released between the steps, so that the segment stays available.
+                }
+            }
+        }
+        finally
+        {
+            for( int i = 0; i < started; i++ )
+            {
+                segments[ i ].finishBackup();
+            }
+        }
+    }
+
+    void close()
+        throws IOException
+    {
+        for( RecordManager segment : segments )
+        {
+            segment.close();
+        }
+    }
+
+    private static File segmentDir( File dataDir, int count, int index )
+    {
+        return count == 1 ? dataDir : new File( dataDir, SEGMENT_DIRNAME_PREFIX + index );
+    }
+
+    private static int existingSegments( File dataDir )
+    {
+        if( new File( dataDir, "heap.data" ).exists() )
+        {
+            return 1;
+        }
+        int count = 0;
+        while( new File( dataDir, SEGMENT_DIRNAME_PREFIX + count ).isDirectory() )
+        {
+            count++;
+        }
+        return count;
+    }
+
+    private HashSet<Integer> committedSegments()
+        throws IOException
+    {
+        HashSet<Integer> committed = new HashSet<Integer>();
+        for( File commitRecord : commitRecords() )
+        {
+            DataInputStream in = new DataInputStream( new FileInputStream( commitRecord ) );
+            try
+            {
+                int count = in.readInt();
+                for( int i = 0; i < count; i++ )
+                {
+                    committed.add( in.readInt() );
+                }
+            }
+            catch( EOFException e )
+            {
+                throw new IOException( "Malformed commit record " + commitRecord );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        return committed;
+    }
+
+    private void deleteCommitRecords()
+    {
+        for( File commitRecord : commitRecords() )
+        {
+            commitRecord.delete();
+        }
+    }
+
+    private List<File> commitRecords()
+    {
+        File[] files = dataDir.listFiles();
+        if( files == null )
+        {
+            return Collections.emptyList();
+        }
+        ArrayList<File> commitRecords = new ArrayList<File>();
+        for( File file : files )
+        {
+            String name = file.getName();
+            if( name.startsWith( COMMIT_FILENAME_PREFIX ) )
+            {
+                if( name.endsWith( COMMIT_FILENAME_SUFFIX ) )
+                {
+                    commitRecords.add( file );
+                }
+                else
+                {
+                    // Never renamed into place, so the transaction wasn't committed.
+                    file.delete();
+                }
+            }
+        }
+        return commitRecords;
+    }
+}
@@ -17,286 +17,754 @@
  */
 package org.qi4j.entitystore.swift;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import org.qi4j.api.entity.EntityReference;
 
 /**
- * For Slot 0
- * [version]     -  4 bytes
- * [noOfEntries] -  4 bytes
- * [slotSize]    -  4 bytes
+ * An extendible hash of the identities. A directory of 2^globalDepth entries, selected by the lowest bits of the
+ * hash of an identity, points to the bucket that holds the identity. A full bucket is split in two by one more bit
+ * of the hash, and only the directory doubles when that bit is beyond the global depth, so the file grows one
+ * bucket at a time and a lookup always reads a single bucket.
+ * <p/>
+ * The file consists of pages of {@link #PAGE_SIZE} bytes, where page 0 is the header and the other pages are the
+ * buckets. The records of a bucket are packed after each other, each as long as its identity;
+ * <code><pre>
+ * Page 0
+ * [version]            -  4 bytes
+ * [noOfPages]          -  4 bytes
+ * [identityMaxLength]  -  4 bytes
+ * [initDepth]          -  4 bytes, the local depth of the buckets that have never been split
  *
- * For Slot 1..n
- * [isExtended]  -  1 byte
+ * Page 1..n, header
+ * [localDepth]  -  1 byte, plus one, or 0 for initDepth
+ * [overflowed]  -  1 byte
+ * [noOfUsed]    -  4 bytes
+ * [end]         -  2 bytes, the end of the records in the page, or 0 for none
+ *
+ * Page 1..n, records
  * [position]    -  8 bytes
- * [identity]    -  [slotSize-16] bytes
+ * [identity]    -  2 bytes of length and the identity, in the modified UTF-8 of writeUTF
+ * </pre></code>
+ * The directory is kept in memory and written to id-directory.data on close. A bucket that can't be split, because
+ * it is at the maximum depth or because all its identities have the same hash, continues in a bucket file of the
+ * {@link BucketManager}, which is scanned linearly. Its records are the same, each preceded by a byte that is 0
+ * for a dropped identity. The buckets are files of their own, or pages of a single overflow file.
+ * <p/>
+ * Lookups first go to an {@link IdentityFilter} of the known identities, so that most lookups of identities that
+ * are not in the file are answered without any I/O. The filter is written next to the file on close.
  */
 public class IdentityFile
+    implements IdentityIndex
 {
-    private static final int CURRENT_VERSION = 1;
+    private static final int CURRENT_VERSION = 3;
+    private static final String FILTER_FILENAME = "id-filter.data";
+    private static final String DIRECTORY_FILENAME = "id-directory.data";
+    private static final int PAGE_SIZE = 4096;
+    private static final int PAGE_HEADER = 8;
+    // The length of an identity that entries() and the initial size of the file are estimated with.
+    private static final int NOMINAL_IDENTITY_LENGTH = 16;
+    private static final int MAX_DEPTH = 24;
+    // The slot size that create() is given is this much more than the maximum length of an identity.
+    static final int SLOT_OVERHEAD = 16;
+    private static final double INITIAL_LOAD = 0.7;
 
     private RandomAccessFile identityStore;
-    private int entries;
-    private int slotSize;
+    private int identityMaxLength;
+    private int pages;
+    private int initialDepth;
+    private int globalDepth;
+    private int[] directory;
+    private byte[] page;
+    private ByteArrayOutputStream keyBuffer;
+    private DataOutputStream keyOut;
     private boolean closed;
     private BucketManager bucketManager;
+    private File directoryFile;
+    private File filterFile;
+    private IdentityFilter filter;
 
-    private IdentityFile( RandomAccessFile store, File bucketDir, int slotSize, int entries )
+    private IdentityFile( RandomAccessFile store, File identityDir, int identityMaxLength, int pages, int initialDepth,
+                          StoreSettings settings )
         throws IOException
     {
         this.closed = false;
         identityStore = store;
-        bucketManager = new BucketManager( bucketDir );
-        this.slotSize = slotSize;
-        this.entries = entries;
+        bucketManager = new BucketManager( new File( identityDir, "buckets" ), settings.maxOpenBuckets,
+                                           settings.pagedOverflow );
+        directoryFile = new File( identityDir, DIRECTORY_FILENAME );
+        filterFile = new File( identityDir, FILTER_FILENAME );
+        this.identityMaxLength = identityMaxLength;
+        this.pages = pages;
+        this.initialDepth = initialDepth;
+        page = new byte[PAGE_SIZE];
+        keyBuffer = new ByteArrayOutputStream( 64 );
+        keyOut = new DataOutputStream( keyBuffer );
     }
 
+    /**
+     * @return The number of identities of the nominal length that fit in the buckets without splitting them.
+     */
     int entries()
     {
-        return entries;
+        return ( pages - 1 ) * bucketEntries();
     }
 
-    long find( EntityReference reference )
+    public synchronized long find( EntityReference reference )
         throws IOException
     {
-        if( closed )
+        byte[] key = key( reference );
+        if( !filter.mightContain( reference.identity() ) )
         {
-            throw new IdentityFileClosedException();
+            filter.rejected();
+            return -1;
         }
-        if( reference.identity().length() > slotSize - 16 )
+        int bucket = directory[ hash( reference.identity() ) & ( directory.length - 1 ) ];
+        readPage( bucket );
+        int record = findRecord( key );
+        if( record >= 0 )
         {
-            throw new IdentityTooLongException( reference );
+            return getLong( record );
         }
-        final int slot = getSlot( reference );
-        identityStore.seek( slot * slotSize );
-        boolean isExtended = identityStore.readBoolean();
-        if( !isExtended )
+        if( page[ 1 ] != 0 )
         {
-            long pos = identityStore.readLong();
-            String idString = identityStore.readUTF();
-            if( idString.length() == 0 )
+            long pos = findOverflow( bucket, reference );
+            if( pos >= 0 )
             {
-                return -1;
+                return pos;
             }
-            EntityReference foundReference = new EntityReference( idString );
-            if( foundReference.equals( reference ) )
+        }
+        filter.passedFalsely();
+        return -1;
+    }
+
+    public synchronized void remember( EntityReference reference, long pos )
+        throws IOException
+    {
+        byte[] key = key( reference );
+        int hash = hash( reference.identity() );
+        while( true )
+        {
+            int bucket = directory[ hash & ( directory.length - 1 ) ];
+            readPage( bucket );
+            int record = findRecord( key );
+            if( record >= 0 )
             {
-                return pos;
+                putLong( record, pos );
+                identityStore.seek( (long) bucket * PAGE_SIZE + record );
+                identityStore.write( page, record, 8 );
+                return;
             }
-            return -1;
+            if( page[ 1 ] != 0 && rememberOverflow( bucket, reference, pos, true ) )
+            {
+                // Already known, only the position changes.
+                return;
+            }
+            int end = end();
+            if( end + 8 + key.length <= PAGE_SIZE )
+            {
+                putLong( end, pos );
+                System.arraycopy( key, 0, page, end + 8, key.length );
+                putInt( page, 2, used() + 1 );
+                setEnd( end + 8 + key.length );
+                identityStore.seek( (long) bucket * PAGE_SIZE + end );
+                identityStore.write( page, end, 8 + key.length );
+                writeHeader( bucket );
+                added( reference );
+                return;
+            }
+            if( localDepth() < MAX_DEPTH && !allHash( hash ) )
+            {
+                split( bucket );
+                continue;
+            }
+            page[ 1 ] = 1;
+            writeHeader( bucket );
+            rememberOverflow( bucket, reference, pos, false );
+            added( reference );
+            return;
         }
-        RandomAccessFile buckets = bucketManager.get( slot );
-        int next = 0;
-        while( next * slotSize < buckets.length() )
+    }
+
+    public synchronized void drop( EntityReference reference )
+        throws IOException
+    {
+        byte[] key = key( reference );
+        int bucket = directory[ hash( reference.identity() ) & ( directory.length - 1 ) ];
+        readPage( bucket );
+        int record = findRecord( key );
+        if( record >= 0 )
         {
-            buckets.seek( next * slotSize );
-            boolean isUsed = buckets.readBoolean();
-            long pos = buckets.readLong();
-            EntityReference foundReference = new EntityReference( buckets.readUTF() );
-            if( isUsed && foundReference.equals( reference ) )
+            // The records after it are moved down, so that the free space of the page stays at its end.
+            int end = end();
+            int length = 8 + key.length;
+            System.arraycopy( page, record + length, page, record, end - record - length );
+            for( int i = end - length; i < end; i++ )
             {
-                return pos;
+                page[ i ] = 0;
+            }
+            putInt( page, 2, used() - 1 );
+            setEnd( end - length );
+            identityStore.seek( (long) bucket * PAGE_SIZE );
+            identityStore.write( page, 0, end );
+            filter.remove( reference.identity() );
+        }
+        else if( page[ 1 ] != 0 )
+        {
+            byte[] content = bucketManager.read( bucket );
+            DataInputStream buckets = new DataInputStream( new ByteArrayInputStream( content ) );
+            int next = 0;
+            while( next < content.length )
+            {
+                boolean isUsed = buckets.readBoolean();
+                buckets.readLong();
+                String identity = buckets.readUTF();
+                if( isUsed && reference.identity().equals( identity ) )
+                {
+                    bucketManager.write( bucket, next, new byte[]{ 0 } );
+                    filter.remove( reference.identity() );
+                    return;
+                }
+                next = content.length - buckets.available();
             }
-            next++;
         }
-        return -1;
     }
 
-    void remember( EntityReference reference, long pos )
+    public synchronized void visit( EntryVisitor visitor )
         throws IOException
     {
         if( closed )
         {
             throw new IdentityFileClosedException();
         }
-        if( reference.identity().length() > slotSize - 16 )
-        {
-            throw new IdentityTooLongException( reference );
-        }
-        final int slot = getSlot( reference );
-        identityStore.seek( slot * slotSize );
-        boolean isExtended = identityStore.readBoolean();
-        if( isExtended )
+        for( int bucket = 1; bucket < pages; bucket++ )
         {
-            RandomAccessFile bucket = bucketManager.get( slot );
-            bucket.seek( 0 );
-            int next = 0;
-            while( next * slotSize < bucket.length() )
+            readPage( bucket );
+            int end = end();
+            for( int record = PAGE_HEADER; record < end; record = next( record ) )
+            {
+                visitor.visit( identity( record ), getLong( record ) );
+            }
+            if( page[ 1 ] == 0 )
             {
-                bucket.seek( next * slotSize );
-                boolean isUsed = bucket.readBoolean();
-                if( !isUsed )
+                continue;
+            }
+            DataInputStream buckets = new DataInputStream( new ByteArrayInputStream( bucketManager.read( bucket ) ) );
+            while( buckets.available() > 0 )
+            {
+                boolean isUsed = buckets.readBoolean();
+                long pos = buckets.readLong();
+                String idString = buckets.readUTF();
+                if( isUsed )
                 {
-                    break;
+                    visitor.visit( idString, pos );
                 }
-                next++;
             }
-            bucket.seek( next * slotSize );
-            bucket.writeBoolean( true );
-            bucket.writeLong( pos );
-            bucket.writeUTF( reference.identity() );
-            fillExtras( bucket, next, slotSize );
         }
-        else
+    }
+
+    IdentityFilter filter()
+    {
+        return filter;
+    }
+
+    /*
+     * Splits the bucket in the page buffer by the next bit of the hash, into itself and a new bucket at the end of
+     * the file, and doubles the directory if that bit wasn't used yet. The overflow records of the bucket are split
+     * by the same bit, so that they are in the bucket that the directory leads their identities to.
+     */
+
+    private void split( int bucket )
+        throws IOException
+    {
+        int depth = localDepth();
+        if( depth == globalDepth )
         {
-            long existingPos = identityStore.readLong();
-            if( existingPos == -1 )
+            int[] doubled = new int[directory.length * 2];
+            System.arraycopy( directory, 0, doubled, 0, directory.length );
+            System.arraycopy( directory, 0, doubled, directory.length, directory.length );
+            directory = doubled;
+            globalDepth++;
+        }
+        int newBucket = pages++;
+        byte[] newPage = new byte[PAGE_SIZE];
+        byte[] keptPage = new byte[PAGE_SIZE];
+        int moved = 0;
+        int newEnd = PAGE_HEADER;
+        int keptEnd = PAGE_HEADER;
+        int end = end();
+        for( int record = PAGE_HEADER; record < end; record = next( record ) )
+        {
+            int length = next( record ) - record;
+            if( ( ( hash( identity( record ) ) >>> depth ) & 1 ) != 0 )
             {
-                // Not used yet.
-                identityStore.seek( slot * slotSize );
-                identityStore.writeBoolean( false );
-                identityStore.writeLong( pos );
-                identityStore.writeUTF( reference.identity() );
+                System.arraycopy( page, record, newPage, newEnd, length );
+                newEnd = newEnd + length;
+                moved++;
             }
             else
             {
-                // Move existing record over to a new bucket.
-                RandomAccessFile bucket = bucketManager.get( slot );
-                bucket.seek( 0 );
-                bucket.writeBoolean( true );
-                bucket.writeLong( existingPos );
-                bucket.writeUTF( identityStore.readUTF() );
-                fillExtras( bucket, 0, slotSize );
-                bucket.seek( slotSize );
-                bucket.writeBoolean( true );
-                bucket.writeLong( pos );
-                bucket.writeUTF( reference.identity() );
-                fillExtras( bucket, 1, slotSize );
-                identityStore.seek( slot * slotSize );
-                identityStore.writeBoolean( true );
-                identityStore.writeLong( -1 );
-                identityStore.writeUTF( "" );
-                fillExtras( identityStore, slot, slotSize );
+                System.arraycopy( page, record, keptPage, keptEnd, length );
+                keptEnd = keptEnd + length;
+            }
+        }
+        keptPage[ 0 ] = (byte) ( depth + 2 );
+        newPage[ 0 ] = (byte) ( depth + 2 );
+        keptPage[ 1 ] = page[ 1 ];
+        if( page[ 1 ] != 0 && splitOverflow( bucket, newBucket, depth ) )
+        {
+            newPage[ 1 ] = 1;
+        }
+        putInt( keptPage, 2, used() - moved );
+        putInt( newPage, 2, moved );
+        putShort( keptPage, 6, keptEnd );
+        putShort( newPage, 6, newEnd );
+        page = keptPage;
+        for( int i = 0; i < directory.length; i++ )
+        {
+            if( directory[ i ] == bucket && ( ( i >>> depth ) & 1 ) != 0 )
+            {
+                directory[ i ] = newBucket;
             }
         }
+        identityStore.seek( (long) newBucket * PAGE_SIZE );
+        identityStore.write( newPage );
+        identityStore.seek( (long) bucket * PAGE_SIZE );
+        identityStore.write( page );
     }
 
-    void drop( EntityReference reference )
+    /* Moves the overflow records whose hash has the given bit set to the new bucket. True if any were moved. */
+
+    private boolean splitOverflow( int bucket, int newBucket, int depth )
         throws IOException
     {
-        if( closed )
+        byte[] content = bucketManager.read( bucket );
+        DataInputStream buckets = new DataInputStream( new ByteArrayInputStream( content ) );
+        long newEnd = bucketManager.read( newBucket ).length;
+        int next = 0;
+        boolean moved = false;
+        while( next < content.length )
         {
-            throw new IdentityFileClosedException();
+            boolean isUsed = buckets.readBoolean();
+            buckets.readLong();
+            String identity = buckets.readUTF();
+            int end = content.length - buckets.available();
+            if( isUsed && ( ( hash( identity ) >>> depth ) & 1 ) != 0 )
+            {
+                byte[] record = new byte[end - next];
+                System.arraycopy( content, next, record, 0, record.length );
+                bucketManager.write( newBucket, newEnd, record );
+                newEnd = newEnd + record.length;
+                bucketManager.write( bucket, next, new byte[]{ 0 } );
+                moved = true;
+            }
+            next = end;
         }
-        if( reference.identity().length() > slotSize - 16 )
+        return moved;
+    }
+
+    /* True if all identities in the bucket have the given hash, so that no split can separate them. */
+
+    private boolean allHash( int hash )
+        throws IOException
+    {
+        int end = end();
+        for( int record = PAGE_HEADER; record < end; record = next( record ) )
         {
-            throw new IdentityTooLongException( reference );
+            if( hash( identity( record ) ) != hash )
+            {
+                return false;
+            }
         }
-        final int slot = getSlot( reference );
-        identityStore.seek( slot * slotSize );
-        boolean isExtended = identityStore.readBoolean();
-        if( isExtended )
+        return true;
+    }
+
+    private long findOverflow( int bucket, EntityReference reference )
+        throws IOException
+    {
+        DataInputStream buckets = new DataInputStream( new ByteArrayInputStream( bucketManager.read( bucket ) ) );
+        while( buckets.available() > 0 )
         {
-            RandomAccessFile buckets = bucketManager.get( slot );
-            int next = 0;
-            while( next * slotSize < buckets.length() )
+            boolean isUsed = buckets.readBoolean();
+            long pos = buckets.readLong();
+            if( reference.identity().equals( buckets.readUTF() ) && isUsed )
             {
-                buckets.seek( next * slotSize );
-                boolean isUsed = buckets.readBoolean();
-                buckets.readLong();  //ignore, should probably be changed to skip(8);
-                EntityReference foundReference = new EntityReference( buckets.readUTF() );
-                if( isUsed && foundReference.equals( reference ) )
-                {
-                    buckets.seek( next * slotSize );
-                    buckets.writeBoolean( false );
-                    return;
-                }
-                next++;
+                return pos;
             }
         }
-        else
+        return -1;
+    }
+
+    /*
+     * Updates the position of a known identity in the bucket file, or if knownOnly is false, adds it. A dropped
+     * record is only reused by an identity of the same length.
+     */
+
+    private boolean rememberOverflow( int bucket, EntityReference reference, long pos, boolean knownOnly )
+        throws IOException
+    {
+        byte[] content = bucketManager.read( bucket );
+        DataInputStream buckets = new DataInputStream( new ByteArrayInputStream( content ) );
+        byte[] key = key( reference );
+        int next = 0;
+        int free = -1;
+        boolean known = false;
+        while( next < content.length )
         {
-            identityStore.readLong(); // ignore the pos
-            EntityReference foundReference = new EntityReference( identityStore.readUTF() );
-            if( reference.equals( foundReference ) )
+            boolean isUsed = buckets.readBoolean();
+            buckets.readLong();
+            String identity = buckets.readUTF();
+            int end = content.length - buckets.available();
+            if( isUsed && reference.identity().equals( identity ) )
+            {
+                free = next;
+                known = true;
+                break;
+            }
+            if( !isUsed && free < 0 && end - next - 9 == key.length )
             {
-                // found, no erase.
-                identityStore.seek( slot * slotSize );
-                identityStore.writeBoolean( false );
-                identityStore.writeLong( -1 );
-                identityStore.writeUTF( "" );
-                fillExtras( identityStore, slot, slotSize );
+                free = next;
             }
+            next = end;
+        }
+        if( knownOnly && !known )
+        {
+            return false;
+        }
+        byte[] record = new byte[9 + key.length];
+        record[ 0 ] = 1;
+        for( int i = 0; i < 8; i++ )
+        {
+            record[ 1 + i ] = (byte) ( pos >>> ( 56 - i * 8 ) );
         }
+        System.arraycopy( key, 0, record, 9, key.length );
+        bucketManager.write( bucket, free >= 0 ? free : content.length, record );
+        return true;
     }
 
-    private int getSlot( EntityReference identity )
+    private void readPage( int bucket )
+        throws IOException
+    {
+        identityStore.seek( (long) bucket * PAGE_SIZE );
+        identityStore.readFully( page );
+    }
+
+    private int localDepth()
     {
-        int hashCode = identity.hashCode();
-        hashCode = hashCode < 0 ? -hashCode : hashCode;
-        return 1 + hashCode % entries;
+        return page[ 0 ] == 0 ? initialDepth : page[ 0 ] - 1;
     }
 
-    public void close()
+    private int used()
+    {
+        return getInt( 2 );
+    }
+
+    private int end()
+    {
+        int end = ( ( page[ 6 ] & 0xFF ) << 8 ) | ( page[ 7 ] & 0xFF );
+        return end == 0 ? PAGE_HEADER : end;
+    }
+
+    private void setEnd( int end )
+    {
+        putShort( page, 6, end );
+    }
+
+    private void writeHeader( int bucket )
         throws IOException
     {
-        bucketManager.close();
-        identityStore.close();
-        closed = true;
+        identityStore.seek( (long) bucket * PAGE_SIZE );
+        identityStore.write( page, 0, PAGE_HEADER );
+    }
+
+    private int findRecord( byte[] key )
+    {
+        int end = end();
+        for( int record = PAGE_HEADER; record < end; record = next( record ) )
+        {
+            if( matches( record + 8, key ) )
+            {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    /* The start of the record after the one at the given offset. */
+
+    private int next( int record )
+    {
+        return record + 10 + ( ( ( page[ record + 8 ] & 0xFF ) << 8 ) | ( page[ record + 9 ] & 0xFF ) );
+    }
+
+    private boolean matches( int offset, byte[] key )
+    {
+        // The length comes first, so a shorter stored identity never matches a longer key.
+        for( int i = 0; i < key.length; i++ )
+        {
+            if( page[ offset + i ] != key[ i ] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int bucketEntries()
+    {
+        return ( PAGE_SIZE - PAGE_HEADER ) / ( 10 + NOMINAL_IDENTITY_LENGTH );
+    }
+
+    /* The identity as it is stored in a record, in the modified UTF-8 of writeUTF. */
+
+    private byte[] key( EntityReference reference )
+        throws IOException
+    {
+        if( closed )
+        {
+            throw new IdentityFileClosedException();
+        }
+        keyBuffer.reset();
+        keyOut.writeUTF( reference.identity() );
+        byte[] key = keyBuffer.toByteArray();
+        if( key.length - 2 > identityMaxLength )
+        {
+            throw new IdentityTooLongException( reference );
+        }
+        return key;
+    }
+
+    private String identity( int record )
+        throws IOException
+    {
+        return new DataInputStream( new ByteArrayInputStream( page, record + 8, PAGE_SIZE - record - 8 ) ).readUTF();
+    }
+
+    private int getInt( int offset )
+    {
+        return ( page[ offset ] << 24 ) | ( ( page[ offset + 1 ] & 0xFF ) << 16 )
+               | ( ( page[ offset + 2 ] & 0xFF ) << 8 ) | ( page[ offset + 3 ] & 0xFF );
+    }
+
+    private long getLong( int offset )
+    {
+        return ( (long) getInt( offset ) << 32 ) | ( getInt( offset + 4 ) & 0xFFFFFFFFL );
+    }
+
+    private static void putShort( byte[] buffer, int offset, int value )
+    {
+        buffer[ offset ] = (byte) ( value >>> 8 );
+        buffer[ offset + 1 ] = (byte) value;
+    }
+
+    private static void putInt( byte[] buffer, int offset, int value )
+    {
+        buffer[ offset ] = (byte) ( value >>> 24 );
+        buffer[ offset + 1 ] = (byte) ( value >>> 16 );
+        buffer[ offset + 2 ] = (byte) ( value >>> 8 );
+        buffer[ offset + 3 ] = (byte) value;
+    }
+
+    private void putLong( int offset, long value )
+    {
+        putInt( page, offset, (int) ( value >>> 32 ) );
+        putInt( page, offset + 4, (int) value );
     }
 
-    private static void initialize( RandomAccessFile newFile, int entries, int slotSize )
+    /* The directory is indexed by the lowest bits, so they must be well mixed. */
+
+    private static int hash( String identity )
+    {
+        int hash = identity.hashCode();
+        hash = ( hash ^ ( hash >>> 16 ) ) * 0x85ebca6b;
+        hash = ( hash ^ ( hash >>> 13 ) ) * 0xc2b2ae35;
+        return hash ^ ( hash >>> 16 );
+    }
+
+    private void added( EntityReference reference )
         throws IOException
     {
-        for( int i = 1; i <= entries + 1; i++ )
+        filter.add( reference.identity() );
+        if( filter.isFull() )
         {
-            newFile.seek( i * slotSize );
-            newFile.writeBoolean( false );  // Extended
-            newFile.writeLong( -1 );        // Position
-            newFile.writeUTF( "" );         // Identity
-            fillExtras( newFile, i, slotSize );
+            buildFilter( filter.entries() * 2 );
         }
-        newFile.seek( 0 );
-        newFile.writeInt( CURRENT_VERSION );
-        newFile.writeInt( entries );
-        newFile.writeInt( slotSize );
     }
 
-    private static void fillExtras( RandomAccessFile accessFile, int slot, int slotSize )
+    private void buildFilter( int expectedEntries )
         throws IOException
     {
-        long pointer = accessFile.getFilePointer();
-        long fillTo = ( slot + 1 ) * slotSize - 1;
-        long arraysize = fillTo - pointer;
-        if( arraysize < 0 )
+        final IdentityFilter newFilter = new IdentityFilter( expectedEntries );
+        visit( new EntryVisitor()
+        {
+            public void visit( String identity, long pos )
+            {
+                newFilter.add( identity );
+            }
+        } );
+        if( filter != null )
         {
-            System.err.println( "Negative Array Size detected:" + arraysize );
+            newFilter.countFrom( filter );
         }
-        byte[] extras = new byte[(int) arraysize];
-        accessFile.write( extras );
+        filter = newFilter;
+    }
+
+    public synchronized void close()
+        throws IOException
+    {
+        if( closed )
+        {
+            return;
+        }
+        filter.write( filterFile );
+        DataOutputStream out = new DataOutputStream( new FileOutputStream( directoryFile ) );
+        try
+        {
+            out.writeInt( globalDepth );
+            for( int bucket : directory )
+            {
+                out.writeInt( bucket );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        identityStore.seek( 0 );
+        identityStore.writeInt( CURRENT_VERSION );
+        identityStore.writeInt( pages );
+        identityStore.writeInt( identityMaxLength );
+        identityStore.writeInt( initialDepth );
+        bucketManager.close();
+        identityStore.close();
+        closed = true;
     }
 
     public static IdentityFile use( File identityDir )
         throws MalformedIdentityDirectoryException, IOException
+    {
+        return use( identityDir, new StoreSettings() );
+    }
+
+    /**
+     * @param identityDir The directory of an existing file.
+     * @param settings    The settings of the overflow buckets.
+     * @return The IdentityFile in the directory.
+     * @throws MalformedIdentityDirectoryException
+     *                     if the file is missing, of another version, or has its overflow buckets stored otherwise
+     *                     than the settings ask for, and so must be rebuilt.
+     * @throws IOException if the file can not be read.
+     */
+    public static IdentityFile use( File identityDir, StoreSettings settings )
+        throws MalformedIdentityDirectoryException, IOException
     {
         File idFile = new File( identityDir, "id-hash.data" );
-        if( !idFile.exists() )
+        File directoryFile = new File( identityDir, DIRECTORY_FILENAME );
+        if( !idFile.exists() || !directoryFile.exists() )
         {
+            // Also the case for the fixed size files of version 1, which are rebuilt, as are those of version 2.
             throw new MalformedIdentityDirectoryException( identityDir );
         }
         File bucketDir = new File( identityDir, "buckets" );
-        if( !bucketDir.exists() )
+        if( !bucketDir.exists() || !BucketManager.isStoredAs( bucketDir, settings.pagedOverflow ) )
         {
             throw new MalformedIdentityDirectoryException( identityDir );
         }
         RandomAccessFile store = new RandomAccessFile( idFile, "rw" );
-        int version = store.readInt(); // Read Version
-        int entries = store.readInt(); // Read entries
-        int slotSize = store.readInt(); // Read slotSize
-        return new IdentityFile( store, bucketDir, slotSize, entries );
+        int version = store.readInt();
+        if( version != CURRENT_VERSION )
+        {
+            store.close();
+            throw new MalformedIdentityDirectoryException( identityDir );
+        }
+        int pages = store.readInt();
+        int identityMaxLength = store.readInt();
+        int initialDepth = store.readInt();
+        IdentityFile identityFile = new IdentityFile( store, identityDir, identityMaxLength, pages, initialDepth, settings );
+        DataInputStream in = new DataInputStream( new FileInputStream( directoryFile ) );
+        try
+        {
+            identityFile.globalDepth = in.readInt();
+            identityFile.directory = new int[1 << identityFile.globalDepth];
+            for( int i = 0; i < identityFile.directory.length; i++ )
+            {
+                identityFile.directory[ i ] = in.readInt();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        File filterFile = new File( identityDir, FILTER_FILENAME );
+        identityFile.filter = IdentityFilter.load( filterFile );
+        // Only valid until the file is changed, it is written again on close.
+        filterFile.delete();
+        directoryFile.delete();
+        if( identityFile.filter == null )
+        {
+            identityFile.buildFilter( identityFile.entries() );
+        }
+        return identityFile;
     }
 
+    /**
+     * @param identityDir The directory of the new file, which is cleared first.
+     * @param slotSize    The size of a slot, which is 16 more than the maximum length of an identity, in the bytes
+     *                    of its modified UTF-8. The records are packed by the length of their own identity.
+     * @param idEntries   The number of identities expected. The file grows beyond it as needed.
+     * @return The new, empty, IdentityFile.
+     * @throws IOException if the file can not be created.
+     */
     public static IdentityFile create( File identityDir, int slotSize, int idEntries )
         throws IOException
     {
+        return create( identityDir, slotSize, idEntries, new StoreSettings() );
+    }
+
+    /**
+     * @param identityDir The directory of the new file, which is cleared first.
+     * @param slotSize    The size of a slot, which is 16 more than the maximum length of an identity, in the bytes
+     *                    of its modified UTF-8. The records are packed by the length of their own identity.
+     * @param idEntries   The number of identities expected. The file grows beyond it as needed.
+     * @param settings    The settings of the overflow buckets.
+     * @return The new, empty, IdentityFile.
+     * @throws IOException if the file can not be created.
+     */
+    public static IdentityFile create( File identityDir, int slotSize, int idEntries, StoreSettings settings )
+        throws IOException
+    {
+        int identityMaxLength = slotSize - SLOT_OVERHEAD;
         FileUtils.delete( identityDir );
         identityDir.mkdirs();
+        int depth = 0;
+        while( depth < MAX_DEPTH && ( 1 << depth ) * bucketEntries() * INITIAL_LOAD < idEntries )
+        {
+            depth++;
+        }
         File idFile = new File( identityDir, "id-hash.data" );
         RandomAccessFile store = new RandomAccessFile( idFile, "rw" );
-        initialize( store, idEntries, slotSize );
-        File bucketDir = new File( identityDir, "buckets" );
-        return new IdentityFile( store, bucketDir, slotSize, idEntries );
+        int pages = 1 + ( 1 << depth );
+        IdentityFile identityFile = new IdentityFile( store, identityDir, identityMaxLength, pages, depth, settings );
+        // All zero, the empty buckets of the initial depth.
+        store.setLength( (long) pages * PAGE_SIZE );
+        store.writeInt( CURRENT_VERSION );
+        store.writeInt( pages );
+        store.writeInt( identityMaxLength );
+        store.writeInt( depth );
+        identityFile.globalDepth = depth;
+        identityFile.directory = new int[1 << depth];
+        for( int i = 0; i < identityFile.directory.length; i++ )
+        {
+            identityFile.directory[ i ] = i + 1;
+        }
+        identityFile.filter = new IdentityFilter( idEntries );
+        return identityFile;
     }
 }
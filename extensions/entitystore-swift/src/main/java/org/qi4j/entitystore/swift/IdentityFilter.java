@@ -0,0 +1,251 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counting Bloom filter over the identities in an {@link IdentityFile}, which rejects most lookups of unknown
+ * identities without going to the disk.
+ * <p/>
+ * Each identity sets {@link #HASHES} 4 bit counters, chosen by double hashing of a 64 bit hash of the identity.
+ * Counters are decremented again when the identity is dropped, except for those that have saturated at 15,
+ * which stay set. With {@link #COUNTERS_PER_ENTRY} counters per identity, about 1% of the lookups of unknown
+ * identities pass the filter. The filter is rebuilt larger by the IdentityFile once it holds more identities
+ * than it was sized for.
+ * <p/>
+ * The filter is written to a file on close, in the format;
+ * <code><pre>
+ * [version]      4 bytes
+ * [capacity]     4 bytes
+ * [entries]      4 bytes
+ * [noOfWords]    4 bytes
+ * [counters]     8 bytes per word of 16 counters
+ * </pre></code>
+ */
+class IdentityFilter
+{
+    static final int HASHES = 7;
+    static final int COUNTERS_PER_ENTRY = 10;
+
+    private static final int CURRENT_VERSION = 1;
+    private static final int MIN_CAPACITY = 1024;
+
+    private long[] counters;
+    private long mask;
+    private int capacity;
+    private int entries;
+    private AtomicLong rejections;
+    private AtomicLong falsePositives;
+
+    IdentityFilter( int expectedEntries )
+    {
+        capacity = Math.max( expectedEntries, MIN_CAPACITY );
+        long size = Long.highestOneBit( (long) capacity * COUNTERS_PER_ENTRY - 1 ) << 1;
+        counters = new long[(int) ( size >>> 4 )];
+        mask = size - 1;
+        rejections = new AtomicLong();
+        falsePositives = new AtomicLong();
+    }
+
+    static IdentityFilter load( File file )
+        throws IOException
+    {
+        if( !file.exists() )
+        {
+            return null;
+        }
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 65536 ) );
+        try
+        {
+            if( in.readInt() != CURRENT_VERSION )
+            {
+                return null;
+            }
+            IdentityFilter filter = new IdentityFilter( in.readInt() );
+            filter.entries = in.readInt();
+            if( in.readInt() != filter.counters.length )
+            {
+                return null;
+            }
+            for( int i = 0; i < filter.counters.length; i++ )
+            {
+                filter.counters[ i ] = in.readLong();
+            }
+            return filter;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    void write( File file )
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 65536 ) );
+        try
+        {
+            out.writeInt( CURRENT_VERSION );
+            out.writeInt( capacity );
+            out.writeInt( entries );
+            out.writeInt( counters.length );
+            for( long word : counters )
+            {
+                out.writeLong( word );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    boolean mightContain( String identity )
+    {
+        long hash = hash( identity );
+        long h1 = hash;
+        long h2 = ( hash >>> 32 ) | 1;
+        for( int i = 0; i < HASHES; i++ )
+        {
+            if( counter( ( h1 + i * h2 ) & mask ) == 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param identity An identity that is not in the filter yet.
+     */
+    void add( String identity )
+    {
+        update( identity, 1 );
+        entries++;
+    }
+
+    /**
+     * @param identity An identity that has been added to the filter.
+     */
+    void remove( String identity )
+    {
+        update( identity, -1 );
+        entries--;
+    }
+
+    boolean isFull()
+    {
+        return entries > capacity;
+    }
+
+    int entries()
+    {
+        return entries;
+    }
+
+    /* Carries the counters over to a rebuilt filter. */
+
+    void countFrom( IdentityFilter previous )
+    {
+        rejections = previous.rejections;
+        falsePositives = previous.falsePositives;
+    }
+
+    void rejected()
+    {
+        rejections.incrementAndGet();
+    }
+
+    void passedFalsely()
+    {
+        falsePositives.incrementAndGet();
+    }
+
+    long rejections()
+    {
+        return rejections.get();
+    }
+
+    long falsePositives()
+    {
+        return falsePositives.get();
+    }
+
+    /**
+     * @return The expected ratio of lookups of unknown identities that pass the filter, at its current load.
+     */
+    double falsePositiveRate()
+    {
+        double counterCount = counters.length * 16.0;
+        return Math.pow( 1 - Math.exp( -HASHES * Math.max( entries, 0 ) / counterCount ), HASHES );
+    }
+
+    /**
+     * @return The number of bytes used by the counters.
+     */
+    long size()
+    {
+        return counters.length * 8L;
+    }
+
+    private void update( String identity, int delta )
+    {
+        long hash = hash( identity );
+        long h1 = hash;
+        long h2 = ( hash >>> 32 ) | 1;
+        for( int i = 0; i < HASHES; i++ )
+        {
+            long index = ( h1 + i * h2 ) & mask;
+            int value = counter( index );
+            if( value < 15 && ( delta > 0 || value > 0 ) )
+            {
+                int word = (int) ( index >>> 4 );
+                int shift = (int) ( index & 15 ) << 2;
+                counters[ word ] = counters[ word ] + ( (long) delta << shift );
+            }
+        }
+    }
+
+    private int counter( long index )
+    {
+        return (int) ( counters[ (int) ( index >>> 4 ) ] >>> ( ( index & 15 ) << 2 ) ) & 15;
+    }
+
+    /* FNV-1a over the chars, followed by a finalizer that spreads the bits over the whole long. */
+
+    private static long hash( String identity )
+    {
+        long hash = 0xcbf29ce484222325L;
+        for( int i = 0; i < identity.length(); i++ )
+        {
+            hash = ( hash ^ identity.charAt( i ) ) * 0x100000001b3L;
+        }
+        hash = ( hash ^ ( hash >>> 33 ) ) * 0xff51afd7ed558ccdL;
+        hash = ( hash ^ ( hash >>> 33 ) ) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ ( hash >>> 33 );
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+import org.qi4j.api.entity.EntityReference;
+
+/**
+ * Maps the identity of each entity to the position of its block in the Heap Data file.
+ */
+public interface IdentityIndex
+{
+    /**
+     * @param reference The entity to look up.
+     * @return The position of the block in the heap, or -1 if the entity is not known.
+     * @throws IOException if the underlying storage fails.
+     */
+    long find( EntityReference reference )
+        throws IOException;
+
+    void remember( EntityReference reference, long pos )
+        throws IOException;
+
+    void drop( EntityReference reference )
+        throws IOException;
+
+    /**
+     * Calls the visitor with each entry of the index, in no particular order.
+     *
+     * @param visitor The visitor of the entries.
+     * @throws IOException if the underlying storage fails.
+     */
+    void visit( EntryVisitor visitor )
+        throws IOException;
+
+    void close()
+        throws IOException;
+
+    interface EntryVisitor
+    {
+        void visit( String identity, long pos )
+            throws IOException;
+    }
+}
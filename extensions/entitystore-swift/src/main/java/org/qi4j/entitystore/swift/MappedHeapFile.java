@@ -0,0 +1,321 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * HeapFile that accesses the file through memory mapped segments.
+ * <p/>
+ * The file is mapped in fixed size segments, which are created on first access. Mapping a segment beyond the end
+ * of the file grows the file, so the logical length is tracked separately and the file is truncated back to it on
+ * close. If the JVM dies before that, the trailing part of the file will be zeroes beyond the EOF marker, which is
+ * taken care of by the re-indexing done by the DataStore after an unclean shutdown.
+ */
+class MappedHeapFile
+    implements HeapFile
+{
+    private static final int SEGMENT_SHIFT = 26;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    // Replaced, never modified, when a segment is added, so that readFully() can use it without locking.
+    private volatile MappedByteBuffer[] segments;
+    private long length;
+    private long pointer;
+
+    MappedHeapFile( File file )
+        throws IOException
+    {
+        this.file = new RandomAccessFile( file, "rw" );
+        channel = this.file.getChannel();
+        segments = new MappedByteBuffer[0];
+        length = channel.size();
+        pointer = 0;
+    }
+
+    public long getFilePointer()
+    {
+        return pointer;
+    }
+
+    public void seek( long position )
+        throws IOException
+    {
+        if( position < 0 )
+        {
+            throw new IOException( "Negative seek offset" );
+        }
+        pointer = position;
+    }
+
+    public long length()
+    {
+        return length;
+    }
+
+    public void setLength( long newLength )
+    {
+        length = newLength;
+        if( pointer > length )
+        {
+            pointer = length;
+        }
+    }
+
+    public int skipBytes( int n )
+    {
+        if( n <= 0 )
+        {
+            return 0;
+        }
+        long newPointer = Math.min( pointer + n, length );
+        int skipped = (int) ( newPointer - pointer );
+        pointer = newPointer;
+        return skipped;
+    }
+
+    public boolean readBoolean()
+        throws IOException
+    {
+        return readByte() != 0;
+    }
+
+    public byte readByte()
+        throws IOException
+    {
+        checkAvailable( 1 );
+        byte value = segment( pointer ).get( (int) ( pointer & SEGMENT_MASK ) );
+        pointer++;
+        return value;
+    }
+
+    public int readInt()
+        throws IOException
+    {
+        checkAvailable( 4 );
+        int offset = (int) ( pointer & SEGMENT_MASK );
+        if( offset + 4 <= SEGMENT_SIZE )
+        {
+            int value = segment( pointer ).getInt( offset );
+            pointer = pointer + 4;
+            return value;
+        }
+        return ( ( readByte() & 0xFF ) << 24 ) + ( ( readByte() & 0xFF ) << 16 )
+               + ( ( readByte() & 0xFF ) << 8 ) + ( readByte() & 0xFF );
+    }
+
+    public long readLong()
+        throws IOException
+    {
+        checkAvailable( 8 );
+        int offset = (int) ( pointer & SEGMENT_MASK );
+        if( offset + 8 <= SEGMENT_SIZE )
+        {
+            long value = segment( pointer ).getLong( offset );
+            pointer = pointer + 8;
+            return value;
+        }
+        return ( (long) readInt() << 32 ) + ( readInt() & 0xFFFFFFFFL );
+    }
+
+    public int read( byte[] buffer )
+        throws IOException
+    {
+        if( pointer >= length )
+        {
+            return buffer.length == 0 ? 0 : -1;
+        }
+        int count = (int) Math.min( buffer.length, length - pointer );
+        int done = 0;
+        while( done < count )
+        {
+            int offset = (int) ( pointer & SEGMENT_MASK );
+            int chunk = Math.min( count - done, SEGMENT_SIZE - offset );
+            MappedByteBuffer segment = segment( pointer );
+            segment.position( offset );
+            segment.get( buffer, done, chunk );
+            done = done + chunk;
+            pointer = pointer + chunk;
+        }
+        return count;
+    }
+
+    public void readFully( long position, byte[] buffer, int offset, int length )
+        throws IOException
+    {
+        if( position + length > this.length )
+        {
+            throw new EOFException();
+        }
+        int done = 0;
+        while( done < length )
+        {
+            int segmentOffset = (int) ( position & SEGMENT_MASK );
+            int chunk = Math.min( length - done, SEGMENT_SIZE - segmentOffset );
+            // A view of its own, as the position of the shared segment may be moved by another thread.
+            ByteBuffer view = segment( position ).duplicate();
+            view.position( segmentOffset );
+            view.get( buffer, offset + done, chunk );
+            done = done + chunk;
+            position = position + chunk;
+        }
+    }
+
+    public void writeBoolean( boolean value )
+        throws IOException
+    {
+        write( value ? 1 : 0 );
+    }
+
+    public void write( int value )
+        throws IOException
+    {
+        segment( pointer ).put( (int) ( pointer & SEGMENT_MASK ), (byte) value );
+        pointer++;
+        extend();
+    }
+
+    public void writeByte( int value )
+        throws IOException
+    {
+        write( value );
+    }
+
+    public void writeInt( int value )
+        throws IOException
+    {
+        int offset = (int) ( pointer & SEGMENT_MASK );
+        if( offset + 4 <= SEGMENT_SIZE )
+        {
+            segment( pointer ).putInt( offset, value );
+            pointer = pointer + 4;
+            extend();
+            return;
+        }
+        write( value >>> 24 );
+        write( value >>> 16 );
+        write( value >>> 8 );
+        write( value );
+    }
+
+    public void writeLong( long value )
+        throws IOException
+    {
+        int offset = (int) ( pointer & SEGMENT_MASK );
+        if( offset + 8 <= SEGMENT_SIZE )
+        {
+            segment( pointer ).putLong( offset, value );
+            pointer = pointer + 8;
+            extend();
+            return;
+        }
+        writeInt( (int) ( value >>> 32 ) );
+        writeInt( (int) value );
+    }
+
+    public void write( byte[] buffer )
+        throws IOException
+    {
+        int done = 0;
+        while( done < buffer.length )
+        {
+            int offset = (int) ( pointer & SEGMENT_MASK );
+            int chunk = Math.min( buffer.length - done, SEGMENT_SIZE - offset );
+            MappedByteBuffer segment = segment( pointer );
+            segment.position( offset );
+            segment.put( buffer, done, chunk );
+            done = done + chunk;
+            pointer = pointer + chunk;
+        }
+        extend();
+    }
+
+    public void sync()
+    {
+        for( MappedByteBuffer segment : segments )
+        {
+            if( segment != null )
+            {
+                segment.force();
+            }
+        }
+    }
+
+    public void close()
+        throws IOException
+    {
+        sync();
+        segments = new MappedByteBuffer[0];
+        channel.truncate( length );
+        file.close();
+    }
+
+    private MappedByteBuffer segment( long position )
+        throws IOException
+    {
+        MappedByteBuffer[] current = segments;
+        int index = (int) ( position >>> SEGMENT_SHIFT );
+        if( index < current.length && current[ index ] != null )
+        {
+            return current[ index ];
+        }
+        return mapSegment( position );
+    }
+
+    private synchronized MappedByteBuffer mapSegment( long position )
+        throws IOException
+    {
+        int index = (int) ( position >>> SEGMENT_SHIFT );
+        MappedByteBuffer[] current = segments;
+        if( index < current.length && current[ index ] != null )
+        {
+            return current[ index ];
+        }
+        MappedByteBuffer[] grown = new MappedByteBuffer[Math.max( current.length, index + 1 )];
+        System.arraycopy( current, 0, grown, 0, current.length );
+        grown[ index ] = channel.map( FileChannel.MapMode.READ_WRITE, ( (long) index ) << SEGMENT_SHIFT, SEGMENT_SIZE );
+        segments = grown;
+        return grown[ index ];
+    }
+
+    private void checkAvailable( int bytes )
+        throws EOFException
+    {
+        if( pointer + bytes > length )
+        {
+            throw new EOFException();
+        }
+    }
+
+    private void extend()
+    {
+        if( pointer > length )
+        {
+            length = pointer;
+        }
+    }
+}
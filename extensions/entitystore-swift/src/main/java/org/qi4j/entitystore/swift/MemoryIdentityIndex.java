@@ -0,0 +1,486 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.qi4j.api.entity.EntityReference;
+
+/**
+ * IdentityIndex held in the Java heap, as an open addressing hash table with linear probing.
+ * <p/>
+ * The table is kept in primitive arrays, and the UTF-8 bytes of the identities are packed into 1MB pages. A lookup
+ * compares the identity String against the stored bytes directly, so it neither touches the disk nor allocates.
+ * <p/>
+ * On close, the index is written to a snapshot file, which is loaded on the next start after a clean shutdown.
+ * The snapshot format is;
+ * <code><pre>
+ * [version]       4 bytes
+ * [noOfEntries]   4 bytes
+ * for each entry
+ * [hash]          4 bytes
+ * [position]      8 bytes
+ * [identitySize]  2 bytes
+ * [identity]      n bytes, UTF-8
+ * </pre></code>
+ */
+class MemoryIdentityIndex
+    implements IdentityIndex
+{
+    static final String SNAPSHOT_FILENAME = "memory-index.data";
+
+    private static final int CURRENT_VERSION = 1;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int PAGE_SHIFT = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int MAX_IDENTITY_SIZE = 0xFFFF;
+    private static final long FREE = -1;
+    private static final long DROPPED = -2;
+
+    private File snapshotFile;
+    private boolean closed;
+
+    // The table. keys[] holds the offset of the identity in the pages, or FREE/DROPPED.
+    private long[] keys;
+    private long[] positions;
+    private int[] hashes;
+    private int mask;
+    private int threshold;
+    private int size;
+    private int used;
+
+    // The identities.
+    private ArrayList<byte[]> pages;
+    private long pagesEnd;
+
+    private MemoryIdentityIndex( File snapshotFile, int expectedEntries )
+    {
+        this.snapshotFile = snapshotFile;
+        this.closed = false;
+        allocate( expectedEntries );
+    }
+
+    static MemoryIdentityIndex create( File identityDir, int expectedEntries )
+    {
+        identityDir.mkdirs();
+        return new MemoryIdentityIndex( new File( identityDir, SNAPSHOT_FILENAME ), expectedEntries );
+    }
+
+    /**
+     * Loads the index from the snapshot written by the previous {@link #close()}.
+     *
+     * @param identityDir The directory holding the snapshot.
+     * @return The index, or null if there is no snapshot.
+     * @throws IOException if the snapshot can not be read.
+     */
+    static MemoryIdentityIndex load( File identityDir )
+        throws IOException
+    {
+        File snapshotFile = new File( identityDir, SNAPSHOT_FILENAME );
+        if( !snapshotFile.exists() )
+        {
+            return null;
+        }
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( snapshotFile ), 65536 ) );
+        try
+        {
+            int version = in.readInt();
+            if( version != CURRENT_VERSION )
+            {
+                return null;
+            }
+            int entries = in.readInt();
+            MemoryIdentityIndex index = new MemoryIdentityIndex( snapshotFile, entries );
+            byte[] identity = new byte[MAX_IDENTITY_SIZE + 2];
+            for( int i = 0; i < entries; i++ )
+            {
+                int hash = in.readInt();
+                long pos = in.readLong();
+                int length = in.readUnsignedShort();
+                identity[ 0 ] = (byte) ( length >>> 8 );
+                identity[ 1 ] = (byte) length;
+                in.readFully( identity, 2, length );
+                index.ensureCapacity();
+                index.insert( hash, index.store( identity, 0, length + 2 ), pos );
+            }
+            return index;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    public long find( EntityReference reference )
+    {
+        checkOpen();
+        String identity = reference.identity();
+        int slot = lookup( identity, hash( identity ) );
+        if( slot < 0 )
+        {
+            return -1;
+        }
+        return positions[ slot ];
+    }
+
+    public void remember( EntityReference reference, long pos )
+    {
+        checkOpen();
+        String identity = reference.identity();
+        int hash = hash( identity );
+        int slot = lookup( identity, hash );
+        if( slot >= 0 )
+        {
+            positions[ slot ] = pos;
+            return;
+        }
+        int length = utf8Length( identity );
+        if( length > MAX_IDENTITY_SIZE )
+        {
+            throw new IdentityTooLongException( reference );
+        }
+        ensureCapacity();
+        long key = reserve( length );
+        byte[] page = pages.get( (int) ( key >>> PAGE_SHIFT ) );
+        int offset = (int) ( key & PAGE_MASK );
+        page[ offset ] = (byte) ( length >>> 8 );
+        page[ offset + 1 ] = (byte) length;
+        encode( identity, page, offset + 2 );
+        insert( hash, key, pos );
+    }
+
+    public void drop( EntityReference reference )
+    {
+        checkOpen();
+        String identity = reference.identity();
+        int slot = lookup( identity, hash( identity ) );
+        if( slot >= 0 )
+        {
+            keys[ slot ] = DROPPED;
+            size--;
+        }
+    }
+
+    public void visit( EntryVisitor visitor )
+        throws IOException
+    {
+        checkOpen();
+        for( int slot = 0; slot < keys.length; slot++ )
+        {
+            long key = keys[ slot ];
+            if( key >= 0 )
+            {
+                byte[] page = pages.get( (int) ( key >>> PAGE_SHIFT ) );
+                int offset = (int) ( key & PAGE_MASK );
+                int length = ( ( page[ offset ] & 0xFF ) << 8 ) + ( page[ offset + 1 ] & 0xFF );
+                visitor.visit( new String( page, offset + 2, length, "UTF-8" ), positions[ slot ] );
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot and releases the memory.
+     *
+     * @throws IOException if the snapshot can not be written.
+     */
+    public void close()
+        throws IOException
+    {
+        if( closed )
+        {
+            return;
+        }
+        File tempFile = new File( snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp" );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ), 65536 ) );
+        try
+        {
+            out.writeInt( CURRENT_VERSION );
+            out.writeInt( size );
+            for( int slot = 0; slot < keys.length; slot++ )
+            {
+                long key = keys[ slot ];
+                if( key >= 0 )
+                {
+                    byte[] page = pages.get( (int) ( key >>> PAGE_SHIFT ) );
+                    int offset = (int) ( key & PAGE_MASK );
+                    int length = ( ( page[ offset ] & 0xFF ) << 8 ) + ( page[ offset + 1 ] & 0xFF );
+                    out.writeInt( hashes[ slot ] );
+                    out.writeLong( positions[ slot ] );
+                    out.write( page, offset, length + 2 );
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        snapshotFile.delete();
+        if( !tempFile.renameTo( snapshotFile ) )
+        {
+            throw new IOException( "Unable to rename " + tempFile + " to " + snapshotFile );
+        }
+        closed = true;
+        keys = null;
+        positions = null;
+        hashes = null;
+        pages = null;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    private void checkOpen()
+    {
+        if( closed )
+        {
+            throw new IdentityFileClosedException();
+        }
+    }
+
+    private void allocate( int expectedEntries )
+    {
+        int capacity = MIN_CAPACITY;
+        while( capacity < expectedEntries / 3 * 4 + 1 && capacity < ( 1 << 30 ) )
+        {
+            capacity = capacity << 1;
+        }
+        keys = new long[capacity];
+        Arrays.fill( keys, FREE );
+        positions = new long[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+        threshold = capacity / 4 * 3;
+        size = 0;
+        used = 0;
+        pages = new ArrayList<byte[]>();
+        pagesEnd = 0;
+    }
+
+    private int lookup( String identity, int hash )
+    {
+        int slot = hash & mask;
+        while( true )
+        {
+            long key = keys[ slot ];
+            if( key == FREE )
+            {
+                return -1;
+            }
+            if( key != DROPPED && hashes[ slot ] == hash && matches( key, identity ) )
+            {
+                return slot;
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+    }
+
+    /* Called only for identities that are not in the table already, after ensureCapacity(). */
+
+    private void insert( int hash, long key, long pos )
+    {
+        int slot = hash & mask;
+        while( keys[ slot ] >= 0 )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+        if( keys[ slot ] == FREE )
+        {
+            used++;
+        }
+        keys[ slot ] = key;
+        hashes[ slot ] = hash;
+        positions[ slot ] = pos;
+        size++;
+    }
+
+    /* Rebuilds the table and the pages without the dropped entries when the table is getting full, growing it if
+       needed. Must be called before an identity is stored, as the pages are replaced.
+     */
+
+    private void ensureCapacity()
+    {
+        if( used < threshold )
+        {
+            return;
+        }
+        long[] oldKeys = keys;
+        long[] oldPositions = positions;
+        int[] oldHashes = hashes;
+        ArrayList<byte[]> oldPages = pages;
+        allocate( ( size + 1 ) * 2 );
+        for( int slot = 0; slot < oldKeys.length; slot++ )
+        {
+            long key = oldKeys[ slot ];
+            if( key >= 0 )
+            {
+                byte[] page = oldPages.get( (int) ( key >>> PAGE_SHIFT ) );
+                int offset = (int) ( key & PAGE_MASK );
+                int length = ( ( page[ offset ] & 0xFF ) << 8 ) + ( page[ offset + 1 ] & 0xFF );
+                insert( oldHashes[ slot ], store( page, offset, length + 2 ), oldPositions[ slot ] );
+            }
+        }
+    }
+
+    /* Copies a length prefixed identity into the pages. */
+
+    private long store( byte[] source, int offset, int length )
+    {
+        long key = reserve( length - 2 );
+        byte[] page = pages.get( (int) ( key >>> PAGE_SHIFT ) );
+        System.arraycopy( source, offset, page, (int) ( key & PAGE_MASK ), length );
+        return key;
+    }
+
+    private long reserve( int identitySize )
+    {
+        int needed = identitySize + 2;
+        if( ( pagesEnd & PAGE_MASK ) + needed > PAGE_SIZE )
+        {
+            pagesEnd = ( ( pagesEnd >>> PAGE_SHIFT ) + 1 ) << PAGE_SHIFT;
+        }
+        while( pages.size() <= (int) ( pagesEnd >>> PAGE_SHIFT ) )
+        {
+            pages.add( new byte[PAGE_SIZE] );
+        }
+        long key = pagesEnd;
+        pagesEnd = pagesEnd + needed;
+        return key;
+    }
+
+    private boolean matches( long key, String identity )
+    {
+        byte[] page = pages.get( (int) ( key >>> PAGE_SHIFT ) );
+        int offset = (int) ( key & PAGE_MASK );
+        int end = offset + 2 + ( ( page[ offset ] & 0xFF ) << 8 ) + ( page[ offset + 1 ] & 0xFF );
+        int p = offset + 2;
+        int chars = identity.length();
+        for( int i = 0; i < chars; i++ )
+        {
+            int c = identity.charAt( i );
+            if( c < 0x80 )
+            {
+                if( p >= end || page[ p++ ] != (byte) c )
+                {
+                    return false;
+                }
+                continue;
+            }
+            int codePoint = c;
+            if( Character.isHighSurrogate( (char) c ) && i + 1 < chars && Character.isLowSurrogate( identity.charAt( i + 1 ) ) )
+            {
+                codePoint = Character.toCodePoint( (char) c, identity.charAt( ++i ) );
+            }
+            int size = utf8Size( codePoint );
+            if( p + size > end )
+            {
+                return false;
+            }
+            for( int shift = ( size - 1 ) * 6; shift >= 0; shift = shift - 6 )
+            {
+                if( page[ p++ ] != utf8Byte( codePoint, size, shift ) )
+                {
+                    return false;
+                }
+            }
+        }
+        return p == end;
+    }
+
+    private static void encode( String identity, byte[] target, int p )
+    {
+        int chars = identity.length();
+        for( int i = 0; i < chars; i++ )
+        {
+            int codePoint = identity.charAt( i );
+            if( Character.isHighSurrogate( (char) codePoint ) && i + 1 < chars && Character.isLowSurrogate( identity.charAt( i + 1 ) ) )
+            {
+                codePoint = Character.toCodePoint( (char) codePoint, identity.charAt( ++i ) );
+            }
+            int size = utf8Size( codePoint );
+            for( int shift = ( size - 1 ) * 6; shift >= 0; shift = shift - 6 )
+            {
+                target[ p++ ] = utf8Byte( codePoint, size, shift );
+            }
+        }
+    }
+
+    private static int utf8Length( String identity )
+    {
+        int length = 0;
+        int chars = identity.length();
+        for( int i = 0; i < chars; i++ )
+        {
+            int codePoint = identity.charAt( i );
+            if( Character.isHighSurrogate( (char) codePoint ) && i + 1 < chars && Character.isLowSurrogate( identity.charAt( i + 1 ) ) )
+            {
+                codePoint = Character.toCodePoint( (char) codePoint, identity.charAt( ++i ) );
+            }
+            length = length + utf8Size( codePoint );
+        }
+        return length;
+    }
+
+    private static int utf8Size( int codePoint )
+    {
+        if( codePoint < 0x80 )
+        {
+            return 1;
+        }
+        if( codePoint < 0x800 )
+        {
+            return 2;
+        }
+        if( codePoint < 0x10000 )
+        {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static byte utf8Byte( int codePoint, int size, int shift )
+    {
+        if( size == 1 )
+        {
+            return (byte) codePoint;
+        }
+        if( shift < ( size - 1 ) * 6 )
+        {
+            return (byte) ( 0x80 | ( ( codePoint >>> shift ) & 0x3F ) );
+        }
+        // Leading byte of a multi-byte sequence.
+        int prefix = size == 2 ? 0xC0 : size == 3 ? 0xE0 : 0xF0;
+        return (byte) ( prefix | ( codePoint >>> shift ) );
+    }
+
+    private static int hash( String identity )
+    {
+        int h = identity.hashCode() * 0x9E3779B9;
+        return h ^ ( h >>> 16 );
+    }
+}
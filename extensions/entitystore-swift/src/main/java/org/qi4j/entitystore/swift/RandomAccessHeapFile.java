@@ -0,0 +1,273 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * HeapFile that goes straight to a {@link RandomAccessFile}. Each primitive read or write is a system call.
+ * <p/>
+ * With a chunk size, the file is grown ahead of the writes, a chunk of zeroes at a time, so that appending a block
+ * neither changes the size of the file nor allocates space in the file system, and a commit only has to flush the
+ * data. The logical length is tracked separately, in the same way as the MappedHeapFile does, and the file is
+ * truncated back to it on close.
+ */
+class RandomAccessHeapFile
+    implements HeapFile
+{
+    private static final int ZEROES_SIZE = 1024 * 1024;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private final long chunkSize;
+    private long length;
+    private long allocated;
+
+    RandomAccessHeapFile( File file )
+        throws IOException
+    {
+        this( file, 0 );
+    }
+
+    RandomAccessHeapFile( File file, long chunkSize )
+        throws IOException
+    {
+        this.file = new RandomAccessFile( file, "rw" );
+        channel = this.file.getChannel();
+        this.chunkSize = chunkSize;
+        length = this.file.length();
+        allocated = length;
+    }
+
+    public long getFilePointer()
+        throws IOException
+    {
+        return file.getFilePointer();
+    }
+
+    public void seek( long position )
+        throws IOException
+    {
+        file.seek( position );
+    }
+
+    public long length()
+    {
+        return length;
+    }
+
+    public void setLength( long newLength )
+        throws IOException
+    {
+        if (chunkSize <= 0)
+        {
+            file.setLength( newLength );
+            allocated = newLength;
+        }
+        else if (newLength > allocated)
+        {
+            allocate( newLength );
+        }
+        length = newLength;
+        if (file.getFilePointer() > length)
+        {
+            file.seek( length );
+        }
+    }
+
+    /**
+     * The size of the file itself, which may be beyond the logical length.
+     */
+    long allocated()
+    {
+        return allocated;
+    }
+
+    public int skipBytes( int n )
+        throws IOException
+    {
+        return file.skipBytes( n );
+    }
+
+    public boolean readBoolean()
+        throws IOException
+    {
+        available( 1 );
+        return file.readBoolean();
+    }
+
+    public byte readByte()
+        throws IOException
+    {
+        available( 1 );
+        return file.readByte();
+    }
+
+    public int readInt()
+        throws IOException
+    {
+        available( 4 );
+        return file.readInt();
+    }
+
+    public long readLong()
+        throws IOException
+    {
+        available( 8 );
+        return file.readLong();
+    }
+
+    public int read( byte[] buffer )
+        throws IOException
+    {
+        long remaining = length - file.getFilePointer();
+        if (remaining <= 0)
+        {
+            return buffer.length == 0 ? 0 : -1;
+        }
+        return file.read( buffer, 0, (int) Math.min( buffer.length, remaining ) );
+    }
+
+    public void readFully( long position, byte[] buffer, int offset, int length )
+        throws IOException
+    {
+        if (position + length > this.length)
+        {
+            throw new EOFException();
+        }
+        ByteBuffer target = ByteBuffer.wrap( buffer, offset, length );
+        while (target.hasRemaining())
+        {
+            int count = channel.read( target, position + target.position() - offset );
+            if (count < 0)
+            {
+                throw new EOFException();
+            }
+        }
+    }
+
+    public void writeBoolean( boolean value )
+        throws IOException
+    {
+        extend( 1 );
+        file.writeBoolean( value );
+    }
+
+    public void write( int value )
+        throws IOException
+    {
+        extend( 1 );
+        file.write( value );
+    }
+
+    public void writeByte( int value )
+        throws IOException
+    {
+        extend( 1 );
+        file.writeByte( value );
+    }
+
+    public void writeInt( int value )
+        throws IOException
+    {
+        extend( 4 );
+        file.writeInt( value );
+    }
+
+    public void writeLong( long value )
+        throws IOException
+    {
+        extend( 8 );
+        file.writeLong( value );
+    }
+
+    public void write( byte[] buffer )
+        throws IOException
+    {
+        extend( buffer.length );
+        file.write( buffer );
+    }
+
+    public void sync()
+        throws IOException
+    {
+        // Flushing the data is enough. Recovery never goes by the size of the file, which includes the preallocated
+        // chunk. It goes by the logical length of the heap, which the checkpoint records with every commit and a
+        // re-index finds at the end marker. Anything beyond that length is cut off when the store is opened.
+        channel.force( false );
+    }
+
+    public void close()
+        throws IOException
+    {
+        if (allocated > length)
+        {
+            file.setLength( length );
+        }
+        file.close();
+    }
+
+    private void available( int count )
+        throws IOException
+    {
+        if (file.getFilePointer() + count > length)
+        {
+            throw new EOFException();
+        }
+    }
+
+    private void extend( int count )
+        throws IOException
+    {
+        long end = file.getFilePointer() + count;
+        if (end > allocated)
+        {
+            allocate( end );
+        }
+        if (end > length)
+        {
+            length = end;
+        }
+    }
+
+    private void allocate( long end )
+        throws IOException
+    {
+        if (chunkSize <= 0)
+        {
+            // The write itself grows the file.
+            allocated = end;
+            return;
+        }
+        long target = ( ( end + chunkSize - 1 ) / chunkSize ) * chunkSize;
+        ByteBuffer zeroes = ByteBuffer.allocate( (int) Math.min( ZEROES_SIZE, target - allocated ) );
+        long position = allocated;
+        while (position < target)
+        {
+            zeroes.clear();
+            zeroes.limit( (int) Math.min( zeroes.capacity(), target - position ) );
+            position = position + channel.write( zeroes, position );
+        }
+        allocated = target;
+    }
+}
@@ -21,37 +21,125 @@ import org.qi4j.api.entity.EntityReference;
 import org.qi4j.api.io.Input;
 import org.qi4j.spi.entitystore.EntityStoreException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
 
+/**
+ * The transactions of a heap. The changes are written straight to the heap, after the undo images of what they
+ * overwrite have been written to the undo journal. The undo journal is a sequence of frames;
+ * <code><pre>
+ * [FRAME]     1 byte
+ * [length]    4 bytes
+ * [checksum]  4 bytes, CRC32 of the records
+ * [records]   length bytes
+ * </pre></code>
+ * Each frame is written with a single write, before the heap is changed. A frame that was torn by a crash, and so
+ * fails its checksum, never protected a change of the heap, and ends the recovery. Journals of older versions,
+ * which hold the records without frames, are still recovered.
+ * <p/>
+ * In the redo mode, meant for bulk imports, the changes are held in memory until the commit, and then written to
+ * the journal as one redo record, before they are applied to the heap. The new blocks are then appended to the
+ * heap without undo images, as the redo record tells where the heap ended. After a crash, the changes are undone
+ * as usual, and a complete redo record is applied again.
+ */
 public class RecordManager
     implements UndoManager
 {
+    private static final byte UNDO_FRAME = 1;
     private static final byte UNDO_DELETE = 2;
     private static final byte UNDO_MODIFY = 3;
     private static final byte UNDO_NEW_IDENTITY = 4;
     private static final byte UNDO_DROP_IDENTITY = 5;
     private static final byte UNDO_EXTEND = 6;
+    private static final byte UNDO_ALLOCATE = 7;
+    private static final byte UNDO_BEGIN = 8;
+    private static final byte UNDO_REDO = 9;
+    private static final byte UNDO_TYPED_REDO = 10; // A redo record with the entity type of each block.
+    private static final int FRAME_HEADER_SIZE = 9;
 
     private DataStore dataStore;
     private RandomAccessFile undoJournal;
+    private FrameBuffer frame;
+    private boolean begun;
     private ArrayList<UndoCommand> commands;
+    private ArrayList<DataBlock> redo; // A DataBlock without data is a delete.
+    private HashMap<EntityReference, DataBlock> redoLatest; // The last change of each entity in the redo list.
+    private boolean applyingRedo;
+    private StoreSettings settings;
+    private ReplicationLog replicationLog;
+    private ArrayList<DataBlock> published; // The changes of the transaction, for the replication log.
 
     public RecordManager( File dataDir, boolean recover )
         throws IOException
     {
+        this( dataDir, recover, new StoreSettings() );
+    }
+
+    RecordManager( File dataDir, boolean recover, StoreSettings settings )
+        throws IOException
+    {
+        this( dataDir, recover, settings, false );
+    }
+
+    /**
+     * @param dataDir   The directory of the heap.
+     * @param recover   true if an interrupted transaction in the undo journal should be undone.
+     * @param settings  The settings of the store.
+     * @param committed true if the transaction in the undo journal was committed together with other segments of
+     *                  the {@link HeapSegments}, so that it must be kept instead of undone.
+     * @throws IOException if the heap or the undo journal can not be opened.
+     */
+    RecordManager( File dataDir, boolean recover, StoreSettings settings, boolean committed )
+        throws IOException
+    {
+        this.settings = settings;
         File undoFile = new File( dataDir, "undo.data" );
-        dataStore = new DataStore( dataDir, this );
+        long logLimit = -1;
+        if( undoFile.exists() )
+        {
+            RandomAccessFile journal = new RandomAccessFile( undoFile, "rw" );
+            try
+            {
+                if( committed )
+                {
+                    journal.setLength( 0 );
+                }
+                else if( recover )
+                {
+                    // The checkpoint log beyond this belongs to the interrupted transaction.
+                    logLimit = readLogLimit( journal );
+                }
+            }
+            finally
+            {
+                journal.close();
+            }
+        }
+        dataStore = new DataStore( dataDir, this, settings, logLimit );
+        frame = new FrameBuffer();
         commands = new ArrayList<UndoCommand>();
+        redo = new ArrayList<DataBlock>();
+        redoLatest = new HashMap<EntityReference, DataBlock>();
+        boolean undone = false;
+        List<DataBlock> redone = null;
         if( undoFile.exists() )
         {
             undoJournal = new RandomAccessFile( undoFile, "rw" );
             if( recover && undoJournal.length() > 0 )
             {
-                recover();
+                redone = recover();
+                undone = true;
             }
         }
         else
@@ -59,44 +147,212 @@ public class RecordManager
             undoFile.createNewFile();
             undoJournal = new RandomAccessFile( undoFile, "rw" );
         }
-
+        dataStore.recovered( undone );
+        if( redone != null )
+        {
+            redo.addAll( redone );
+            commit();
+        }
     }
 
     public void putData( DataBlock data )
         throws IOException
     {
+        if( settings.redoJournal )
+        {
+            dataStore.checkIdentity( data.reference );
+            redo.add( data );
+            redoLatest.put( data.reference, data );
+            publish( data );
+            return;
+        }
         dataStore.putData( data );
+        publish( data );
     }
 
     public void deleteData( EntityReference reference )
         throws IOException
     {
+        if( settings.redoJournal )
+        {
+            redo.add( new DataBlock( reference, null, 0, 0 ) );
+            redoLatest.put( reference, new DataBlock( reference, null, 0, 0 ) );
+            publish( new DataBlock( reference, null, 0, 0 ) );
+            return;
+        }
         dataStore.delete( reference );
+        publish( new DataBlock( reference, null, 0, 0 ) );
     }
 
+    /**
+     * Publishes the changes of each committed transaction to the log, from now on.
+     *
+     * @param log The log of the store.
+     */
+    void publishTo( ReplicationLog log )
+    {
+        published = new ArrayList<DataBlock>();
+        replicationLog = log;
+    }
+
+    /**
+     * @return The identities of the entities in the heap.
+     * @throws IOException if the index can not be read.
+     */
+    List<String> identities()
+        throws IOException
+    {
+        return dataStore.identities();
+    }
+
+    private void publish( DataBlock change )
+    {
+        if( replicationLog != null )
+        {
+            published.add( change );
+        }
+    }
+
+    /**
+     * Reads the committed data of an entity. In the redo mode, the changes of the current transaction are not
+     * visible until it is committed.
+     *
+     * @param reference The entity.
+     * @return The data, or null if the entity doesn't exist.
+     * @throws IOException if the heap can not be read.
+     */
     public DataBlock readData( EntityReference reference )
         throws IOException
     {
         return dataStore.readData( reference );
     }
 
-    
+    /**
+     * Reads the data of an entity as the current transaction leaves it, which in the redo mode includes the changes
+     * that are held for the redo record.
+     *
+     * @param reference The entity.
+     * @return The data, or null if the entity doesn't exist.
+     * @throws IOException if the heap can not be read.
+     */
+    DataBlock readUncommitted( EntityReference reference )
+        throws IOException
+    {
+        DataBlock change = redoLatest.get( reference );
+        if( change != null )
+        {
+            return change.data == null ? null : change;
+        }
+        return dataStore.readData( reference );
+    }
+
+    /**
+     * Reads the instanceVersion of an entity as the current transaction leaves it, like readUncommitted.
+     *
+     * @param reference The entity.
+     * @return The instanceVersion, or -1 if the entity doesn't exist.
+     * @throws IOException if the heap can not be read.
+     */
+    long readUncommittedVersion( EntityReference reference )
+        throws IOException
+    {
+        DataBlock change = redoLatest.get( reference );
+        if( change != null )
+        {
+            return change.data == null ? -1 : change.instanceVersion;
+        }
+        return dataStore.readInstanceVersion( reference );
+    }
+
+    long readInstanceVersion( EntityReference reference )
+        throws IOException
+    {
+        return dataStore.readInstanceVersion( reference );
+    }
+
+    BlockCache blockCache()
+    {
+        return dataStore.cache();
+    }
+
+    long corruptedBlocks()
+    {
+        return dataStore.corruptedBlocks();
+    }
+
+    long quarantinedBlocks()
+    {
+        return dataStore.quarantinedBlocks();
+    }
+
+    IdentityFilter identityFilter()
+    {
+        return dataStore.identityFilter();
+    }
+
     public void commit()
         throws IOException
     {
-        dataStore.flush();
+        prepare();
+        complete();
+    }
+
+    /**
+     * First half of a commit, which brings the transaction to disk while it can still be undone.
+     *
+     * @throws IOException if the transaction can not be written.
+     */
+    void prepare()
+        throws IOException
+    {
+        if( !redo.isEmpty() )
+        {
+            applyRedo();
+        }
+        dataStore.commit();
+        if( settings.syncOnCommit )
+        {
+            // The journal must survive until the heap is on disk, or a crash in between can't be undone.
+            undoJournal.getFD().sync();
+            dataStore.sync();
+        }
+    }
+
+    /**
+     * Second half of a commit, which clears the undo journal and so makes the prepared transaction permanent.
+     *
+     * @throws IOException if the undo journal can not be cleared.
+     */
+    void complete()
+        throws IOException
+    {
         commands.clear();
+        begun = false;
         undoJournal.setLength( 0 );
+        if( settings.syncOnCommit )
+        {
+            undoJournal.getFD().sync();
+        }
+        dataStore.reclaim();
+        if( replicationLog != null && !published.isEmpty() )
+        {
+            replicationLog.append( published );
+            published = new ArrayList<DataBlock>();
+        }
     }
 
     public void discard()
         throws IOException
     {
-        for( UndoCommand command : commands )
+        dataStore.discard( commands );
+        commands.clear();
+        redo.clear();
+        redoLatest.clear();
+        if( published != null )
         {
-            command.undo( dataStore.dataFile(), dataStore.identityFile() );
+            published.clear();
         }
-        commands.clear();
+        begun = false;
         undoJournal.setLength( 0 );
     }
 
@@ -106,40 +362,73 @@ public class RecordManager
         dataStore.close();
     }
 
+    /**
+     * Starts a backup of the heap, see {@link DataStore#startBackup(File)}.
+     *
+     * @param targetDir The directory to copy the heap to.
+     * @return false if a transaction is in progress.
+     * @throws IOException if the copy can not be created.
+     */
+    public boolean startBackup( File targetDir )
+        throws IOException
+    {
+        return dataStore.startBackup( targetDir );
+    }
+
+    public boolean backupStep( int maxBytes )
+        throws IOException
+    {
+        return dataStore.backupStep( maxBytes );
+    }
+
+    public void finishBackup()
+        throws IOException
+    {
+        dataStore.finishBackup();
+    }
+
     public void saveUndoCommand( UndoCommand command )
     {
         commands.add( command );
+        if( applyingRedo && ( command instanceof UndoExtendCommand || command instanceof UndoNewIdentityCommand ) )
+        {
+            // Appended to the heap after the redo record, which tells where the heap ended.
+            return;
+        }
         try
         {
+            DataOutputStream out = frame.records();
+            begin( out );
             if( command instanceof UndoDeleteCommand )
             {
-                undoJournal.write( UNDO_DELETE );
-                command.save( undoJournal );
+                out.write( UNDO_DELETE );
             }
             else if( command instanceof UndoModifyCommand )
             {
-                undoJournal.write( UNDO_MODIFY );
-                command.save( undoJournal );
+                out.write( UNDO_MODIFY );
             }
             else if( command instanceof UndoDropIdentityCommand )
             {
-                undoJournal.write( UNDO_DROP_IDENTITY );
-                command.save( undoJournal );
+                out.write( UNDO_DROP_IDENTITY );
             }
             else if( command instanceof UndoNewIdentityCommand )
             {
-                undoJournal.write( UNDO_NEW_IDENTITY );
-                command.save( undoJournal );
+                out.write( UNDO_NEW_IDENTITY );
             }
             else if( command instanceof UndoExtendCommand )
             {
-                undoJournal.write( UNDO_EXTEND );
-                command.save( undoJournal );
+                out.write( UNDO_EXTEND );
+            }
+            else if( command instanceof UndoAllocateCommand )
+            {
+                out.write( UNDO_ALLOCATE );
             }
             else
             {
                 throw new InternalError();
             }
+            command.save( out );
+            frame.writeTo( undoJournal );
         }
         catch( IOException e )
         {
@@ -147,42 +436,123 @@ public class RecordManager
         }
     }
 
-    private void recover()
+    /* The first record of a transaction holds the end of the checkpoint log before the transaction. */
+
+    private void begin( DataOutputStream out )
+        throws IOException
+    {
+        if( !begun )
+        {
+            out.write( UNDO_BEGIN );
+            out.writeLong( dataStore.logPosition() );
+            begun = true;
+        }
+    }
+
+    /* Writes the changes of the transaction as one redo record, and then applies them to the heap. */
+
+    private void applyRedo()
+        throws IOException
     {
+        DataOutputStream out = frame.records();
+        begin( out );
+        out.write( UNDO_TYPED_REDO );
+        out.writeLong( dataStore.heapEnd() );
+        out.writeInt( redo.size() );
+        for( DataBlock block : redo )
+        {
+            out.writeUTF( block.reference.identity() );
+            out.writeBoolean( block.data != null );
+            if( block.data != null )
+            {
+                out.writeLong( block.instanceVersion );
+                out.writeInt( block.schemaVersion );
+                out.writeInt( block.data.length );
+                out.write( block.data );
+                out.writeUTF( block.type == null ? "" : block.type );
+            }
+        }
+        frame.writeTo( undoJournal );
+        applyingRedo = true;
+        dataStore.setAppendOnly( true );
         try
         {
-            undoJournal.seek( 0 );
-            while( undoJournal.getFilePointer() < undoJournal.length() )
+            for( DataBlock block : redo )
             {
-                byte type = undoJournal.readByte();
-                UndoCommand command;
-                if( type == UNDO_MODIFY )
-                {
-                    command = UndoModifyCommand.load( undoJournal );
-                }
-                else if( type == UNDO_DELETE )
+                if( block.data == null )
                 {
-                    command = UndoDeleteCommand.load( undoJournal );
+                    dataStore.delete( block.reference );
                 }
-                else if( type == UNDO_DROP_IDENTITY )
-                {
-                    command = UndoDropIdentityCommand.load( undoJournal );
-                }
-                else if( type == UNDO_EXTEND )
+                else
                 {
-                    command = UndoExtendCommand.load( undoJournal );
+                    dataStore.putData( block );
                 }
-                else if( type == UNDO_NEW_IDENTITY )
+            }
+        }
+        finally
+        {
+            dataStore.setAppendOnly( false );
+            applyingRedo = false;
+        }
+        redo.clear();
+        redoLatest.clear();
+    }
+
+    /*
+     * Undoes the interrupted transaction, and returns the changes of its redo record, if it was written completely,
+     * so that they can be applied again.
+     */
+
+    private List<DataBlock> recover()
+    {
+        try
+        {
+            long redoHeapEnd = -1;
+            List<DataBlock> redone = null;
+            undoJournal.seek( 0 );
+            while( undoJournal.getFilePointer() < undoJournal.length() )
+            {
+                byte type = undoJournal.readByte();
+                if( type == UNDO_FRAME )
                 {
-                    command = UndoNewIdentityCommand.load( undoJournal );
+                    byte[] records = readFrame( undoJournal );
+                    if( records == null )
+                    {
+                        // Torn by the crash, so the heap wasn't changed after it.
+                        break;
+                    }
+                    DataInputStream in = new DataInputStream( new ByteArrayInputStream( records ) );
+                    while( in.available() > 0 )
+                    {
+                        type = in.readByte();
+                        if( type == UNDO_REDO || type == UNDO_TYPED_REDO )
+                        {
+                            redoHeapEnd = in.readLong();
+                            redone = loadRedo( in, type == UNDO_TYPED_REDO );
+                        }
+                        else
+                        {
+                            load( type, in );
+                        }
+                    }
                 }
                 else
                 {
-                    throw new InternalError();
+                    load( type, undoJournal );
                 }
-                commands.add( command );
             }
             discard();
+            if( redoHeapEnd >= 0 )
+            {
+                // Nothing protects the blocks that were appended after the redo record.
+                ArrayList<EntityReference> references = new ArrayList<EntityReference>();
+                for( DataBlock block : redone )
+                {
+                    references.add( block.reference );
+                }
+                dataStore.truncate( redoHeapEnd, references );
+            }
+            return redone;
         }
         catch( IOException e )
         {
@@ -190,8 +560,176 @@ public class RecordManager
         }
     }
 
+    private void load( byte type, DataInput in )
+        throws IOException
+    {
+        UndoCommand command;
+        if( type == UNDO_BEGIN )
+        {
+            in.readLong();
+            return;
+        }
+        if( type == UNDO_MODIFY )
+        {
+            command = UndoModifyCommand.load( in );
+        }
+        else if( type == UNDO_DELETE )
+        {
+            command = UndoDeleteCommand.load( in );
+        }
+        else if( type == UNDO_DROP_IDENTITY )
+        {
+            command = UndoDropIdentityCommand.load( in );
+        }
+        else if( type == UNDO_EXTEND )
+        {
+            command = UndoExtendCommand.load( in );
+        }
+        else if( type == UNDO_ALLOCATE )
+        {
+            command = UndoAllocateCommand.load( in );
+        }
+        else if( type == UNDO_NEW_IDENTITY )
+        {
+            command = UndoNewIdentityCommand.load( in );
+        }
+        else
+        {
+            throw new InternalError();
+        }
+        commands.add( command );
+    }
+
+    private static List<DataBlock> loadRedo( DataInputStream in, boolean typed )
+        throws IOException
+    {
+        int count = in.readInt();
+        ArrayList<DataBlock> blocks = new ArrayList<DataBlock>( count );
+        for( int i = 0; i < count; i++ )
+        {
+            EntityReference reference = new EntityReference( in.readUTF() );
+            if( in.readBoolean() )
+            {
+                long instanceVersion = in.readLong();
+                int schemaVersion = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully( data );
+                String type = typed ? in.readUTF() : "";
+                blocks.add( new DataBlock( reference, data, instanceVersion, schemaVersion,
+                                           type.length() == 0 ? null : type ) );
+            }
+            else
+            {
+                blocks.add( new DataBlock( reference, null, 0, 0 ) );
+            }
+        }
+        return blocks;
+    }
+
+    /* Returns the end of the checkpoint log before the transaction in the journal, or -1 if it isn't known. */
+
+    private static long readLogLimit( RandomAccessFile journal )
+        throws IOException
+    {
+        if( journal.length() == 0 )
+        {
+            return -1;
+        }
+        byte type = journal.readByte();
+        if( type == UNDO_FRAME )
+        {
+            byte[] records = readFrame( journal );
+            if( records != null && records.length > 8 && records[ 0 ] == UNDO_BEGIN )
+            {
+                return new DataInputStream( new ByteArrayInputStream( records, 1, 8 ) ).readLong();
+            }
+        }
+        else if( type == UNDO_BEGIN && journal.length() > 8 )
+        {
+            return journal.readLong();
+        }
+        return -1;
+    }
+
+    /* Reads the rest of a frame, and returns its records, or null if the frame is incomplete or corrupt. */
+
+    private static byte[] readFrame( RandomAccessFile journal )
+        throws IOException
+    {
+        long remaining = journal.length() - journal.getFilePointer();
+        if( remaining < FRAME_HEADER_SIZE - 1 )
+        {
+            return null;
+        }
+        int length = journal.readInt();
+        int checksum = journal.readInt();
+        if( length < 0 || length > remaining - FRAME_HEADER_SIZE + 1 )
+        {
+            return null;
+        }
+        byte[] records = new byte[length];
+        journal.readFully( records );
+        CRC32 crc = new CRC32();
+        crc.update( records );
+        return (int) crc.getValue() == checksum ? records : null;
+    }
+
     public Input<Reader, IOException> data()
     {
         return dataStore.data();
     }
+
+    public Input<Reader, IOException> data( String type )
+    {
+        return dataStore.data( type );
+    }
+
+    /* Collects the records of a frame, and writes them to the journal with a single write. */
+
+    private static class FrameBuffer extends ByteArrayOutputStream
+    {
+        private final DataOutputStream records = new DataOutputStream( this );
+        private final CRC32 crc = new CRC32();
+
+        private FrameBuffer()
+        {
+            super( 256 );
+            reset();
+        }
+
+        @Override
+        public void reset()
+        {
+            super.reset();
+            // Room for the header, which is filled in when the records are complete.
+            write( new byte[FRAME_HEADER_SIZE], 0, FRAME_HEADER_SIZE );
+        }
+
+        private DataOutputStream records()
+        {
+            return records;
+        }
+
+        private void writeTo( RandomAccessFile journal )
+            throws IOException
+        {
+            int length = count - FRAME_HEADER_SIZE;
+            crc.reset();
+            crc.update( buf, FRAME_HEADER_SIZE, length );
+            int checksum = (int) crc.getValue();
+            buf[ 0 ] = UNDO_FRAME;
+            putInt( 1, length );
+            putInt( 5, checksum );
+            journal.write( buf, 0, count );
+            reset();
+        }
+
+        private void putInt( int offset, int value )
+        {
+            buf[ offset ] = (byte) ( value >>> 24 );
+            buf[ offset + 1 ] = (byte) ( value >>> 16 );
+            buf[ offset + 2 ] = (byte) ( value >>> 8 );
+            buf[ offset + 3 ] = (byte) value;
+        }
+    }
 }
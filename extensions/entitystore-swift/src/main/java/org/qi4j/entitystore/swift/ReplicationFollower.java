@@ -0,0 +1,287 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashSet;
+import org.qi4j.api.entity.EntityReference;
+
+/**
+ * Tails the log of a {@link ReplicationLeader} and applies it to the heap of a follower store.
+ * <p/>
+ * The epoch of the leader and the sequence of the last applied batch are kept in replica.data in the storage
+ * directory, so that a restarted follower continues where it stopped. A batch is applied before its sequence is
+ * written, and applying one again does no harm.
+ */
+class ReplicationFollower
+    implements Runnable
+{
+    private static final String STATE_FILENAME = "replica.data";
+    private static final long RECONNECT_DELAY = 500;
+    private static final int SYNC_BATCH_SIZE = 100;
+
+    private final HeapSegments segments;
+    private final File stateFile;
+    private final String host;
+    private final int port;
+    private final Thread followerThread;
+    private volatile boolean running;
+    private volatile Socket socket;
+    private long epoch;
+    private long appliedSequence;
+    private long leaderSequence;
+    private long lastInSync;
+
+    /**
+     * @param segments The store to apply the log to.
+     * @param dataDir  The storage directory of the store.
+     * @param host     The host of the leader.
+     * @param port     The port of the leader.
+     * @throws IOException if the replication state can not be read.
+     */
+    ReplicationFollower( HeapSegments segments, File dataDir, String host, int port )
+        throws IOException
+    {
+        this.segments = segments;
+        this.host = host;
+        this.port = port;
+        stateFile = new File( dataDir, STATE_FILENAME );
+        if( stateFile.exists() )
+        {
+            DataInputStream in = new DataInputStream( new FileInputStream( stateFile ) );
+            try
+            {
+                epoch = in.readLong();
+                appliedSequence = in.readLong();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        followerThread = new Thread( this, "SwiftEntityStore-follower" );
+        followerThread.setDaemon( true );
+    }
+
+    void start()
+    {
+        running = true;
+        followerThread.start();
+    }
+
+    void stop()
+        throws IOException
+    {
+        running = false;
+        followerThread.interrupt();
+        Socket current = socket;
+        if( current != null )
+        {
+            current.close();
+        }
+        try
+        {
+            followerThread.join();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The number of milliseconds since the follower was last known to have applied all batches of the
+     *         leader, or 0 if it has.
+     */
+    synchronized long lag()
+    {
+        if( socket != null && appliedSequence >= leaderSequence && lastInSync > 0 )
+        {
+            return 0;
+        }
+        return System.currentTimeMillis() - lastInSync;
+    }
+
+    public void run()
+    {
+        while( running )
+        {
+            try
+            {
+                socket = new Socket( host, port );
+                try
+                {
+                    follow( socket );
+                }
+                finally
+                {
+                    socket.close();
+                    socket = null;
+                }
+            }
+            catch( IOException e )
+            {
+                // The leader is not there, or went away.
+            }
+            try
+            {
+                if( running )
+                {
+                    Thread.sleep( RECONNECT_DELAY );
+                }
+            }
+            catch( InterruptedException e )
+            {
+                // ignore, normal shutdown
+            }
+        }
+    }
+
+    private void follow( Socket socket )
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+        DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        out.writeLong( epoch );
+        out.writeLong( appliedSequence );
+        out.flush();
+        while( running )
+        {
+            byte type = in.readByte();
+            if( type == ReplicationLeader.BATCH )
+            {
+                long sequence = in.readLong();
+                int count = in.readInt();
+                CommitRequest request = new CommitRequest();
+                for( int i = 0; i < count; i++ )
+                {
+                    addChange( request, in );
+                }
+                segments.commit( request );
+                applied( epoch, sequence, sequence );
+            }
+            else if( type == ReplicationLeader.HEARTBEAT )
+            {
+                long sequence = in.readLong();
+                applied( epoch, appliedSequence, sequence );
+            }
+            else if( type == ReplicationLeader.SYNC_START )
+            {
+                long syncEpoch = in.readLong();
+                long sequence = in.readLong();
+                sync( in );
+                applied( syncEpoch, sequence, sequence );
+            }
+            else
+            {
+                throw new IOException( "Unknown replication message " + type );
+            }
+        }
+    }
+
+    /* Takes over all entities sent by the leader, and drops the others. */
+
+    private void sync( DataInputStream in )
+        throws IOException
+    {
+        HashSet<String> synced = new HashSet<String>();
+        CommitRequest request = new CommitRequest();
+        int pending = 0;
+        while( in.readByte() == ReplicationLeader.SYNC_ENTITY )
+        {
+            synced.add( addChange( request, in ) );
+            if( ++pending == SYNC_BATCH_SIZE )
+            {
+                segments.commit( request );
+                request = new CommitRequest();
+                pending = 0;
+            }
+        }
+        for( int segment = 0; segment < segments.count(); segment++ )
+        {
+            for( String identity : segments.segment( segment ).identities() )
+            {
+                if( !synced.contains( identity ) )
+                {
+                    request.remove( new EntityReference( identity ) );
+                }
+            }
+        }
+        segments.commit( request );
+    }
+
+    private String addChange( CommitRequest request, DataInputStream in )
+        throws IOException
+    {
+        boolean isPut = in.readBoolean();
+        String identity = in.readUTF();
+        EntityReference reference = new EntityReference( identity );
+        if( isPut )
+        {
+            long instanceVersion = in.readLong();
+            int schemaVersion = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully( data );
+            String type = in.readUTF();
+            request.put( new DataBlock( reference, data, instanceVersion, schemaVersion,
+                                        type.length() == 0 ? null : type ) );
+        }
+        else
+        {
+            request.remove( reference );
+        }
+        return identity;
+    }
+
+    private void applied( long epoch, long sequence, long leaderSequence )
+        throws IOException
+    {
+        boolean changed = epoch != this.epoch || sequence != appliedSequence;
+        synchronized( this )
+        {
+            this.epoch = epoch;
+            appliedSequence = sequence;
+            this.leaderSequence = Math.max( this.leaderSequence, leaderSequence );
+            if( appliedSequence >= this.leaderSequence )
+            {
+                lastInSync = System.currentTimeMillis();
+            }
+        }
+        if( changed )
+        {
+            DataOutputStream out = new DataOutputStream( new FileOutputStream( stateFile ) );
+            try
+            {
+                out.writeLong( epoch );
+                out.writeLong( sequence );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.qi4j.api.entity.EntityReference;
+
+/**
+ * Ships the {@link ReplicationLog} of a store to the followers that connect to a socket on the loopback
+ * interface.
+ * <p/>
+ * A follower opens with the epoch and the sequence of the last batch it has applied. If the leader can continue
+ * from there, it sends the batches that follow, as they are committed. Otherwise it first sends all entities of
+ * the store, and the follower drops all others. The batches committed while the entities are sent are sent
+ * after them, so the follower ends up with the latest state, even if some entities are older for a moment.
+ * <code><pre>
+ * Follower: [epoch 8][lastSequence 8]
+ * Leader:   [BATCH][sequence 8][noOfChanges 4][change]...
+ *           [HEARTBEAT][lastSequence 8]
+ *           [SYNC_START][epoch 8][sequence 8] [SYNC_ENTITY][change]... [SYNC_END]
+ * change:   [isPut 1][identity UTF], and for a put, [instanceVersion 8][schemaVersion 4][length 4][data][type UTF]
+ * </pre></code>
+ * The heartbeats tell an idle follower that it is up to date.
+ */
+class ReplicationLeader
+    implements Runnable
+{
+    static final byte BATCH = 1;
+    static final byte HEARTBEAT = 2;
+    static final byte SYNC_START = 3;
+    static final byte SYNC_ENTITY = 4;
+    static final byte SYNC_END = 5;
+    static final long HEARTBEAT_INTERVAL = 100;
+
+    private final HeapSegments segments;
+    private final ReplicationLog log;
+    private final ServerSocket serverSocket;
+    private final List<Socket> followers;
+    private final Thread acceptThread;
+    private volatile boolean running;
+
+    /**
+     * @param segments The store to replicate.
+     * @param log      The log of the store, which it publishes to.
+     * @param port     The port to listen to, or 0 for any free port.
+     * @throws IOException if the port can not be listened to.
+     */
+    ReplicationLeader( HeapSegments segments, ReplicationLog log, int port )
+        throws IOException
+    {
+        this.segments = segments;
+        this.log = log;
+        serverSocket = new ServerSocket( port, 50, InetAddress.getByName( null ) );
+        followers = Collections.synchronizedList( new ArrayList<Socket>() );
+        acceptThread = new Thread( this, "SwiftEntityStore-replication" );
+        acceptThread.setDaemon( true );
+    }
+
+    int port()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    void start()
+    {
+        running = true;
+        acceptThread.start();
+    }
+
+    void stop()
+        throws IOException
+    {
+        running = false;
+        serverSocket.close();
+        synchronized( followers )
+        {
+            for( Socket follower : followers )
+            {
+                follower.close();
+            }
+        }
+        try
+        {
+            acceptThread.join();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run()
+    {
+        while( running )
+        {
+            try
+            {
+                final Socket socket = serverSocket.accept();
+                followers.add( socket );
+                Thread session = new Thread( "SwiftEntityStore-replication-" + socket.getPort() )
+                {
+                    @Override public void run()
+                    {
+                        try
+                        {
+                            ship( socket );
+                        }
+                        catch( IOException e )
+                        {
+                            // The follower is gone, and reconnects when it can.
+                        }
+                        catch( InterruptedException e )
+                        {
+                            // ignore, normal shutdown
+                        }
+                        finally
+                        {
+                            followers.remove( socket );
+                            try
+                            {
+                                socket.close();
+                            }
+                            catch( IOException e )
+                            {
+                                // Ignore, already broken.
+                            }
+                        }
+                    }
+                };
+                session.setDaemon( true );
+                session.start();
+            }
+            catch( IOException e )
+            {
+                // Closed by stop(), or retried.
+            }
+        }
+    }
+
+    private void ship( Socket socket )
+        throws IOException, InterruptedException
+    {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+        long epoch = in.readLong();
+        long sequence = in.readLong();
+        if( epoch != log.epoch() )
+        {
+            sequence = sync( out );
+        }
+        while( running )
+        {
+            List<ReplicationLog.Batch> batches = log.after( sequence, HEARTBEAT_INTERVAL );
+            if( batches == null )
+            {
+                sequence = sync( out );
+                continue;
+            }
+            if( batches.isEmpty() )
+            {
+                out.writeByte( HEARTBEAT );
+                out.writeLong( sequence );
+            }
+            for( ReplicationLog.Batch batch : batches )
+            {
+                out.writeByte( BATCH );
+                out.writeLong( batch.sequence );
+                out.writeInt( batch.changes.size() );
+                for( DataBlock change : batch.changes )
+                {
+                    writeChange( out, change );
+                }
+                sequence = batch.sequence;
+            }
+            out.flush();
+        }
+    }
+
+    /* Sends all entities of the store, and returns the sequence of the log that the follower continues after. */
+
+    private long sync( DataOutputStream out )
+        throws IOException
+    {
+        long sequence = log.lastSequence();
+        out.writeByte( SYNC_START );
+        out.writeLong( log.epoch() );
+        out.writeLong( sequence );
+        for( int segment = 0; segment < segments.count(); segment++ )
+        {
+            for( String identity : segments.segment( segment ).identities() )
+            {
+                DataBlock block = segments.readData( new EntityReference( identity ) );
+                if( block != null )
+                {
+                    out.writeByte( SYNC_ENTITY );
+                    writeChange( out, block );
+                }
+            }
+        }
+        out.writeByte( SYNC_END );
+        out.flush();
+        return sequence;
+    }
+
+    private static void writeChange( DataOutputStream out, DataBlock change )
+        throws IOException
+    {
+        out.writeBoolean( change.data != null );
+        out.writeUTF( change.reference.identity() );
+        if( change.data != null )
+        {
+            out.writeLong( change.instanceVersion );
+            out.writeInt( change.schemaVersion );
+            out.writeInt( change.data.length );
+            out.write( change.data );
+            out.writeUTF( change.type == null ? "" : change.type );
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The ordered log of the committed change batches of a leader store, kept in memory for the followers to tail.
+ * <p/>
+ * Each batch gets the next sequence number. Only the last maxBatches are kept, and a follower that is further
+ * behind, or that followed a leader with another epoch, is synchronized from the heap instead. The epoch is new
+ * for every log, so a follower always resynchronizes with a restarted leader.
+ */
+class ReplicationLog
+{
+    static final int DEFAULT_MAX_BATCHES = 10000;
+
+    private final long epoch;
+    private final int maxBatches;
+    private final LinkedList<Batch> batches;
+    private long lastSequence;
+
+    /**
+     * @param maxBatches The number of batches that are kept. Zero or less selects the default of 10000.
+     */
+    ReplicationLog( int maxBatches )
+    {
+        this.maxBatches = maxBatches > 0 ? maxBatches : DEFAULT_MAX_BATCHES;
+        epoch = new Random().nextLong();
+        batches = new LinkedList<Batch>();
+    }
+
+    long epoch()
+    {
+        return epoch;
+    }
+
+    synchronized long lastSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * Appends a committed batch to the log, and wakes up the followers.
+     *
+     * @param changes The changes of the batch, where a DataBlock without data is a delete.
+     */
+    synchronized void append( List<DataBlock> changes )
+    {
+        lastSequence++;
+        batches.add( new Batch( lastSequence, changes ) );
+        while( batches.size() > maxBatches )
+        {
+            batches.removeFirst();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @param sequence The sequence of the last batch that the follower has.
+     * @param timeout  The maximum number of milliseconds to wait for a new batch.
+     * @return The batches after the given one, which is empty if none arrived in time, or null if the batches
+     *         after the given one are no longer in the log.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    synchronized List<Batch> after( long sequence, long timeout )
+        throws InterruptedException
+    {
+        if( sequence == lastSequence )
+        {
+            wait( timeout );
+        }
+        if( sequence > lastSequence || ( !batches.isEmpty() && batches.getFirst().sequence > sequence + 1 ) )
+        {
+            return null;
+        }
+        if( batches.isEmpty() && sequence < lastSequence )
+        {
+            return null;
+        }
+        ArrayList<Batch> result = new ArrayList<Batch>();
+        for( Batch batch : batches )
+        {
+            if( batch.sequence > sequence )
+            {
+                result.add( batch );
+            }
+        }
+        return result;
+    }
+
+    static class Batch
+    {
+        final long sequence;
+        final List<DataBlock> changes;
+
+        Batch( long sequence, List<DataBlock> changes )
+        {
+            this.sequence = sequence;
+            this.changes = changes;
+        }
+    }
+}
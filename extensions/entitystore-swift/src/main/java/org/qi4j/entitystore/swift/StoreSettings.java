@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import org.qi4j.library.statecodec.EntityStateCodec;
+
+/**
+ * Tuning of the RecordManager and the DataStore. The defaults give the same behaviour as a store without
+ * any of the optional settings in the SwiftConfiguration.
+ */
+class StoreSettings
+{
+    /**
+     * Access the heap through memory mapped segments instead of a RandomAccessFile.
+     */
+    boolean memoryMapped;
+
+    /**
+     * Number of bytes that the heap file is grown by at a time, ahead of the writes, when it is not memory mapped.
+     * Zero grows it by each block that is appended.
+     */
+    long heapChunkSize;
+
+    /**
+     * Keep the identity index in the Java heap, instead of in the on-disk IdentityFile.
+     */
+    boolean memoryIndex;
+
+    /**
+     * Force the undo journal and the heap to disk on every commit.
+     */
+    boolean syncOnCommit;
+
+    /**
+     * Maximum number of bytes held by the cache of recently read blocks. Zero disables the cache.
+     */
+    long cacheSize;
+
+    /**
+     * Deflate level, 1 to 9, that new block data is compressed with. Zero disables compression, but compressed
+     * blocks can still be read.
+     */
+    int compressionLevel;
+
+    /**
+     * Preset dictionary for the compression, or null for none.
+     */
+    byte[] compressionDictionary;
+
+    /**
+     * Ratio of unused space in the heap that starts a background compaction. Zero disables compaction.
+     */
+    double compactionThreshold;
+
+    /**
+     * Maximum number of bytes per second that the compaction reads from the heap. Zero or less selects the
+     * default of 8MB per second.
+     */
+    long compactionRate;
+
+    /**
+     * Size in bytes that the checkpoint log may grow to before a new snapshot of the index is written. Zero disables
+     * the checkpoints, and the index is then rebuilt from the whole heap after a crash.
+     */
+    long checkpointLogSize;
+
+    /**
+     * Number of bytes that a scan over the whole heap reads at once. Zero or less selects the default of 1MB.
+     */
+    int scanReadAhead;
+
+    /**
+     * Hold the changes of a transaction in memory, and journal them as one redo record when it is committed,
+     * instead of journaling undo images while they are made.
+     */
+    boolean redoJournal;
+
+    /**
+     * Maximum number of overflow bucket files of the IdentityFile that are open at the same time. Zero or less
+     * selects the default of 32.
+     */
+    int maxOpenBuckets;
+
+    /**
+     * Pack all overflow buckets of the IdentityFile into a single paged file, instead of a file per bucket.
+     */
+    boolean pagedOverflow;
+
+    /**
+     * Milliseconds between the passes of the scrubber, which verifies the checksums of all blocks of the heap in
+     * the background. Zero disables the scrubber.
+     */
+    long scrubInterval;
+
+    /**
+     * Maximum number of bytes per second that the scrubber reads from the heap. Zero or less selects the default
+     * of 8MB per second.
+     */
+    long scrubRate;
+
+    /**
+     * Move the corrupted blocks that the scrubber finds out of the heap, into the quarantine directory, and drop
+     * their entities, instead of only counting them.
+     */
+    boolean quarantineCorruptedBlocks;
+
+    /**
+     * Codec of the states that are in another format than JSON, or null if they are all JSON. The states are only
+     * decoded by the store, and are encoded before they are given to it.
+     */
+    EntityStateCodec stateCodec;
+}
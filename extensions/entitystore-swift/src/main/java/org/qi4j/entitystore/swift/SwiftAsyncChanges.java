@@ -0,0 +1,49 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import org.qi4j.entitystore.map.MapEntityStore;
+
+/**
+ * Changes to the SwiftEntityStore that are committed without blocking the caller.
+ */
+public interface SwiftAsyncChanges
+{
+    /**
+     * Applies the changes in the background. The changes are visited, and the entity states serialized, by the
+     * calling thread, and only the commit is done by the writer thread of the store. The commits are done one at a
+     * time, in the order that they were given, and a later applyChanges waits for the ones given before it, so an
+     * entity always ends up with the last state that was given for it. The number of commits that can be waiting is
+     * bounded, and when it is reached the calling thread waits, so a caller that is faster than the disk is slowed
+     * down to its speed.
+     * <p>
+     * The changes are not those of a unit of work, so they are written without the check for concurrent
+     * modifications and without state change notifications.
+     * </p>
+     *
+     * @param changes The changes.
+     * @return The future of the commit, which fails with the IOException or EntityStoreException that
+     *         applyChanges would throw.
+     * @throws IOException if the changes can not be visited.
+     * @throws java.util.concurrent.RejectedExecutionException if the store is passivated.
+     */
+    Future<Void> applyChangesAsync( MapEntityStore.MapChanges changes )
+        throws IOException;
+}
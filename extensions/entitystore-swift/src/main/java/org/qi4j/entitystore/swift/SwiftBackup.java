@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Online backup of the SwiftEntityStore.
+ */
+public interface SwiftBackup
+{
+    /**
+     * Copies the store, as it is at the moment the backup starts, to the target directory. Commits are held only
+     * while the backup starts, and continue while the heap is copied. The blocks that they change are first copied
+     * as they were, so the copy is consistent.
+     * <p/>
+     * The target directory can be used as the storageDirectory of a store of its own, which rebuilds its index from
+     * the copied heap when it is first activated.
+     *
+     * @param targetDirectory The directory of the copy, which should be empty.
+     * @throws IOException if the store can not be read or the copy not written. The copy is then incomplete.
+     */
+    void backup( File targetDirectory )
+        throws IOException;
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.util.Map;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entitystore.EntityStoreUnitOfWork;
+
+/**
+ * The instanceVersions that the entities of a unit of work were loaded with. The SwiftVersionCheckConcern hands the
+ * unit of work to the store around each load, and the versions of the changed entities around the commit, as the
+ * MapEntityStoreMixin reads and writes the states without them.
+ */
+public interface SwiftBaseVersions
+{
+    /**
+     * Starts a load of an entity by a unit of work in the calling thread, which the MapEntityStoreMixin reads the
+     * state in. The instanceVersion that the state is read with is kept for the unit of work.
+     *
+     * @param unitOfWork The unit of work that loads the entity.
+     */
+    void beginLoad( EntityStoreUnitOfWork unitOfWork );
+
+    /**
+     * Ends the load that the calling thread started.
+     */
+    void endLoad();
+
+    /**
+     * @param unitOfWork The unit of work.
+     * @param reference  The entity.
+     * @return The instanceVersion that the unit of work loaded the entity with, or -1 if it didn't load it.
+     */
+    long loadedVersion( EntityStoreUnitOfWork unitOfWork, EntityReference reference );
+
+    /**
+     * Drops the versions that a unit of work loaded, once it is committed.
+     *
+     * @param unitOfWork The unit of work.
+     */
+    void forgetLoaded( EntityStoreUnitOfWork unitOfWork );
+
+    /**
+     * Starts the commit of a unit of work in the calling thread, which the MapEntityStoreMixin writes the changes in.
+     *
+     * @param versions The instanceVersion of each updated and removed entity, as it was loaded by the unit of work.
+     */
+    void beginCommit( Map<EntityReference, Long> versions );
+
+    /**
+     * Ends the commit that the calling thread started.
+     */
+    void endCommit();
+}
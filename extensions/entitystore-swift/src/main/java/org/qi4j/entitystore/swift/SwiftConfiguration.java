@@ -29,4 +29,56 @@ public interface SwiftConfiguration extends ConfigurationComposite
     @Optional @UseDefaults Property<Boolean> turboMode();
 
     @Optional @UseDefaults Property<Boolean> recover();
+
+    @Optional @UseDefaults Property<Boolean> memoryMapped();
+
+    @Optional @UseDefaults Property<Long> heapChunkSize();
+
+    @Optional @UseDefaults Property<Boolean> memoryIndex();
+
+    @Optional @UseDefaults Property<Double> compactionThreshold();
+
+    @Optional @UseDefaults Property<Long> compactionRate();
+
+    @Optional @UseDefaults Property<Long> checkpointLogSize();
+
+    @Optional @UseDefaults Property<Long> cacheSize();
+
+    @Optional @UseDefaults Property<Integer> compressionLevel();
+
+    @Optional Property<String> compressionDictionary();
+
+    @Optional @UseDefaults Property<Boolean> groupCommit();
+
+    @Optional @UseDefaults Property<Long> groupCommitLatency();
+
+    @Optional @UseDefaults Property<Integer> groupCommitBatchSize();
+
+    @Optional @UseDefaults Property<Integer> heapSegments();
+
+    @Optional @UseDefaults Property<Integer> scanReadAhead();
+
+    @Optional @UseDefaults Property<Boolean> redoJournal();
+
+    @Optional @UseDefaults Property<Integer> maxOpenBuckets();
+
+    @Optional @UseDefaults Property<Boolean> pagedOverflow();
+
+    @Optional @UseDefaults Property<Integer> replicationPort();
+
+    @Optional @UseDefaults Property<Integer> replicationLogSize();
+
+    @Optional Property<String> replicateFrom();
+
+    @Optional @UseDefaults Property<Long> maxReplicationLag();
+
+    @Optional @UseDefaults Property<Long> scrubInterval();
+
+    @Optional @UseDefaults Property<Long> scrubRate();
+
+    @Optional @UseDefaults Property<Boolean> quarantineCorruptedBlocks();
+
+    @Optional @UseDefaults Property<Integer> asyncQueueSize();
+
+    @Optional @UseDefaults Property<Boolean> binaryStates();
 }
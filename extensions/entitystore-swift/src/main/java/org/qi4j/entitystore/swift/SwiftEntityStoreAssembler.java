@@ -28,15 +28,35 @@ public class SwiftEntityStoreAssembler
     implements Assembler
 {
     private String configurationModuleName;
+    private String identity;
 
     public SwiftEntityStoreAssembler( String configurationModule )
+    {
+        this( configurationModule, null );
+    }
+
+    /**
+     * @param configurationModule The name of the module holding the SwiftConfiguration.
+     * @param identity            The identity of the service, which also names the properties file with the default
+     *                            configuration. If null, the default identity of the service is used.
+     */
+    public SwiftEntityStoreAssembler( String configurationModule, String identity )
     {
         this.configurationModuleName = configurationModule;
+        this.identity = identity;
     }
 
     public void assemble( ModuleAssembly module ) throws AssemblyException
     {
-        module.addServices( SwiftEntityStoreService.class, UuidIdentityGeneratorService.class );
+        if( identity == null )
+        {
+            module.addServices( SwiftEntityStoreService.class );
+        }
+        else
+        {
+            module.addServices( SwiftEntityStoreService.class ).identifiedBy( identity );
+        }
+        module.addServices( UuidIdentityGeneratorService.class );
         ModuleAssembly config = module.layerAssembly().moduleAssembly( configurationModuleName );
         config.addEntities( SwiftConfiguration.class ).visibleIn( Visibility.layer );
         config.addServices( MemoryEntityStoreService.class );
@@ -24,21 +24,48 @@ import org.qi4j.api.injection.scope.Uses;
 import org.qi4j.api.io.Input;
 import org.qi4j.api.service.Activatable;
 import org.qi4j.entitystore.map.MapEntityStore;
+import org.qi4j.library.executor.SerialExecutor;
+import org.qi4j.library.statecodec.BinaryStateCodec;
+import org.qi4j.library.statecodec.EntityStateCodec;
+import org.qi4j.library.statecodec.NameDictionary;
+import org.qi4j.library.utf8.PooledUtf8Writer;
 import org.qi4j.spi.entity.EntityType;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
 import org.qi4j.spi.entitystore.EntityStoreException;
+import org.qi4j.spi.entitystore.EntityStoreUnitOfWork;
 import org.qi4j.spi.service.ServiceDescriptor;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReadWriteLock;
 
 public class SwiftEntityStoreMixin
-    implements Activatable, MapEntityStore
+    implements Activatable, MapEntityStore, SwiftStatistics, SwiftBackup, SwiftTypeScan, SwiftAsyncChanges,
+               SwiftBaseVersions
 {
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 64;
+    private static final long ASYNC_SHUTDOWN_TIMEOUT = 60000;
+    static final String STATE_NAMES_FILENAME = "state-names.dict";
+
     private @This ReadWriteLock lock;
     @Uses private ServiceDescriptor descriptor;
     @This private Configuration<SwiftConfiguration> configuration;
-    private RecordManager recordManager;
+    private HeapSegments segments;
+    private GroupCommitter[] groupCommitters;
+    private ReplicationLeader leader;
+    private ReplicationFollower follower;
+    private long maxReplicationLag;
+    private final BaseVersions baseVersions = new BaseVersions();
+    private SerialExecutor asyncWriter;
+    private File stateNamesFile;
+    private NameDictionary stateNames;
+    private EntityStateCodec stateDecoder;
+    private EntityStateCodec stateEncoder;
 
     public void activate()
         throws Exception
@@ -52,26 +79,148 @@ public class SwiftEntityStoreMixin
         {
             recover = Boolean.TRUE;
         }
-        recordManager = new RecordManager( storageDir, recover );
+        StoreSettings settings = new StoreSettings();
+        settings.memoryMapped = Boolean.TRUE.equals( conf.memoryMapped().get() );
+        Long heapChunkSize = conf.heapChunkSize().get();
+        settings.heapChunkSize = heapChunkSize == null ? 0 : heapChunkSize;
+        settings.memoryIndex = Boolean.TRUE.equals( conf.memoryIndex().get() );
+        Double compactionThreshold = conf.compactionThreshold().get();
+        settings.compactionThreshold = compactionThreshold == null ? 0 : compactionThreshold;
+        Long compactionRate = conf.compactionRate().get();
+        settings.compactionRate = compactionRate == null ? 0 : compactionRate;
+        Long checkpointLogSize = conf.checkpointLogSize().get();
+        settings.checkpointLogSize = checkpointLogSize == null ? 0 : checkpointLogSize;
+        Long cacheSize = conf.cacheSize().get();
+        settings.cacheSize = cacheSize == null ? 0 : cacheSize;
+        Integer compressionLevel = conf.compressionLevel().get();
+        settings.compressionLevel = compressionLevel == null ? 0 : compressionLevel;
+        Integer scanReadAhead = conf.scanReadAhead().get();
+        settings.scanReadAhead = scanReadAhead == null ? 0 : scanReadAhead;
+        settings.redoJournal = Boolean.TRUE.equals( conf.redoJournal().get() );
+        Integer maxOpenBuckets = conf.maxOpenBuckets().get();
+        settings.maxOpenBuckets = maxOpenBuckets == null ? 0 : maxOpenBuckets;
+        settings.pagedOverflow = Boolean.TRUE.equals( conf.pagedOverflow().get() );
+        Long scrubInterval = conf.scrubInterval().get();
+        settings.scrubInterval = scrubInterval == null ? 0 : scrubInterval;
+        Long scrubRate = conf.scrubRate().get();
+        settings.scrubRate = scrubRate == null ? 0 : scrubRate;
+        settings.quarantineCorruptedBlocks = Boolean.TRUE.equals( conf.quarantineCorruptedBlocks().get() );
+        String compressionDictionary = conf.compressionDictionary().get();
+        if( compressionDictionary != null )
+        {
+            settings.compressionDictionary = FileUtils.read( new File( compressionDictionary ) );
+        }
+        // The names are kept as long as there may be binary states, so they can be read after they are turned off.
+        boolean binaryStates = Boolean.TRUE.equals( conf.binaryStates().get() );
+        stateNamesFile = new File( storageDir, STATE_NAMES_FILENAME );
+        if( binaryStates || stateNamesFile.exists() )
+        {
+            // A store that had binary states may still have them, even if they are turned off now.
+            Integer port = conf.replicationPort().get();
+            if( conf.replicateFrom().get() != null || port != null && port > 0 )
+            {
+                throw new IllegalArgumentException( "A store with binary states, or the " + STATE_NAMES_FILENAME
+                                                    + " of earlier ones, can not be replicated, as the replicas "
+                                                    + "don't receive the names of the states." );
+            }
+            storageDir.mkdirs();
+            stateNames = new NameDictionary( stateNamesFile );
+            stateDecoder = new BinaryStateCodec( stateNames );
+            stateEncoder = binaryStates ? stateDecoder : null;
+            settings.stateCodec = stateDecoder;
+        }
+        boolean groupCommit = Boolean.TRUE.equals( conf.groupCommit().get() );
+        settings.syncOnCommit = groupCommit;
+        Integer heapSegments = conf.heapSegments().get();
+        segments = new HeapSegments( storageDir, heapSegments == null ? 1 : heapSegments, recover, settings );
+        if( groupCommit )
+        {
+            Long latency = conf.groupCommitLatency().get();
+            Integer batchSize = conf.groupCommitBatchSize().get();
+            groupCommitters = new GroupCommitter[segments.count()];
+            for( int i = 0; i < groupCommitters.length; i++ )
+            {
+                groupCommitters[ i ] = new GroupCommitter( segments.segment( i ),
+                                                           segments.lock( i ),
+                                                           batchSize == null ? 0 : batchSize,
+                                                           latency == null ? 0 : latency );
+            }
+        }
+        String replicateFrom = conf.replicateFrom().get();
+        Integer replicationPort = conf.replicationPort().get();
+        if( replicateFrom != null )
+        {
+            int colon = replicateFrom.lastIndexOf( ':' );
+            if( colon < 0 )
+            {
+                throw new IllegalArgumentException( "replicateFrom must be host:port, not '" + replicateFrom + "'." );
+            }
+            Long maxLag = conf.maxReplicationLag().get();
+            maxReplicationLag = maxLag == null ? 0 : maxLag;
+            follower = new ReplicationFollower( segments, storageDir, replicateFrom.substring( 0, colon ),
+                                                Integer.parseInt( replicateFrom.substring( colon + 1 ) ) );
+            follower.start();
+        }
+        else if( replicationPort != null && replicationPort > 0 )
+        {
+            Integer logSize = conf.replicationLogSize().get();
+            ReplicationLog log = new ReplicationLog( logSize == null ? 0 : logSize );
+            segments.publishTo( log );
+            leader = new ReplicationLeader( segments, log, replicationPort );
+            leader.start();
+        }
+        Integer asyncQueueSize = conf.asyncQueueSize().get();
+        int queueSize = asyncQueueSize == null || asyncQueueSize <= 0 ? DEFAULT_ASYNC_QUEUE_SIZE : asyncQueueSize;
+        asyncWriter = new SerialExecutor( descriptor.identity(), queueSize );
     }
 
     public void passivate()
         throws Exception
     {
-        recordManager.close();
+        if( asyncWriter != null )
+        {
+            // The commits that are already accepted are completed before the store is closed.
+            asyncWriter.close( ASYNC_SHUTDOWN_TIMEOUT );
+        }
+        if( groupCommitters != null )
+        {
+            for( GroupCommitter groupCommitter : groupCommitters )
+            {
+                groupCommitter.close();
+            }
+            groupCommitters = null;
+        }
+        if( leader != null )
+        {
+            leader.stop();
+            leader = null;
+        }
+        if( follower != null )
+        {
+            follower.stop();
+            follower = null;
+        }
+        segments.close();
+        if( stateNames != null )
+        {
+            stateNames.close();
+            stateNames = null;
+        }
     }
 
     public Reader get( EntityReference entityReference )
         throws EntityStoreException
     {
+        checkReplicationLag();
         try
         {
-            DataBlock dataBlock = recordManager.readData( entityReference );
+            DataBlock dataBlock = segments.readData( entityReference );
             if( dataBlock == null )
             {
                 throw new EntityNotFoundException( entityReference );
             }
-            StringReader reader = new StringReader( new String( dataBlock.data, "UTF-8" ) );
+            baseVersions.read( entityReference, dataBlock.instanceVersion );
+            StringReader reader = new StringReader( dataBlock.state( stateDecoder ) );
             return reader;
         }
         catch( UnsupportedEncodingException e )
@@ -87,76 +236,317 @@ public class SwiftEntityStoreMixin
 
     public Input<Reader, IOException> entityStates()
     {
-        return recordManager.data();
+        checkReplicationLag();
+        return segments.data();
+    }
+
+    public Input<Reader, IOException> entityStates( String entityType )
+    {
+        checkReplicationLag();
+        return segments.data( entityType );
     }
 
     public void applyChanges( MapChanges changes )
         throws IOException
     {
+        CommitRequest request = collect( changes );
+        asyncWriter.awaitSubmitted();
+        commit( request );
+    }
+
+    public Future<Void> applyChangesAsync( MapChanges changes )
+        throws IOException
+    {
+        asyncWriter.checkOpen();
+        final CommitRequest request = collect( changes );
+        return asyncWriter.submit( new Callable<Void>()
+        {
+            public Void call()
+                throws IOException
+            {
+                commit( request );
+                return null;
+            }
+        } );
+    }
+
+    /* Serializes the changes, in the calling thread, which is the one that a unit of work is committed in. */
+
+    private CommitRequest collect( MapChanges changes )
+        throws IOException
+    {
+        if( follower != null )
+        {
+            throw new EntityStoreException( "The store is a read-only replica." );
+        }
+        final CommitRequest request = new CommitRequest();
         try
         {
             changes.visitMap( new MapChanger()
             {
-                public Writer newEntity( final EntityReference ref, EntityType entityType ) throws IOException
+                public Writer newEntity( final EntityReference ref, final EntityType entityType ) throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override public void close() throws IOException
+                        protected void closed( byte[] buffer, int length )
+                            throws IOException
                         {
-                            super.close();
-
-                            byte[] stateArray = toString().getBytes( "UTF-8" );
-                            DataBlock block = new DataBlock( ref, stateArray, 0, 0 );
-                            recordManager.putData( block );
+                            // The block keeps the state, in the cache, so it gets a copy of its own.
+                            byte[] stateArray = encode( buffer, length );
+                            DataBlock block = new DataBlock( ref, stateArray, 0, 0, entityType.type() );
+                            request.create( block );
                         }
                     };
                 }
 
-                public Writer updateEntity( final EntityReference ref, EntityType entityType ) throws IOException
+                public Writer updateEntity( final EntityReference ref, final EntityType entityType ) throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override public void close() throws IOException
+                        protected void closed( byte[] buffer, int length )
+                            throws IOException
                         {
-                            super.close();
-                            byte[] stateArray = toString().getBytes( "UTF-8" );
-                            DataBlock block = new DataBlock( ref, stateArray, 0, 0 );
-                            recordManager.putData( block );
+                            byte[] stateArray = encode( buffer, length );
+                            DataBlock block = new DataBlock( ref, stateArray, 0, 0, entityType.type() );
+                            request.update( block, baseVersions.expected( ref ) );
                         }
                     };
                 }
 
                 public void removeEntity( EntityReference ref, EntityType entityType ) throws EntityNotFoundException
                 {
-                    try
-                    {
-                        recordManager.deleteData( ref );
-                    }
-                    catch( IOException e )
-                    {
-                        throw new EntityStoreException( e );
-                    }
+                    request.remove( ref, baseVersions.expected( ref ) );
                 }
             } );
-            recordManager.commit();
         }
         catch( Exception e )
         {
-            recordManager.discard();
-            if( e instanceof IOException )
+            throw rethrow( e );
+        }
+        return request;
+    }
+
+    private byte[] encode( byte[] buffer, int length )
+        throws IOException
+    {
+        return stateEncoder == null ? Arrays.copyOf( buffer, length ) : stateEncoder.encode( buffer, 0, length );
+    }
+
+    private void commit( CommitRequest request )
+        throws IOException
+    {
+        if( stateNames != null )
+        {
+            // The names that the states refer to must be on disk before the states are.
+            stateNames.sync();
+        }
+        int[] involved = request.segments( segments );
+        if( groupCommitters != null && involved.length == 1 )
+        {
+            groupCommitters[ involved[ 0 ] ].commit( request );
+            return;
+        }
+        segments.commit( request );
+    }
+
+    public void beginLoad( EntityStoreUnitOfWork unitOfWork )
+    {
+        baseVersions.beginLoad( unitOfWork );
+    }
+
+    public void endLoad()
+    {
+        baseVersions.endLoad();
+    }
+
+    public long loadedVersion( EntityStoreUnitOfWork unitOfWork, EntityReference reference )
+    {
+        return baseVersions.loaded( unitOfWork, reference );
+    }
+
+    public void forgetLoaded( EntityStoreUnitOfWork unitOfWork )
+    {
+        baseVersions.forget( unitOfWork );
+    }
+
+    public void beginCommit( Map<EntityReference, Long> versions )
+    {
+        baseVersions.begin( versions );
+    }
+
+    public void endCommit()
+    {
+        baseVersions.end();
+    }
+
+    public void backup( File targetDirectory )
+        throws IOException
+    {
+        segments.backup( targetDirectory );
+        if( stateNames != null )
+        {
+            // The names only grow, so the copy has the names of all states in the backup.
+            FileUtils.write( new File( targetDirectory, STATE_NAMES_FILENAME ), FileUtils.read( stateNamesFile ) );
+        }
+    }
+
+    public long cacheHits()
+    {
+        long hits = 0;
+        for( BlockCache cache : caches() )
+        {
+            hits = hits + cache.hits();
+        }
+        return hits;
+    }
+
+    public long cacheMisses()
+    {
+        long misses = 0;
+        for( BlockCache cache : caches() )
+        {
+            misses = misses + cache.misses();
+        }
+        return misses;
+    }
+
+    public long cacheEvictions()
+    {
+        long evictions = 0;
+        for( BlockCache cache : caches() )
+        {
+            evictions = evictions + cache.evictions();
+        }
+        return evictions;
+    }
+
+    public long cacheSize()
+    {
+        long size = 0;
+        for( BlockCache cache : caches() )
+        {
+            size = size + cache.size();
+        }
+        return size;
+    }
+
+    public long filterRejections()
+    {
+        long rejections = 0;
+        for( IdentityFilter filter : filters() )
+        {
+            rejections = rejections + filter.rejections();
+        }
+        return rejections;
+    }
+
+    public long filterFalsePositives()
+    {
+        long falsePositives = 0;
+        for( IdentityFilter filter : filters() )
+        {
+            falsePositives = falsePositives + filter.falsePositives();
+        }
+        return falsePositives;
+    }
+
+    public double filterFalsePositiveRate()
+    {
+        // The segments hold about the same number of identities, so their rates are about equally likely.
+        List<IdentityFilter> filters = filters();
+        double rate = 0;
+        for( IdentityFilter filter : filters )
+        {
+            rate = rate + filter.falsePositiveRate();
+        }
+        return filters.isEmpty() ? 0 : rate / filters.size();
+    }
+
+    public long filterSize()
+    {
+        long size = 0;
+        for( IdentityFilter filter : filters() )
+        {
+            size = size + filter.size();
+        }
+        return size;
+    }
+
+    /* A follower refuses to serve reads when it is further behind its leader than allowed. */
+
+    private void checkReplicationLag()
+    {
+        if( follower != null && maxReplicationLag > 0 )
+        {
+            long lag = follower.lag();
+            if( lag > maxReplicationLag )
             {
-                throw (IOException) e;
+                throw new EntityStoreException( "The replica is " + lag + "ms behind, more than the allowed "
+                                                + maxReplicationLag + "ms." );
             }
-            else if( e instanceof EntityStoreException )
+        }
+    }
+
+    public long corruptedBlocks()
+    {
+        long corrupted = 0;
+        for( int i = 0; i < segments.count(); i++ )
+        {
+            corrupted = corrupted + segments.segment( i ).corruptedBlocks();
+        }
+        return corrupted;
+    }
+
+    public long quarantinedBlocks()
+    {
+        long quarantined = 0;
+        for( int i = 0; i < segments.count(); i++ )
+        {
+            quarantined = quarantined + segments.segment( i ).quarantinedBlocks();
+        }
+        return quarantined;
+    }
+
+    private List<BlockCache> caches()
+    {
+        ArrayList<BlockCache> caches = new ArrayList<BlockCache>();
+        for( int i = 0; i < segments.count(); i++ )
+        {
+            BlockCache cache = segments.segment( i ).blockCache();
+            if( cache != null )
             {
-                throw (EntityStoreException) e;
+                caches.add( cache );
             }
-            else
+        }
+        return caches;
+    }
+
+    private List<IdentityFilter> filters()
+    {
+        ArrayList<IdentityFilter> filters = new ArrayList<IdentityFilter>();
+        for( int i = 0; i < segments.count(); i++ )
+        {
+            IdentityFilter filter = segments.segment( i ).identityFilter();
+            if( filter != null )
             {
-                IOException exception = new IOException();
-                exception.initCause( e );
-                throw exception;
+                filters.add( filter );
             }
         }
+        return filters;
+    }
+
+    private static IOException rethrow( Exception e )
+    {
+        if( e instanceof IOException )
+        {
+            return (IOException) e;
+        }
+        if( e instanceof EntityStoreException )
+        {
+            throw (EntityStoreException) e;
+        }
+        IOException exception = new IOException();
+        exception.initCause( e );
+        return exception;
     }
 }
@@ -28,9 +28,11 @@ import org.qi4j.spi.entitystore.EntityStateVersions;
 import org.qi4j.spi.entitystore.EntityStore;
 import org.qi4j.spi.entitystore.StateChangeNotificationConcern;
 
-@Concerns( { StateChangeNotificationConcern.class, ConcurrentModificationCheckConcern.class } )
+@Concerns( { StateChangeNotificationConcern.class, ConcurrentModificationCheckConcern.class,
+              SwiftVersionCheckConcern.class } )
 @Mixins( { MapEntityStoreMixin.class, SwiftEntityStoreMixin.class } )
 public interface SwiftEntityStoreService
-    extends Activatable, EntityStore, EntityStateVersions, ServiceComposite, LockingAbstractComposite
+    extends Activatable, EntityStore, EntityStateVersions, ServiceComposite, LockingAbstractComposite, SwiftStatistics,
+            SwiftBackup, SwiftTypeScan, SwiftAsyncChanges
 {
 }
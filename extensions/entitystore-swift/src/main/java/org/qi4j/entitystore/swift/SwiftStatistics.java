@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+/**
+ * Counters of the SwiftEntityStore, for monitoring and tuning.
+ */
+public interface SwiftStatistics
+{
+    /**
+     * @return The number of reads that were served from the block cache.
+     */
+    long cacheHits();
+
+    /**
+     * @return The number of reads that had to go to the heap file, as the block wasn't cached.
+     */
+    long cacheMisses();
+
+    /**
+     * @return The number of blocks that were evicted from the block cache to make room for others.
+     */
+    long cacheEvictions();
+
+    /**
+     * @return The estimated number of bytes held by the block cache.
+     */
+    long cacheSize();
+
+    /**
+     * @return The number of lookups of unknown identities that were rejected by the identity filter, without
+     *         reading the identity index.
+     */
+    long filterRejections();
+
+    /**
+     * @return The number of lookups of unknown identities that passed the identity filter, and had to read the
+     *         identity index to find that the identity isn't there.
+     */
+    long filterFalsePositives();
+
+    /**
+     * @return The expected ratio of lookups of unknown identities that pass the identity filter, at the current
+     *         number of identities.
+     */
+    double filterFalsePositiveRate();
+
+    /**
+     * @return The number of bytes held by the identity filter. Zero when the identity index is held in memory,
+     *         as it needs no filter.
+     */
+    long filterSize();
+
+    /**
+     * @return The number of corrupted blocks that the scrubber found in its last complete pass over the heap. Zero
+     *         if the scrubber is disabled.
+     */
+    long corruptedBlocks();
+
+    /**
+     * @return The number of corrupted blocks that have been moved out of the heap, into the quarantine directory.
+     */
+    long quarantinedBlocks();
+}
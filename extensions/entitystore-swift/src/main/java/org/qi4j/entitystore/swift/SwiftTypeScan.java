@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+import java.io.Reader;
+import org.qi4j.api.io.Input;
+
+/**
+ * Scans of the entities of one type in the SwiftEntityStore.
+ */
+public interface SwiftTypeScan
+{
+    /**
+     * The states of the entities of the given type. The type of each entity is recorded in its block, and an index
+     * of the types is kept in memory, so only the blocks of the entities of the type are read. The index is built
+     * from the block headers by the first scan after the store is activated, unless the heap was re-indexed.
+     * <p/>
+     * Entities that were stored before the heap had types are not found until they are updated. A heap of an older
+     * format has no types until it is compacted, and can't be scanned by type until then.
+     *
+     * @param entityType The name of the entity type.
+     * @return The input of the entity states.
+     */
+    Input<Reader, IOException> entityStates( String entityType );
+}
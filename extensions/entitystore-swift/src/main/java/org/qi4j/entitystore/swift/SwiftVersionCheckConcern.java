@@ -0,0 +1,97 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.qi4j.api.concern.ConcernOf;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.injection.scope.This;
+import org.qi4j.spi.entity.EntityState;
+import org.qi4j.spi.entity.EntityStatus;
+import org.qi4j.spi.entitystore.EntityStoreSPI;
+import org.qi4j.spi.entitystore.EntityStoreUnitOfWork;
+import org.qi4j.spi.entitystore.StateCommitter;
+
+/**
+ * Tells the store which unit of work loads an entity, so that it keeps the instanceVersion that the entity was read
+ * with, and which of those versions the changed entities of the unit of work were loaded with, so that the store can
+ * compare them with the stored instanceVersions while it holds the lock of the heap, and fail the commit with a
+ * ConcurrentEntityStateModificationException if another unit of work got there first.
+ */
+public abstract class SwiftVersionCheckConcern
+    extends ConcernOf<EntityStoreSPI>
+    implements EntityStoreSPI
+{
+    @This private SwiftBaseVersions baseVersions;
+
+    public EntityState getEntityState( EntityStoreUnitOfWork unitOfWork, EntityReference identity )
+    {
+        baseVersions.beginLoad( unitOfWork );
+        try
+        {
+            return next.getEntityState( unitOfWork, identity );
+        }
+        finally
+        {
+            baseVersions.endLoad();
+        }
+    }
+
+    public StateCommitter applyChanges( final EntityStoreUnitOfWork unitOfWork,
+                                        Iterable<EntityState> states,
+                                        String version,
+                                        long lastModified )
+    {
+        final Map<EntityReference, Long> versions = new HashMap<EntityReference, Long>();
+        for( EntityState state : states )
+        {
+            if( state.status() == EntityStatus.UPDATED || state.status() == EntityStatus.REMOVED )
+            {
+                long loaded = baseVersions.loadedVersion( unitOfWork, state.identity() );
+                if( loaded >= 0 )
+                {
+                    versions.put( state.identity(), loaded );
+                }
+            }
+        }
+        final StateCommitter committer = next.applyChanges( unitOfWork, states, version, lastModified );
+        return new StateCommitter()
+        {
+            public void commit()
+            {
+                baseVersions.beginCommit( versions );
+                try
+                {
+                    committer.commit();
+                    // A failed commit keeps them, for another attempt of the unit of work.
+                    baseVersions.forgetLoaded( unitOfWork );
+                }
+                finally
+                {
+                    baseVersions.endCommit();
+                }
+            }
+
+            public void cancel()
+            {
+                committer.cancel();
+            }
+        };
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.qi4j.api.entity.EntityReference;
+
+/**
+ * The positions of the blocks of the entities of each type in a heap, kept in memory.
+ * <p/>
+ * The index is kept exact by the DataStore, which updates it whenever a block of a typed entity is written, moved,
+ * deleted or compacted, and drops it when changes are undone, as it is cheaper to rebuild than to undo. A scan of a
+ * type can therefore read the blocks at the positions, without looking up the identities.
+ * <p/>
+ * On close, the index is written to a file, which is loaded on the next start after a clean shutdown. The format
+ * is;
+ * <code><pre>
+ * [version]       4 bytes
+ * [noOfTypes]     4 bytes
+ * for each type
+ * [type]          UTF
+ * [noOfEntities]  4 bytes
+ * for each entity
+ * [identity]      UTF
+ * [position]      8 bytes
+ * </pre></code>
+ */
+class TypeIndex
+{
+    private static final int CURRENT_VERSION = 1;
+
+    private final HashMap<String, HashMap<EntityReference, Long>> types =
+        new HashMap<String, HashMap<EntityReference, Long>>();
+    private final HashMap<EntityReference, String> typeOf = new HashMap<EntityReference, String>();
+
+    static TypeIndex load( File file )
+        throws IOException
+    {
+        if( !file.exists() )
+        {
+            return null;
+        }
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 65536 ) );
+        try
+        {
+            if( in.readInt() != CURRENT_VERSION )
+            {
+                return null;
+            }
+            TypeIndex index = new TypeIndex();
+            int typeCount = in.readInt();
+            for( int i = 0; i < typeCount; i++ )
+            {
+                String type = in.readUTF();
+                int count = in.readInt();
+                for( int j = 0; j < count; j++ )
+                {
+                    EntityReference reference = new EntityReference( in.readUTF() );
+                    index.put( type, reference, in.readLong() );
+                }
+            }
+            return index;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    synchronized void write( File file )
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 65536 ) );
+        try
+        {
+            out.writeInt( CURRENT_VERSION );
+            out.writeInt( types.size() );
+            for( Map.Entry<String, HashMap<EntityReference, Long>> type : types.entrySet() )
+            {
+                out.writeUTF( type.getKey() );
+                out.writeInt( type.getValue().size() );
+                for( Map.Entry<EntityReference, Long> entity : type.getValue().entrySet() )
+                {
+                    out.writeUTF( entity.getKey().identity() );
+                    out.writeLong( entity.getValue() );
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * @param type      The type of the entity.
+     * @param reference The entity.
+     * @param position  The position of its block, which replaces the one it had, also if it had another type.
+     */
+    synchronized void put( String type, EntityReference reference, long position )
+    {
+        String previous = typeOf.put( reference, type );
+        if( previous != null && !previous.equals( type ) )
+        {
+            types.get( previous ).remove( reference );
+        }
+        HashMap<EntityReference, Long> positions = types.get( type );
+        if( positions == null )
+        {
+            positions = new HashMap<EntityReference, Long>();
+            types.put( type, positions );
+        }
+        positions.put( reference, position );
+    }
+
+    synchronized void remove( EntityReference reference )
+    {
+        String type = typeOf.remove( reference );
+        if( type != null )
+        {
+            types.get( type ).remove( reference );
+        }
+    }
+
+    /**
+     * @param type The entity type.
+     * @return A copy of the positions of the blocks of the entities of the type.
+     */
+    synchronized Map<EntityReference, Long> positions( String type )
+    {
+        HashMap<EntityReference, Long> positions = types.get( type );
+        if( positions == null )
+        {
+            return new HashMap<EntityReference, Long>();
+        }
+        return new HashMap<EntityReference, Long>( positions );
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2008 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An Unused block has been reused for a new block.
+ *
+ * To undo this we mark the block as Unused again, with the size it had in the free space, which also covers
+ * the remainder that may have been split off the end of it.
+ */
+public class UndoAllocateCommand
+    implements UndoCommand
+{
+    private long position;
+    private int blockSize;
+
+    public UndoAllocateCommand( long position, int blockSize )
+    {
+        this.position = position;
+        this.blockSize = blockSize;
+    }
+
+    public void undo( HeapFile dataFile, IdentityIndex idIndex ) throws IOException
+    {
+        dataFile.seek( position );
+        dataFile.writeInt( blockSize );
+        dataFile.writeByte( DataStore.USAGE_UNUSED );
+    }
+
+    public void save( DataOutput undoJournal ) throws IOException
+    {
+        undoJournal.writeLong( position );
+        undoJournal.writeInt( blockSize );
+    }
+
+    static UndoAllocateCommand load( DataInput undoJournal )
+        throws IOException
+    {
+        long position = undoJournal.readLong();
+        int blockSize = undoJournal.readInt();
+        return new UndoAllocateCommand( position, blockSize );
+    }
+}
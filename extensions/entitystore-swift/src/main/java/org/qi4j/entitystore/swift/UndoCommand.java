@@ -17,12 +17,12 @@
  */
 package org.qi4j.entitystore.swift;
 
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 public interface UndoCommand
 {
-    void undo( RandomAccessFile dataFile, IdentityFile idFile ) throws IOException;
+    void undo( HeapFile dataFile, IdentityIndex idIndex ) throws IOException;
 
-    void save( RandomAccessFile undoJournal ) throws IOException;
+    void save( DataOutput undoJournal ) throws IOException;
 }
@@ -17,8 +17,9 @@
  */
 package org.qi4j.entitystore.swift;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 /**
  * Record has been deleted and we want to restore it.
@@ -48,7 +49,7 @@ public class UndoDeleteCommand
         this.usage = usage;
     }
 
-    public void undo( RandomAccessFile dataFile, IdentityFile idFile )
+    public void undo( HeapFile dataFile, IdentityIndex idIndex )
         throws IOException
     {
         dataFile.seek( position );
@@ -56,13 +57,13 @@ public class UndoDeleteCommand
         dataFile.writeByte( usage );
     }
 
-    public void save( RandomAccessFile undoJournal ) throws IOException
+    public void save( DataOutput undoJournal ) throws IOException
     {
         undoJournal.writeLong( position );
         undoJournal.writeByte( usage );
     }
 
-    static UndoDeleteCommand load( RandomAccessFile undoJournal )
+    static UndoDeleteCommand load( DataInput undoJournal )
         throws IOException
     {
         long position = undoJournal.readLong();
@@ -18,8 +18,9 @@
 package org.qi4j.entitystore.swift;
 
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import org.qi4j.api.entity.EntityReference;
 
 public class UndoDropIdentityCommand
@@ -34,18 +35,18 @@ public class UndoDropIdentityCommand
         this.position = position;
     }
 
-    public void undo( RandomAccessFile dataFile, IdentityFile idFile ) throws IOException
+    public void undo( HeapFile dataFile, IdentityIndex idIndex ) throws IOException
     {
-        idFile.remember( reference, position );
+        idIndex.remember( reference, position );
     }
 
-    public void save( RandomAccessFile undoJournal ) throws IOException
+    public void save( DataOutput undoJournal ) throws IOException
     {
         undoJournal.writeUTF( reference.identity() );
         undoJournal.writeLong( position );
     }
 
-    static UndoDropIdentityCommand load( RandomAccessFile undoJournal )
+    static UndoDropIdentityCommand load( DataInput undoJournal )
         throws IOException
     {
         String idString = undoJournal.readUTF();
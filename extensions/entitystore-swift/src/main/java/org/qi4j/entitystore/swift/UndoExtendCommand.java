@@ -17,8 +17,9 @@
  */
 package org.qi4j.entitystore.swift;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 /**
  * The DataFile has been extended at the end.
@@ -47,19 +48,19 @@ public class UndoExtendCommand
         this.previousLength = previousLength;
     }
 
-    public void undo( RandomAccessFile dataFile, IdentityFile idFile ) throws IOException
+    public void undo( HeapFile dataFile, IdentityIndex idIndex ) throws IOException
     {
         dataFile.setLength( previousLength );
         dataFile.seek( dataFile.length() );
         dataFile.writeInt( -1 );  // Put in the EOF
     }
 
-    public void save( RandomAccessFile undoJournal ) throws IOException
+    public void save( DataOutput undoJournal ) throws IOException
     {
         undoJournal.writeLong( previousLength );
     }
 
-    static UndoExtendCommand load( RandomAccessFile undoJournal )
+    static UndoExtendCommand load( DataInput undoJournal )
         throws IOException
     {
         long position = undoJournal.readLong();
@@ -17,8 +17,9 @@
  */
 package org.qi4j.entitystore.swift;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 /**
  * Record has been modified and we can restore it.
@@ -52,7 +53,7 @@ public class UndoModifyCommand
         this.schemaVersion = schemaVersion;
     }
 
-    public void undo( RandomAccessFile dataFile, IdentityFile idFile ) throws IOException
+    public void undo( HeapFile dataFile, IdentityIndex idIndex ) throws IOException
     {
         dataFile.seek( position + 4 );
         dataFile.writeByte( usage );
@@ -60,7 +61,7 @@ public class UndoModifyCommand
         dataFile.writeInt( schemaVersion );
     }
 
-    public void save( RandomAccessFile undoJournal )
+    public void save( DataOutput undoJournal )
         throws IOException
     {
         undoJournal.writeLong( position );
@@ -69,7 +70,7 @@ public class UndoModifyCommand
         undoJournal.writeInt( schemaVersion );
     }
 
-    static UndoCommand load( RandomAccessFile undoJournal )
+    static UndoCommand load( DataInput undoJournal )
         throws IOException
     {
         long position = undoJournal.readLong();
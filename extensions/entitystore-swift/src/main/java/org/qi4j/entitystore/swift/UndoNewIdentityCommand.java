@@ -20,8 +20,9 @@ package org.qi4j.entitystore.swift;
 import org.qi4j.spi.entity.QualifiedIdentity;
 import org.qi4j.api.entity.EntityReference;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 public class UndoNewIdentityCommand
     implements UndoCommand
@@ -33,17 +34,17 @@ public class UndoNewIdentityCommand
         this.reference = reference;
     }
 
-    public void undo( RandomAccessFile dataFile, IdentityFile idFile ) throws IOException
+    public void undo( HeapFile dataFile, IdentityIndex idIndex ) throws IOException
     {
-        idFile.drop( reference );
+        idIndex.drop( reference );
     }
 
-    public void save( RandomAccessFile undoJournal ) throws IOException
+    public void save( DataOutput undoJournal ) throws IOException
     {
         undoJournal.writeUTF( reference.toString() );
     }
 
-    static UndoNewIdentityCommand load( RandomAccessFile undoJournal )
+    static UndoNewIdentityCommand load( DataInput undoJournal )
         throws IOException
     {
         String idString = undoJournal.readUTF();
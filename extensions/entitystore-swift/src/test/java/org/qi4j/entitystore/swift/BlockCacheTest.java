@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.qi4j.api.entity.EntityReference;
+
+public class BlockCacheTest
+{
+    @Test
+    public void whenPuttingBlockThenExpectItBack()
+    {
+        BlockCache cache = new BlockCache( 100000 );
+        DataBlock block = createBlock( "habba", 100 );
+        cache.put( block );
+        Assert.assertSame( "Wrong block cached.", block, cache.get( block.reference ) );
+        Assert.assertNull( "Unknown block found.", cache.get( new EntityReference( "bubba" ) ) );
+        Assert.assertEquals( "Wrong number of hits.", 1, cache.hits() );
+        Assert.assertEquals( "Wrong number of misses.", 1, cache.misses() );
+    }
+
+    @Test
+    public void whenReplacingAndRemovingBlocksThenExpectNoStaleData()
+    {
+        BlockCache cache = new BlockCache( 100000 );
+        DataBlock block = createBlock( "habba", 100 );
+        cache.put( block );
+        cache.get( block.reference );
+        DataBlock replacement = createBlock( "habba", 200 );
+        cache.put( replacement );
+        Assert.assertSame( "Stale block cached.", replacement, cache.get( block.reference ) );
+        cache.remove( block.reference );
+        Assert.assertNull( "Removed block found.", cache.get( block.reference ) );
+        Assert.assertEquals( "Removed block still counted.", 0, cache.size() );
+    }
+
+    @Test
+    public void whenScanningThenExpectFrequentlyReadBlocksToStay()
+    {
+        // Room for 100 blocks of 100 bytes, and their overhead.
+        BlockCache cache = new BlockCache( 100 * 460 );
+        for( int i = 0; i < 50; i++ )
+        {
+            cache.put( createBlock( "hot" + i, 100 ) );
+            cache.get( new EntityReference( "hot" + i ) );
+        }
+        for( int i = 0; i < 1000; i++ )
+        {
+            cache.put( createBlock( "scan" + i, 100 ) );
+        }
+        for( int i = 0; i < 50; i++ )
+        {
+            Assert.assertNotNull( "Hot block evicted by the scan.", cache.get( new EntityReference( "hot" + i ) ) );
+        }
+        Assert.assertTrue( "Cache is larger than its capacity.", cache.size() <= 100 * 460 );
+        Assert.assertTrue( "No evictions counted.", cache.evictions() > 0 );
+    }
+
+    @Test
+    public void whenBlockIsLargerThanCacheThenExpectItNotCached()
+    {
+        BlockCache cache = new BlockCache( 1000 );
+        cache.put( createBlock( "small", 10 ) );
+        cache.put( createBlock( "large", 1000 ) );
+        Assert.assertNull( "Oversized block cached.", cache.get( new EntityReference( "large" ) ) );
+        Assert.assertNotNull( "Small block evicted.", cache.get( new EntityReference( "small" ) ) );
+    }
+
+    @Test
+    public void whenReadingAndPuttingInManyThreadsThenExpectCacheWithinCapacity()
+        throws Exception
+    {
+        final BlockCache cache = new BlockCache( 100 * 460 );
+        final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+        Thread[] threads = new Thread[8];
+        for( int t = 0; t < threads.length; t++ )
+        {
+            final int thread = t;
+            threads[ t ] = new Thread()
+            {
+                @Override public void run()
+                {
+                    try
+                    {
+                        for( int i = 0; i < 2000; i++ )
+                        {
+                            String identity = "habba" + ( ( i * 7 + thread ) % 300 );
+                            DataBlock block = cache.get( new EntityReference( identity ) );
+                            if( block == null )
+                            {
+                                cache.put( createBlock( identity, 100 ) );
+                            }
+                            else if( !block.reference.identity().equals( identity ) )
+                            {
+                                failures.add( new AssertionError( "Wrong block for " + identity ) );
+                            }
+                        }
+                    }
+                    catch( Throwable e )
+                    {
+                        failures.add( e );
+                    }
+                }
+            };
+            threads[ t ].start();
+        }
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+        Assert.assertEquals( "Readers failed.", 0, failures.size() );
+        Assert.assertTrue( "Cache is larger than its capacity.", cache.size() <= 100 * 460 );
+        Assert.assertEquals( "Lost lookups.", threads.length * 2000, cache.hits() + cache.misses() );
+    }
+
+    private DataBlock createBlock( String identity, int size )
+    {
+        return new DataBlock( new EntityReference( identity ), new byte[size], 0, 0 );
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlockCodecTest
+{
+    private static final String STATE = "{\"identity\":\"habba\",\"properties\":{\"name\":\"Habba\",\"description\":\"Habba habba habba habba\"},\"associations\":{},\"manyassociations\":{}}";
+
+    @Test
+    public void whenCompressingRepetitiveDataThenExpectSmallerAndSameDataBack()
+        throws Exception
+    {
+        BlockCodec codec = new BlockCodec( 6, null );
+        byte[] data = STATE.getBytes( "UTF-8" );
+        byte[] encoded = codec.encode( data );
+        Assert.assertNotNull( "Data wasn't compressed.", encoded );
+        Assert.assertTrue( "Data didn't become smaller.", encoded.length < data.length );
+        Assert.assertEquals( "Incorrect Data retrieved.", STATE, new String( codec.decode( codec.codec(), encoded ), "UTF-8" ) );
+        codec.close();
+    }
+
+    @Test
+    public void whenDataDoesNotCompressThenExpectItStoredAsIs()
+        throws Exception
+    {
+        BlockCodec codec = new BlockCodec( 6, null );
+        byte[] random = new byte[1000];
+        new Random( 42 ).nextBytes( random );
+        Assert.assertNull( "Random data was compressed.", codec.encode( random ) );
+        Assert.assertNull( "Small data was compressed.", codec.encode( "Hej".getBytes() ) );
+        codec.close();
+    }
+
+    @Test
+    public void whenUsingDictionaryThenExpectSmallerAndSameDataBack()
+        throws Exception
+    {
+        byte[] dictionary = STATE.getBytes( "UTF-8" );
+        BlockCodec plain = new BlockCodec( 6, null );
+        BlockCodec withDictionary = new BlockCodec( 6, dictionary );
+        byte[] data = STATE.replace( "habba", "bubba" ).getBytes( "UTF-8" );
+        byte[] encoded = withDictionary.encode( data );
+        Assert.assertTrue( "Dictionary didn't help.", encoded.length < plain.encode( data ).length );
+        Assert.assertEquals( "Wrong codec.", BlockCodec.DEFLATE_DICTIONARY, withDictionary.codec() );
+        Assert.assertArrayEquals( "Incorrect Data retrieved.", data, withDictionary.decode( withDictionary.codec(), encoded ) );
+        try
+        {
+            plain.decode( withDictionary.codec(), encoded );
+            Assert.fail( "Decoded without the dictionary." );
+        }
+        catch( IOException e )
+        {
+            // Expected.
+        }
+        plain.close();
+        withDictionary.close();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.File;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BucketManagerTest
+{
+    @Test
+    public void whenUsingMoreBucketsThanOpenFilesThenExpectLeastRecentlyUsedClosed()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        BucketManager manager = new BucketManager( dir, 4, false );
+        try
+        {
+            for( int bucket = 0; bucket < 50; bucket++ )
+            {
+                manager.write( bucket, 0, new byte[]{ (byte) bucket } );
+                // Bucket 0 is the hot one, and is used between all others.
+                manager.write( 0, 1 + bucket, new byte[]{ (byte) bucket } );
+                Assert.assertTrue( "Too many open files.", manager.openFiles() <= 4 );
+            }
+            for( int bucket = 1; bucket < 50; bucket++ )
+            {
+                Assert.assertArrayEquals( "Wrong bucket content.", new byte[]{ (byte) bucket }, manager.read( bucket ) );
+            }
+            Assert.assertEquals( "Wrong hot bucket length.", 51, manager.read( 0 ).length );
+            Assert.assertEquals( "Wrong number of open files.", 4, manager.openFiles() );
+        }
+        finally
+        {
+            manager.close();
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenPagingBucketsIntoOneFileThenExpectContentBackAfterReopen()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        BucketManager manager = new BucketManager( dir, 0, true );
+        try
+        {
+            byte[][] contents = new byte[10][];
+            for( int bucket = 0; bucket < contents.length; bucket++ )
+            {
+                contents[ bucket ] = new byte[0];
+            }
+            // Interleaved appends, so that the pages of the buckets are mixed in the file.
+            for( int round = 0; round < 30; round++ )
+            {
+                for( int bucket = 0; bucket < contents.length; bucket++ )
+                {
+                    byte[] data = new byte[37 * bucket + round];
+                    for( int i = 0; i < data.length; i++ )
+                    {
+                        data[ i ] = (byte) ( bucket + round + i );
+                    }
+                    manager.write( bucket, contents[ bucket ].length, data );
+                    byte[] content = new byte[contents[ bucket ].length + data.length];
+                    System.arraycopy( contents[ bucket ], 0, content, 0, contents[ bucket ].length );
+                    System.arraycopy( data, 0, content, contents[ bucket ].length, data.length );
+                    contents[ bucket ] = content;
+                }
+            }
+            manager.write( 3, 1000, new byte[]{ 1, 2, 3 } );
+            contents[ 3 ][ 1000 ] = 1;
+            contents[ 3 ][ 1001 ] = 2;
+            contents[ 3 ][ 1002 ] = 3;
+            manager.close();
+            Assert.assertEquals( "Not a single file.", 1, dir.list().length );
+
+            manager = new BucketManager( dir, 0, true );
+            for( int bucket = 0; bucket < contents.length; bucket++ )
+            {
+                Assert.assertArrayEquals( "Wrong content of bucket " + bucket + ".", contents[ bucket ], manager.read( bucket ) );
+            }
+            Assert.assertEquals( "Unknown bucket not empty.", 0, manager.read( 99 ).length );
+            Assert.assertTrue( "Wrong mode detected.", BucketManager.isStoredAs( dir, true ) );
+            Assert.assertFalse( "Wrong mode detected.", BucketManager.isStoredAs( dir, false ) );
+        }
+        finally
+        {
+            manager.close();
+            FileUtils.delete( dir );
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.qi4j.api.entity.EntityReference;
+
+public class CheckpointTest
+{
+    private File dir = new File( "swift-store" );
+    private MemoryIdentityIndex index;
+
+    @Test
+    public void whenRestoringThenExpectCommittedChangesOnly()
+        throws Exception
+    {
+        dir.mkdirs();
+        MemoryIdentityIndex original = MemoryIdentityIndex.create( new File( dir, "original" ), 10 );
+        original.remember( createIdentity( "first" ), 256 );
+        original.remember( createIdentity( "second" ), 1256 );
+        FreeSpace freeSpace = new FreeSpace();
+        freeSpace.add( 2256, 1000 );
+        Checkpoint checkpoint = new Checkpoint( dir );
+        checkpoint.write( original, freeSpace, 1000, 4000, 128 );
+        Assert.assertTrue( "Snapshot not usable.", checkpoint.open() );
+
+        checkpoint.remembered( createIdentity( "third" ), 2256 );
+        checkpoint.allocated( 2256 );
+        checkpoint.freed( 2756, 500 );
+        checkpoint.dropped( createIdentity( "first" ) );
+        checkpoint.released( 256, 1000 );
+        checkpoint.commit( 1500, 4000 );
+        checkpoint.remembered( createIdentity( "fourth" ), 4000 );
+        checkpoint.commit( 1500, 5000 );
+        checkpoint.close();
+        original.close();
+        // Cut in the middle of the last transaction.
+        RandomAccessFile log = new RandomAccessFile( new File( dir, Checkpoint.LOG_FILENAME ), "rw" );
+        log.setLength( log.length() - 5 );
+        log.close();
+
+        index = MemoryIdentityIndex.create( new File( dir, "restored" ), 10 );
+        checkpoint = new Checkpoint( dir );
+        Assert.assertTrue( "Snapshot not found.", checkpoint.restore( index, 128, -1 ) );
+        Assert.assertEquals( "Dropped identity found.", -1, index.find( createIdentity( "first" ) ) );
+        Assert.assertEquals( "Wrong position retrieved.", 1256, index.find( createIdentity( "second" ) ) );
+        Assert.assertEquals( "Wrong position retrieved.", 2256, index.find( createIdentity( "third" ) ) );
+        Assert.assertEquals( "Uncommitted identity found.", -1, index.find( createIdentity( "fourth" ) ) );
+        Assert.assertEquals( "Wrong unused bytes.", 1500, checkpoint.unusedBytes() );
+        Assert.assertEquals( "Wrong heap length.", 4000, checkpoint.heapLength() );
+        Assert.assertEquals( "Wrong free space.", 1000, checkpoint.freeSpace().sizeOf( 256 ) );
+        Assert.assertEquals( "Wrong free space.", 500, checkpoint.freeSpace().sizeOf( 2756 ) );
+        Assert.assertEquals( "Wrong free space.", 2, checkpoint.freeSpace().blocks() );
+    }
+
+    @Test
+    public void whenSnapshotIsOfOtherHeapThenExpectNoRestore()
+        throws Exception
+    {
+        dir.mkdirs();
+        index = MemoryIdentityIndex.create( dir, 10 );
+        Checkpoint checkpoint = new Checkpoint( dir );
+        Assert.assertFalse( "Missing snapshot restored.", checkpoint.restore( index, 128, -1 ) );
+        checkpoint.write( index, new FreeSpace(), 0, 260, 128 );
+        Assert.assertFalse( "Snapshot of other identity length restored.", new Checkpoint( dir ).restore( index, 64, -1 ) );
+    }
+
+    @After
+    public void cleanUp()
+        throws IOException
+    {
+        if( index != null )
+        {
+            index.close();
+        }
+        FileUtils.delete( dir );
+    }
+
+    private EntityReference createIdentity( String identity )
+    {
+        return new EntityReference( identity );
+    }
+}
@@ -20,8 +20,24 @@ package org.qi4j.entitystore.swift;
 import org.junit.Assert;
 import org.junit.Test;
 import org.qi4j.api.entity.EntityReference;
+import org.qi4j.api.io.Output;
+import org.qi4j.api.io.Receiver;
+import org.qi4j.api.io.Sender;
+import org.qi4j.library.statecodec.BinaryStateCodec;
+import org.qi4j.library.statecodec.NameDictionary;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 
 public class DataFileTest
 {
@@ -157,7 +173,7 @@ public class DataFileTest
         try
         {
             StringBuffer buf = new StringBuffer();
-            for( int i=0 ; i < 129 ; i++ )
+            for( int i=0 ; i < 1025 ; i++ )
                 buf.append( (i % 10) );
             EntityReference ref = createReference( buf.toString() );
             
@@ -177,6 +193,1255 @@ public class DataFileTest
 
     }
 
+    @Test
+    public void whenPuttingDataMemoryMappedThenExpectSameDataBackAfterReopen()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.memoryMapped = true;
+            RecordManager man = new RecordManager( dir, false, settings );
+            EntityReference[] ids = new EntityReference[100];
+            String[] values = new String[100];
+            for( int i = 0; i < 100; i++ )
+            {
+                ids[ i ] = createReference( "habba" + i );
+                values[ i ] = "Hej hopp du glade man!!" + Math.random();
+                man.putData( new DataBlock( ids[ i ], values[ i ].getBytes(), i, 0 ) );
+                man.commit();
+            }
+            DataBlock update = new DataBlock( ids[ 0 ], "Updated!".getBytes(), 0, 0 );
+            man.putData( update );
+            man.commit();
+            man.close();
+
+            man = new RecordManager( dir, false, settings );
+            Assert.assertEquals( "Incorrect Data retrieved.", update, man.readData( ids[ 0 ] ) );
+            for( int i = 1; i < 100; i++ )
+            {
+                DataBlock data = man.readData( ids[ i ] );
+                Assert.assertEquals( "Incorrect Data retrieved.", values[ i ], new String( data.data ) );
+                Assert.assertEquals( "Incorrect Data retrieved.", i, data.instanceVersion );
+            }
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenGrowingHeapInChunksThenExpectFileTrimmedOnCloseAndDataBackAfterCrash()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.heapChunkSize = 4096;
+            RecordManager man = new RecordManager( dir, true, settings );
+            File heap = new File( dir, "heap.data" );
+            for( int i = 0; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), i, 0 ) );
+                man.commit();
+                Assert.assertEquals( "Heap not grown in chunks.", 0, heap.length() % 4096 );
+            }
+            man.close();
+            long length = heap.length();
+            Assert.assertTrue( "Heap not trimmed on close.", length % 4096 != 0 );
+
+            man = new RecordManager( dir, true, settings );
+            man.putData( new DataBlock( createReference( "crashed" ), "Crashed".getBytes(), 0, 0 ) );
+            man.commit();
+            Assert.assertTrue( "Heap not grown in chunks.", heap.length() > length );
+            // Not closed, as if the process died, leaving zeroes after the EOF marker.
+
+            man = new RecordManager( dir, true, settings );
+            Assert.assertEquals( "Incorrect Data retrieved.", "Crashed",
+                                 new String( man.readData( createReference( "crashed" ) ).data ) );
+            for( int i = 0; i < 100; i++ )
+            {
+                DataBlock data = man.readData( createReference( "habba" + i ) );
+                Assert.assertEquals( "Incorrect Data retrieved.", "Habba " + i, new String( data.data ) );
+            }
+            man.putData( new DataBlock( createReference( "after" ), "After".getBytes(), 0, 0 ) );
+            man.commit();
+            man.close();
+
+            man = new RecordManager( dir, true, settings );
+            Assert.assertEquals( "Incorrect Data retrieved.", "After",
+                                 new String( man.readData( createReference( "after" ) ).data ) );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenUsingMemoryIndexThenExpectSameDataBackAfterReopen()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.memoryIndex = true;
+            RecordManager man = new RecordManager( dir, false, settings );
+            for( int i = 0; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Hej hopp " + i ).getBytes(), i, 0 ) );
+                man.commit();
+            }
+            man.deleteData( createReference( "habba7" ) );
+            man.commit();
+            man.close();
+
+            man = new RecordManager( dir, false, settings );
+            Assert.assertNull( "Deleted entity found.", man.readData( createReference( "habba7" ) ) );
+            for( int i = 0; i < 100; i++ )
+            {
+                if( i != 7 )
+                {
+                    DataBlock data = man.readData( createReference( "habba" + i ) );
+                    Assert.assertEquals( "Incorrect Data retrieved.", "Hej hopp " + i, new String( data.data ) );
+                }
+            }
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenHeapHasMuchUnusedSpaceThenExpectCompactionToShrinkIt()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.compactionThreshold = 0.3;
+            settings.compactionRate = 100 * 1024 * 1024;
+            RecordManager man = new RecordManager( dir, false, settings );
+            byte[] value = new byte[1000];
+            for( int i = 0; i < 2000; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), value, 0, 0, "org.qi4j.Habba" ) );
+            }
+            man.commit();
+            File heap = new File( dir, "heap.data" );
+            long sizeBefore = heap.length();
+            for( int i = 0; i < 2000; i = i + 2 )
+            {
+                man.deleteData( createReference( "habba" + i ) );
+            }
+            for( int i = 1; i < 2000; i = i + 4 )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Updated " + i ).getBytes(), 1, 0 ) );
+            }
+            man.commit();
+
+            long timeout = System.currentTimeMillis() + 30000;
+            while( heap.length() >= sizeBefore && System.currentTimeMillis() < timeout )
+            {
+                Thread.sleep( 50 );
+            }
+            Assert.assertTrue( "Heap was not compacted.", heap.length() < sizeBefore );
+            assertCompactedData( man );
+            Assert.assertEquals( "Moved blocks not scanned.", 1000, scan( man, "org.qi4j.Habba" ).size() );
+            man.close();
+
+            man = new RecordManager( dir, false, settings );
+            assertCompactedData( man );
+            Assert.assertEquals( "Moved blocks not scanned after reopen.", 1000, scan( man, "org.qi4j.Habba" ).size() );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenReadingConcurrentlyWithWritesThenExpectConsistentData()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            for( int mapped = 0; mapped < 2; mapped++ )
+            {
+                StoreSettings settings = new StoreSettings();
+                settings.memoryMapped = mapped == 1;
+                final RecordManager man = new RecordManager( dir, false, settings );
+                for( int i = 0; i < 100; i++ )
+                {
+                    man.putData( new DataBlock( createReference( "habba" + i ), ( "habba" + i ).getBytes(), 0, 0 ) );
+                }
+                man.commit();
+                final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+                Thread[] readers = new Thread[4];
+                for( int t = 0; t < readers.length; t++ )
+                {
+                    readers[ t ] = new Thread()
+                    {
+                        @Override public void run()
+                        {
+                            try
+                            {
+                                for( int round = 0; round < 20; round++ )
+                                {
+                                    for( int i = 0; i < 100; i++ )
+                                    {
+                                        String value = new String( man.readData( createReference( "habba" + i ) ).data );
+                                        if( !value.startsWith( "habba" + i ) )
+                                        {
+                                            throw new AssertionError( "Incorrect Data retrieved: " + value );
+                                        }
+                                    }
+                                }
+                            }
+                            catch( Throwable e )
+                            {
+                                failures.add( e );
+                            }
+                        }
+                    };
+                    readers[ t ].start();
+                }
+                for( int i = 0; i < 100; i++ )
+                {
+                    // Grows beyond the block, so that the entities move while they are being read.
+                    String value = "habba" + i + " has been updated with a longer value";
+                    man.putData( new DataBlock( createReference( "habba" + i ), value.getBytes(), 0, 0 ) );
+                    man.commit();
+                }
+                for( Thread reader : readers )
+                {
+                    reader.join();
+                }
+                man.close();
+                FileUtils.delete( dir );
+                Assert.assertEquals( "Concurrent reads failed: " + failures, 0, failures.size() );
+            }
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCachingBlocksThenExpectUpdatesAndDeletesToBeSeen()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.cacheSize = 1024 * 1024;
+            RecordManager man = new RecordManager( dir, false, settings );
+            EntityReference ref = createReference( "habba" );
+            man.putData( new DataBlock( ref, "Hej hopp".getBytes(), 1, 0 ) );
+            man.commit();
+            Assert.assertEquals( "Incorrect Data retrieved.", "Hej hopp", new String( man.readData( ref ).data ) );
+            man.putData( new DataBlock( ref, "Hej hopp du glade man, this doesn't fit anymore!!".getBytes(), 2, 0 ) );
+            man.commit();
+            DataBlock data = man.readData( ref );
+            Assert.assertEquals( "Stale Data retrieved.", "Hej hopp du glade man, this doesn't fit anymore!!", new String( data.data ) );
+            Assert.assertEquals( "Stale version retrieved.", 2, data.instanceVersion );
+            man.putData( new DataBlock( ref, "Discarded".getBytes(), 3, 0 ) );
+            man.discard();
+            Assert.assertEquals( "Discarded Data retrieved.", 2, man.readData( ref ).instanceVersion );
+            man.deleteData( ref );
+            man.commit();
+            Assert.assertNull( "Deleted entity found.", man.readData( ref ) );
+            Assert.assertTrue( "No cache hits.", man.blockCache().hits() > 0 );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCompressingThenExpectSmallerHeapAndSameDataBackWithoutCompression()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.compressionLevel = 6;
+            RecordManager man = new RecordManager( dir, false, settings );
+            StringBuffer state = new StringBuffer();
+            for( int i = 0; i < 20; i++ )
+            {
+                state.append( "\"property" ).append( i ).append( "\":\"Hej hopp du glade man!!\"," );
+            }
+            for( int i = 0; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( state.toString() + i ).getBytes(), i, 0 ) );
+                man.commit();
+            }
+            man.putData( new DataBlock( createReference( "habba0" ), ( state.toString() + "updated" ).getBytes(), 100, 0 ) );
+            man.putData( new DataBlock( createReference( "habba1" ), "Not compressed".getBytes(), 101, 0 ) );
+            man.commit();
+            man.close();
+            long uncompressedSize = 100 * ( ( state.length() + 2 ) * 4 + 8 );
+            Assert.assertTrue( "Heap wasn't compressed.", new File( dir, "heap.data" ).length() < uncompressedSize / 2 );
+
+            man = new RecordManager( dir, false, new StoreSettings() );
+            Assert.assertEquals( "Incorrect Data retrieved.", state.toString() + "updated", new String( man.readData( createReference( "habba0" ) ).data ) );
+            Assert.assertEquals( "Incorrect Data retrieved.", "Not compressed", new String( man.readData( createReference( "habba1" ) ).data ) );
+            for( int i = 2; i < 100; i++ )
+            {
+                DataBlock data = man.readData( createReference( "habba" + i ) );
+                Assert.assertEquals( "Incorrect Data retrieved.", state.toString() + i, new String( data.data ) );
+                Assert.assertEquals( "Incorrect Data retrieved.", i, data.instanceVersion );
+            }
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenDeletedSpaceIsFreedThenExpectItToBeReused()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            RecordManager man = new RecordManager( dir, false );
+            byte[] value = new byte[1000];
+            for( int i = 0; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), value, 0, 0 ) );
+            }
+            man.commit();
+            File heap = new File( dir, "heap.data" );
+            long sizeBefore = heap.length();
+            for( int i = 0; i < 100; i++ )
+            {
+                man.deleteData( createReference( "habba" + i ) );
+            }
+            man.commit();
+
+            // Not reused until discarded.
+            man.putData( new DataBlock( createReference( "discarded" ), value, 0, 0 ) );
+            man.discard();
+            for( int i = 0; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "hopp" + i ), ( "Hopp " + i ).getBytes(), i, 0 ) );
+            }
+            man.commit();
+            man.close();
+            Assert.assertEquals( "Heap grew.", sizeBefore, heap.length() );
+
+            man = new RecordManager( dir, false );
+            Assert.assertNull( "Discarded entity found.", man.readData( createReference( "discarded" ) ) );
+            for( int i = 0; i < 100; i++ )
+            {
+                Assert.assertNull( "Deleted entity found.", man.readData( createReference( "habba" + i ) ) );
+                DataBlock data = man.readData( createReference( "hopp" + i ) );
+                Assert.assertEquals( "Incorrect Data retrieved.", "Hopp " + i, new String( data.data ) );
+                Assert.assertEquals( "Incorrect Data retrieved.", i, data.instanceVersion );
+            }
+            // The freed blocks were merged into one, and what is left of it is still free after reopen.
+            for( int i = 0; i < 90; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), value, 1, 0 ) );
+            }
+            man.commit();
+            man.close();
+            Assert.assertEquals( "Heap grew.", sizeBefore, heap.length() );
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCrashedWithCheckpointsThenExpectCommittedDataBack()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.checkpointLogSize = 2000;
+            RecordManager man = new RecordManager( dir, true, settings );
+            for( int i = 0; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), i, 0 ) );
+                man.commit();
+            }
+            for( int i = 0; i < 100; i = i + 3 )
+            {
+                man.deleteData( createReference( "habba" + i ) );
+                man.commit();
+            }
+            man.putData( new DataBlock( createReference( "uncommitted" ), "Uncommitted".getBytes(), 0, 0 ) );
+            man.deleteData( createReference( "habba1" ) );
+            // Not closed, as if the process died.
+
+            man = new RecordManager( dir, true, settings );
+            Assert.assertNull( "Uncommitted entity found.", man.readData( createReference( "uncommitted" ) ) );
+            for( int i = 0; i < 100; i++ )
+            {
+                DataBlock data = man.readData( createReference( "habba" + i ) );
+                if( i % 3 == 0 )
+                {
+                    Assert.assertNull( "Deleted entity found.", data );
+                }
+                else
+                {
+                    Assert.assertEquals( "Incorrect Data retrieved.", "Habba " + i, new String( data.data ) );
+                }
+            }
+            File heap = new File( dir, "heap.data" );
+            long sizeBefore = heap.length();
+            man.putData( new DataBlock( createReference( "reused" ), "Habba 0".getBytes(), 0, 0 ) );
+            man.commit();
+            Assert.assertEquals( "Free space not restored.", sizeBefore, heap.length() );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenScanningHeapThenExpectAllEntitiesStreamed()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.scanReadAhead = 300; // Smaller than some of the blocks.
+            RecordManager man = new RecordManager( dir, false, settings );
+            HashSet<String> expected = new HashSet<String>();
+            for( int i = 0; i < 200; i++ )
+            {
+                StringBuffer data = new StringBuffer( "Habba \u00e5\u00e4\u00f6 \ud834\udd1e " + i );
+                for( int j = 0; j < i % 7 * 40; j++ )
+                {
+                    data.append( (char) ( 'a' + j % 26 ) );
+                }
+                String content = data.toString();
+                if( i % 5 == 0 )
+                {
+                    man.putData( new DataBlock( createReference( "habba" + i ), "Original".getBytes(), 0, 0 ) );
+                    man.commit();
+                }
+                man.putData( new DataBlock( createReference( "habba" + i ), content.getBytes( "UTF-8" ), 0, 0 ) );
+                if( i % 3 == 0 )
+                {
+                    man.deleteData( createReference( "habba" + i ) );
+                }
+                else
+                {
+                    expected.add( content );
+                }
+                man.commit();
+            }
+            final List<String> scanned = new ArrayList<String>();
+            man.data().transferTo( new Output<Reader, IOException>()
+            {
+                public <SenderThrowableType extends Throwable> void receiveFrom( Sender<Reader, SenderThrowableType> sender )
+                    throws IOException, SenderThrowableType
+                {
+                    sender.sendTo( new Receiver<Reader, IOException>()
+                    {
+                        public void receive( Reader item )
+                            throws IOException
+                        {
+                            StringBuffer content = new StringBuffer();
+                            char[] buffer = new char[3]; // Splits the surrogate pairs.
+                            int count;
+                            while( ( count = item.read( buffer ) ) >= 0 )
+                            {
+                                content.append( buffer, 0, count );
+                            }
+                            scanned.add( content.toString() );
+                        }
+                    } );
+                }
+            } );
+            Assert.assertEquals( "Incorrect number of entities scanned.", expected.size(), scanned.size() );
+            Assert.assertEquals( "Incorrect Data scanned.", expected, new HashSet<String>( scanned ) );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenUndoJournalIsTornThenExpectTransactionUndone()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            RecordManager man = new RecordManager( dir, true );
+            for( int i = 0; i < 10; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), 0, 0 ) );
+            }
+            man.commit();
+            for( int i = 0; i < 10; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Updated " + i ).getBytes(), 1, 0 ) );
+            }
+            man.putData( new DataBlock( createReference( "uncommitted" ), "Uncommitted".getBytes(), 0, 0 ) );
+            // Not closed, as if the process died while writing another frame.
+            RandomAccessFile journal = new RandomAccessFile( new File( dir, "undo.data" ), "rw" );
+            journal.seek( journal.length() );
+            journal.write( new byte[]{ 1, 0, 0, 0, 100, 1, 2, 3, 4, 5 } );
+            journal.close();
+
+            man = new RecordManager( dir, true );
+            assertUndone( man );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenUndoJournalIsWithoutFramesThenExpectTransactionUndone()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            RecordManager man = new RecordManager( dir, true );
+            for( int i = 0; i < 10; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), 0, 0 ) );
+            }
+            man.commit();
+            for( int i = 0; i < 10; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Updated " + i ).getBytes(), 1, 0 ) );
+            }
+            man.putData( new DataBlock( createReference( "uncommitted" ), "Uncommitted".getBytes(), 0, 0 ) );
+            // Not closed, as if the process died, and the journal rewritten as an older version wrote it.
+            File undoFile = new File( dir, "undo.data" );
+            DataInputStream in = new DataInputStream( new FileInputStream( undoFile ) );
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            while( in.available() > 0 )
+            {
+                Assert.assertEquals( "Not a frame.", 1, in.readByte() );
+                byte[] frame = new byte[in.readInt()];
+                in.readInt();
+                in.readFully( frame );
+                records.write( frame );
+            }
+            in.close();
+            FileOutputStream out = new FileOutputStream( undoFile );
+            out.write( records.toByteArray() );
+            out.close();
+
+            man = new RecordManager( dir, true );
+            assertUndone( man );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCrashedAfterRedoRecordThenExpectTransactionRedone()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.redoJournal = true;
+            RecordManager man = new RecordManager( dir, true, settings );
+            for( int i = 0; i < 50; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), 0, 0 ) );
+            }
+            Assert.assertNull( "Uncommitted data visible.", man.readData( createReference( "habba0" ) ) );
+            man.commit();
+            for( int i = 0; i < 10; i++ )
+            {
+                StringBuffer larger = new StringBuffer( "Updated " + i );
+                for( int j = 0; j < i * 30; j++ )
+                {
+                    larger.append( '.' );
+                }
+                man.putData( new DataBlock( createReference( "habba" + i ), larger.toString().getBytes(), 1, 0 ) );
+            }
+            for( int i = 10; i < 20; i++ )
+            {
+                man.deleteData( createReference( "habba" + i ) );
+            }
+            for( int i = 50; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), 0, 0 ) );
+            }
+            man.prepare();
+            // Not completed, as if the process died while the changes were written to the heap.
+
+            man = new RecordManager( dir, true, settings );
+            for( int i = 0; i < 100; i++ )
+            {
+                DataBlock data = man.readData( createReference( "habba" + i ) );
+                if( i < 10 )
+                {
+                    Assert.assertTrue( "Incorrect Data retrieved.", new String( data.data ).startsWith( "Updated " + i ) );
+                    Assert.assertEquals( "Incorrect version.", 1, data.instanceVersion );
+                }
+                else if( i < 20 )
+                {
+                    Assert.assertNull( "Deleted entity found.", data );
+                }
+                else
+                {
+                    Assert.assertEquals( "Incorrect Data retrieved.", "Habba " + i, new String( data.data ) );
+                }
+            }
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    private void assertUndone( RecordManager man )
+        throws Exception
+    {
+        Assert.assertNull( "Uncommitted entity found.", man.readData( createReference( "uncommitted" ) ) );
+        for( int i = 0; i < 10; i++ )
+        {
+            DataBlock data = man.readData( createReference( "habba" + i ) );
+            Assert.assertEquals( "Incorrect Data retrieved.", "Habba " + i, new String( data.data ) );
+        }
+    }
+
+    @Test
+    public void whenIdentitiesAreLongerThan255BytesThenExpectSameDataBackAfterReIndex()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StringBuffer buf = new StringBuffer();
+            for( int i = 0; i < 1000; i++ )
+            {
+                buf.append( i % 10 );
+            }
+            String[] identities = { "a", buf.substring( 0, 300 ), buf.toString(), buf.substring( 0, 500 ) + "\u00e5\u00e4\u00f6" };
+            RecordManager man = new RecordManager( dir, false );
+            for( int i = 0; i < identities.length; i++ )
+            {
+                man.putData( new DataBlock( createReference( identities[ i ] ), ( "Value " + i ).getBytes(), i, 0 ) );
+            }
+            man.commit();
+            man.putData( new DataBlock( createReference( identities[ 2 ] ), "Updated".getBytes(), 7, 0 ) );
+            man.commit();
+            man.close();
+
+            man = new RecordManager( dir, false );
+            assertLongIdentities( man, identities );
+            man.close();
+
+            FileUtils.delete( new File( dir, "idx" ) );
+            RandomAccessFile heap = new RandomAccessFile( new File( dir, "heap.data" ), "rw" );
+            heap.writeBoolean( false ); // Not a clean shutdown, so the index is rebuilt from the heap.
+            heap.close();
+            man = new RecordManager( dir, false );
+            assertLongIdentities( man, identities );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenHeapHasFixedSizeIdentitiesThenExpectItReadAndUpgradedByCompaction()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            writeFixedIdentityHeap( dir, 2000 );
+            StoreSettings settings = new StoreSettings();
+            settings.compactionThreshold = 0.3;
+            settings.compactionRate = 100 * 1024 * 1024;
+            RecordManager man = new RecordManager( dir, false, settings );
+            for( int i = 0; i < 2000; i++ )
+            {
+                Assert.assertEquals( "Incorrect Data retrieved.", fixedValue( i ), new String( man.readData( createReference( "habba" + i ) ).data ) );
+            }
+            for( int i = 0; i < 2000; i = i + 2 )
+            {
+                man.deleteData( createReference( "habba" + i ) );
+            }
+            man.putData( new DataBlock( createReference( "habba1" ), "Updated".getBytes(), 1, 0 ) );
+            man.commit();
+
+            long timeout = System.currentTimeMillis() + 30000;
+            while( readVersion( dir ) != 5 && System.currentTimeMillis() < timeout )
+            {
+                Thread.sleep( 50 );
+            }
+            Assert.assertEquals( "Heap was not upgraded.", 5, readVersion( dir ) );
+            StringBuffer longIdentity = new StringBuffer();
+            for( int i = 0; i < 300; i++ )
+            {
+                longIdentity.append( i % 10 );
+            }
+            man.putData( new DataBlock( createReference( longIdentity.toString() ), "Long".getBytes(), 1, 0 ) );
+            man.commit();
+            man.close();
+
+            man = new RecordManager( dir, false, settings );
+            Assert.assertEquals( "Incorrect Data retrieved.", "Long", new String( man.readData( createReference( longIdentity.toString() ) ).data ) );
+            Assert.assertEquals( "Incorrect Data retrieved.", "Updated", new String( man.readData( createReference( "habba1" ) ).data ) );
+            for( int i = 2; i < 2000; i++ )
+            {
+                DataBlock data = man.readData( createReference( "habba" + i ) );
+                if( i % 2 == 0 )
+                {
+                    Assert.assertNull( "Deleted entity found.", data );
+                }
+                else
+                {
+                    Assert.assertEquals( "Incorrect Data retrieved.", fixedValue( i ), new String( data.data ) );
+                }
+            }
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenScanningByTypeThenExpectOnlyEntitiesOfThatType()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StringBuffer longType = new StringBuffer( "org.qi4j.Long" );
+            for( int i = 0; i < 300; i++ )
+            {
+                longType.append( (char) ( 'a' + i % 26 ) );
+            }
+            String[] types = { "org.qi4j.Habba", "org.qi4j.Hoppa", longType.toString() };
+            RecordManager man = new RecordManager( dir, false );
+            HashSet<String> expected = new HashSet<String>();
+            for( int i = 0; i < 300; i++ )
+            {
+                String type = types[ i % 3 ];
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), 0, 0, type ) );
+                man.commit();
+            }
+            for( int i = 0; i < 300; i += 3 )
+            {
+                if( i % 2 == 0 )
+                {
+                    // Moved to a larger block, without the type being given again.
+                    String value = "Habba " + i + " is now much longer than it was before, and does not fit.";
+                    man.putData( new DataBlock( createReference( "habba" + i ), value.getBytes(), 0, 0 ) );
+                    expected.add( value );
+                }
+                else if( i % 9 == 0 )
+                {
+                    man.deleteData( createReference( "habba" + i ) );
+                }
+                else
+                {
+                    expected.add( "Habba " + i );
+                }
+            }
+            man.commit();
+            Assert.assertEquals( "Incorrect Data scanned.", expected, new HashSet<String>( scan( man, types[ 0 ] ) ) );
+            Assert.assertEquals( "Unknown type scanned.", 0, scan( man, "org.qi4j.Unknown" ).size() );
+            Assert.assertEquals( "Incorrect number of entities scanned.", 100, scan( man, longType.toString() ).size() );
+            man.close();
+
+            // The index of the types is kept over a clean shutdown.
+            File typeIndexFile = new File( dir, "types.data" );
+            Assert.assertTrue( "Index of the types not written.", typeIndexFile.exists() );
+            man = new RecordManager( dir, false );
+            Assert.assertFalse( "Index of the types left behind.", typeIndexFile.exists() );
+            Assert.assertEquals( "Incorrect Data scanned after reopen.", expected, new HashSet<String>( scan( man, types[ 0 ] ) ) );
+
+            // Undone changes leave the scan as it was.
+            String moved = "Habba 3 is now much longer than it was before, and is moved to another block.";
+            man.putData( new DataBlock( createReference( "habba3" ), moved.getBytes(), 0, 0 ) );
+            man.deleteData( createReference( "habba6" ) );
+            man.discard();
+            Assert.assertEquals( "Incorrect Data scanned after discard.", expected, new HashSet<String>( scan( man, types[ 0 ] ) ) );
+            man.close();
+
+            // The index of the types is built on the first scan, if it wasn't kept.
+            FileUtils.delete( typeIndexFile );
+            man = new RecordManager( dir, false );
+            Assert.assertEquals( "Incorrect Data scanned after rebuild.", expected, new HashSet<String>( scan( man, types[ 0 ] ) ) );
+            man.close();
+
+            // The index of the types is built along with the identity index.
+            FileUtils.delete( new File( dir, "idx" ) );
+            man = new RecordManager( dir, false );
+            Assert.assertEquals( "Incorrect Data scanned after re-index.", expected, new HashSet<String>( scan( man, types[ 0 ] ) ) );
+            Assert.assertEquals( "Type lost.", types[ 0 ], man.readData( createReference( "habba0" ) ).type );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenBlockIsCorruptedThenExpectExceptionOnRead()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            RecordManager man = new RecordManager( dir, false );
+            for( int i = 0; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i + "." ).getBytes(), 0, 0 ) );
+            }
+            man.commit();
+            // Moved to the mirror area.
+            man.putData( new DataBlock( createReference( "habba18" ), "Habba 18 again.".getBytes(), 0, 0 ) );
+            man.commit();
+            man.close();
+            corrupt( dir, "Habba 17." );
+            corrupt( dir, "Habba 18 again." );
+
+            man = new RecordManager( dir, false );
+            for( int i = 0; i < 100; i++ )
+            {
+                try
+                {
+                    DataBlock data = man.readData( createReference( "habba" + i ) );
+                    Assert.assertTrue( "Corruption not detected.", i != 17 && i != 18 );
+                    Assert.assertEquals( "Incorrect Data retrieved.", "Habba " + i + ".", new String( data.data ) );
+                }
+                catch( CorruptedBlockException e )
+                {
+                    Assert.assertTrue( "Block reported as corrupted.", i == 17 || i == 18 );
+                }
+            }
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenBlockSizeIsZeroThenExpectCorruptedBlockOnScanAndScrub()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            RecordManager man = new RecordManager( dir, false );
+            for( int i = 0; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i + "." ).getBytes(), 0, 0 ) );
+            }
+            man.commit();
+            man.close();
+            RandomAccessFile heap = new RandomAccessFile( new File( dir, "heap.data" ), "rw" );
+            heap.seek( DataStore.DATA_AREA_OFFSET );
+            heap.writeInt( 0 );
+            heap.close();
+
+            StoreSettings settings = new StoreSettings();
+            settings.scrubInterval = 10;
+            settings.scrubRate = 100 * 1024 * 1024;
+            man = new RecordManager( dir, false, settings );
+            try
+            {
+                man.data().transferTo( new Output<Reader, IOException>()
+                {
+                    public <SenderThrowableType extends Throwable> void receiveFrom( Sender<Reader, SenderThrowableType> sender )
+                        throws IOException, SenderThrowableType
+                    {
+                        sender.sendTo( new Receiver<Reader, IOException>()
+                        {
+                            public void receive( Reader item )
+                            {
+                            }
+                        } );
+                    }
+                } );
+                Assert.fail( "Corrupted block size not detected." );
+            }
+            catch( CorruptedBlockException e )
+            {
+                // Expected
+            }
+            long timeout = System.currentTimeMillis() + 10000;
+            while( man.corruptedBlocks() < 1 && System.currentTimeMillis() < timeout )
+            {
+                Thread.sleep( 10 );
+            }
+            Assert.assertEquals( "Corrupted block not reported by the scrubber.", 1, man.corruptedBlocks() );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenScrubbingThenExpectCorruptedBlocksQuarantined()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            RecordManager man = new RecordManager( dir, false );
+            for( int i = 0; i < 1000; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Habba " + i + "." ).getBytes(), 0, 0 ) );
+            }
+            man.commit();
+            man.close();
+            corrupt( dir, "Habba 17." );
+            corrupt( dir, "Habba 712." );
+
+            StoreSettings settings = new StoreSettings();
+            settings.scrubInterval = 10;
+            settings.scrubRate = 100 * 1024 * 1024;
+            settings.quarantineCorruptedBlocks = true;
+            man = new RecordManager( dir, false, settings );
+            long timeout = System.currentTimeMillis() + 10000;
+            while( man.quarantinedBlocks() < 2 && System.currentTimeMillis() < timeout )
+            {
+                // The scrubber waits while transactions are in progress.
+                man.putData( new DataBlock( createReference( "hoppa" ), "Hoppa".getBytes(), 0, 0 ) );
+                man.commit();
+                Thread.sleep( 10 );
+            }
+            Assert.assertEquals( "Corrupted blocks not quarantined.", 2, man.quarantinedBlocks() );
+            Assert.assertNull( "Quarantined entity still there.", man.readData( createReference( "habba17" ) ) );
+            Assert.assertNull( "Quarantined entity still there.", man.readData( createReference( "habba712" ) ) );
+            Assert.assertEquals( "Quarantine files missing.", 2, new File( dir, "quarantine" ).list().length );
+            for( int i = 0; i < 1000; i++ )
+            {
+                if( i != 17 && i != 712 )
+                {
+                    DataBlock data = man.readData( createReference( "habba" + i ) );
+                    Assert.assertEquals( "Incorrect Data retrieved.", "Habba " + i + ".", new String( data.data ) );
+                }
+            }
+            man.close();
+
+            // Gone for good.
+            man = new RecordManager( dir, false );
+            Assert.assertNull( "Quarantined entity back.", man.readData( createReference( "habba17" ) ) );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenBackingUpWhileWritingThenExpectCopyOfTheStartingPoint()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        File backupDir = new File( "swift-backup" );
+        try
+        {
+            RecordManager man = new RecordManager( dir, false );
+            for( int i = 0; i < 500; i++ )
+            {
+                man.putData( new DataBlock( createReference( "habba" + i ), ( "Value " + i ).getBytes(), i, 0 ) );
+            }
+            man.commit();
+            for( int i = 0; i < 500; i = i + 7 )
+            {
+                man.deleteData( createReference( "habba" + i ) );
+            }
+            man.commit();
+
+            Assert.assertTrue( "Backup not started.", man.startBackup( backupDir ) );
+            Assert.assertFalse( "Backup finished too early.", man.backupStep( 4096 ) );
+            // Changes in place, at the end, and in reused free space, both before and after the copy position.
+            for( int i = 1; i < 500; i++ )
+            {
+                if( i % 5 == 0 )
+                {
+                    man.deleteData( createReference( "habba" + i ) );
+                }
+                else if( i % 2 == 0 )
+                {
+                    man.putData( new DataBlock( createReference( "habba" + i ), ( "Much longer value than before " + i ).getBytes(), 1000, 0 ) );
+                }
+                else if( i % 3 == 0 )
+                {
+                    man.putData( new DataBlock( createReference( "habba" + i ), ( "Short " + i ).getBytes(), 1000, 0 ) );
+                }
+            }
+            for( int i = 0; i < 100; i++ )
+            {
+                man.putData( new DataBlock( createReference( "new" + i ), "New".getBytes(), 0, 0 ) );
+            }
+            man.commit();
+            while( !man.backupStep( 4096 ) )
+            {
+                man.putData( new DataBlock( createReference( "habba1" ), "Changed during the copy".getBytes(), 1001, 0 ) );
+                man.commit();
+            }
+            man.finishBackup();
+            man.putData( new DataBlock( createReference( "habba3" ), "Changed after the backup".getBytes(), 1001, 0 ) );
+            man.commit();
+            Assert.assertEquals( "Incorrect Data retrieved.", "Short 9", new String( man.readData( createReference( "habba9" ) ).data ) );
+            man.close();
+
+            man = new RecordManager( backupDir, false );
+            for( int i = 0; i < 500; i++ )
+            {
+                DataBlock data = man.readData( createReference( "habba" + i ) );
+                if( i % 7 == 0 )
+                {
+                    Assert.assertNull( "Deleted entity found.", data );
+                }
+                else
+                {
+                    Assert.assertEquals( "Incorrect Data retrieved.", "Value " + i, new String( data.data ) );
+                    Assert.assertEquals( "Incorrect version retrieved.", i, data.instanceVersion );
+                }
+            }
+            for( int i = 0; i < 100; i++ )
+            {
+                Assert.assertNull( "Entity created after the backup found.", man.readData( createReference( "new" + i ) ) );
+            }
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+            FileUtils.delete( backupDir );
+        }
+    }
+
+    private void assertLongIdentities( RecordManager man, String[] identities )
+        throws Exception
+    {
+        for( int i = 0; i < identities.length; i++ )
+        {
+            DataBlock data = man.readData( createReference( identities[ i ] ) );
+            Assert.assertEquals( "Incorrect Data retrieved.", i == 2 ? "Updated" : "Value " + i, new String( data.data ) );
+        }
+    }
+
+    /* A heap of format version 2, where each identity takes 128 bytes after a one byte size. */
+
+    private void writeFixedIdentityHeap( File dir, int entities )
+        throws IOException
+    {
+        dir.mkdirs();
+        RandomAccessFile heap = new RandomAccessFile( new File( dir, "heap.data" ), "rw" );
+        heap.writeBoolean( false ); // Not a clean shutdown, so the index is built from the heap.
+        heap.writeInt( 2 );
+        heap.writeInt( 0 );
+        heap.writeInt( 128 );
+        heap.writeLong( 0 );
+        long position = DataStore.DATA_AREA_OFFSET;
+        for( int i = 0; i < entities; i++ )
+        {
+            byte[] identity = ( "habba" + i ).getBytes( "UTF-8" );
+            byte[] value = fixedValue( i ).getBytes( "UTF-8" );
+            int dataAreaSize = ( value.length * 2 + 4 ) * 2;
+            int blockSize = dataAreaSize + 128 + 26;
+            heap.seek( position );
+            heap.writeInt( blockSize );
+            heap.writeByte( 1 ); // Prime
+            heap.writeLong( 0 );
+            heap.writeInt( 0 );
+            heap.writeByte( identity.length );
+            heap.write( identity );
+            heap.write( new byte[128 - identity.length] );
+            heap.writeLong( position + 26 + 128 + dataAreaSize / 2 );
+            heap.writeInt( value.length );
+            heap.write( value );
+            position = position + blockSize;
+        }
+        heap.seek( position );
+        heap.writeInt( -1 );
+        heap.close();
+    }
+
+    private String fixedValue( int i )
+    {
+        StringBuffer value = new StringBuffer( "Value " + i );
+        while( value.length() < 200 )
+        {
+            value.append( '.' );
+        }
+        return value.toString();
+    }
+
+    private int readVersion( File dir )
+        throws IOException
+    {
+        RandomAccessFile heap = new RandomAccessFile( new File( dir, "heap.data" ), "r" );
+        try
+        {
+            heap.readBoolean();
+            return heap.readInt();
+        }
+        finally
+        {
+            heap.close();
+        }
+    }
+
+    private void assertCompactedData( RecordManager man )
+        throws Exception
+    {
+        for( int i = 0; i < 2000; i++ )
+        {
+            DataBlock data = man.readData( createReference( "habba" + i ) );
+            if( i % 2 == 0 )
+            {
+                Assert.assertNull( "Deleted entity found.", data );
+            }
+            else if( i % 4 == 1 )
+            {
+                Assert.assertEquals( "Incorrect Data retrieved.", "Updated " + i, new String( data.data ) );
+            }
+            else
+            {
+                Assert.assertEquals( "Incorrect Data retrieved.", 1000, data.data.length );
+            }
+        }
+    }
+
+    /* Flips a bit in the first occurrence of the value in the heap. */
+
+    private void corrupt( File dir, String value )
+        throws IOException
+    {
+        File heapFile = new File( dir, "heap.data" );
+        byte[] heap = FileUtils.read( heapFile );
+        byte[] search = value.getBytes();
+        for( int i = 0; i + search.length <= heap.length; i++ )
+        {
+            int j = 0;
+            while( j < search.length && heap[ i + j ] == search[ j ] )
+            {
+                j++;
+            }
+            if( j == search.length )
+            {
+                RandomAccessFile file = new RandomAccessFile( heapFile, "rw" );
+                file.seek( i + 1 );
+                file.write( heap[ i + 1 ] ^ 0x04 );
+                file.close();
+                return;
+            }
+        }
+        Assert.fail( "Value not found in the heap: " + value );
+    }
+
+    @Test
+    public void whenStatesAreBinaryThenExpectJsonBack()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.stateCodec = new BinaryStateCodec( new NameDictionary() );
+            RecordManager man = new RecordManager( dir, true, settings );
+            String json = "{\"identity\":\"habba\",\"properties\":{\"name\":\"Habba\",\"count\":12}}";
+            String binary = "{\"identity\":\"zout\",\"properties\":{\"name\":\"Zout \u00e5\",\"count\":-3}}";
+            byte[] jsonData = json.getBytes( "UTF-8" );
+            byte[] binaryData = settings.stateCodec.encode( binary.getBytes( "UTF-8" ), 0, binary.getBytes( "UTF-8" ).length );
+            man.putData( new DataBlock( createReference( "habba" ), jsonData, 0, 0, "Type" ) );
+            man.putData( new DataBlock( createReference( "zout" ), binaryData, 0, 0, "Type" ) );
+            man.commit();
+            Assert.assertEquals( "Incorrect state.", json, man.readData( createReference( "habba" ) ).state( settings.stateCodec ) );
+            Assert.assertEquals( "Incorrect state.", binary, man.readData( createReference( "zout" ) ).state( settings.stateCodec ) );
+            List<String> expected = new ArrayList<String>();
+            expected.add( json );
+            expected.add( binary );
+            Assert.assertEquals( "Incorrect Data scanned.", new HashSet<String>( expected ), new HashSet<String>( scan( man, null ) ) );
+            Assert.assertEquals( "Incorrect Data scanned.", new HashSet<String>( expected ), new HashSet<String>( scan( man, "Type" ) ) );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    private List<String> scan( RecordManager man, String type )
+        throws IOException
+    {
+        final List<String> scanned = new ArrayList<String>();
+        ( type == null ? man.data() : man.data( type ) ).transferTo( new Output<Reader, IOException>()
+        {
+            public <SenderThrowableType extends Throwable> void receiveFrom( Sender<Reader, SenderThrowableType> sender )
+                throws IOException, SenderThrowableType
+            {
+                sender.sendTo( new Receiver<Reader, IOException>()
+                {
+                    public void receive( Reader item )
+                        throws IOException
+                    {
+                        StringBuffer content = new StringBuffer();
+                        int ch;
+                        while( ( ch = item.read() ) >= 0 )
+                        {
+                            content.append( (char) ch );
+                        }
+                        scanned.add( content.toString() );
+                    }
+                } );
+            }
+        } );
+        return scanned;
+    }
+
     private EntityReference createReference( String identity )
     {
         return new EntityReference( identity );
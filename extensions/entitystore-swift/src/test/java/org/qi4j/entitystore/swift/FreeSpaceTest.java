@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class FreeSpaceTest
+{
+    @Test
+    public void whenFindingThenExpectSmallestFittingClass()
+    {
+        FreeSpace freeSpace = new FreeSpace();
+        freeSpace.add( 1000, 5000 );
+        freeSpace.add( 256, 300 );
+        freeSpace.add( 600, 200 );
+        Assert.assertEquals( "Wrong block found.", 256, freeSpace.find( 290 ) );
+        Assert.assertEquals( "Wrong block found.", 1000, freeSpace.find( 400 ) );
+        Assert.assertEquals( "Wrong block found.", 600, freeSpace.find( 100 ) );
+        Assert.assertEquals( "Block found.", -1, freeSpace.find( 6000 ) );
+        Assert.assertEquals( "Wrong size removed.", 300, freeSpace.remove( 256 ) );
+        Assert.assertEquals( "Wrong block found.", 1000, freeSpace.find( 290 ) );
+        Assert.assertEquals( "Wrong free size.", 5200, freeSpace.size() );
+    }
+
+    @Test
+    public void whenBlocksAreAdjacentThenExpectPreviousToBeFound()
+    {
+        FreeSpace freeSpace = new FreeSpace();
+        freeSpace.add( 256, 100 );
+        freeSpace.add( 400, 100 );
+        Assert.assertEquals( "Adjacent block not found.", 256, freeSpace.previous( 356 ) );
+        Assert.assertEquals( "Non-adjacent block found.", -1, freeSpace.previous( 400 ) );
+        Assert.assertEquals( "Wrong size.", 100, freeSpace.sizeOf( 400 ) );
+        Assert.assertEquals( "Wrong size.", 0, freeSpace.sizeOf( 356 ) );
+    }
+
+    @Test
+    public void whenWrittenThenExpectSameBlocksLoaded()
+        throws Exception
+    {
+        File file = new File( "swift-free.data" );
+        try
+        {
+            FreeSpace freeSpace = new FreeSpace();
+            freeSpace.add( 256, 100 );
+            freeSpace.add( 4000, 70000 );
+            freeSpace.write( file );
+            FreeSpace loaded = FreeSpace.load( file );
+            Assert.assertEquals( "Wrong number of blocks.", 2, loaded.blocks() );
+            Assert.assertEquals( "Wrong size.", 100, loaded.sizeOf( 256 ) );
+            Assert.assertEquals( "Wrong size.", 70000, loaded.sizeOf( 4000 ) );
+            Assert.assertEquals( "Wrong free size.", 70100, loaded.size() );
+        }
+        finally
+        {
+            FileUtils.delete( file );
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entitystore.ConcurrentEntityStateModificationException;
+
+public class GroupCommitterTest
+{
+    @Test
+    public void whenCommittingConcurrentlyThenExpectAllDataBack()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.syncOnCommit = true;
+            final RecordManager man = new RecordManager( dir, false, settings );
+            final GroupCommitter committer = new GroupCommitter( man, 10, 1 );
+            final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+            Thread[] threads = new Thread[8];
+            for( int t = 0; t < threads.length; t++ )
+            {
+                final int thread = t;
+                threads[ t ] = new Thread()
+                {
+                    @Override public void run()
+                    {
+                        try
+                        {
+                            for( int i = 0; i < 50; i++ )
+                            {
+                                CommitRequest request = new CommitRequest();
+                                String identity = "habba" + thread + "-" + i;
+                                request.put( new DataBlock( createReference( identity ), identity.getBytes(), 0, 0 ) );
+                                committer.commit( request );
+                            }
+                        }
+                        catch( Throwable e )
+                        {
+                            failures.add( e );
+                        }
+                    }
+                };
+                threads[ t ].start();
+            }
+            for( Thread thread : threads )
+            {
+                thread.join();
+            }
+            committer.close();
+            Assert.assertEquals( "Commits failed.", 0, failures.size() );
+            for( int t = 0; t < threads.length; t++ )
+            {
+                for( int i = 0; i < 50; i++ )
+                {
+                    String identity = "habba" + t + "-" + i;
+                    DataBlock data = man.readData( createReference( identity ) );
+                    Assert.assertEquals( "Incorrect Data retrieved.", identity, new String( data.data ) );
+                }
+            }
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenOneRequestInBatchFailsThenExpectOthersCommitted()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            final RecordManager man = new RecordManager( dir, false );
+            final GroupCommitter committer = new GroupCommitter( man, 10, 200 );
+            final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+            StringBuffer tooLong = new StringBuffer();
+            for( int i = 0; i < 1025; i++ )
+            {
+                tooLong.append( i % 10 );
+            }
+            String[] identities = { "habba1", tooLong.toString(), "habba2" };
+            Thread[] threads = new Thread[identities.length];
+            for( int t = 0; t < threads.length; t++ )
+            {
+                final String identity = identities[ t ];
+                threads[ t ] = new Thread()
+                {
+                    @Override public void run()
+                    {
+                        try
+                        {
+                            CommitRequest request = new CommitRequest();
+                            request.put( new DataBlock( createReference( identity ), identity.getBytes(), 0, 0 ) );
+                            committer.commit( request );
+                        }
+                        catch( Throwable e )
+                        {
+                            failures.add( e );
+                        }
+                    }
+                };
+                threads[ t ].start();
+            }
+            for( Thread thread : threads )
+            {
+                thread.join();
+            }
+            committer.close();
+            Assert.assertEquals( "Only the too long identity should fail.", 1, failures.size() );
+            Assert.assertTrue( "Wrong exception.", failures.get( 0 ) instanceof IdentityTooLongException );
+            Assert.assertEquals( "Incorrect Data retrieved.", "habba1", new String( man.readData( createReference( "habba1" ) ).data ) );
+            Assert.assertEquals( "Incorrect Data retrieved.", "habba2", new String( man.readData( createReference( "habba2" ) ).data ) );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenBatchedUpdatesInRedoModeAreFromSameVersionThenExpectOnlyOneCommitted()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            StoreSettings settings = new StoreSettings();
+            settings.redoJournal = true;
+            final RecordManager man = new RecordManager( dir, false, settings );
+            final EntityReference habba = createReference( "habba" );
+            CommitRequest request = new CommitRequest();
+            request.create( new DataBlock( habba, HeapSegmentsTest.state( "habba", "uow-1", "Habba" ), 0, 0 ) );
+            request.applyTo( man );
+            man.commit();
+
+            final GroupCommitter committer = new GroupCommitter( man, 10, 200 );
+            final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+            Thread[] threads = new Thread[2];
+            for( int t = 0; t < threads.length; t++ )
+            {
+                final String version = "uow-" + ( t + 2 );
+                threads[ t ] = new Thread()
+                {
+                    @Override public void run()
+                    {
+                        try
+                        {
+                            CommitRequest request = new CommitRequest();
+                            request.update( new DataBlock( habba, HeapSegmentsTest.state( "habba", version, version ), 0, 0 ), 0 );
+                            committer.commit( request );
+                        }
+                        catch( Throwable e )
+                        {
+                            failures.add( e );
+                        }
+                    }
+                };
+                threads[ t ].start();
+            }
+            for( Thread thread : threads )
+            {
+                thread.join();
+            }
+            committer.close();
+            Assert.assertEquals( "Only one of the updates should fail.", 1, failures.size() );
+            Assert.assertTrue( "Wrong exception.", failures.get( 0 ) instanceof ConcurrentEntityStateModificationException );
+            DataBlock data = man.readData( habba );
+            Assert.assertEquals( "Version not incremented once.", 1, data.instanceVersion );
+            man.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    private EntityReference createReference( String identity )
+    {
+        return new EntityReference( identity );
+    }
+}
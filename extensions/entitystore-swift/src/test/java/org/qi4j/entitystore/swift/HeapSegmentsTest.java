@@ -0,0 +1,500 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.qi4j.api.entity.EntityReference;
+import org.qi4j.spi.entitystore.ConcurrentEntityStateModificationException;
+
+public class HeapSegmentsTest
+{
+    @Test
+    public void whenStoringInSegmentsThenExpectDataBackAfterReopen()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            HeapSegments segments = new HeapSegments( dir, 4, false, new StoreSettings() );
+            for( int i = 0; i < 100; i++ )
+            {
+                CommitRequest request = new CommitRequest();
+                request.put( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), 0, 0 ) );
+                segments.commit( request );
+            }
+            int[] used = new int[segments.count()];
+            for( int i = 0; i < 100; i++ )
+            {
+                used[ segments.segmentOf( createReference( "habba" + i ) ) ]++;
+            }
+            for( int segment = 0; segment < used.length; segment++ )
+            {
+                Assert.assertTrue( "Segment " + segment + " not used.", used[ segment ] > 0 );
+            }
+            segments.close();
+
+            // The store keeps the number of segments it was created with.
+            segments = new HeapSegments( dir, 1, false, new StoreSettings() );
+            Assert.assertEquals( "Number of segments changed.", 4, segments.count() );
+            for( int i = 0; i < 100; i++ )
+            {
+                DataBlock data = segments.readData( createReference( "habba" + i ) );
+                Assert.assertEquals( "Incorrect Data retrieved.", "Habba " + i, new String( data.data ) );
+            }
+            segments.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCommittingAcrossSegmentsThenExpectAllChangesVisible()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            HeapSegments segments = new HeapSegments( dir, 4, false, new StoreSettings() );
+            CommitRequest request = new CommitRequest();
+            for( int i = 0; i < 20; i++ )
+            {
+                request.put( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), 0, 0 ) );
+            }
+            Assert.assertTrue( "Request not spanning segments.", request.segments( segments ).length > 1 );
+            segments.commit( request );
+            request = new CommitRequest();
+            for( int i = 0; i < 20; i = i + 2 )
+            {
+                request.remove( createReference( "habba" + i ) );
+            }
+            segments.commit( request );
+            for( int i = 0; i < 20; i++ )
+            {
+                DataBlock data = segments.readData( createReference( "habba" + i ) );
+                if( i % 2 == 0 )
+                {
+                    Assert.assertNull( "Deleted entity found.", data );
+                }
+                else
+                {
+                    Assert.assertEquals( "Incorrect Data retrieved.", "Habba " + i, new String( data.data ) );
+                }
+            }
+            File[] leftOver = dir.listFiles();
+            for( File file : leftOver )
+            {
+                Assert.assertFalse( "Commit record left behind.", file.getName().startsWith( "commit-" ) );
+            }
+            segments.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCommittingConcurrentlyThenExpectAllDataBack()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            final HeapSegments segments = new HeapSegments( dir, 4, false, new StoreSettings() );
+            final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+            Thread[] threads = new Thread[8];
+            for( int t = 0; t < threads.length; t++ )
+            {
+                final int thread = t;
+                threads[ t ] = new Thread()
+                {
+                    @Override public void run()
+                    {
+                        try
+                        {
+                            for( int i = 0; i < 50; i++ )
+                            {
+                                CommitRequest request = new CommitRequest();
+                                String identity = "habba" + thread + "-" + i;
+                                request.put( new DataBlock( createReference( identity ), identity.getBytes(), 0, 0 ) );
+                                request.put( new DataBlock( createReference( identity + "b" ), identity.getBytes(), 0, 0 ) );
+                                segments.commit( request );
+                            }
+                        }
+                        catch( Throwable e )
+                        {
+                            failures.add( e );
+                        }
+                    }
+                };
+                threads[ t ].start();
+            }
+            for( Thread thread : threads )
+            {
+                thread.join();
+            }
+            Assert.assertEquals( "Commits failed.", 0, failures.size() );
+            for( int t = 0; t < threads.length; t++ )
+            {
+                for( int i = 0; i < 50; i++ )
+                {
+                    String identity = "habba" + t + "-" + i;
+                    Assert.assertEquals( "Incorrect Data retrieved.", identity, new String( segments.readData( createReference( identity ) ).data ) );
+                    Assert.assertEquals( "Incorrect Data retrieved.", identity, new String( segments.readData( createReference( identity + "b" ) ).data ) );
+                }
+            }
+            segments.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCrashedBeforeCommitRecordThenExpectTransactionUndone()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            HeapSegments segments = new HeapSegments( dir, 4, true, new StoreSettings() );
+            crashInPrepare( segments );
+            // Not closed, as if the process died.
+
+            segments = new HeapSegments( dir, 4, true, new StoreSettings() );
+            for( int i = 0; i < 20; i++ )
+            {
+                Assert.assertNotNull( "Committed entity lost.", segments.readData( createReference( "existing" + i ) ) );
+                Assert.assertNull( "Uncommitted entity found.", segments.readData( createReference( "habba" + i ) ) );
+            }
+            segments.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCrashedAfterCommitRecordThenExpectTransactionKept()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            HeapSegments segments = new HeapSegments( dir, 4, true, new StoreSettings() );
+            CommitRequest request = crashInPrepare( segments );
+            segments.writeCommitRecord( request.segments( segments ) );
+            // Not closed, as if the process died.
+
+            segments = new HeapSegments( dir, 4, true, new StoreSettings() );
+            for( int i = 0; i < 20; i++ )
+            {
+                DataBlock data = segments.readData( createReference( "habba" + i ) );
+                Assert.assertEquals( "Incorrect Data retrieved.", "Habba " + i, new String( data.data ) );
+            }
+            segments.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    /* Prepares a transaction over several segments, without writing the commit record. */
+
+    @Test
+    public void whenBackingUpWhileCommittingAcrossSegmentsThenExpectConsistentCopy()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        File backupDir = new File( "swift-backup" );
+        try
+        {
+            final HeapSegments segments = new HeapSegments( dir, 3, false, new StoreSettings() );
+            final EntityReference first = createReference( "habba0" );
+            int other = 1;
+            while( segments.segmentOf( createReference( "habba" + other ) ) == segments.segmentOf( first ) )
+            {
+                other++;
+            }
+            final EntityReference second = createReference( "habba" + other );
+            final boolean[] running = { true };
+            final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+            Thread writer = new Thread()
+            {
+                @Override public void run()
+                {
+                    try
+                    {
+                        for( int i = 0; running[ 0 ]; i++ )
+                        {
+                            // Both entities always have the same value, in two segments.
+                            CommitRequest request = new CommitRequest();
+                            byte[] value = new byte[100 + i % 300];
+                            value[ 0 ] = (byte) i;
+                            request.put( new DataBlock( first, value, i, 0 ) );
+                            request.put( new DataBlock( second, value, i, 0 ) );
+                            request.put( new DataBlock( createReference( "filler" + i ), new byte[1000], 0, 0 ) );
+                            segments.commit( request );
+                        }
+                    }
+                    catch( Throwable e )
+                    {
+                        failures.add( e );
+                    }
+                }
+            };
+            writer.start();
+            Thread.sleep( 200 );
+            segments.backup( backupDir );
+            running[ 0 ] = false;
+            writer.join();
+            Assert.assertTrue( "Commits failed: " + failures, failures.isEmpty() );
+            segments.close();
+
+            HeapSegments copy = new HeapSegments( backupDir, 1, false, new StoreSettings() );
+            Assert.assertEquals( "Number of segments not copied.", 3, copy.count() );
+            DataBlock firstData = copy.readData( first );
+            DataBlock secondData = copy.readData( second );
+            Assert.assertEquals( "Copy is not of a single moment.", firstData.instanceVersion, secondData.instanceVersion );
+            Assert.assertArrayEquals( "Copy is not of a single moment.", firstData.data, secondData.data );
+            copy.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+            FileUtils.delete( backupDir );
+        }
+    }
+
+    @Test
+    public void whenUpdatingFromStaleVersionThenExpectConcurrentModificationException()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            HeapSegments segments = new HeapSegments( dir, 4, false, new StoreSettings() );
+            EntityReference first = createReference( "first" );
+            EntityReference second = createReference( "second" );
+            CommitRequest request = new CommitRequest();
+            request.create( new DataBlock( first, state( "first", "uow-1", "First" ), 0, 0 ) );
+            request.create( new DataBlock( second, state( "second", "uow-1", "Second" ), 0, 0 ) );
+            segments.commit( request );
+            Assert.assertEquals( "New entity not at the first version.", 0, segments.readData( first ).instanceVersion );
+
+            // Two units of work that both loaded the first version.
+            request = new CommitRequest();
+            request.update( new DataBlock( first, state( "first", "uow-2", "Winner" ), 0, 0 ), 0 );
+            segments.commit( request );
+            Assert.assertEquals( "Version not incremented.", 1, segments.readData( first ).instanceVersion );
+            request = new CommitRequest();
+            request.update( new DataBlock( second, state( "second", "uow-3", "Changed" ), 0, 0 ), 0 );
+            request.update( new DataBlock( first, state( "first", "uow-3", "Loser" ), 0, 0 ), 0 );
+            assertConcurrentModification( segments, request );
+            Assert.assertArrayEquals( "Incorrect Data retrieved.", state( "first", "uow-2", "Winner" ), segments.readData( first ).data );
+            Assert.assertArrayEquals( "Incorrect Data retrieved.", state( "second", "uow-1", "Second" ), segments.readData( second ).data );
+
+            request = new CommitRequest();
+            request.remove( first, 0 );
+            assertConcurrentModification( segments, request );
+            request = new CommitRequest();
+            request.update( new DataBlock( second, state( "second", "uow-4", "Changed" ), 0, 0 ), 0 );
+            request.remove( first, 1 );
+            segments.commit( request );
+            Assert.assertNull( "Deleted entity found.", segments.readData( first ) );
+            Assert.assertArrayEquals( "Incorrect Data retrieved.", state( "second", "uow-4", "Changed" ), segments.readData( second ).data );
+
+            // A change without a check continues from the stored version as well.
+            request = new CommitRequest();
+            request.update( new DataBlock( second, state( "second", "uow-5", "Unchecked" ), 0, 0 ), CommitRequest.NO_VERSION );
+            segments.commit( request );
+            Assert.assertEquals( "Version not incremented.", 2, segments.readData( second ).instanceVersion );
+            Assert.assertEquals( "Version not read from the header.", 2, segments.readInstanceVersion( second ) );
+            segments.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCreatingExistingEntityThenExpectConcurrentModificationException()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            HeapSegments segments = new HeapSegments( dir, 4, false, new StoreSettings() );
+            EntityReference first = createReference( "first" );
+            CommitRequest request = new CommitRequest();
+            request.create( new DataBlock( first, state( "first", "uow-1", "First" ), 0, 0 ) );
+            segments.commit( request );
+            request = new CommitRequest();
+            request.create( new DataBlock( first, state( "first", "uow-2", "Second" ), 0, 0 ) );
+            assertConcurrentModification( segments, request );
+            Assert.assertArrayEquals( "Existing entity overwritten.", state( "first", "uow-1", "First" ), segments.readData( first ).data );
+            segments.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenUpdatingMoreThan1000EntitiesThenExpectAllChecked()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            HeapSegments segments = new HeapSegments( dir, 4, false, new StoreSettings() );
+            CommitRequest request = new CommitRequest();
+            for( int i = 0; i < 1500; i++ )
+            {
+                request.create( new DataBlock( createReference( "habba" + i ), state( "habba" + i, "uow-1", "Habba" ), 0, 0 ) );
+            }
+            segments.commit( request );
+            request = new CommitRequest();
+            request.update( new DataBlock( createReference( "habba1499" ), state( "habba1499", "uow-2", "Zout" ), 0, 0 ), 0 );
+            segments.commit( request );
+
+            // All of them loaded before the other update, and the one that was changed is the last one.
+            request = new CommitRequest();
+            for( int i = 0; i < 1500; i++ )
+            {
+                request.update( new DataBlock( createReference( "habba" + i ), state( "habba" + i, "uow-3", "Stale" ), 0, 0 ), 0 );
+            }
+            assertConcurrentModification( segments, request );
+            Assert.assertArrayEquals( "Incorrect Data retrieved.", state( "habba0", "uow-1", "Habba" ), segments.readData( createReference( "habba0" ) ).data );
+            segments.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    @Test
+    public void whenCommittingInAnotherThreadThanLoadingThenExpectVersionChecked()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        try
+        {
+            final HeapSegments segments = new HeapSegments( dir, 4, false, new StoreSettings() );
+            final EntityReference first = createReference( "first" );
+            CommitRequest request = new CommitRequest();
+            request.create( new DataBlock( first, state( "first", "uow-1", "First" ), 0, 0 ) );
+            segments.commit( request );
+            long loaded = segments.readData( first ).instanceVersion;
+            request = new CommitRequest();
+            request.update( new DataBlock( first, state( "first", "uow-2", "Winner" ), 0, 0 ), loaded );
+            segments.commit( request );
+
+            final CommitRequest stale = new CommitRequest();
+            stale.update( new DataBlock( first, state( "first", "uow-3", "Loser" ), 0, 0 ), loaded );
+            final Throwable[] failure = new Throwable[1];
+            Thread committer = new Thread()
+            {
+                @Override public void run()
+                {
+                    try
+                    {
+                        segments.commit( stale );
+                    }
+                    catch( Throwable e )
+                    {
+                        failure[ 0 ] = e;
+                    }
+                }
+            };
+            committer.start();
+            committer.join();
+            Assert.assertTrue( "Stale update committed.", failure[ 0 ] instanceof ConcurrentEntityStateModificationException );
+            Assert.assertArrayEquals( "Incorrect Data retrieved.", state( "first", "uow-2", "Winner" ), segments.readData( first ).data );
+            segments.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+        }
+    }
+
+    private void assertConcurrentModification( HeapSegments segments, CommitRequest request )
+        throws Exception
+    {
+        try
+        {
+            segments.commit( request );
+            Assert.fail( "Stale change committed." );
+        }
+        catch( ConcurrentEntityStateModificationException e )
+        {
+            // Expected
+        }
+    }
+
+    /* A state as the MapEntityStoreMixin writes it, with a property that is also called version. */
+
+    static byte[] state( String identity, String version, String name )
+        throws Exception
+    {
+        return ( "{\"identity\":\"" + identity + "\",\"application_version\":\"1.0\",\"type\":\"Habba\","
+                 + "\"version\":\"" + version + "\",\"modified\":0,"
+                 + "\"properties\":{\"version\":\"1.0\",\"name\":\"" + name + "\"}}" ).getBytes( "UTF-8" );
+    }
+
+    private CommitRequest crashInPrepare( HeapSegments segments )
+        throws Exception
+    {
+        CommitRequest request = new CommitRequest();
+        for( int i = 0; i < 20; i++ )
+        {
+            request.put( new DataBlock( createReference( "existing" + i ), "Existing".getBytes(), 0, 0 ) );
+        }
+        segments.commit( request );
+        request = new CommitRequest();
+        for( int i = 0; i < 20; i++ )
+        {
+            request.put( new DataBlock( createReference( "habba" + i ), ( "Habba " + i ).getBytes(), 0, 0 ) );
+        }
+        request.applyTo( segments );
+        for( int segment : request.segments( segments ) )
+        {
+            segments.segment( segment ).prepare();
+        }
+        return request;
+    }
+
+    private EntityReference createReference( String identity )
+    {
+        return new EntityReference( identity );
+    }
+}
@@ -19,6 +19,7 @@ package org.qi4j.entitystore.swift;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Random;
 import org.junit.After;
 import org.junit.Assert;
@@ -55,6 +56,28 @@ public class IdentityFileTest
         Assert.assertEquals( "Wrong position retrieved for item.", value, recalled );
     }
 
+    @Test
+    public void whenRememberingAnEntryAgainThenGetTheNewPositionBack()
+        throws Exception
+    {
+        idFile = new File( "swift-store" );
+        idFile.mkdirs();
+        file = IdentityFile.create( idFile, 64, 10 );
+        for( int i = 0; i < 50; i++ )
+        {
+            file.remember( createIdentity( "Identity-" + i ), i );
+        }
+        for( int i = 0; i < 50; i++ )
+        {
+            file.remember( createIdentity( "Identity-" + i ), 1000 + i );
+        }
+        for( int i = 0; i < 50; i++ )
+        {
+            long recalled = file.find( createIdentity( "Identity-" + i ) );
+            Assert.assertEquals( "Wrong position retrieved for item " + i + ".", 1000 + i, recalled );
+        }
+    }
+
     @Test
     public void whenCreating50EntriesThenGetTheResultBack()
         throws Exception
@@ -150,6 +173,275 @@ public class IdentityFileTest
         }
     }
 
+    @Test
+    public void whenLookingUpUnknownIdentitiesExpectFilterToRejectThem()
+        throws Exception
+    {
+        idFile = new File( "swift-store" );
+        idFile.mkdirs();
+        file = IdentityFile.create( idFile, 64, 5 );
+        for( int i = 0; i < 3000; i++ )
+        {
+            file.remember( createIdentity( "Identity-" + i ), i );
+        }
+        file.drop( createIdentity( "Identity-17" ) );
+        file.close();
+
+        file = IdentityFile.use( idFile );
+        for( int i = 0; i < 1000; i++ )
+        {
+            Assert.assertEquals( "Unknown identity found.", -1, file.find( createIdentity( "Unknown-" + i ) ) );
+        }
+        Assert.assertEquals( "Dropped identity found.", -1, file.find( createIdentity( "Identity-17" ) ) );
+        for( int i = 0; i < 3000; i++ )
+        {
+            if( i != 17 )
+            {
+                Assert.assertEquals( "Wrong position retrieved for item " + i + ".", i, file.find( createIdentity( "Identity-" + i ) ) );
+            }
+        }
+        IdentityFilter filter = file.filter();
+        Assert.assertEquals( "Wrong number of lookups counted.", 1001, filter.rejections() + filter.falsePositives() );
+        Assert.assertTrue( "Too many false positives.", filter.falsePositives() < 50 );
+        Assert.assertTrue( "Unexpected false positive rate.", filter.falsePositiveRate() < 0.05 );
+    }
+
+    @Test
+    public void whenGrowingFarBeyondInitialSizeExpectAllEntriesBackAfterReopen()
+        throws Exception
+    {
+        idFile = new File( "swift-store" );
+        idFile.mkdirs();
+        file = IdentityFile.create( idFile, 64, 10 );
+        int initialEntries = file.entries();
+        for( int i = 0; i < 20000; i++ )
+        {
+            file.remember( createIdentity( "Identity-" + i ), i );
+        }
+        Assert.assertTrue( "Buckets not split.", file.entries() >= 20000 );
+        Assert.assertTrue( "Buckets not split.", file.entries() > initialEntries );
+        for( int i = 0; i < 20000; i = i + 2 )
+        {
+            file.drop( createIdentity( "Identity-" + i ) );
+        }
+        file.close();
+
+        file = IdentityFile.use( idFile );
+        for( int i = 0; i < 20000; i++ )
+        {
+            long expected = i % 2 == 0 ? -1 : i;
+            Assert.assertEquals( "Wrong position retrieved for item " + i + ".", expected, file.find( createIdentity( "Identity-" + i ) ) );
+        }
+        final int[] visited = new int[1];
+        file.visit( new IdentityIndex.EntryVisitor()
+        {
+            public void visit( String identity, long pos )
+            {
+                visited[ 0 ]++;
+            }
+        } );
+        Assert.assertEquals( "Wrong number of entries visited.", 10000, visited[ 0 ] );
+    }
+
+    @Test
+    public void whenIdentitiesHaveEqualHashesExpectThemInOverflowBucket()
+        throws Exception
+    {
+        idFile = new File( "swift-store" );
+        idFile.mkdirs();
+        file = IdentityFile.create( idFile, 64, 10 );
+        // "Aa" and "BB" have the same hash code, and so have all strings made of them.
+        String[] identities = new String[64];
+        for( int i = 0; i < identities.length; i++ )
+        {
+            StringBuffer identity = new StringBuffer();
+            for( int bit = 0; bit < 6; bit++ )
+            {
+                identity.append( ( i >>> bit & 1 ) == 0 ? "Aa" : "BB" );
+            }
+            identities[ i ] = identity.toString();
+            file.remember( createIdentity( identities[ i ] ), i );
+        }
+        int entries = file.entries();
+        file.drop( createIdentity( identities[ 63 ] ) );
+        file.remember( createIdentity( identities[ 0 ] ), 100 );
+        for( int i = 1; i < 63; i++ )
+        {
+            Assert.assertEquals( "Wrong position retrieved for item " + i + ".", i, file.find( createIdentity( identities[ i ] ) ) );
+        }
+        Assert.assertEquals( "Wrong position retrieved.", 100, file.find( createIdentity( identities[ 0 ] ) ) );
+        Assert.assertEquals( "Dropped identity found.", -1, file.find( createIdentity( identities[ 63 ] ) ) );
+        Assert.assertTrue( "Buckets split in vain.", entries < 10000 );
+    }
+
+    @Test
+    public void whenMoreEqualHashesThanFitInAPageExpectThemBackAfterDropAndRemember()
+        throws Exception
+    {
+        idFile = new File( "swift-store" );
+        idFile.mkdirs();
+        file = IdentityFile.create( idFile, 64, 10 );
+        // "Aa" and "BB" have the same hash code, and so have all strings made of them.
+        String[] identities = new String[256];
+        for( int i = 0; i < identities.length; i++ )
+        {
+            StringBuffer identity = new StringBuffer();
+            for( int bit = 0; bit < 8; bit++ )
+            {
+                identity.append( ( i >>> bit & 1 ) == 0 ? "Aa" : "BB" );
+            }
+            identities[ i ] = identity.toString();
+            file.remember( createIdentity( identities[ i ] ), i );
+        }
+        int entries = file.entries();
+        file.drop( createIdentity( identities[ 255 ] ) );
+        file.remember( createIdentity( identities[ 0 ] ), 100 );
+        for( int i = 1; i < 255; i++ )
+        {
+            Assert.assertEquals( "Wrong position retrieved for item " + i + ".", i, file.find( createIdentity( identities[ i ] ) ) );
+        }
+        Assert.assertEquals( "Wrong position retrieved.", 100, file.find( createIdentity( identities[ 0 ] ) ) );
+        Assert.assertEquals( "Dropped identity found.", -1, file.find( createIdentity( identities[ 255 ] ) ) );
+        file.remember( createIdentity( identities[ 255 ] ), 255 );
+        Assert.assertEquals( "Wrong position retrieved.", 255, file.find( createIdentity( identities[ 255 ] ) ) );
+        Assert.assertTrue( "Buckets split in vain.", entries < 10000 );
+    }
+
+    @Test
+    public void whenOverflowedBucketIsSplitLaterExpectEqualHashesStillFound()
+        throws Exception
+    {
+        idFile = new File( "swift-store" );
+        idFile.mkdirs();
+        file = IdentityFile.create( idFile, 64, 10 );
+        // "Aa" and "BB" have the same hash code, and so have all strings made of them.
+        String[] identities = new String[256];
+        for( int i = 0; i < identities.length; i++ )
+        {
+            StringBuffer identity = new StringBuffer();
+            for( int bit = 0; bit < 8; bit++ )
+            {
+                identity.append( ( i >>> bit & 1 ) == 0 ? "Aa" : "BB" );
+            }
+            identities[ i ] = identity.toString();
+            file.remember( createIdentity( identities[ i ] ), i );
+        }
+        // Identities with other hashes fill the page of the overflowed bucket again, which splits it.
+        for( int i = 0; i < 5000; i++ )
+        {
+            file.remember( createIdentity( "habba" + i ), 1000 + i );
+        }
+        for( int i = 0; i < identities.length; i++ )
+        {
+            Assert.assertEquals( "Wrong position retrieved for item " + i + ".", i, file.find( createIdentity( identities[ i ] ) ) );
+        }
+        for( int i = 0; i < 5000; i++ )
+        {
+            Assert.assertEquals( "Wrong position retrieved for habba" + i + ".", 1000 + i, file.find( createIdentity( "habba" + i ) ) );
+        }
+        file.drop( createIdentity( identities[ 7 ] ) );
+        Assert.assertEquals( "Dropped identity found.", -1, file.find( createIdentity( identities[ 7 ] ) ) );
+        file.remember( createIdentity( identities[ 7 ] ), 7 );
+        final int[] visited = new int[1];
+        file.visit( new IdentityIndex.EntryVisitor()
+        {
+            public void visit( String identity, long pos )
+            {
+                visited[ 0 ]++;
+            }
+        } );
+        Assert.assertEquals( "Identities visited twice or not at all.", identities.length + 5000, visited[ 0 ] );
+    }
+
+    @Test
+    public void whenIdentitiesAreLongerThan255BytesExpectThemBackAfterReopen()
+        throws Exception
+    {
+        idFile = new File( "swift-store" );
+        idFile.mkdirs();
+        file = IdentityFile.create( idFile, 1024, 10 );
+        StringBuffer identity = new StringBuffer();
+        for( int i = 0; i < 1000; i++ )
+        {
+            identity.append( (char) ( 'a' + i % 26 ) );
+        }
+        for( int i = 0; i < 200; i++ )
+        {
+            file.remember( createIdentity( i + identity.substring( 0, 250 + i * 3 ) ), i );
+        }
+        file.drop( createIdentity( 7 + identity.substring( 0, 271 ) ) );
+        file.close();
+
+        file = IdentityFile.use( idFile );
+        for( int i = 0; i < 200; i++ )
+        {
+            long expected = i == 7 ? -1 : i;
+            Assert.assertEquals( "Wrong position retrieved for item " + i + ".", expected, file.find( createIdentity( i + identity.substring( 0, 250 + i * 3 ) ) ) );
+        }
+    }
+
+    @Test
+    public void whenOverflowIsPagedExpectEqualHashesBackAfterReopen()
+        throws Exception
+    {
+        idFile = new File( "swift-store" );
+        idFile.mkdirs();
+        StoreSettings settings = new StoreSettings();
+        settings.pagedOverflow = true;
+        file = IdentityFile.create( idFile, 64, 10, settings );
+        String[] identities = new String[256];
+        for( int i = 0; i < identities.length; i++ )
+        {
+            StringBuffer identity = new StringBuffer();
+            for( int bit = 0; bit < 8; bit++ )
+            {
+                identity.append( ( i >>> bit & 1 ) == 0 ? "Aa" : "BB" );
+            }
+            identities[ i ] = identity.toString();
+            file.remember( createIdentity( identities[ i ] ), i );
+        }
+        file.drop( createIdentity( identities[ 200 ] ) );
+        file.close();
+
+        try
+        {
+            IdentityFile.use( idFile );
+            Assert.fail( "Should not use paged overflow buckets as files." );
+        }
+        catch( MalformedIdentityDirectoryException e )
+        {
+            // expected, the index is rebuilt.
+        }
+        file = IdentityFile.use( idFile, settings );
+        for( int i = 0; i < identities.length; i++ )
+        {
+            long expected = i == 200 ? -1 : i;
+            Assert.assertEquals( "Wrong position retrieved for item " + i + ".", expected, file.find( createIdentity( identities[ i ] ) ) );
+        }
+    }
+
+    @Test
+    public void whenOpeningFixedSizeFileOfOlderVersionExpectException()
+        throws Exception
+    {
+        idFile = new File( "swift-store" );
+        idFile.mkdirs();
+        file = IdentityFile.create( idFile, 64, 10 );
+        file.close();
+        RandomAccessFile store = new RandomAccessFile( new File( idFile, "id-hash.data" ), "rw" );
+        store.writeInt( 1 );
+        store.close();
+        try
+        {
+            file = IdentityFile.use( idFile );
+            Assert.fail( "Should not use a file of version 1." );
+        }
+        catch( MalformedIdentityDirectoryException e )
+        {
+            // expected, the index is rebuilt.
+        }
+    }
+
     @After
     public void cleanUp()
     {
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.File;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdentityFilterTest
+{
+    @Test
+    public void whenAddedThenExpectNoFalseNegatives()
+    {
+        IdentityFilter filter = new IdentityFilter( 10000 );
+        for( int i = 0; i < 10000; i++ )
+        {
+            filter.add( "Identity-" + i );
+        }
+        for( int i = 0; i < 10000; i++ )
+        {
+            Assert.assertTrue( "Added identity rejected.", filter.mightContain( "Identity-" + i ) );
+        }
+        int passed = 0;
+        for( int i = 0; i < 10000; i++ )
+        {
+            if( filter.mightContain( "Unknown-" + i ) )
+            {
+                passed++;
+            }
+        }
+        Assert.assertTrue( "Too many false positives, " + passed, passed < 300 );
+        Assert.assertTrue( "Unexpected false positive rate.", filter.falsePositiveRate() < 0.03 );
+    }
+
+    @Test
+    public void whenRemovedThenExpectRejection()
+    {
+        IdentityFilter filter = new IdentityFilter( 100 );
+        filter.add( "first" );
+        filter.add( "second" );
+        filter.remove( "first" );
+        Assert.assertFalse( "Removed identity passed.", filter.mightContain( "first" ) );
+        Assert.assertTrue( "Remaining identity rejected.", filter.mightContain( "second" ) );
+        Assert.assertEquals( "Wrong number of entries.", 1, filter.entries() );
+    }
+
+    @Test
+    public void whenWrittenThenExpectSameFilterLoaded()
+        throws Exception
+    {
+        File file = new File( "swift-filter.data" );
+        try
+        {
+            IdentityFilter filter = new IdentityFilter( 2000 );
+            for( int i = 0; i < 2000; i++ )
+            {
+                filter.add( "Identity-" + i );
+            }
+            filter.write( file );
+            IdentityFilter loaded = IdentityFilter.load( file );
+            Assert.assertEquals( "Wrong number of entries.", 2000, loaded.entries() );
+            Assert.assertEquals( "Wrong size.", filter.size(), loaded.size() );
+            for( int i = 0; i < 2000; i++ )
+            {
+                Assert.assertTrue( "Added identity rejected.", loaded.mightContain( "Identity-" + i ) );
+            }
+        }
+        finally
+        {
+            FileUtils.delete( file );
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.qi4j.api.entity.EntityReference;
+
+public class MemoryIdentityIndexTest
+{
+    private File idDir = new File( "swift-store" );
+    private MemoryIdentityIndex index;
+
+    @Test
+    public void whenCreatingAnEntryThenGetTheResultBack()
+        throws Exception
+    {
+        index = MemoryIdentityIndex.create( idDir, 10 );
+        long value = 9783249823L;
+        EntityReference identity = createIdentity( "SomeIdentity" );
+        index.remember( identity, value );
+        Assert.assertEquals( "Wrong position retrieved for item.", value, index.find( identity ) );
+        Assert.assertEquals( "Unknown identity found.", -1, index.find( createIdentity( "OtherIdentity" ) ) );
+    }
+
+    @Test
+    public void whenRememberingAgainThenExpectNewPosition()
+        throws Exception
+    {
+        index = MemoryIdentityIndex.create( idDir, 10 );
+        EntityReference identity = createIdentity( "SomeIdentity" );
+        index.remember( identity, 12 );
+        index.remember( identity, 34 );
+        Assert.assertEquals( "Wrong position retrieved for item.", 34, index.find( identity ) );
+        Assert.assertEquals( "Duplicate entry.", 1, index.size() );
+    }
+
+    @Test
+    public void whenGrowingBeyondCapacityThenGetAllResultsBack()
+        throws Exception
+    {
+        index = MemoryIdentityIndex.create( idDir, 1 );
+        for( int i = 0; i < 10000; i++ )
+        {
+            index.remember( createIdentity( "Identity-" + i ), i * 100L );
+        }
+        for( int i = 0; i < 10000; i++ )
+        {
+            Assert.assertEquals( "Wrong position retrieved for item " + i + ".", i * 100L, index.find( createIdentity( "Identity-" + i ) ) );
+        }
+    }
+
+    @Test
+    public void whenDroppingAndReaddingThenGetTheResultBack()
+        throws Exception
+    {
+        index = MemoryIdentityIndex.create( idDir, 1 );
+        for( int round = 0; round < 5; round++ )
+        {
+            for( int i = 0; i < 3000; i++ )
+            {
+                index.remember( createIdentity( "Identity-" + i ), i + round );
+            }
+            for( int i = 0; i < 3000; i = i + 2 )
+            {
+                index.drop( createIdentity( "Identity-" + i ) );
+            }
+        }
+        for( int i = 0; i < 3000; i++ )
+        {
+            long expected = i % 2 == 0 ? -1 : i + 4;
+            Assert.assertEquals( "Wrong position retrieved for item " + i + ".", expected, index.find( createIdentity( "Identity-" + i ) ) );
+        }
+    }
+
+    @Test
+    public void whenIdentityIsNotAsciiThenGetTheResultBack()
+        throws Exception
+    {
+        index = MemoryIdentityIndex.create( idDir, 10 );
+        EntityReference identity = createIdentity( "\u00e5\u00e4\u00f6-\u20ac-\ud834\udd1e" );
+        index.remember( identity, 42 );
+        Assert.assertEquals( "Wrong position retrieved for item.", 42, index.find( identity ) );
+        Assert.assertEquals( "Prefix matched.", -1, index.find( createIdentity( "\u00e5\u00e4\u00f6-\u20ac-" ) ) );
+    }
+
+    @Test
+    public void whenClosedThenLoadTheSnapshot()
+        throws Exception
+    {
+        index = MemoryIdentityIndex.create( idDir, 10 );
+        for( int i = 0; i < 500; i++ )
+        {
+            index.remember( createIdentity( "Identity-" + i ), i );
+        }
+        index.drop( createIdentity( "Identity-17" ) );
+        index.close();
+
+        index = MemoryIdentityIndex.load( idDir );
+        Assert.assertEquals( "Wrong number of entries.", 499, index.size() );
+        Assert.assertEquals( "Dropped identity found.", -1, index.find( createIdentity( "Identity-17" ) ) );
+        for( int i = 0; i < 500; i++ )
+        {
+            if( i != 17 )
+            {
+                Assert.assertEquals( "Wrong position retrieved for item " + i + ".", i, index.find( createIdentity( "Identity-" + i ) ) );
+            }
+        }
+    }
+
+    @After
+    public void cleanUp()
+        throws IOException
+    {
+        if( index != null )
+        {
+            index.close();
+        }
+        FileUtils.delete( idDir );
+    }
+
+    private EntityReference createIdentity( String identity )
+    {
+        return new EntityReference( identity );
+    }
+}
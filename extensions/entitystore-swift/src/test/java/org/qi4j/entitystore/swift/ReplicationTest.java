@@ -0,0 +1,194 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.swift;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.qi4j.api.entity.EntityReference;
+
+public class ReplicationTest
+{
+    @Test
+    public void whenCommittingOnLeaderThenExpectChangesOnFollower()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        File replicaDir = new File( "swift-replica" );
+        try
+        {
+            HeapSegments leaderStore = new HeapSegments( dir, 2, false, new StoreSettings() );
+            ReplicationLog log = new ReplicationLog( 0 );
+            leaderStore.publishTo( log );
+            ReplicationLeader leader = new ReplicationLeader( leaderStore, log, 0 );
+            leader.start();
+            HeapSegments followerStore = new HeapSegments( replicaDir, 2, false, new StoreSettings() );
+            ReplicationFollower follower = new ReplicationFollower( followerStore, replicaDir, "localhost", leader.port() );
+            follower.start();
+
+            for( int i = 0; i < 100; i++ )
+            {
+                put( leaderStore, "habba" + i, "Habba " + i );
+            }
+            CommitRequest request = new CommitRequest();
+            request.remove( createReference( "habba7" ) );
+            leaderStore.commit( request );
+            waitForSync( follower );
+            for( int i = 0; i < 100; i++ )
+            {
+                DataBlock data = followerStore.readData( createReference( "habba" + i ) );
+                if( i == 7 )
+                {
+                    Assert.assertNull( "Deleted entity replicated.", data );
+                }
+                else
+                {
+                    Assert.assertEquals( "Incorrect Data replicated.", "Habba " + i, new String( data.data ) );
+                }
+            }
+
+            // A restarted follower continues where it stopped.
+            follower.stop();
+            followerStore.close();
+            put( leaderStore, "habba7", "Habba 7 again" );
+            followerStore = new HeapSegments( replicaDir, 2, false, new StoreSettings() );
+            follower = new ReplicationFollower( followerStore, replicaDir, "localhost", leader.port() );
+            follower.start();
+            waitForSync( follower );
+            DataBlock data = followerStore.readData( createReference( "habba7" ) );
+            Assert.assertEquals( "Incorrect Data replicated.", "Habba 7 again", new String( data.data ) );
+            Assert.assertEquals( "Follower resynchronized.", log.lastSequence(), readAppliedSequence( replicaDir ) );
+
+            follower.stop();
+            followerStore.close();
+            leader.stop();
+            leaderStore.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+            FileUtils.delete( replicaDir );
+        }
+    }
+
+    @Test
+    public void whenFollowerFallsBehindTheLogThenExpectFullSync()
+        throws Exception
+    {
+        File dir = new File( "swift-store" );
+        File replicaDir = new File( "swift-replica" );
+        try
+        {
+            HeapSegments leaderStore = new HeapSegments( dir, 2, false, new StoreSettings() );
+            ReplicationLog log = new ReplicationLog( 2 );
+            leaderStore.publishTo( log );
+            ReplicationLeader leader = new ReplicationLeader( leaderStore, log, 0 );
+            leader.start();
+            HeapSegments followerStore = new HeapSegments( replicaDir, 2, false, new StoreSettings() );
+            ReplicationFollower follower = new ReplicationFollower( followerStore, replicaDir, "localhost", leader.port() );
+            follower.start();
+            for( int i = 0; i < 10; i++ )
+            {
+                put( leaderStore, "habba" + i, "Habba " + i );
+            }
+            waitForSync( follower );
+            follower.stop();
+            followerStore.close();
+
+            // Far more batches than the log keeps.
+            for( int i = 0; i < 10; i++ )
+            {
+                CommitRequest request = new CommitRequest();
+                request.remove( createReference( "habba" + i ) );
+                leaderStore.commit( request );
+            }
+            for( int i = 10; i < 20; i++ )
+            {
+                put( leaderStore, "habba" + i, "Habba " + i );
+            }
+            followerStore = new HeapSegments( replicaDir, 2, false, new StoreSettings() );
+            follower = new ReplicationFollower( followerStore, replicaDir, "localhost", leader.port() );
+            follower.start();
+            waitForSync( follower );
+            for( int i = 0; i < 20; i++ )
+            {
+                DataBlock data = followerStore.readData( createReference( "habba" + i ) );
+                if( i < 10 )
+                {
+                    Assert.assertNull( "Deleted entity kept.", data );
+                }
+                else
+                {
+                    Assert.assertEquals( "Incorrect Data replicated.", "Habba " + i, new String( data.data ) );
+                }
+            }
+            follower.stop();
+            followerStore.close();
+            leader.stop();
+            leaderStore.close();
+        }
+        finally
+        {
+            FileUtils.delete( dir );
+            FileUtils.delete( replicaDir );
+        }
+    }
+
+    private void put( HeapSegments segments, String identity, String value )
+        throws Exception
+    {
+        CommitRequest request = new CommitRequest();
+        request.put( new DataBlock( createReference( identity ), value.getBytes(), 0, 0 ) );
+        segments.commit( request );
+    }
+
+    private void waitForSync( ReplicationFollower follower )
+        throws InterruptedException
+    {
+        // The lag is only 0 once a heartbeat has confirmed that nothing more is coming.
+        long timeout = System.currentTimeMillis() + 10000;
+        Thread.sleep( 2 * ReplicationLeader.HEARTBEAT_INTERVAL );
+        while( follower.lag() > 0 )
+        {
+            Assert.assertTrue( "Follower did not catch up.", System.currentTimeMillis() < timeout );
+            Thread.sleep( 10 );
+        }
+    }
+
+    private long readAppliedSequence( File replicaDir )
+        throws Exception
+    {
+        DataInputStream in = new DataInputStream( new FileInputStream( new File( replicaDir, "replica.data" ) ) );
+        try
+        {
+            in.readLong();
+            return in.readLong();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private EntityReference createReference( String identity )
+    {
+        return new EntityReference( identity );
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.qi4j.entitystore.swift;
+
+import org.qi4j.test.entity.performance.AbstractEntityStorePerformanceTest;
+import org.qi4j.bootstrap.Assembler;
+
+public class SwiftStoreMappedPerformanceTest extends AbstractEntityStorePerformanceTest
+{
+    public SwiftStoreMappedPerformanceTest()
+    {
+        super( "SwiftEntityStore-Mapped", createAssembler() );
+    }
+
+    private static Assembler createAssembler()
+    {
+        return new SwiftEntityStoreAssembler( "config", "SwiftMappedEntityStoreService" );
+    }
+}
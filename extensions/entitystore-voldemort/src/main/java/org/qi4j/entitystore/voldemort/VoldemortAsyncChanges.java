@@ -0,0 +1,41 @@
+/*  Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.entitystore.voldemort;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import org.qi4j.entitystore.map.MapEntityStore;
+
+/**
+ * Changes to the Voldemort store that are written without blocking the caller.
+ */
+public interface VoldemortAsyncChanges
+{
+    /**
+     * Applies the changes in the background. The entity states are serialized by the calling thread, and written
+     * to Voldemort by the writer thread of the store, in the order of the calls, and before the writes of a later
+     * applyChanges. When too many writes are waiting, the calling thread waits. The changes are outside of any
+     * unit of work, and are not checked for concurrent modifications or notified.
+     *
+     * @param changes The changes.
+     * @return The future of the write, which fails with the exception that applyChanges would throw.
+     * @throws IOException if the changes can not be serialized.
+     * @throws java.util.concurrent.RejectedExecutionException if the store is passivated.
+     */
+    Future<Void> applyChangesAsync( MapEntityStore.MapChanges changes )
+        throws IOException;
+}
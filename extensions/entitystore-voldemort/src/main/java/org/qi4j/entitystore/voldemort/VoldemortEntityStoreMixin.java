@@ -19,10 +19,14 @@ package org.qi4j.entitystore.voldemort;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import org.qi4j.api.configuration.Configuration;
@@ -31,6 +35,8 @@ import org.qi4j.api.injection.scope.This;
 import org.qi4j.api.injection.scope.Uses;
 import org.qi4j.api.service.Activatable;
 import org.qi4j.entitystore.map.MapEntityStore;
+import org.qi4j.library.executor.SerialExecutor;
+import org.qi4j.library.utf8.PooledUtf8Writer;
 import org.qi4j.spi.entity.EntityType;
 import org.qi4j.spi.entitystore.EntityNotFoundException;
 import org.qi4j.spi.entitystore.EntityStoreException;
@@ -48,8 +54,11 @@ import voldemort.versioning.Versioned;
  * JDBM implementation of SerializationStore
  */
 public class VoldemortEntityStoreMixin
-    implements Activatable, MapEntityStore
+    implements Activatable, MapEntityStore, VoldemortAsyncChanges
 {
+    private static final int ASYNC_QUEUE_SIZE = 64;
+    private static final long ASYNC_SHUTDOWN_TIMEOUT = 60000;
+
     @This
     private ReadWriteLock lock;
 
@@ -60,6 +69,7 @@ public class VoldemortEntityStoreMixin
     private ServiceDescriptor descriptor;
     private StoreClient<String, byte[]> client;
     private StoreClientFactory factory;
+    private SerialExecutor asyncWriter;
 
     // Activatable implementation
 
@@ -262,12 +272,13 @@ public class VoldemortEntityStoreMixin
         if( storeName == null)
             storeName = "qi4j-entities";
         client = factory.getStoreClient( storeName );
-
+        asyncWriter = new SerialExecutor( descriptor.identity(), ASYNC_QUEUE_SIZE );
     }
 
     public void passivate()
         throws Exception
     {
+        asyncWriter.close( ASYNC_SHUTDOWN_TIMEOUT );
         factory.close();
     }
 
@@ -293,6 +304,38 @@ public class VoldemortEntityStoreMixin
     public void applyChanges( MapChanges changes )
         throws IOException
     {
+        Map<String, byte[]> states = collect( changes );
+        asyncWriter.awaitSubmitted();
+        write( states );
+    }
+
+    public Future<Void> applyChangesAsync( MapChanges changes )
+        throws IOException
+    {
+        asyncWriter.checkOpen();
+        final Map<String, byte[]> states = collect( changes );
+        return asyncWriter.submit( new Callable<Void>()
+        {
+            public Void call()
+                throws IOException
+            {
+                write( states );
+                return null;
+            }
+        } );
+    }
+
+    /**
+     * Serializes the changes, without writing them to Voldemort.
+     *
+     * @param changes The changes.
+     * @return The new states by identity, in the order of the changes, with null for the removed entities.
+     * @throws IOException if the changes can not be serialized.
+     */
+    private Map<String, byte[]> collect( MapChanges changes )
+        throws IOException
+    {
+        final Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
         try
         {
             changes.visitMap( new MapChanger()
@@ -300,15 +343,11 @@ public class VoldemortEntityStoreMixin
                 public Writer newEntity( final EntityReference ref, EntityType entityType )
                     throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override
-                        public void close()
-                            throws IOException
+                        protected void closed( byte[] buffer, int length )
                         {
-                            super.close();
-                            byte[] stateArray = toString().getBytes( "UTF-8" );
-                            client.put( ref.identity(), stateArray );
+                            states.put( ref.identity(), Arrays.copyOf( buffer, length ) );
                         }
                     };
                 }
@@ -316,53 +355,74 @@ public class VoldemortEntityStoreMixin
                 public Writer updateEntity( final EntityReference ref, EntityType entityType )
                     throws IOException
                 {
-                    return new StringWriter( 1000 )
+                    return new PooledUtf8Writer()
                     {
-                        @Override
-                        public void close()
-                            throws IOException
+                        protected void closed( byte[] buffer, int length )
                         {
-                            super.close();
-                            byte[] stateArray = toString().getBytes( "UTF-8" );
-                            try
-                            {
-                                client.put( ref.identity(), stateArray );
-                            }
-                            catch( ObsoleteVersionException e )
-                            {
-                                throw new ConcurrentModificationException(
-                                    "Concurrent modification attempted for " + ref.identity() );
-                            }
+                            states.put( ref.identity(), Arrays.copyOf( buffer, length ) );
                         }
-                    }
-
-                        ;
+                    };
                 }
 
                 public void removeEntity( EntityReference ref, EntityType entityType )
                     throws EntityNotFoundException
                 {
-                    client.delete( ref.identity() );
+                    states.put( ref.identity(), null );
                 }
             } );
         }
         catch( Exception e )
         {
-            if( e instanceof IOException )
-            {
-                throw (IOException) e;
-            }
-            else if( e instanceof EntityStoreException )
-            {
-                throw (EntityStoreException) e;
-            }
-            else
+            throw rethrow( e );
+        }
+        return states;
+    }
+
+    private void write( Map<String, byte[]> states )
+        throws IOException
+    {
+        try
+        {
+            for( Map.Entry<String, byte[]> state : states.entrySet() )
             {
-                IOException exception = new IOException();
-                exception.initCause( e );
-                throw exception;
+                if( state.getValue() == null )
+                {
+                    client.delete( state.getKey() );
+                    continue;
+                }
+                try
+                {
+                    client.put( state.getKey(), state.getValue() );
+                }
+                catch( ObsoleteVersionException e )
+                {
+                    throw new ConcurrentModificationException(
+                        "Concurrent modification attempted for " + state.getKey() );
+                }
             }
         }
+        catch( Exception e )
+        {
+            throw rethrow( e );
+        }
+    }
+
+    private static IOException rethrow( Exception e )
+    {
+        if( e instanceof IOException )
+        {
+            return (IOException) e;
+        }
+        else if( e instanceof EntityStoreException )
+        {
+            throw (EntityStoreException) e;
+        }
+        else
+        {
+            IOException exception = new IOException();
+            exception.initCause( e );
+            return exception;
+        }
     }
 
     public void visitMap( MapEntityStoreVisitor visitor )
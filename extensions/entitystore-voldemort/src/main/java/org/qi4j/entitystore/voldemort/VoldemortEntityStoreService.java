@@ -44,7 +44,8 @@ public interface VoldemortEntityStoreService
             ServiceComposite,
             Activatable,
             LockingAbstractComposite,
-            Configuration
+            Configuration,
+            VoldemortAsyncChanges
 
 {
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.library.executor;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks one at a time, in the order that they were submitted, on a single background thread. It is meant for
+ * the writes that an entity store accepts without blocking the caller, so that a later write of an entity is never
+ * overtaken by an earlier one.
+ * <p>
+ * The number of tasks that can wait is bounded, and a submit blocks until there is room, so a caller that is faster
+ * than the backend is slowed down to its speed. After close() every submit is rejected with a
+ * RejectedExecutionException.
+ * </p>
+ */
+public final class SerialExecutor
+{
+    private final String name;
+    private final int maxBacklog;
+    private final Semaphore backlog;
+    private final ThreadPoolExecutor executor;
+    private volatile boolean closed;
+
+    /**
+     * @param name       The name of the owner, which is used for the thread and in the message of a rejection.
+     * @param maxBacklog The number of tasks that can be submitted and not yet done.
+     */
+    public SerialExecutor( final String name, int maxBacklog )
+    {
+        if( maxBacklog <= 0 )
+        {
+            throw new IllegalArgumentException( "maxBacklog must be positive: " + maxBacklog );
+        }
+        this.name = name;
+        this.maxBacklog = maxBacklog;
+        backlog = new Semaphore( maxBacklog );
+        // The queue is bounded by the backlog semaphore, and a single thread keeps the tasks in order.
+        executor = new ThreadPoolExecutor( 1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                           new ThreadFactory()
+                                           {
+                                               public Thread newThread( Runnable runnable )
+                                               {
+                                                   Thread thread = new Thread( runnable, name + " writer" );
+                                                   thread.setDaemon( true );
+                                                   return thread;
+                                               }
+                                           } );
+        executor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Lets a caller fail before it prepares a task for an executor that is closed.
+     *
+     * @throws RejectedExecutionException if the executor is closed.
+     */
+    public void checkOpen()
+        throws RejectedExecutionException
+    {
+        if( closed )
+        {
+            throw rejected();
+        }
+    }
+
+    /**
+     * Submits a task, after the ones that were submitted before it. Blocks while the backlog is full.
+     *
+     * @param task The task.
+     * @return The future of the task, which fails with the exception that the task throws.
+     * @throws RejectedExecutionException if the executor is closed, or the calling thread is interrupted while it
+     *                                    waits for room in the backlog.
+     */
+    public <T> Future<T> submit( Callable<T> task )
+        throws RejectedExecutionException
+    {
+        checkOpen();
+        try
+        {
+            backlog.acquire();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException( "Interrupted while waiting for the backlog of " + name + "." );
+        }
+        // The permit is released when the worker takes the task off the queue, and not when the future is done, as
+        // a task that is cancelled while it waits stays in the queue until then.
+        FutureTask<T> future = new FutureTask<T>( task )
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    super.run();
+                }
+                finally
+                {
+                    backlog.release();
+                }
+            }
+        };
+        try
+        {
+            executor.execute( future );
+        }
+        catch( RejectedExecutionException e )
+        {
+            backlog.release();
+            throw rejected();
+        }
+        return future;
+    }
+
+    /**
+     * Waits until the tasks that were submitted before this call are done. Returns at once if there are none, so a
+     * caller that writes by itself can keep its write after the ones that it submitted earlier, at no cost when it
+     * didn't submit any.
+     *
+     * @throws InterruptedIOException if the calling thread is interrupted while it waits.
+     */
+    public void awaitSubmitted()
+        throws InterruptedIOException
+    {
+        if( closed || backlog.availablePermits() == maxBacklog )
+        {
+            return;
+        }
+        Future<Void> marker;
+        try
+        {
+            marker = submit( new Callable<Void>()
+            {
+                public Void call()
+                {
+                    return null;
+                }
+            } );
+        }
+        catch( RejectedExecutionException e )
+        {
+            if( closed )
+            {
+                // Closing waits for the submitted tasks.
+                return;
+            }
+            throw interrupted();
+        }
+        try
+        {
+            marker.get();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw interrupted();
+        }
+        catch( ExecutionException e )
+        {
+            // The marker doesn't throw.
+        }
+    }
+
+    /**
+     * Rejects the tasks that are submitted from now on, and waits for the ones that were accepted.
+     *
+     * @param timeout The time in milliseconds to wait for the accepted tasks.
+     * @return true if all the accepted tasks are done, false if the timeout elapsed first.
+     * @throws InterruptedException if the calling thread is interrupted while it waits.
+     */
+    public boolean close( long timeout )
+        throws InterruptedException
+    {
+        closed = true;
+        executor.shutdown();
+        return executor.awaitTermination( timeout, TimeUnit.MILLISECONDS );
+    }
+
+    private InterruptedIOException interrupted()
+    {
+        return new InterruptedIOException( "Interrupted while waiting for the earlier tasks of " + name + "." );
+    }
+
+    private RejectedExecutionException rejected()
+    {
+        return new RejectedExecutionException( name + " is passivated, and accepts no more asynchronous changes." );
+    }
+}
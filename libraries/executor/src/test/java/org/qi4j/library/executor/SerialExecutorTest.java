@@ -0,0 +1,248 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.library.executor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SerialExecutorTest
+{
+    @Test
+    public void whenSubmittingManyTasksThenExpectThemRunInSubmissionOrder()
+        throws Exception
+    {
+        SerialExecutor executor = new SerialExecutor( "Test", 8 );
+        final List<Integer> done = Collections.synchronizedList( new ArrayList<Integer>() );
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for( int i = 0; i < 200; i++ )
+        {
+            final int task = i;
+            futures.add( executor.submit( new Callable<Integer>()
+            {
+                public Integer call()
+                    throws Exception
+                {
+                    if( task % 7 == 0 )
+                    {
+                        Thread.sleep( 1 );
+                    }
+                    done.add( task );
+                    return task;
+                }
+            } ) );
+        }
+        for( int i = 0; i < futures.size(); i++ )
+        {
+            Assert.assertEquals( "Wrong result.", Integer.valueOf( i ), futures.get( i ).get() );
+        }
+        for( int i = 0; i < done.size(); i++ )
+        {
+            Assert.assertEquals( "Task run out of order.", Integer.valueOf( i ), done.get( i ) );
+        }
+        Assert.assertTrue( "Tasks not done before close returned.", executor.close( 10000 ) );
+    }
+
+    @Test
+    public void whenTaskFailsThenExpectExceptionInFutureAndLaterTasksRun()
+        throws Exception
+    {
+        SerialExecutor executor = new SerialExecutor( "Test", 8 );
+        Future<Void> failing = executor.submit( new Callable<Void>()
+        {
+            public Void call()
+                throws Exception
+            {
+                throw new IOException( "Disk full" );
+            }
+        } );
+        Future<String> next = executor.submit( new Callable<String>()
+        {
+            public String call()
+            {
+                return "written";
+            }
+        } );
+        try
+        {
+            failing.get();
+            Assert.fail( "Failure not propagated." );
+        }
+        catch( ExecutionException e )
+        {
+            Assert.assertTrue( "Wrong cause.", e.getCause() instanceof IOException );
+            Assert.assertEquals( "Wrong cause.", "Disk full", e.getCause().getMessage() );
+        }
+        Assert.assertEquals( "Later task not run.", "written", next.get() );
+        executor.close( 10000 );
+    }
+
+    @Test
+    public void whenSubmittingAfterCloseThenExpectRejectedAndAcceptedTasksDone()
+        throws Exception
+    {
+        SerialExecutor executor = new SerialExecutor( "Test store", 8 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        Future<String> accepted = executor.submit( new Callable<String>()
+        {
+            public String call()
+                throws Exception
+            {
+                release.await( 10, TimeUnit.SECONDS );
+                return "written";
+            }
+        } );
+        release.countDown();
+        Assert.assertTrue( "Accepted task not waited for.", executor.close( 10000 ) );
+        Assert.assertTrue( "Accepted task not done.", accepted.isDone() );
+        Assert.assertEquals( "Accepted task dropped.", "written", accepted.get() );
+        try
+        {
+            executor.submit( new Callable<Void>()
+            {
+                public Void call()
+                {
+                    return null;
+                }
+            } );
+            Assert.fail( "Task accepted after close." );
+        }
+        catch( RejectedExecutionException e )
+        {
+            Assert.assertTrue( "Message does not name the owner.", e.getMessage().startsWith( "Test store" ) );
+        }
+    }
+
+    @Test
+    public void whenBacklogIsFullThenExpectSubmitToWait()
+        throws Exception
+    {
+        final SerialExecutor executor = new SerialExecutor( "Test", 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        executor.submit( new Callable<Void>()
+        {
+            public Void call()
+                throws Exception
+            {
+                release.await( 10, TimeUnit.SECONDS );
+                return null;
+            }
+        } );
+        final CountDownLatch submitted = new CountDownLatch( 1 );
+        Thread submitter = new Thread()
+        {
+            @Override public void run()
+            {
+                executor.submit( new Callable<Void>()
+                {
+                    public Void call()
+                    {
+                        return null;
+                    }
+                } );
+                submitted.countDown();
+            }
+        };
+        submitter.start();
+        Assert.assertFalse( "Submit did not wait for the backlog.", submitted.await( 200, TimeUnit.MILLISECONDS ) );
+        release.countDown();
+        Assert.assertTrue( "Submit not accepted when the backlog cleared.", submitted.await( 10, TimeUnit.SECONDS ) );
+        executor.close( 10000 );
+    }
+
+    @Test
+    public void whenQueuedTaskIsCancelledThenExpectItToHoldItsPlaceInTheBacklog()
+        throws Exception
+    {
+        final SerialExecutor executor = new SerialExecutor( "Test", 2 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        executor.submit( new Callable<Void>()
+        {
+            public Void call()
+                throws Exception
+            {
+                release.await( 10, TimeUnit.SECONDS );
+                return null;
+            }
+        } );
+        Future<Void> queued = executor.submit( new Callable<Void>()
+        {
+            public Void call()
+            {
+                return null;
+            }
+        } );
+        Assert.assertTrue( "Queued task not cancelled.", queued.cancel( false ) );
+        final CountDownLatch submitted = new CountDownLatch( 1 );
+        Thread submitter = new Thread()
+        {
+            @Override public void run()
+            {
+                executor.submit( new Callable<Void>()
+                {
+                    public Void call()
+                    {
+                        return null;
+                    }
+                } );
+                submitted.countDown();
+            }
+        };
+        submitter.start();
+        Assert.assertFalse( "Cancelled task left the backlog before it left the queue.", submitted.await( 200, TimeUnit.MILLISECONDS ) );
+        release.countDown();
+        Assert.assertTrue( "Submit not accepted when the backlog cleared.", submitted.await( 10, TimeUnit.SECONDS ) );
+        executor.awaitSubmitted();
+        Assert.assertTrue( "Tasks not done before close returned.", executor.close( 10000 ) );
+    }
+
+    @Test
+    public void whenAwaitingSubmittedThenExpectEarlierTasksDone()
+        throws Exception
+    {
+        SerialExecutor executor = new SerialExecutor( "Test", 8 );
+        final List<Integer> done = Collections.synchronizedList( new ArrayList<Integer>() );
+        for( int i = 0; i < 5; i++ )
+        {
+            final int task = i;
+            executor.submit( new Callable<Void>()
+            {
+                public Void call()
+                    throws Exception
+                {
+                    Thread.sleep( 10 );
+                    done.add( task );
+                    return null;
+                }
+            } );
+        }
+        executor.awaitSubmitted();
+        Assert.assertEquals( "Earlier tasks not done.", 5, done.size() );
+        executor.close( 10000 );
+        executor.awaitSubmitted();
+    }
+}
@@ -0,0 +1,947 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.library.statecodec;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Binary format of the JSON states, which is read and written without a tree of JSON objects in between.
+ * <p/>
+ * A state starts with a zero byte, which JSON text never does, and the version of the format. Every value after
+ * that starts with a tag byte. Strings are the length, as a varint, and the UTF-8 bytes, integers that fit in a long
+ * are zigzag varints, and other numbers are kept as their text. The keys of the state, and the names of its
+ * properties and associations, are numbers in the NameDictionary. All other keys, like those of map properties,
+ * are written out in full, so the dictionary only grows with the schema. An object is ended by a zero key, and an
+ * array by a zero tag.
+ * <p/>
+ * The JSON that is decoded is equal to the JSON that was encoded, but without the whitespace and with the escapes
+ * of strings written the same way in all states.
+ * <p/>
+ * The codec is used by all the threads of a store at once. The numbers of the keys are looked up by their UTF-8
+ * bytes, and the quoted keys by their numbers, in tables that are read without a lock, so that the keys are neither
+ * decoded nor quoted again for every state.
+ */
+public final class BinaryStateCodec
+    implements EntityStateCodec
+{
+    private static final byte MARKER = 0;
+    private static final byte VERSION = 1;
+
+    private static final int END = 0;
+    private static final int OBJECT = 1;
+    private static final int ARRAY = 2;
+    private static final int STRING = 3;
+    private static final int INTEGER = 4;
+    private static final int NUMBER = 5;
+    private static final int TRUE = 6;
+    private static final int FALSE = 7;
+    private static final int NULL = 8;
+
+    private static final int END_OF_OBJECT = 0;
+    private static final int INLINE_NAME = 1;
+    private static final int FIRST_NAME_NUMBER = 2;
+
+    // Which keys of an object are put in the dictionary.
+    private static final int STATE_KEYS = 0;
+    private static final int SCHEMA_KEYS = 1;
+    private static final int DATA_KEYS = 2;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int MAX_ESCAPE_LENGTH = 6;
+    private static final byte[] TRUE_TEXT = ascii( "true" );
+    private static final byte[] FALSE_TEXT = ascii( "false" );
+    private static final byte[] NULL_TEXT = ascii( "null" );
+    private static final byte[][] SCHEMA_SECTIONS = { ascii( "properties" ), ascii( "associations" ),
+                                                      ascii( "manyassociations" ) };
+
+    private final NameDictionary names;
+    // The numbers of the keys that were encoded, by their UTF-8 bytes, replaced as a whole when a key is added.
+    private volatile NameTable nameTable = new NameTable( 64 );
+    // The UTF-8 bytes of the keys that were decoded, quoted, by their numbers. An entry is only set once.
+    private volatile byte[][] quotedNames = new byte[64][];
+
+    public BinaryStateCodec( NameDictionary names )
+    {
+        this.names = names;
+    }
+
+    public byte[] encode( byte[] json, int offset, int length )
+        throws IOException
+    {
+        Encoder encoder = new Encoder( json, offset, offset + length, length );
+        encoder.writeByte( MARKER );
+        encoder.writeByte( VERSION );
+        encoder.value( STATE_KEYS );
+        encoder.skipWhitespace();
+        if( encoder.pos != encoder.end )
+        {
+            throw encoder.error( "Unexpected data after the state" );
+        }
+        return Arrays.copyOf( encoder.buffer, encoder.count );
+    }
+
+    public boolean isEncoded( byte[] data, int offset, int length )
+    {
+        return length >= 2 && data[ offset ] == MARKER;
+    }
+
+    public String decode( byte[] data, int offset, int length )
+        throws IOException
+    {
+        if( !isEncoded( data, offset, length ) )
+        {
+            throw new IOException( "Not a binary state." );
+        }
+        if( data[ offset + 1 ] != VERSION )
+        {
+            throw new IOException( "Unknown version " + data[ offset + 1 ] + " of binary state." );
+        }
+        Decoder decoder = new Decoder( data, offset + 2, offset + length );
+        decoder.value( decoder.readByte() );
+        if( decoder.pos != decoder.end )
+        {
+            throw new IOException( "Unexpected data after the binary state." );
+        }
+        return decoder.toJson();
+    }
+
+    /* Looks up the number of a key of a state, from the UTF-8 bytes of its name. */
+
+    private int nameNumber( byte[] bytes, int offset, int length )
+        throws IOException
+    {
+        int hash = NameTable.hash( bytes, offset, length );
+        int number = nameTable.find( bytes, offset, length, hash );
+        return number != NameTable.NOT_FOUND ? number : addName( bytes, offset, length, hash );
+    }
+
+    private synchronized int addName( byte[] bytes, int offset, int length, int hash )
+        throws IOException
+    {
+        NameTable table = nameTable;
+        int number = table.find( bytes, offset, length, hash );
+        if( number == NameTable.NOT_FOUND )
+        {
+            // Names that the dictionary doesn't take are never taken, so the -1 is kept as well.
+            number = names.number( new String( bytes, offset, length, "UTF-8" ) );
+            nameTable = table.with( Arrays.copyOfRange( bytes, offset, offset + length ), hash, number );
+        }
+        return number;
+    }
+
+    private byte[] quotedName( int number )
+        throws IOException
+    {
+        byte[][] quoted = quotedNames;
+        byte[] name = number >= 0 && number < quoted.length ? quoted[ number ] : null;
+        return name != null ? name : addQuotedName( number );
+    }
+
+    private synchronized byte[] addQuotedName( int number )
+        throws IOException
+    {
+        byte[] name = names.name( number ).getBytes( "UTF-8" );
+        byte[] json = new byte[name.length * MAX_ESCAPE_LENGTH + 2];
+        json[ 0 ] = '"';
+        int length = escape( name, 0, name.length, json, 1 );
+        json[ length++ ] = '"';
+        byte[][] quoted = quotedNames;
+        if( number >= quoted.length )
+        {
+            quoted = Arrays.copyOf( quoted, Math.max( number + 1, quoted.length * 2 ) );
+        }
+        quoted[ number ] = Arrays.copyOf( json, length );
+        quotedNames = quoted;
+        return quoted[ number ];
+    }
+
+    /* The end of the bytes of a string, starting at from, that can be put in JSON as they are. */
+
+    private static int plainEnd( byte[] bytes, int from, int to )
+    {
+        int plain = from;
+        while( plain < to && ( bytes[ plain ] < 0 || bytes[ plain ] >= 0x20 && bytes[ plain ] != '"'
+                                                      && bytes[ plain ] != '\\' ) )
+        {
+            plain++;
+        }
+        return plain;
+    }
+
+    /**
+     * Writes the UTF-8 bytes of a string, with the escapes of JSON. The bytes of non-ASCII characters need none.
+     *
+     * @return The position after the escaped bytes, which take at most MAX_ESCAPE_LENGTH times as many bytes.
+     */
+    private static int escape( byte[] bytes, int from, int to, byte[] json, int at )
+    {
+        for( int i = from; i < to; i++ )
+        {
+            byte c = bytes[ i ];
+            switch( c )
+            {
+            case '"':
+            case '\\':
+                json[ at++ ] = '\\';
+                json[ at++ ] = c;
+                break;
+            case '\n':
+                json[ at++ ] = '\\';
+                json[ at++ ] = 'n';
+                break;
+            case '\r':
+                json[ at++ ] = '\\';
+                json[ at++ ] = 'r';
+                break;
+            case '\t':
+                json[ at++ ] = '\\';
+                json[ at++ ] = 't';
+                break;
+            default:
+                if( c >= 0 && c < 0x20 )
+                {
+                    json[ at++ ] = '\\';
+                    json[ at++ ] = 'u';
+                    json[ at++ ] = '0';
+                    json[ at++ ] = '0';
+                    json[ at++ ] = (byte) HEX[ c >> 4 ];
+                    json[ at++ ] = (byte) HEX[ c & 0xF ];
+                }
+                else
+                {
+                    json[ at++ ] = c;
+                }
+            }
+        }
+        return at;
+    }
+
+    private static byte[] ascii( String text )
+    {
+        byte[] bytes = new byte[text.length()];
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            bytes[ i ] = (byte) text.charAt( i );
+        }
+        return bytes;
+    }
+
+    private final class Encoder
+    {
+        private final byte[] in;
+        private final int end;
+        private int pos;
+        private byte[] buffer;
+        private int count;
+
+        private Encoder( byte[] in, int pos, int end, int length )
+        {
+            this.in = in;
+            this.pos = pos;
+            this.end = end;
+            // The binary state is nearly always smaller than the JSON.
+            buffer = new byte[ Math.max( 16, length ) ];
+        }
+
+        private void value( int keys )
+            throws IOException
+        {
+            skipWhitespace();
+            if( pos == end )
+            {
+                throw error( "Unexpected end of the state" );
+            }
+            byte c = in[ pos ];
+            switch( c )
+            {
+            case '{':
+                pos++;
+                writeByte( OBJECT );
+                object( keys );
+                return;
+            case '[':
+                pos++;
+                writeByte( ARRAY );
+                array();
+                return;
+            case '"':
+                pos++;
+                writeByte( STRING );
+                string();
+                return;
+            case 't':
+                literal( "true" );
+                writeByte( TRUE );
+                return;
+            case 'f':
+                literal( "false" );
+                writeByte( FALSE );
+                return;
+            case 'n':
+                literal( "null" );
+                writeByte( NULL );
+                return;
+            default:
+                if( c == '-' || ( c >= '0' && c <= '9' ) )
+                {
+                    number();
+                    return;
+                }
+                throw error( "Unexpected character '" + (char) c + "'" );
+            }
+        }
+
+        private void object( int keys )
+            throws IOException
+        {
+            skipWhitespace();
+            if( pos < end && in[ pos ] == '}' )
+            {
+                pos++;
+                writeVarint( END_OF_OBJECT );
+                return;
+            }
+            while( true )
+            {
+                skipWhitespace();
+                expect( '"' );
+                // Written as an inline name, which is replaced by the number if the dictionary has one.
+                int start = count;
+                writeVarint( INLINE_NAME );
+                string();
+                int text = start + 1;
+                while( ( buffer[ text ] & 0x80 ) != 0 )
+                {
+                    text++;
+                }
+                text++;
+                boolean schemaSection = keys == STATE_KEYS && isSchemaSection( text, count - text );
+                if( keys != DATA_KEYS )
+                {
+                    int number = nameNumber( buffer, text, count - text );
+                    if( number >= 0 )
+                    {
+                        count = start;
+                        writeVarint( number + FIRST_NAME_NUMBER );
+                    }
+                }
+                skipWhitespace();
+                expect( ':' );
+                value( schemaSection ? SCHEMA_KEYS : DATA_KEYS );
+                skipWhitespace();
+                if( pos < end && in[ pos ] == ',' )
+                {
+                    pos++;
+                    continue;
+                }
+                expect( '}' );
+                writeVarint( END_OF_OBJECT );
+                return;
+            }
+        }
+
+        private boolean isSchemaSection( int offset, int length )
+        {
+            for( byte[] section : SCHEMA_SECTIONS )
+            {
+                if( section.length == length && NameTable.equal( section, buffer, offset, length ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void array()
+            throws IOException
+        {
+            skipWhitespace();
+            if( pos < end && in[ pos ] == ']' )
+            {
+                pos++;
+                writeByte( END );
+                return;
+            }
+            while( true )
+            {
+                value( DATA_KEYS );
+                skipWhitespace();
+                if( pos < end && in[ pos ] == ',' )
+                {
+                    pos++;
+                    continue;
+                }
+                expect( ']' );
+                writeByte( END );
+                return;
+            }
+        }
+
+        /**
+         * Writes the string that starts at pos, after the opening quote, as a length and the UTF-8 bytes.
+         */
+        private void string()
+            throws IOException
+        {
+            int start = pos;
+            int stop = start;
+            while( stop < end && in[ stop ] != '"' && in[ stop ] != '\\' )
+            {
+                stop++;
+            }
+            pos = stop;
+            if( pos == end )
+            {
+                throw error( "Unterminated string" );
+            }
+            if( in[ pos ] == '"' )
+            {
+                writeVarint( pos - start );
+                writeBytes( in, start, pos - start );
+                pos++;
+                return;
+            }
+            StringBuilder text = new StringBuilder( new String( in, start, pos - start, "UTF-8" ) );
+            int from = pos;
+            while( true )
+            {
+                if( pos == end )
+                {
+                    throw error( "Unterminated string" );
+                }
+                byte c = in[ pos ];
+                if( c == '"' )
+                {
+                    text.append( new String( in, from, pos - from, "UTF-8" ) );
+                    pos++;
+                    break;
+                }
+                if( c != '\\' )
+                {
+                    pos++;
+                    continue;
+                }
+                text.append( new String( in, from, pos - from, "UTF-8" ) );
+                if( pos + 1 == end )
+                {
+                    throw error( "Unterminated string" );
+                }
+                byte escaped = in[ pos + 1 ];
+                pos += 2;
+                switch( escaped )
+                {
+                case '"':
+                case '\\':
+                case '/':
+                    text.append( (char) escaped );
+                    break;
+                case 'b':
+                    text.append( '\b' );
+                    break;
+                case 'f':
+                    text.append( '\f' );
+                    break;
+                case 'n':
+                    text.append( '\n' );
+                    break;
+                case 'r':
+                    text.append( '\r' );
+                    break;
+                case 't':
+                    text.append( '\t' );
+                    break;
+                case 'u':
+                    if( pos + 4 > end )
+                    {
+                        throw error( "Unterminated escape" );
+                    }
+                    try
+                    {
+                        text.append( (char) Integer.parseInt( new String( in, pos, 4, "US-ASCII" ), 16 ) );
+                    }
+                    catch( NumberFormatException e )
+                    {
+                        throw error( "Illegal escape" );
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    throw error( "Illegal escape" );
+                }
+                from = pos;
+            }
+            writeString( text.toString() );
+        }
+
+        private void number()
+            throws IOException
+        {
+            int start = pos;
+            boolean negative = in[ pos ] == '-';
+            if( negative )
+            {
+                pos++;
+            }
+            long value = 0;
+            int digits = 0;
+            while( pos < end && in[ pos ] >= '0' && in[ pos ] <= '9' )
+            {
+                value = value * 10 + ( in[ pos ] - '0' );
+                digits++;
+                pos++;
+            }
+            if( digits == 0 )
+            {
+                throw error( "Illegal number" );
+            }
+            boolean fraction = false;
+            while( pos < end && ( in[ pos ] == '.' || in[ pos ] == 'e' || in[ pos ] == 'E' || in[ pos ] == '+'
+                                  || in[ pos ] == '-' || ( in[ pos ] >= '0' && in[ pos ] <= '9' ) ) )
+            {
+                fraction = true;
+                pos++;
+            }
+            // Only integers that are written back the same way are kept as numbers.
+            boolean canonical = digits <= 18
+                                && ( digits == 1 || in[ start + ( negative ? 1 : 0 ) ] != '0' )
+                                && !( negative && value == 0 );
+            if( !fraction && canonical )
+            {
+                writeByte( INTEGER );
+                long signed = negative ? -value : value;
+                writeVarlong( ( signed << 1 ) ^ ( signed >> 63 ) );
+            }
+            else
+            {
+                writeByte( NUMBER );
+                writeVarint( pos - start );
+                writeBytes( in, start, pos - start );
+            }
+        }
+
+        private void literal( String literal )
+            throws IOException
+        {
+            if( pos + literal.length() > end )
+            {
+                throw error( "Unexpected end of the state" );
+            }
+            for( int i = 0; i < literal.length(); i++ )
+            {
+                if( in[ pos + i ] != literal.charAt( i ) )
+                {
+                    throw error( "Unexpected character '" + (char) in[ pos + i ] + "'" );
+                }
+            }
+            pos += literal.length();
+        }
+
+        private void expect( char c )
+            throws IOException
+        {
+            if( pos == end )
+            {
+                throw error( "Unexpected end of the state" );
+            }
+            if( in[ pos ] != c )
+            {
+                throw error( "Expected '" + c + "' but found '" + (char) in[ pos ] + "'" );
+            }
+            pos++;
+        }
+
+        private void skipWhitespace()
+        {
+            while( pos < end && ( in[ pos ] == ' ' || in[ pos ] == '\n' || in[ pos ] == '\r' || in[ pos ] == '\t' ) )
+            {
+                pos++;
+            }
+        }
+
+        private IOException error( String message )
+        {
+            return new IOException( message + " at " + pos + " of the JSON state." );
+        }
+
+        private void writeString( String text )
+            throws UnsupportedEncodingException
+        {
+            byte[] bytes = text.getBytes( "UTF-8" );
+            writeVarint( bytes.length );
+            writeBytes( bytes, 0, bytes.length );
+        }
+
+        private void writeVarint( int value )
+        {
+            writeVarlong( value & 0xFFFFFFFFL );
+        }
+
+        private void writeVarlong( long value )
+        {
+            while( ( value & ~0x7FL ) != 0 )
+            {
+                writeByte( (int) ( ( value & 0x7F ) | 0x80 ) );
+                value >>>= 7;
+            }
+            writeByte( (int) value );
+        }
+
+        private void writeByte( int value )
+        {
+            if( count == buffer.length )
+            {
+                buffer = Arrays.copyOf( buffer, buffer.length * 2 );
+            }
+            buffer[ count++ ] = (byte) value;
+        }
+
+        private void writeBytes( byte[] bytes, int offset, int length )
+        {
+            if( count + length > buffer.length )
+            {
+                buffer = Arrays.copyOf( buffer, Math.max( buffer.length * 2, count + length ) );
+            }
+            System.arraycopy( bytes, offset, buffer, count, length );
+            count += length;
+        }
+    }
+
+    private final class Decoder
+    {
+        private final byte[] in;
+        private final int end;
+        private int pos;
+        // The UTF-8 bytes of the JSON, which are decoded once, at the end, rather than character by character.
+        private byte[] json;
+        private int length;
+
+        private Decoder( byte[] in, int pos, int end )
+        {
+            this.in = in;
+            this.pos = pos;
+            this.end = end;
+            // The JSON is usually less than twice the size of the binary state.
+            json = new byte[ Math.max( 16, ( end - pos ) * 2 ) ];
+        }
+
+        private void value( int tag )
+            throws IOException
+        {
+            switch( tag )
+            {
+            case OBJECT:
+                append( '{' );
+                boolean first = true;
+                int key;
+                while( ( key = readVarint() ) != END_OF_OBJECT )
+                {
+                    if( !first )
+                    {
+                        append( ',' );
+                    }
+                    first = false;
+                    if( key == INLINE_NAME )
+                    {
+                        string();
+                    }
+                    else
+                    {
+                        byte[] name = quotedName( key - FIRST_NAME_NUMBER );
+                        append( name, 0, name.length );
+                    }
+                    append( ':' );
+                    value( readByte() );
+                }
+                append( '}' );
+                return;
+            case ARRAY:
+                append( '[' );
+                int element = readByte();
+                while( element != END )
+                {
+                    value( element );
+                    element = readByte();
+                    if( element != END )
+                    {
+                        append( ',' );
+                    }
+                }
+                append( ']' );
+                return;
+            case STRING:
+                string();
+                return;
+            case INTEGER:
+                long value = readVarlong();
+                integer( ( value >>> 1 ) ^ -( value & 1 ) );
+                return;
+            case NUMBER:
+                int size = readVarint();
+                check( size );
+                append( in, pos, size );
+                pos += size;
+                return;
+            case TRUE:
+                append( TRUE_TEXT, 0, TRUE_TEXT.length );
+                return;
+            case FALSE:
+                append( FALSE_TEXT, 0, FALSE_TEXT.length );
+                return;
+            case NULL:
+                append( NULL_TEXT, 0, NULL_TEXT.length );
+                return;
+            default:
+                throw new IOException( "Unknown tag " + tag + " in binary state." );
+            }
+        }
+
+        /**
+         * Appends the string at pos as a quoted JSON string. The bytes up to the first one that needs an escape,
+         * which is nearly always all of them, are copied as they are.
+         */
+        private void string()
+            throws IOException
+        {
+            int size = readVarint();
+            check( size );
+            int stop = pos + size;
+            int plain = plainEnd( in, pos, stop );
+            append( '"' );
+            append( in, pos, plain - pos );
+            if( plain < stop )
+            {
+                ensure( ( stop - plain ) * MAX_ESCAPE_LENGTH );
+                length = escape( in, plain, stop, json, length );
+            }
+            pos = stop;
+            append( '"' );
+        }
+
+        private void integer( long value )
+        {
+            if( value == Long.MIN_VALUE )
+            {
+                byte[] text = ascii( Long.toString( value ) );
+                append( text, 0, text.length );
+                return;
+            }
+            ensure( 20 );
+            if( value < 0 )
+            {
+                json[ length++ ] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for( long power = 10; digits < 19 && value >= power; power = power * 10 )
+            {
+                digits++;
+            }
+            length += digits;
+            int at = length;
+            // Nine digits at a time in int arithmetic, as most integers are timestamps or small.
+            while( value > Integer.MAX_VALUE )
+            {
+                long high = value / 1000000000L;
+                int low = (int) ( value - high * 1000000000L );
+                for( int i = 0; i < 9; i++ )
+                {
+                    json[ --at ] = (byte) ( '0' + low % 10 );
+                    low = low / 10;
+                }
+                value = high;
+            }
+            int rest = (int) value;
+            do
+            {
+                json[ --at ] = (byte) ( '0' + rest % 10 );
+                rest = rest / 10;
+            }
+            while( rest != 0 );
+        }
+
+        private void append( int c )
+        {
+            ensure( 1 );
+            json[ length++ ] = (byte) c;
+        }
+
+        private void append( byte[] bytes, int offset, int size )
+        {
+            ensure( size );
+            System.arraycopy( bytes, offset, json, length, size );
+            length += size;
+        }
+
+        private void ensure( int size )
+        {
+            if( length + size > json.length )
+            {
+                json = Arrays.copyOf( json, Math.max( json.length * 2, length + size ) );
+            }
+        }
+
+        private String toJson()
+            throws UnsupportedEncodingException
+        {
+            return new String( json, 0, length, "UTF-8" );
+        }
+
+        private int readVarint()
+            throws IOException
+        {
+            long value = readVarlong();
+            if( value > Integer.MAX_VALUE )
+            {
+                throw new IOException( "Corrupt length in binary state." );
+            }
+            return (int) value;
+        }
+
+        private long readVarlong()
+            throws IOException
+        {
+            long value = 0;
+            for( int shift = 0; shift < 64; shift += 7 )
+            {
+                int b = readByte();
+                value |= (long) ( b & 0x7F ) << shift;
+                if( ( b & 0x80 ) == 0 )
+                {
+                    return value;
+                }
+            }
+            throw new IOException( "Corrupt varint in binary state." );
+        }
+
+        private int readByte()
+            throws IOException
+        {
+            if( pos == end )
+            {
+                throw new IOException( "Unexpected end of binary state." );
+            }
+            return in[ pos++ ] & 0xFF;
+        }
+
+        private void check( int length )
+            throws IOException
+        {
+            if( length > end - pos )
+            {
+                throw new IOException( "Unexpected end of binary state." );
+            }
+        }
+    }
+
+    /**
+     * An open addressing hash table from the UTF-8 bytes of names to their numbers, which is never changed once it
+     * is published, so that it is read without a lock.
+     */
+    private static final class NameTable
+    {
+        private static final int NOT_FOUND = Integer.MIN_VALUE;
+
+        private final byte[][] names;
+        private final int[] hashes;
+        private final int[] numbers;
+        private final int count;
+
+        private NameTable( int capacity )
+        {
+            this( new byte[capacity][], new int[capacity], new int[capacity], 0 );
+        }
+
+        private NameTable( byte[][] names, int[] hashes, int[] numbers, int count )
+        {
+            this.names = names;
+            this.hashes = hashes;
+            this.numbers = numbers;
+            this.count = count;
+        }
+
+        private int find( byte[] bytes, int offset, int length, int hash )
+        {
+            int mask = names.length - 1;
+            for( int slot = hash & mask; names[ slot ] != null; slot = ( slot + 1 ) & mask )
+            {
+                if( hashes[ slot ] == hash && names[ slot ].length == length
+                    && equal( names[ slot ], bytes, offset, length ) )
+                {
+                    return numbers[ slot ];
+                }
+            }
+            return NOT_FOUND;
+        }
+
+        /**
+         * @return A copy of the table with the name added, at most half full.
+         */
+        private NameTable with( byte[] name, int hash, int number )
+        {
+            int capacity = ( count + 1 ) * 2 > names.length ? names.length * 2 : names.length;
+            NameTable table = new NameTable( capacity );
+            for( int i = 0; i < names.length; i++ )
+            {
+                if( names[ i ] != null )
+                {
+                    table.insert( names[ i ], hashes[ i ], numbers[ i ] );
+                }
+            }
+            table.insert( name, hash, number );
+            return new NameTable( table.names, table.hashes, table.numbers, count + 1 );
+        }
+
+        private void insert( byte[] name, int hash, int number )
+        {
+            int mask = names.length - 1;
+            int slot = hash & mask;
+            while( names[ slot ] != null )
+            {
+                slot = ( slot + 1 ) & mask;
+            }
+            names[ slot ] = name;
+            hashes[ slot ] = hash;
+            numbers[ slot ] = number;
+        }
+
+        private static int hash( byte[] bytes, int offset, int length )
+        {
+            int hash = length;
+            for( int i = offset; i < offset + length; i++ )
+            {
+                hash = 31 * hash + bytes[ i ];
+            }
+            // Spread, as the slot is taken from the low bits.
+            return hash ^ ( hash >>> 16 );
+        }
+
+        private static boolean equal( byte[] name, byte[] bytes, int offset, int length )
+        {
+            for( int i = 0; i < length; i++ )
+            {
+                if( name[ i ] != bytes[ offset + i ] )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
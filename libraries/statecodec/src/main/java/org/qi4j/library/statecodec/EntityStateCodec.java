@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.library.statecodec;
+
+import java.io.IOException;
+
+/**
+ * Format that a MapEntityStore keeps the entity states in, instead of the JSON text that it is given by the
+ * MapEntityStoreMixin, and has to give back to it.
+ * <p/>
+ * A store that turns a codec on may still hold states that were written as JSON before, so the codec must be able
+ * to tell its own format from JSON.
+ */
+public interface EntityStateCodec
+{
+    /**
+     * @param json   The UTF-8 encoded JSON state.
+     * @param offset The offset of the state in the array.
+     * @param length The number of bytes of the state.
+     * @return The encoded state.
+     * @throws IOException if the state is not valid JSON, or can not be encoded.
+     */
+    byte[] encode( byte[] json, int offset, int length )
+        throws IOException;
+
+    /**
+     * @param data   The stored state.
+     * @param offset The offset of the state in the array.
+     * @param length The number of bytes of the state.
+     * @return True if the state is in the format of the codec, and false if it is JSON.
+     */
+    boolean isEncoded( byte[] data, int offset, int length );
+
+    /**
+     * @param data   The state, in the format of the codec.
+     * @param offset The offset of the state in the array.
+     * @param length The number of bytes of the state.
+     * @return The state as JSON text.
+     * @throws IOException if the state can not be decoded.
+     */
+    String decode( byte[] data, int offset, int length )
+        throws IOException;
+}
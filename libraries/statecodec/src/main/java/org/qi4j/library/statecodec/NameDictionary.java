@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.library.statecodec;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The names that the BinaryStateCodec refers to by number, which are the keys of the states and the names of their
+ * properties and associations.
+ * <p/>
+ * Numbers are handed out in the order that the names are first seen, and are never changed or reused. With a file,
+ * each new name is appended, and sync() forces the appended names to disk. The store calls it before it commits
+ * the states that were encoded, so a name is always durable before any state that refers to it. A name that was
+ * torn by a crash was never used, and is dropped when the file is opened again.
+ * <p/>
+ * Names that are known are looked up without a lock, as every state that is read or written looks up all of its
+ * keys. Only adding a name is serialised.
+ */
+public final class NameDictionary
+{
+    /**
+     * Number of names at which the dictionary stops growing, in case a schema has more names than that. Names that
+     * are not in the dictionary are written out in full.
+     */
+    public static final int MAX_NAMES = 65536;
+
+    /**
+     * Length, in characters, of the longest name that is put in the dictionary.
+     */
+    public static final int MAX_NAME_LENGTH = 256;
+
+    // The names by number, of which the first size are set. Replaced when it grows, and set before size is.
+    private volatile String[] names = new String[64];
+    private volatile int size;
+    private final ConcurrentHashMap<String, Integer> numbers = new ConcurrentHashMap<String, Integer>();
+    private RandomAccessFile file;
+    private final boolean readOnly;
+    private boolean unsynced;
+
+    /**
+     * Creates a dictionary that is only kept in memory.
+     */
+    public NameDictionary()
+    {
+        readOnly = false;
+    }
+
+    /**
+     * Opens the dictionary in the file, which is created if it doesn't exist.
+     *
+     * @param file The file of the dictionary.
+     * @throws IOException if the file can not be read.
+     */
+    public NameDictionary( File file )
+        throws IOException
+    {
+        this( file, false );
+    }
+
+    /**
+     * Opens the dictionary in the file. A read-only dictionary leaves the file as it is, and gives no number to
+     * names that it doesn't have, so they are written out in full.
+     *
+     * @param file     The file of the dictionary, which must exist if it is opened read-only.
+     * @param readOnly true to only read the file, for tools that look at the states of a store.
+     * @throws IOException if the file can not be read.
+     */
+    public NameDictionary( File file, boolean readOnly )
+        throws IOException
+    {
+        this.readOnly = readOnly;
+        this.file = new RandomAccessFile( file, readOnly ? "r" : "rw" );
+        long end = 0;
+        try
+        {
+            while( end < this.file.length() )
+            {
+                String name = this.file.readUTF();
+                end = this.file.getFilePointer();
+                add( name );
+            }
+        }
+        catch( EOFException e )
+        {
+            // Torn by a crash while the name was appended.
+        }
+        if( readOnly )
+        {
+            this.file.close();
+            this.file = null;
+            return;
+        }
+        this.file.setLength( end );
+        this.file.seek( end );
+    }
+
+    /**
+     * @param name The name.
+     * @return The number of the name, which is added if it is new, or -1 if the name can not be added.
+     * @throws IOException if the new name can not be appended to the file.
+     */
+    public int number( String name )
+        throws IOException
+    {
+        Integer number = numbers.get( name );
+        if( number != null )
+        {
+            return number;
+        }
+        return addNumber( name );
+    }
+
+    private synchronized int addNumber( String name )
+        throws IOException
+    {
+        Integer number = numbers.get( name );
+        if( number != null )
+        {
+            return number;
+        }
+        if( readOnly || size >= MAX_NAMES || name.length() > MAX_NAME_LENGTH )
+        {
+            return -1;
+        }
+        if( file != null )
+        {
+            file.writeUTF( name );
+            unsynced = true;
+        }
+        return add( name );
+    }
+
+    private int add( String name )
+    {
+        int number = size;
+        if( number == names.length )
+        {
+            names = Arrays.copyOf( names, number * 2 );
+        }
+        names[ number ] = name;
+        // Before the number can be looked up, so that a state that refers to it can always be decoded.
+        size = number + 1;
+        numbers.put( name, number );
+        return number;
+    }
+
+    /**
+     * @param number The number of a name.
+     * @return The name.
+     * @throws IOException if there is no name with the number.
+     */
+    public String name( int number )
+        throws IOException
+    {
+        // The size is read first, so the names array has all of the names below it.
+        if( number < 0 || number >= size )
+        {
+            throw new IOException( "Unknown name number " + number + "." );
+        }
+        return names[ number ];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Forces the names that were added since the last sync to disk. Does nothing if there are none, which is the
+     * case for nearly every commit once the names of the schema are known.
+     *
+     * @throws IOException if the names can not be written.
+     */
+    public synchronized void sync()
+        throws IOException
+    {
+        if( unsynced && file != null )
+        {
+            file.getFD().sync();
+            unsynced = false;
+        }
+    }
+
+    public synchronized void close()
+        throws IOException
+    {
+        if( file != null )
+        {
+            sync();
+            file.close();
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.library.statecodec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the binary states with the JSON states that the map stores write, in size and in the time it takes to
+ * write and read them. Writing JSON is encoding the text as UTF-8 and reading it is decoding the UTF-8, which is
+ * what the stores do around the JSON that the MapEntityStoreMixin reads and writes.
+ */
+public class BinaryStateCodecPerformanceTest
+{
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    public void whenEncodingStatesThenReportSizeAndThroughput()
+        throws Exception
+    {
+        BinaryStateCodec codec = new BinaryStateCodec( new NameDictionary() );
+        String state = BinaryStateCodecTest.STATE;
+        byte[] json = state.getBytes( "UTF-8" );
+        byte[] encoded = codec.encode( json, 0, json.length );
+        System.out.println( "JSON state: " + json.length + " bytes, binary state: " + encoded.length + " bytes ("
+                            + ( 100 * encoded.length / json.length ) + "%)." );
+
+        for( int round = 0; round < 3; round++ )
+        {
+            long size = 0;
+            long start = System.nanoTime();
+            for( int i = 0; i < ITERATIONS; i++ )
+            {
+                size += state.getBytes( "UTF-8" ).length;
+            }
+            report( "JSON write", start );
+
+            start = System.nanoTime();
+            for( int i = 0; i < ITERATIONS; i++ )
+            {
+                size += codec.encode( json, 0, json.length ).length;
+            }
+            report( "Binary write", start );
+
+            start = System.nanoTime();
+            for( int i = 0; i < ITERATIONS; i++ )
+            {
+                size += new String( json, 0, json.length, "UTF-8" ).length();
+            }
+            report( "JSON read", start );
+
+            start = System.nanoTime();
+            for( int i = 0; i < ITERATIONS; i++ )
+            {
+                size += codec.decode( encoded, 0, encoded.length ).length();
+            }
+            report( "Binary read", start );
+            Assert.assertTrue( "Nothing written or read.", size > 0 );
+        }
+    }
+
+    private static void report( String what, long start )
+    {
+        long time = System.nanoTime() - start;
+        System.out.println( what + ": " + ( ITERATIONS * 1000000000L / time ) + " states/s." );
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.library.statecodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BinaryStateCodecTest
+{
+    static final String STATE = "{\"identity\":\"7c5d1d2c-9a3e-4f1b-b1e0-6f2d0c9e1a44-0\","
+                                + "\"application_version\":\"1.0\","
+                                + "\"type\":\"org.qi4j.test.entity.performance.SimpleProduct\","
+                                + "\"version\":\"7c5d1d2c-9a3e-4f1b-b1e0-6f2d0c9e1a44-12\","
+                                + "\"modified\":1281613845621,"
+                                + "\"properties\":{\"identity\":\"7c5d1d2c-9a3e-4f1b-b1e0-6f2d0c9e1a44-0\","
+                                + "\"name\":\"Product 12\",\"price\":1295,\"weight\":0.75,\"inStock\":true,"
+                                + "\"description\":null,\"tags\":[\"blue\",\"large\"]},"
+                                + "\"associations\":{\"manufacturer\":\"7c5d1d2c-9a3e-4f1b-b1e0-6f2d0c9e1a44-3\"},"
+                                + "\"manyassociations\":{\"parts\":[\"7c5d1d2c-9a3e-4f1b-b1e0-6f2d0c9e1a44-4\","
+                                + "\"7c5d1d2c-9a3e-4f1b-b1e0-6f2d0c9e1a44-5\"]}}";
+
+    @Test
+    public void whenEncodingStatesThenExpectSameJsonBack()
+        throws Exception
+    {
+        String[] states = {
+            STATE,
+            "{}",
+            "[]",
+            "{\"a\":[],\"b\":{},\"c\":[[1,-2],[{}]]}",
+            "{\"numbers\":[0,-1,9223372036854775807,-9223372036854775808,123456789012345678901234567890,1.5e-7,-0.0]}",
+            "{\"integers\":[2147483647,2147483648,-2147483649,1000000000,999999999999999999,-999999999999999999]}",
+            "{\"text\":\"Quote \\\" backslash \\\\ newline \\n tab \\t bell \\u0007 \u00e5\u00e4\u00f6 \ud834\udd1e\"}",
+            "{\"\\\"key\\\"\":\"value\",\"\u00e5\":\"\"}"
+        };
+        BinaryStateCodec codec = new BinaryStateCodec( new NameDictionary() );
+        for( String state : states )
+        {
+            Assert.assertEquals( "Incorrect state.", state, roundTrip( codec, state ) );
+        }
+    }
+
+    @Test
+    public void whenEncodingJsonWithWhitespaceAndEscapesThenExpectCompactJsonBack()
+        throws Exception
+    {
+        BinaryStateCodec codec = new BinaryStateCodec( new NameDictionary() );
+        Assert.assertEquals( "Incorrect state.", "{\"a\":[1,true,null],\"b\":\"/x\u00e5\"}",
+                             roundTrip( codec, " {\n\t\"a\" : [ 1 , true , null ] ,\r\n \"b\":\"\\/x\\u00E5\" } " ) );
+    }
+
+    @Test
+    public void whenEncodingStateThenExpectSmallerThanJson()
+        throws Exception
+    {
+        BinaryStateCodec codec = new BinaryStateCodec( new NameDictionary() );
+        byte[] json = STATE.getBytes( "UTF-8" );
+        byte[] encoded = codec.encode( json, 0, json.length );
+        Assert.assertTrue( "Binary state not smaller, " + encoded.length + " bytes.", encoded.length < json.length * 3 / 4 );
+        Assert.assertTrue( "Not encoded.", codec.isEncoded( encoded, 0, encoded.length ) );
+        Assert.assertFalse( "JSON taken as encoded.", codec.isEncoded( json, 0, json.length ) );
+    }
+
+    @Test
+    public void whenEncodingMalformedJsonThenExpectException()
+        throws Exception
+    {
+        String[] states = { "", "{", "{\"a\"}", "{\"a\":1,}", "[1 2]", "\"abc", "tru", "{\"a\":\"\\x\"}", "{} {}", "-" };
+        BinaryStateCodec codec = new BinaryStateCodec( new NameDictionary() );
+        for( String state : states )
+        {
+            try
+            {
+                roundTrip( codec, state );
+                Assert.fail( "Malformed state '" + state + "' encoded." );
+            }
+            catch( IOException e )
+            {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void whenReopeningDictionaryThenExpectStatesDecoded()
+        throws Exception
+    {
+        File dir = new File( "statecodec-test" );
+        dir.mkdirs();
+        File file = new File( dir, "state-names.dict" );
+        try
+        {
+            NameDictionary names = new NameDictionary( file );
+            byte[] json = STATE.getBytes( "UTF-8" );
+            byte[] encoded = new BinaryStateCodec( names ).encode( json, 0, json.length );
+            int size = names.size();
+            names.close();
+
+            // A name that was torn when it was appended is dropped.
+            RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            raf.seek( raf.length() );
+            raf.writeShort( 10 );
+            raf.write( "torn".getBytes( "UTF-8" ) );
+            raf.close();
+
+            names = new NameDictionary( file );
+            Assert.assertEquals( "Incorrect number of names.", size, names.size() );
+            Assert.assertEquals( "Incorrect state.", STATE, new BinaryStateCodec( names ).decode( encoded, 0, encoded.length ) );
+            Assert.assertEquals( "New name not appended after the others.", size, names.number( "habba" ) );
+            names.close();
+            names = new NameDictionary( file );
+            Assert.assertEquals( "Incorrect number of names.", size + 1, names.size() );
+            names.close();
+        }
+        finally
+        {
+            delete( dir );
+        }
+    }
+
+    @Test
+    public void whenOpeningDictionaryReadOnlyThenExpectFileUntouched()
+        throws Exception
+    {
+        File dir = new File( "statecodec-test" );
+        dir.mkdirs();
+        File file = new File( dir, "state-names.dict" );
+        try
+        {
+            NameDictionary names = new NameDictionary( file );
+            byte[] json = STATE.getBytes( "UTF-8" );
+            byte[] encoded = new BinaryStateCodec( names ).encode( json, 0, json.length );
+            int size = names.size();
+            names.close();
+            RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            raf.seek( raf.length() );
+            raf.writeShort( 10 );
+            raf.write( "torn".getBytes( "UTF-8" ) );
+            long length = raf.length();
+            raf.close();
+
+            names = new NameDictionary( file, true );
+            Assert.assertEquals( "Incorrect number of names.", size, names.size() );
+            Assert.assertEquals( "Incorrect state.", STATE, new BinaryStateCodec( names ).decode( encoded, 0, encoded.length ) );
+            Assert.assertEquals( "New name added to a read-only dictionary.", -1, names.number( "habba" ) );
+            Assert.assertEquals( "Incorrect state.", "{\"habba\":1}", roundTrip( new BinaryStateCodec( names ), "{\"habba\":1}" ) );
+            names.close();
+            Assert.assertEquals( "Read-only dictionary changed the file.", length, file.length() );
+        }
+        finally
+        {
+            delete( dir );
+        }
+    }
+
+    @Test
+    public void whenSyncingDictionaryThenExpectNewNamesInFile()
+        throws Exception
+    {
+        File dir = new File( "statecodec-test" );
+        dir.mkdirs();
+        File file = new File( dir, "state-names.dict" );
+        try
+        {
+            NameDictionary names = new NameDictionary( file );
+            byte[] json = STATE.getBytes( "UTF-8" );
+            byte[] encoded = new BinaryStateCodec( names ).encode( json, 0, json.length );
+            names.sync();
+            NameDictionary copy = new NameDictionary( file, true );
+            Assert.assertEquals( "Names not written.", names.size(), copy.size() );
+            Assert.assertEquals( "Incorrect state.", STATE, new BinaryStateCodec( copy ).decode( encoded, 0, encoded.length ) );
+            copy.close();
+            names.close();
+        }
+        finally
+        {
+            delete( dir );
+        }
+    }
+
+    @Test
+    public void whenEncodingMapKeysThenExpectOnlySchemaNamesInDictionary()
+        throws Exception
+    {
+        NameDictionary names = new NameDictionary();
+        BinaryStateCodec codec = new BinaryStateCodec( names );
+        roundTrip( codec, STATE );
+        int size = names.size();
+        for( int i = 0; i < 100; i++ )
+        {
+            String state = "{\"identity\":\"habba\",\"properties\":{\"name\":\"Habba\","
+                           + "\"settings\":{\"key" + i + "\":\"value\",\"nested\":{\"inner" + i + "\":" + i + "}},"
+                           + "\"list\":[{\"element" + i + "\":true}]},"
+                           + "\"associations\":{},\"manyassociations\":{}}";
+            Assert.assertEquals( "Incorrect state.", state, roundTrip( codec, state ) );
+        }
+        Assert.assertEquals( "Map keys put in the dictionary.", size + 2, names.size() );
+        Assert.assertTrue( "Property name not in the dictionary.", names.number( "settings" ) >= 0 );
+    }
+
+    @Test
+    public void whenEncodingAndDecodingInManyThreadsThenExpectSameJsonBack()
+        throws Exception
+    {
+        final BinaryStateCodec codec = new BinaryStateCodec( new NameDictionary() );
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for( int t = 0; t < threads.length; t++ )
+        {
+            final int thread = t;
+            threads[ t ] = new Thread()
+            {
+                @Override public void run()
+                {
+                    try
+                    {
+                        for( int i = 0; i < 500; i++ )
+                        {
+                            // New property names all the time, which the threads add to the dictionary together.
+                            String state = "{\"identity\":\"habba\",\"properties\":{\"name" + ( i % 50 ) + "\":\"Habba\","
+                                           + "\"value" + thread + "_" + i + "\":" + i + "},\"associations\":{}}";
+                            Assert.assertEquals( "Incorrect state.", state, roundTrip( codec, state ) );
+                        }
+                    }
+                    catch( Throwable e )
+                    {
+                        failure[ 0 ] = e;
+                    }
+                }
+            };
+            threads[ t ].start();
+        }
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+        Assert.assertNull( "Failed in a thread: " + failure[ 0 ], failure[ 0 ] );
+    }
+
+    private static void delete( File dir )
+    {
+        File[] files = dir.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+            {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static String roundTrip( BinaryStateCodec codec, String state )
+        throws IOException
+    {
+        byte[] json = ( "  " + state ).getBytes( "UTF-8" );
+        byte[] encoded = codec.encode( json, 2, json.length - 2 );
+        byte[] stored = new byte[encoded.length + 3];
+        System.arraycopy( encoded, 0, stored, 3, encoded.length );
+        return codec.decode( stored, 3, encoded.length );
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.library.utf8;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that encodes the characters as UTF-8 straight into a byte buffer, instead of collecting them in a
+ * StringWriter that is then copied to a String and encoded to a byte array.
+ * <p/>
+ * The buffer is taken from a pool of one buffer per thread, and grown as needed. When the writer is closed the
+ * encoded bytes are handed to {@link #closed(byte[], int)}, after which the buffer goes back to the pool, so the
+ * bytes must be used or copied before that returns. An entity store that writes its states through this writer
+ * therefore only allocates the copy that the backend keeps, if any.
+ * <p/>
+ * Unpaired surrogates are encoded as '?', like String.getBytes( "UTF-8" ) does.
+ */
+public abstract class PooledUtf8Writer
+    extends Writer
+{
+    private static final int INITIAL_SIZE = 4096;
+    // Larger buffers are left to the garbage collector, so that a single huge state doesn't stay in the pool.
+    private static final int MAX_POOLED_SIZE = 1024 * 1024;
+    private static final ThreadLocal<byte[]> pool = new ThreadLocal<byte[]>();
+
+    private byte[] buffer;
+    private int count;
+    private char highSurrogate;
+
+    protected PooledUtf8Writer()
+    {
+        buffer = pool.get();
+        if( buffer == null )
+        {
+            buffer = new byte[INITIAL_SIZE];
+        }
+        else
+        {
+            pool.set( null );
+        }
+    }
+
+    /**
+     * Called once, by close(), with the encoded characters.
+     *
+     * @param buffer The buffer, which is reused when this method returns.
+     * @param length The number of bytes in the buffer.
+     * @throws IOException if the bytes can not be written.
+     */
+    protected abstract void closed( byte[] buffer, int length )
+        throws IOException;
+
+    /**
+     * @return The number of bytes that the characters written so far are encoded to.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    @Override
+    public void write( int c )
+        throws IOException
+    {
+        checkOpen();
+        encode( (char) c );
+    }
+
+    @Override
+    public void write( char[] chars, int offset, int length )
+        throws IOException
+    {
+        checkOpen();
+        int end = offset + length;
+        for( int i = offset; i < end; i++ )
+        {
+            encode( chars[ i ] );
+        }
+    }
+
+    @Override
+    public void write( String string, int offset, int length )
+        throws IOException
+    {
+        checkOpen();
+        int end = offset + length;
+        for( int i = offset; i < end; i++ )
+        {
+            encode( string.charAt( i ) );
+        }
+    }
+
+    @Override
+    public Writer append( CharSequence chars )
+        throws IOException
+    {
+        if( chars == null )
+        {
+            write( "null" );
+            return this;
+        }
+        checkOpen();
+        int length = chars.length();
+        for( int i = 0; i < length; i++ )
+        {
+            encode( chars.charAt( i ) );
+        }
+        return this;
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if( buffer == null )
+        {
+            return;
+        }
+        if( highSurrogate != 0 )
+        {
+            highSurrogate = 0;
+            put( (byte) '?' );
+        }
+        byte[] encoded = buffer;
+        buffer = null;
+        try
+        {
+            closed( encoded, count );
+        }
+        finally
+        {
+            if( encoded.length <= MAX_POOLED_SIZE )
+            {
+                pool.set( encoded );
+            }
+        }
+    }
+
+    private void encode( char c )
+    {
+        if( highSurrogate != 0 )
+        {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if( Character.isLowSurrogate( c ) )
+            {
+                int codePoint = Character.toCodePoint( high, c );
+                ensure( 4 );
+                buffer[ count++ ] = (byte) ( 0xF0 | ( codePoint >> 18 ) );
+                buffer[ count++ ] = (byte) ( 0x80 | ( ( codePoint >> 12 ) & 0x3F ) );
+                buffer[ count++ ] = (byte) ( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) );
+                buffer[ count++ ] = (byte) ( 0x80 | ( codePoint & 0x3F ) );
+                return;
+            }
+            put( (byte) '?' );
+        }
+        if( c < 0x80 )
+        {
+            put( (byte) c );
+        }
+        else if( c < 0x800 )
+        {
+            ensure( 2 );
+            buffer[ count++ ] = (byte) ( 0xC0 | ( c >> 6 ) );
+            buffer[ count++ ] = (byte) ( 0x80 | ( c & 0x3F ) );
+        }
+        else if( Character.isHighSurrogate( c ) )
+        {
+            highSurrogate = c;
+        }
+        else if( Character.isLowSurrogate( c ) )
+        {
+            put( (byte) '?' );
+        }
+        else
+        {
+            ensure( 3 );
+            buffer[ count++ ] = (byte) ( 0xE0 | ( c >> 12 ) );
+            buffer[ count++ ] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+            buffer[ count++ ] = (byte) ( 0x80 | ( c & 0x3F ) );
+        }
+    }
+
+    private void put( byte b )
+    {
+        if( count == buffer.length )
+        {
+            grow( count + 1 );
+        }
+        buffer[ count++ ] = b;
+    }
+
+    private void ensure( int bytes )
+    {
+        if( count + bytes > buffer.length )
+        {
+            grow( count + bytes );
+        }
+    }
+
+    private void grow( int minimum )
+    {
+        byte[] grown = new byte[Math.max( buffer.length * 2, minimum )];
+        System.arraycopy( buffer, 0, grown, 0, count );
+        buffer = grown;
+    }
+
+    private void checkOpen()
+        throws IOException
+    {
+        if( buffer == null )
+        {
+            throw new IOException( "Writer is closed." );
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 Niclas Hedhman.
+ *
+ * Licensed  under the  Apache License,  Version 2.0  (the "License");
+ * you may not use  this file  except in  compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed  under the  License is distributed on an "AS IS" BASIS,
+ * WITHOUT  WARRANTIES OR CONDITIONS  OF ANY KIND, either  express  or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qi4j.library.utf8;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PooledUtf8WriterTest
+{
+    @Test
+    public void whenWritingTextThenExpectSameBytesAsStringEncoding()
+        throws Exception
+    {
+        String[] texts = {
+            "",
+            "{\"identity\":\"habba\",\"properties\":{}}",
+            "Hej hopp du glade man \u00e5\u00e4\u00f6 \u20ac",
+            "Supplementary \ud834\udd1e characters",
+            "Unpaired \ud834 high and \udd1e low surrogates",
+            "Ends with a high surrogate \ud834"
+        };
+        for( String text : texts )
+        {
+            Assert.assertArrayEquals( "Incorrect encoding of '" + text + "'.", text.getBytes( "UTF-8" ), write( text ) );
+        }
+    }
+
+    @Test
+    public void whenWritingMoreThanTheBufferThenExpectItToGrow()
+        throws Exception
+    {
+        StringBuilder text = new StringBuilder();
+        for( int i = 0; i < 10000; i++ )
+        {
+            text.append( "Habba \u00e5 " ).append( i );
+        }
+        Assert.assertArrayEquals( "Incorrect encoding.", text.toString().getBytes( "UTF-8" ), write( text ) );
+    }
+
+    @Test
+    public void whenWritingAgainThenExpectBufferReused()
+        throws Exception
+    {
+        final byte[][] buffers = new byte[2][];
+        for( int i = 0; i < 2; i++ )
+        {
+            final int index = i;
+            PooledUtf8Writer writer = new PooledUtf8Writer()
+            {
+                protected void closed( byte[] buffer, int length )
+                {
+                    buffers[ index ] = buffer;
+                }
+            };
+            writer.write( "Habba" );
+            writer.close();
+        }
+        Assert.assertSame( "Buffer not reused.", buffers[ 0 ], buffers[ 1 ] );
+    }
+
+    @Test
+    public void whenWritingAfterCloseThenExpectException()
+        throws Exception
+    {
+        PooledUtf8Writer writer = new PooledUtf8Writer()
+        {
+            protected void closed( byte[] buffer, int length )
+            {
+            }
+        };
+        writer.close();
+        writer.close();
+        try
+        {
+            writer.write( "Habba" );
+            Assert.fail( "Write after close accepted." );
+        }
+        catch( IOException e )
+        {
+            // Expected
+        }
+    }
+
+    private byte[] write( CharSequence text )
+        throws IOException
+    {
+        final byte[][] result = new byte[1][];
+        PooledUtf8Writer writer = new PooledUtf8Writer()
+        {
+            protected void closed( byte[] buffer, int length )
+            {
+                result[ 0 ] = Arrays.copyOf( buffer, length );
+            }
+        };
+        // Through all the write methods.
+        int third = text.length() / 3;
+        writer.write( text.toString(), 0, third );
+        writer.write( text.subSequence( third, 2 * third ).toString().toCharArray() );
+        writer.append( text.subSequence( 2 * third, text.length() ) );
+        writer.close();
+        return result[ 0 ];
+    }
+}